@@ -0,0 +1,142 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates a compiled expression over large batches of rows in parallel on a {@link ForkJoinPool}.
+ * The rows are split in halves, on multiples of the columnar chunk size, until a part is no larger
+ * than the sequential threshold; each part is then evaluated by one worker directly into the output
+ * array. Every row is computed by the same code whatever the split, so results are deterministic.
+ *
+ * <p>A failure does not abort the batch. If a part fails, its rows are evaluated again one at a
+ * time; failed rows are set to NaN and reported with their index and exception in the
+ * {@link BatchResult}. An evaluator is immutable and can be shared between threads.
+ */
+public final class BatchEvaluator {
+
+    /**
+     * The number of rows evaluated sequentially by one task unless configured otherwise.
+     */
+    public static final int DEFAULT_SEQUENTIAL_THRESHOLD = 16 * ColumnarEvaluator.CHUNK_SIZE;
+
+    private final ForkJoinPool pool;
+    private final int sequentialThreshold;
+
+    /**
+     * Constructs an evaluator running on the common fork-join pool with the default sequential threshold.
+     */
+    public BatchEvaluator() {
+        this(ForkJoinPool.commonPool(), DEFAULT_SEQUENTIAL_THRESHOLD);
+    }
+
+    /**
+     * Constructs an evaluator running on the given pool.
+     *
+     * @param pool                the pool running the tasks
+     * @param sequentialThreshold the largest number of rows evaluated by one task without splitting
+     * @throws IllegalArgumentException if the threshold is not positive
+     */
+    public BatchEvaluator(ForkJoinPool pool, int sequentialThreshold) {
+        if (sequentialThreshold <= 0) {
+            throw new IllegalArgumentException("Sequential threshold must be positive");
+        }
+        this.pool = pool;
+        this.sequentialThreshold = sequentialThreshold;
+    }
+
+    /**
+     * Evaluates an expression for every row of columnar variable values.
+     * Row {@code i} binds variable {@code v} to {@code columns[v][i]} and its result is written to {@code out[i]}.
+     *
+     * @param expression the compiled expression
+     * @param columns    the variable columns, indexed by variable number
+     * @param out        the array receiving one result per row
+     * @return the rows that failed, if any
+     * @throws IllegalArgumentException if a column is missing or shorter than the output
+     */
+    public BatchResult evaluate(CompiledExpression expression, double[][] columns, double[] out) {
+        expression.checkColumns(columns, out.length);
+        BatchResult.Builder failures = out.length <= sequentialThreshold
+                ? evaluateSequentially(expression, columns, out, 0, out.length)
+                : pool.invoke(new Task(expression, columns, out, 0, out.length, sequentialThreshold));
+        return failures == null ? BatchResult.SUCCESS : failures.build();
+    }
+
+    /**
+     * Gets the pool running the tasks.
+     *
+     * @return the fork-join pool
+     */
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Gets the largest number of rows evaluated by one task without splitting.
+     *
+     * @return the sequential threshold
+     */
+    public int getSequentialThreshold() {
+        return sequentialThreshold;
+    }
+
+    /**
+     * Evaluates a range of rows, falling back to one row at a time if the range fails.
+     *
+     * @return the failed rows, or null if every row succeeded
+     */
+    private static BatchResult.Builder evaluateSequentially(CompiledExpression expression, double[][] columns,
+                                                            double[] out, int from, int to) {
+        try {
+            expression.evaluate(columns, out, from, to);
+            return null;
+        } catch (RuntimeException rangeFailure) {
+            BatchResult.Builder failures = new BatchResult.Builder();
+            for (int row = from; row < to; row++) {
+                try {
+                    expression.evaluate(columns, out, row, row + 1);
+                } catch (RuntimeException rowFailure) {
+                    out[row] = Double.NaN;
+                    failures.add(row, rowFailure);
+                }
+            }
+            return failures;
+        }
+    }
+
+    /**
+     * Evaluates a range of rows, splitting it while it is larger than the sequential threshold.
+     */
+    private static final class Task extends RecursiveTask<BatchResult.Builder> {
+        private static final long serialVersionUID = 1L;
+
+        private final CompiledExpression expression;
+        private final double[][] columns;
+        private final double[] out;
+        private final int from;
+        private final int to;
+        private final int sequentialThreshold;
+
+        Task(CompiledExpression expression, double[][] columns, double[] out, int from, int to, int sequentialThreshold) {
+            this.expression = expression;
+            this.columns = columns;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.sequentialThreshold = sequentialThreshold;
+        }
+
+        @Override
+        protected BatchResult.Builder compute() {
+            if (to - from <= sequentialThreshold) {
+                return evaluateSequentially(expression, columns, out, from, to);
+            }
+            int half = (to - from) / 2;
+            int middle = from + (half >= ColumnarEvaluator.CHUNK_SIZE ? half - half % ColumnarEvaluator.CHUNK_SIZE : half);
+            Task right = new Task(expression, columns, out, middle, to, sequentialThreshold);
+            right.fork();
+            BatchResult.Builder leftFailures = new Task(expression, columns, out, from, middle, sequentialThreshold).compute();
+            BatchResult.Builder rightFailures = right.join();
+            return leftFailures == null ? rightFailures : leftFailures.append(rightFailures);
+        }
+    }
+}
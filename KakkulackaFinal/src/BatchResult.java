@@ -0,0 +1,119 @@
+import java.util.Arrays;
+
+/**
+ * The outcome of evaluating an expression over a batch of rows with a {@link BatchEvaluator}.
+ * Rows whose evaluation failed, e.g. on division by zero, are listed in ascending order together
+ * with their failures; their output value is NaN. All other rows hold their result.
+ */
+public final class BatchResult {
+
+    static final BatchResult SUCCESS = new BatchResult(new int[0], new RuntimeException[0], 0);
+
+    private final int[] failedRows;
+    private final RuntimeException[] failures;
+    private final int failureCount;
+
+    BatchResult(int[] failedRows, RuntimeException[] failures, int failureCount) {
+        this.failedRows = failedRows;
+        this.failures = failures;
+        this.failureCount = failureCount;
+    }
+
+    /**
+     * Tells whether every row was evaluated successfully.
+     *
+     * @return true if no row failed
+     */
+    public boolean isSuccessful() {
+        return failureCount == 0;
+    }
+
+    /**
+     * Gets the number of rows whose evaluation failed.
+     *
+     * @return the number of failed rows
+     */
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Gets the index of a failed row.
+     *
+     * @param index the failure index, below {@link #getFailureCount()}
+     * @return the row index
+     */
+    public int getFailedRow(int index) {
+        checkIndex(index);
+        return failedRows[index];
+    }
+
+    /**
+     * Gets the exception a failed row was evaluated with.
+     *
+     * @param index the failure index, below {@link #getFailureCount()}
+     * @return the failure of the row
+     */
+    public RuntimeException getFailure(int index) {
+        checkIndex(index);
+        return failures[index];
+    }
+
+    /**
+     * Gets the indexes of all failed rows.
+     *
+     * @return the failed rows in ascending order
+     */
+    public int[] getFailedRows() {
+        return Arrays.copyOf(failedRows, failureCount);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= failureCount) {
+            throw new IndexOutOfBoundsException("Failure index " + index + " out of bounds for " + failureCount + " failures");
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (failureCount == 0) {
+            return "BatchResult[successful]";
+        }
+        return "BatchResult[failures=" + failureCount + ", first row " + failedRows[0] + ": " + failures[0].getMessage() + "]";
+    }
+
+    /**
+     * Collects the failed rows of one part of a batch.
+     */
+    static final class Builder {
+        private int[] rows = new int[4];
+        private RuntimeException[] failures = new RuntimeException[4];
+        private int count;
+
+        void add(int row, RuntimeException failure) {
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+                failures = Arrays.copyOf(failures, count * 2);
+            }
+            rows[count] = row;
+            failures[count++] = failure;
+        }
+
+        /**
+         * Appends the failures of the following part of the batch.
+         */
+        Builder append(Builder next) {
+            if (next == null) {
+                return this;
+            }
+            for (int i = 0; i < next.count; i++) {
+                add(next.rows[i], next.failures[i]);
+            }
+            return this;
+        }
+
+        BatchResult build() {
+            return count == 0 ? SUCCESS : new BatchResult(rows, failures, count);
+        }
+    }
+}
@@ -0,0 +1,501 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A calculation history in a compact binary format with random access by entry number.
+ *
+ * <p>The data file starts with an 8-byte header, the magic number and the format version, followed
+ * by one record per entry: the length of the expression as an int, the expression in UTF-8, the
+ * result as a raw double and the time of the calculation in milliseconds since the epoch, all
+ * big-endian. Results are therefore kept exactly and nothing has to be parsed to read them back.
+ *
+ * <p>A sidecar index file, the data file name followed by {@code .idx}, holds the offset of every
+ * record as a long, so entry {@code n} is found with one read at offset {@code 8 * n} and the
+ * last entries can be read without touching the rest of the file. Records are written before their
+ * index entries; when the history is opened, a partially written record or index is cut off and
+ * index entries missing for complete records are rebuilt.
+ *
+ * <p>Appends are buffered and written by {@link #flush()}, which is also done before every read.
+ *
+ * <p>Usage: {@code java BinaryHistory --to-binary history.txt history.bin} or
+ * {@code java BinaryHistory --to-text history.bin history.txt} converts between this format and
+ * the text history, one {@code expression = result} entry per line.
+ */
+public final class BinaryHistory implements AutoCloseable {
+
+    /**
+     * The number identifying a binary history file, "KHST" in ASCII.
+     */
+    public static final int MAGIC = 0x4B485354;
+
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int FIXED_RECORD_SIZE = Integer.BYTES + Double.BYTES + Long.BYTES;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String SEPARATOR = " = ";
+
+    private final FileChannel data;
+    private final FileChannel index;
+    private final ByteBuffer dataBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer indexBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long size;
+    private long dataSize;
+
+    /**
+     * Opens a history, creating its files if they do not exist.
+     *
+     * @param file the data file; the index file is next to it
+     * @throws IOException if a file cannot be opened or is not a binary history
+     */
+    public BinaryHistory(Path file) throws IOException {
+        data = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            index = FileChannel.open(indexPath(file), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+        try {
+            if (data.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                writeFully(data, header, 0);
+            }
+            ByteBuffer header = readFully(data, ByteBuffer.allocate(HEADER_SIZE), 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a binary history of version " + VERSION);
+            }
+            recover();
+        } catch (IOException e) {
+            data.close();
+            index.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the index file of a data file.
+     *
+     * @param file the data file
+     * @return the index file
+     */
+    public static Path indexPath(Path file) {
+        return file.resolveSibling(file.getFileName() + ".idx");
+    }
+
+    /**
+     * Converts between the text and the binary history.
+     *
+     * @param args {@code --to-binary text binary} or {@code --to-text binary text}
+     * @throws IOException if a file cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !args[0].equals("--to-binary") && !args[0].equals("--to-text")) {
+            System.err.println("Usage: java BinaryHistory --to-binary text binary | --to-text binary text");
+            System.exit(2);
+        }
+        long count = args[0].equals("--to-binary")
+                ? fromText(Paths.get(args[1]), Paths.get(args[2]))
+                : toText(Paths.get(args[1]), Paths.get(args[2]));
+        System.err.println("Converted " + count + " entries");
+    }
+
+    /**
+     * Appends the entries of a text history to a binary history. Lines whose result is not a number,
+     * such as errors, are skipped. The text history has no times, so every entry gets the time the
+     * text file was last modified.
+     *
+     * @param text   the text history
+     * @param binary the binary history
+     * @return the number of entries converted
+     * @throws IOException if a file cannot be read or written
+     */
+    public static long fromText(Path text, Path binary) throws IOException {
+        long timestamp = Files.getLastModifiedTime(text).toMillis();
+        long count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(text, StandardCharsets.UTF_8);
+             BinaryHistory history = new BinaryHistory(binary)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.lastIndexOf(SEPARATOR);
+                if (separator < 0) {
+                    continue;
+                }
+                double result;
+                try {
+                    result = Double.parseDouble(line.substring(separator + SEPARATOR.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                history.append(line.substring(0, separator), result, timestamp);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the entries of a binary history as a text history, replacing the text file.
+     *
+     * @param binary the binary history
+     * @param text   the text history
+     * @return the number of entries converted
+     * @throws IOException if a file cannot be read or written
+     */
+    public static long toText(Path binary, Path text) throws IOException {
+        try (BinaryHistory history = new BinaryHistory(binary);
+             BufferedWriter writer = Files.newBufferedWriter(text, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            history.forEach(0, history.size(), (number, expression, result, timestamp) -> {
+                line.setLength(0);
+                line.append(expression).append(SEPARATOR).append(result).append('\n');
+                writer.append(line);
+            });
+            return history.size();
+        }
+    }
+
+    /**
+     * Appends an entry calculated now.
+     *
+     * @param expression the expression
+     * @param result     the result
+     * @throws IOException if the buffered entries cannot be written
+     */
+    public void append(String expression, double result) throws IOException {
+        append(expression, result, System.currentTimeMillis());
+    }
+
+    /**
+     * Appends an entry.
+     *
+     * @param expression the expression
+     * @param result     the result
+     * @param timestamp  the time of the calculation in milliseconds since the epoch
+     * @throws IOException if the buffered entries cannot be written
+     */
+    public synchronized void append(String expression, double result, long timestamp) throws IOException {
+        byte[] bytes = expression.getBytes(StandardCharsets.UTF_8);
+        int recordSize = FIXED_RECORD_SIZE + bytes.length;
+        if (recordSize > dataBuffer.remaining() || indexBuffer.remaining() < Long.BYTES) {
+            flush();
+        }
+        if (recordSize > dataBuffer.capacity()) {
+            // The buffer has just been flushed, so the record goes straight after the written ones.
+            ByteBuffer record = ByteBuffer.allocate(recordSize);
+            putRecord(record, bytes, result, timestamp);
+            record.flip();
+            writeFully(data, record, dataSize);
+        } else {
+            putRecord(dataBuffer, bytes, result, timestamp);
+        }
+        indexBuffer.putLong(dataSize);
+        dataSize += recordSize;
+        size++;
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return the number of entries, including those not flushed yet
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Reads one entry.
+     *
+     * @param number the number of the entry, 0 for the oldest
+     * @return the entry
+     * @throws IOException               if the history cannot be read
+     * @throws IndexOutOfBoundsException if there is no such entry
+     */
+    public synchronized Entry get(long number) throws IOException {
+        List<Entry> entries = read(number, 1);
+        return entries.get(0);
+    }
+
+    /**
+     * Reads the newest entries.
+     *
+     * @param count the maximum number of entries
+     * @return the entries, oldest first
+     * @throws IOException if the history cannot be read
+     */
+    public synchronized List<Entry> readLatest(int count) throws IOException {
+        long from = Math.max(0, size - count);
+        return read(from, (int) (size - from));
+    }
+
+    /**
+     * Reads consecutive entries.
+     *
+     * @param from  the number of the first entry
+     * @param count the number of entries
+     * @return the entries
+     * @throws IOException               if the history cannot be read
+     * @throws IndexOutOfBoundsException if the range exceeds the history
+     */
+    public synchronized List<Entry> read(long from, int count) throws IOException {
+        List<Entry> entries = new ArrayList<>(count);
+        forEach(from, count, (number, expression, result, timestamp) -> entries.add(new Entry(expression, result, timestamp)));
+        return entries;
+    }
+
+    /**
+     * Reads consecutive entries sequentially and passes each to a visitor, without creating an entry object per record.
+     *
+     * @param from    the number of the first entry
+     * @param count   the number of entries
+     * @param visitor receives the entries in order
+     * @throws IOException               if the history cannot be read or the visitor fails
+     * @throws IndexOutOfBoundsException if the range exceeds the history
+     */
+    public synchronized void forEach(long from, long count, Visitor visitor) throws IOException {
+        if (from < 0 || count < 0 || from + count > size) {
+            throw new IndexOutOfBoundsException("Entries [" + from + ", " + (from + count) + ") out of bounds for size " + size);
+        }
+        if (count == 0) {
+            return;
+        }
+        flush();
+        // The offset of the entry after the range bounds the reads, so a single entry costs two small reads.
+        boolean last = from + count == size;
+        ByteBuffer offsets = ByteBuffer.allocate(2 * Long.BYTES);
+        readFully(index, offsets.limit(last ? Long.BYTES : 2 * Long.BYTES), from * Long.BYTES);
+        long position = offsets.getLong(0);
+        long end = last ? dataSize : offsets.getLong(Long.BYTES);
+        ByteBuffer buffer = readBuffer;
+        buffer.clear().limit(0);
+        for (long number = from; number < from + count; number++) {
+            if (buffer.remaining() < Integer.BYTES) {
+                buffer = fill(buffer, position, end, Integer.BYTES);
+            }
+            int length = buffer.getInt(buffer.position());
+            int recordSize = FIXED_RECORD_SIZE + length;
+            if (buffer.remaining() < recordSize) {
+                buffer = fill(buffer, position, end, recordSize);
+            }
+            int start = buffer.position() + Integer.BYTES;
+            String expression = new String(buffer.array(), start, length, StandardCharsets.UTF_8);
+            double result = buffer.getDouble(start + length);
+            long timestamp = buffer.getLong(start + length + Double.BYTES);
+            buffer.position(buffer.position() + recordSize);
+            position += recordSize;
+            visitor.visit(number, expression, result, timestamp);
+        }
+    }
+
+    /**
+     * Writes the buffered entries, records first.
+     *
+     * @throws IOException if the files cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        if (indexBuffer.position() == 0) {
+            return;
+        }
+        dataBuffer.flip();
+        writeFully(data, dataBuffer, dataSize - dataBuffer.remaining());
+        dataBuffer.clear();
+        indexBuffer.flip();
+        writeFully(index, indexBuffer, (size - indexBuffer.remaining() / Long.BYTES) * Long.BYTES);
+        indexBuffer.clear();
+    }
+
+    /**
+     * Flushes the buffered entries and closes the files.
+     *
+     * @throws IOException if the files cannot be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            try {
+                data.close();
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Cuts off partially written records and index entries and rebuilds the index entries of complete records.
+     */
+    private void recover() throws IOException {
+        long fileSize = data.size();
+        long entries = index.size() / Long.BYTES;
+        ByteBuffer offset = ByteBuffer.allocate(Long.BYTES);
+        while (entries > 0) {
+            long last = readFully(index, offset.clear(), (entries - 1) * Long.BYTES).getLong(0);
+            if (last >= HEADER_SIZE && last < fileSize) {
+                break;
+            }
+            entries--;
+        }
+        long position = HEADER_SIZE;
+        if (entries > 0) {
+            entries--;
+            position = readFully(index, offset.clear(), entries * Long.BYTES).getLong(0);
+        }
+        index.truncate(entries * Long.BYTES);
+
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        while (position + FIXED_RECORD_SIZE <= fileSize) {
+            int expressionLength = readFully(data, length.clear(), position).getInt(0);
+            long end = position + FIXED_RECORD_SIZE + expressionLength;
+            if (expressionLength < 0 || end > fileSize) {
+                break;
+            }
+            if (indexBuffer.remaining() < Long.BYTES) {
+                indexBuffer.flip();
+                writeFully(index, indexBuffer, index.size());
+                indexBuffer.clear();
+            }
+            indexBuffer.putLong(position);
+            entries++;
+            position = end;
+        }
+        indexBuffer.flip();
+        writeFully(index, indexBuffer, index.size());
+        indexBuffer.clear();
+        data.truncate(position);
+        size = entries;
+        dataSize = position;
+    }
+
+    /**
+     * Moves the unread bytes of a buffer to its start and reads more, up to the end of the range being
+     * read, growing the buffer for large records.
+     */
+    private ByteBuffer fill(ByteBuffer buffer, long position, long end, int needed) throws IOException {
+        if (needed > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(needed);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        long readPosition = position + buffer.position();
+        buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + end - readPosition));
+        while (buffer.position() < needed) {
+            int read = buffer.hasRemaining() ? data.read(buffer, readPosition) : -1;
+            if (read < 0) {
+                throw new IOException("Binary history ends inside a record at offset " + position);
+            }
+            readPosition += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void putRecord(ByteBuffer buffer, byte[] expression, double result, long timestamp) {
+        buffer.putInt(expression.length).put(expression).putDouble(result).putLong(timestamp);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at offset " + position);
+            }
+            position += read;
+        }
+        return buffer;
+    }
+
+    /**
+     * Receives the entries read by {@link #forEach(long, long, Visitor)}.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+
+        /**
+         * Receives one entry.
+         *
+         * @param number     the number of the entry
+         * @param expression the expression
+         * @param result     the result
+         * @param timestamp  the time of the calculation in milliseconds since the epoch
+         * @throws IOException if the entry cannot be processed
+         */
+        void visit(long number, String expression, double result, long timestamp) throws IOException;
+    }
+
+    /**
+     * One entry of a binary history.
+     */
+    public static final class Entry {
+
+        private final String expression;
+        private final double result;
+        private final long timestamp;
+
+        Entry(String expression, double result, long timestamp) {
+            this.expression = expression;
+            this.result = result;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Gets the expression.
+         *
+         * @return the expression
+         */
+        public String getExpression() {
+            return expression;
+        }
+
+        /**
+         * Gets the result.
+         *
+         * @return the exact result
+         */
+        public double getResult() {
+            return result;
+        }
+
+        /**
+         * Gets the time of the calculation.
+         *
+         * @return the time in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Formats the entry as a line of the text history.
+         *
+         * @return {@code expression = result}
+         */
+        @Override
+        public String toString() {
+            return expression + SEPARATOR + result;
+        }
+    }
+}
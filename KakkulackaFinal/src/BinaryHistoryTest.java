@@ -0,0 +1,114 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the binary history format.
+ */
+public class BinaryHistoryTest {
+
+    /**
+     * Tests that entries are read back exactly, by number, from the end and across reopening.
+     */
+    @Test
+    public void testRandomAccess() throws IOException {
+        Path directory = Files.createTempDirectory("history");
+        try {
+            Path file = directory.resolve("history.bin");
+            String longExpression = "1+" + "0+".repeat(40_000) + "1";
+            try (BinaryHistory history = new BinaryHistory(file)) {
+                for (int i = 0; i < 10_000; i++) {
+                    history.append(i + "/3", i / 3.0, 1000L + i);
+                }
+                history.append(longExpression, 2, 7);
+                history.append("\u03c0\u00b72", Math.PI * 2, 8);
+                assertEquals(10_002, history.size(), "every append should be counted");
+                assertEquals(1 / 3.0, history.get(1).getResult(), "results should be kept exactly");
+                assertEquals("1234/3", history.get(1234).getExpression(), "entries should be found by number");
+                assertEquals(2234, history.get(1234).getTimestamp(), "timestamps should be kept");
+            }
+            try (BinaryHistory history = new BinaryHistory(file)) {
+                assertEquals(10_002, history.size(), "a reopened history should know its size");
+                List<BinaryHistory.Entry> latest = history.readLatest(3);
+                assertEquals("9999/3 = 3333.0", latest.get(0).toString(), "entries should format as text history lines");
+                assertEquals(longExpression, latest.get(1).getExpression(), "records larger than the buffer should be kept");
+                assertEquals("\u03c0\u00b72", latest.get(2).getExpression(), "expressions should be stored as UTF-8");
+                assertThrows(IndexOutOfBoundsException.class, () -> history.get(10_002));
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Tests that a partially written record is cut off and a lost index is rebuilt when the history is opened.
+     */
+    @Test
+    public void testRecovery() throws IOException {
+        Path directory = Files.createTempDirectory("history");
+        try {
+            Path file = directory.resolve("history.bin");
+            try (BinaryHistory history = new BinaryHistory(file)) {
+                for (int i = 0; i < 100; i++) {
+                    history.append("2*" + i, 2.0 * i, i);
+                }
+            }
+            long size = Files.size(file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 9, '1'}));
+            }
+            Files.write(BinaryHistory.indexPath(file), new byte[8 * 40 + 3]);
+            try (BinaryHistory history = new BinaryHistory(file)) {
+                assertEquals(100, history.size(), "the index should be rebuilt from the records");
+                assertEquals(size, Files.size(file), "the partial record should be cut off");
+                assertEquals(198.0, history.get(99).getResult(), "rebuilt entries should be readable");
+                history.append("1+1", 2, 0);
+            }
+            try (BinaryHistory history = new BinaryHistory(file)) {
+                assertEquals("1+1", history.get(100).getExpression(), "appends after recovery should be kept");
+            }
+            assertThrows(IOException.class, () -> new BinaryHistory(BinaryHistory.indexPath(file)));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Tests that converting to text and back keeps every result.
+     */
+    @Test
+    public void testTextConversion() throws IOException {
+        Path directory = Files.createTempDirectory("history");
+        try {
+            Path text = directory.resolve("history.txt");
+            Path binary = directory.resolve("history.bin");
+            Path copy = directory.resolve("copy.txt");
+            Files.write(text, Arrays.asList("2+2 = 4.0", "1/0 = Error: Division by zero", "1/3 = 0.3333333333333333", "garbage"));
+            assertEquals(2, BinaryHistory.fromText(text, binary), "lines without a numeric result should be skipped");
+            assertEquals(2, BinaryHistory.toText(binary, copy), "every entry should be written");
+            assertEquals(Arrays.asList("2+2 = 4.0", "1/3 = 0.3333333333333333"), Files.readAllLines(copy),
+                    "the text should round-trip");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+}
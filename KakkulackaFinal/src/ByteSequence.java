@@ -0,0 +1,57 @@
+/**
+ * A character sequence viewing a range of a byte array holding single-byte text, such as ASCII.
+ * Each byte is read as the character with the same code, so no text is decoded or copied.
+ * A sequence can be moved to another range at any time, which lets one instance walk every line
+ * of a buffer without allocation.
+ */
+final class ByteSequence implements CharSequence {
+
+    private byte[] bytes;
+    private int offset;
+    private int length;
+
+    /**
+     * Points this sequence at a range of an array.
+     *
+     * @param bytes  the array holding the text
+     * @param start  the index of the first byte
+     * @param end    the index after the last byte
+     * @return this sequence
+     */
+    ByteSequence set(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        this.offset = start;
+        this.length = end - start;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+        }
+        return (char) (bytes[offset + index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || start > end || end > length) {
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") out of bounds for length " + length);
+        }
+        return new ByteSequence().set(bytes, offset + start, offset + end);
+    }
+
+    @Override
+    public String toString() {
+        char[] characters = new char[length];
+        for (int i = 0; i < length; i++) {
+            characters[i] = (char) (bytes[offset + i] & 0xFF);
+        }
+        return new String(characters);
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * The categories of errors reported without exceptions by {@link Calculator#tryCalculate}.
+ * Each category has a fixed message, so reporting an error allocates nothing.
+ */
+public enum CalculationError {
+
+    /**
+     * The expression is null or empty.
+     */
+    EMPTY_EXPRESSION("Expression cannot be null or empty"),
+
+    /**
+     * The expression contains a character that is not part of any token.
+     */
+    INVALID_CHARACTER("Invalid character found"),
+
+    /**
+     * A number has no digits, e.g. a lone decimal point.
+     */
+    INVALID_NUMBER("Invalid number"),
+
+    /**
+     * A token appears where it is not allowed, or the expression ends where an operand is expected.
+     */
+    SYNTAX_ERROR("Invalid expression"),
+
+    /**
+     * A parenthesis is not matched.
+     */
+    MISMATCHED_PARENTHESES("Mismatched parentheses"),
+
+    /**
+     * The expression uses a variable but no value is given for it.
+     */
+    UNBOUND_VARIABLE("Expression has variables without values"),
+
+    /**
+     * A divisor is zero.
+     */
+    DIVISION_BY_ZERO("Division by zero"),
+
+    /**
+     * An operand is outside the domain of a function, e.g. the factorial of a negative number.
+     */
+    DOMAIN_ERROR("Operand is outside the domain of a function"),
+
+    /**
+     * A result is too large to be represented, e.g. the factorial of 171.
+     */
+    OVERFLOW("Number is too large");
+
+    private final String message;
+
+    CalculationError(String message) {
+        this.message = message;
+    }
+
+    /**
+     * Tells whether the error is found while parsing, before anything is evaluated.
+     *
+     * @return true for errors in the expression text, false for errors raised by evaluation
+     */
+    public boolean isSyntaxError() {
+        return ordinal() <= MISMATCHED_PARENTHESES.ordinal();
+    }
+
+    /**
+     * Gets the message describing the error.
+     *
+     * @return the error message
+     */
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * A reusable holder receiving the outcome of {@link Calculator#tryCalculate}: either a value or a
+ * {@link CalculationError}. Filling a holder allocates nothing, so one instance per thread can
+ * receive any number of results. A holder is not thread-safe.
+ */
+public final class CalculationResult {
+
+    private double value = Double.NaN;
+    private CalculationError error;
+    private int errorStart = -1;
+    private int errorEnd = -1;
+
+    /**
+     * Tells whether the last calculation succeeded.
+     *
+     * @return true if a value was calculated, false if an error was reported
+     */
+    public boolean isSuccessful() {
+        return error == null;
+    }
+
+    /**
+     * Gets the calculated value.
+     *
+     * @return the value of the last calculation, or NaN if it failed
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the error of the last calculation.
+     *
+     * @return the error, or null if the calculation succeeded
+     */
+    public CalculationError getError() {
+        return error;
+    }
+
+    /**
+     * Gets where the error was found in the normalized expression (trimmed and in lower case).
+     *
+     * @return the offset of the first offending character, or -1 if the error has no position
+     */
+    public int getErrorStart() {
+        return errorStart;
+    }
+
+    /**
+     * Gets where the offending text ends in the normalized expression.
+     *
+     * @return the offset after the last offending character, or -1 if the error has no position
+     */
+    public int getErrorEnd() {
+        return errorEnd;
+    }
+
+    void succeed(double value) {
+        this.value = value;
+        error = null;
+        errorStart = -1;
+        errorEnd = -1;
+    }
+
+    void fail(CalculationError error) {
+        fail(error, -1, -1);
+    }
+
+    void fail(CalculationError error, int start, int end) {
+        value = Double.NaN;
+        this.error = error;
+        errorStart = start;
+        errorEnd = end;
+    }
+
+    @Override
+    public String toString() {
+        if (error == null) {
+            return "CalculationResult[" + value + "]";
+        }
+        return "CalculationResult[" + error + (errorStart < 0 ? "" : " at " + errorStart) + "]";
+    }
+}
@@ -1,272 +1,509 @@
+import java.math.MathContext;
 import java.util.*;
 
 /**
  * A calculator that supports basic arithmetic and scientific operations.
+ * The operator tables are frozen after construction and all shared state is either immutable
+ * or lock-free, so one instance can safely be shared by any number of threads.
  */
 public class Calculator {
 
-    private Map<String, Operation> operations;
-    private Map<String, ScientificOperation> scientificOperations;
+    /**
+     * The number of compiled expressions cached by default.
+     */
+    public static final int DEFAULT_CACHE_CAPACITY = 4096;
+
+    /**
+     * The functions memoized when a function cache is requested without naming them: those computed
+     * in software. Functions the JIT compiles to a few instructions, such as {@code sqrt}, {@code log}
+     * and {@code exp}, are cheaper to recompute than to look up.
+     */
+    public static final Set<String> DEFAULT_MEMOIZED_FUNCTIONS = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("sin", "cos", "tan", "!")));
+
+    private static final double[] NO_VARIABLES = new double[0];
+    // The derivative of an angle in degrees by the angle in radians.
+    private static final double DEGREE = Math.PI / 180;
+
+    private static final OperatorRegistry STANDARD_OPERATORS = OperatorRegistry.builder()
+            .intrinsic("+", OperatorRegistry.ADDITIVE_PRECEDENCE, OperatorRegistry.Associativity.LEFT,
+                    new Addition(), ExpressionProgram.ADD)
+            .intrinsic("-", OperatorRegistry.ADDITIVE_PRECEDENCE, OperatorRegistry.Associativity.LEFT,
+                    new Subtraction(), ExpressionProgram.SUBTRACT)
+            .intrinsic("*", OperatorRegistry.MULTIPLICATIVE_PRECEDENCE, OperatorRegistry.Associativity.LEFT,
+                    new Multiplication(), ExpressionProgram.MULTIPLY)
+            .intrinsic("/", OperatorRegistry.MULTIPLICATIVE_PRECEDENCE, OperatorRegistry.Associativity.LEFT,
+                    new Division(), ExpressionProgram.DIVIDE)
+            .intrinsic("^", OperatorRegistry.POWER_PRECEDENCE, OperatorRegistry.Associativity.RIGHT,
+                    new Power(), ExpressionProgram.POWER)
+            .negation("-", OperatorRegistry.NEGATION_PRECEDENCE, new Negation())
+            .postfix("!", OperatorRegistry.FACTORIAL_PRECEDENCE, new Factorial())
+            .function("sin", new Sine())
+            .function("cos", new Cosine())
+            .function("tan", new Tangent())
+            .function("log", new Logarithm())
+            .function("exp", new Exponential())
+            .function("sqrt", new SquareRoot())
+            .build();
+
+    private final OperatorRegistry operators;
+    private final Map<String, MemoizingOperation> functionCaches;
+    private final ExpressionCache expressionCache;
+    private final ExpressionParser parser;
+    private volatile CalculatorListener listener = CalculatorListener.NONE;
+    private volatile BatchEvaluator batchEvaluator = new BatchEvaluator();
 
     /**
      * Constructs a new Calculator and initializes supported operations.
      */
     public Calculator() {
-        operations = new HashMap<>();
-        scientificOperations = new HashMap<>();
-        initializeOperations();
-        initializeScientificOperations();
+        this(DEFAULT_CACHE_CAPACITY);
     }
 
     /**
-     * Initializes basic arithmetic operations.
+     * Constructs a new Calculator with an expression cache of the given capacity.
+     *
+     * @param cacheCapacity the maximum number of compiled expressions to cache
+     * @throws IllegalArgumentException if the capacity is not positive
      */
-    private void initializeOperations() {
-        operations.put("+", new Addition());
-        operations.put("-", new Subtraction());
-        operations.put("*", new Multiplication());
-        operations.put("/", new Division());
-        operations.put("^", new Power());
+    public Calculator(int cacheCapacity) {
+        this(cacheCapacity, 0, Collections.emptySet());
     }
 
     /**
-     * Initializes scientific operations.
+     * Constructs a new Calculator that memoizes the results of its software-computed functions,
+     * {@link #DEFAULT_MEMOIZED_FUNCTIONS}.
+     *
+     * @param cacheCapacity         the maximum number of compiled expressions to cache
+     * @param functionCacheCapacity the maximum number of results remembered per function
+     * @throws IllegalArgumentException if a capacity is not positive
      */
-    private void initializeScientificOperations() {
-        scientificOperations.put("sin", new Sine());
-        scientificOperations.put("cos", new Cosine());
-        scientificOperations.put("tan", new Tangent());
-        scientificOperations.put("log", new Logarithm());
-        scientificOperations.put("exp", new Exponential());
-        scientificOperations.put("sqrt", new SquareRoot());
-        scientificOperations.put("!", new Factorial());
+    public Calculator(int cacheCapacity, int functionCacheCapacity) {
+        this(cacheCapacity, functionCacheCapacity, DEFAULT_MEMOIZED_FUNCTIONS);
+    }
+
+    /**
+     * Constructs a new Calculator that memoizes the results of the given functions, which pays off
+     * when the same arguments recur. Each function gets its own {@link MemoizingOperation}, whose
+     * hit ratio can be monitored through {@link #getFunctionCaches()}.
+     *
+     * @param cacheCapacity         the maximum number of compiled expressions to cache
+     * @param functionCacheCapacity the maximum number of results remembered per function; ignored if no function is named
+     * @param memoizedFunctions     the names of the functions to memoize, such as "sin" or "!" for the factorial
+     * @throws IllegalArgumentException if a capacity is not positive or a function does not exist
+     */
+    public Calculator(int cacheCapacity, int functionCacheCapacity, Set<String> memoizedFunctions) {
+        this(STANDARD_OPERATORS, cacheCapacity, functionCacheCapacity, memoizedFunctions);
+    }
+
+    /**
+     * Constructs a new Calculator that understands the operators and functions of a registry,
+     * such as the {@link #standardOperators()} extended with more functions.
+     *
+     * @param operators the operators and functions
+     */
+    public Calculator(OperatorRegistry operators) {
+        this(operators, DEFAULT_CACHE_CAPACITY, 0, Collections.emptySet());
+    }
+
+    /**
+     * Constructs a new Calculator that understands the operators and functions of a registry and
+     * memoizes the results of the given functions and unary operators.
+     *
+     * @param operators             the operators and functions
+     * @param cacheCapacity         the maximum number of compiled expressions to cache
+     * @param functionCacheCapacity the maximum number of results remembered per function; ignored if no function is named
+     * @param memoizedFunctions     the names of the functions to memoize, such as "sin" or "!" for the factorial
+     * @throws IllegalArgumentException if a capacity is not positive, or a function does not exist or is not pure
+     */
+    public Calculator(OperatorRegistry operators, int cacheCapacity, int functionCacheCapacity,
+                      Set<String> memoizedFunctions) {
+        Map<String, MemoizingOperation> functionCaches = new HashMap<>();
+        OperatorRegistry.Builder memoized = operators.toBuilder();
+        for (String name : memoizedFunctions) {
+            OperatorRegistry.Entry entry = operators.get(name, OperatorRegistry.Kind.FUNCTION);
+            if (entry == null) {
+                entry = operators.get(name, OperatorRegistry.Kind.POSTFIX);
+            }
+            if (entry == null) {
+                throw new IllegalArgumentException("Unknown function: " + name);
+            }
+            if (!entry.isPure()) {
+                throw new IllegalArgumentException("Cannot memoize impure function: " + name);
+            }
+            MemoizingOperation cache = new MemoizingOperation(entry.getFunction(), functionCacheCapacity);
+            memoized.replace(entry, cache);
+            functionCaches.put(name, cache);
+        }
+        this.operators = operators;
+        this.functionCaches = Collections.unmodifiableMap(functionCaches);
+        expressionCache = new ExpressionCache(cacheCapacity);
+        parser = new ExpressionParser(functionCaches.isEmpty() ? operators : memoized.build());
+    }
+
+    /**
+     * Gets the standard operators and functions: {@code + - * / ^}, unary minus, the factorial
+     * {@code !} and the functions {@code sin cos tan log exp sqrt}, whose trigonometric functions
+     * take degrees. Derive a registry from it with {@link OperatorRegistry#toBuilder()} to add functions.
+     *
+     * @return the standard registry
+     */
+    public static OperatorRegistry standardOperators() {
+        return STANDARD_OPERATORS;
     }
 
     /**
      * Evaluates a mathematical expression and returns the result.
+     * The expression is compiled once and served from the expression cache on later calls.
      *
      * @param expression the mathematical expression to evaluate
      * @return the result of the evaluated expression
      * @throws IllegalArgumentException if the expression is null, empty, or invalid
      */
     public double calculate(String expression) {
-        if (expression == null || expression.isEmpty()) {
-            throw new IllegalArgumentException("Expression cannot be null or empty");
+        CalculatorListener listener = this.listener;
+        if (listener == CalculatorListener.NONE) {
+            return compile(expression).evaluate();
         }
 
-        System.out.println("Input expression: " + expression);
-
-        if (!isValidExpression(expression)) {
-            throw new IllegalArgumentException("Invalid expression: " + expression);
+        long start = System.nanoTime();
+        CompiledExpression compiled = compile(expression);
+        double result;
+        try {
+            result = compiled.evaluate();
+        } catch (RuntimeException e) {
+            listener.evaluationFailed(compiled, e);
+            throw e;
         }
+        listener.expressionEvaluated(compiled, System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Evaluates a mathematical expression to a decimal result correctly rounded to the given
+     * precision, using doubles where they are accurate enough and wider numbers where they are not.
+     * The listener is not notified.
+     *
+     * @param expression  the mathematical expression to evaluate
+     * @param mathContext the precision and rounding of the result, e.g. {@link MathContext#DECIMAL64}
+     * @return the result and the tier that computed it
+     * @throws IllegalArgumentException if the expression is null, empty, or invalid, or if the precision
+     *                                  is unlimited and the result has no finite decimal expansion
+     * @throws ArithmeticException      if an operation fails, e.g. division by zero
+     * @see CompiledExpression#evaluate(double[], MathContext)
+     */
+    public PreciseResult calculate(String expression, MathContext mathContext) {
+        return compile(expression).evaluate(NO_VARIABLES, mathContext);
+    }
+
+    /**
+     * Evaluates a mathematical expression without throwing if it is invalid or its evaluation fails.
+     * Errors are reported as a {@link CalculationError} in the result holder, and no exception is
+     * created on any path, so rejecting bad input costs no more than accepting good input. The
+     * attached listener is notified as by {@link #calculate(String)}.
+     *
+     * @param expression the mathematical expression to evaluate
+     * @param result     the holder receiving the value or the error; it can be reused for any number of calls
+     * @return true if the expression was evaluated, false if an error was reported
+     */
+    public boolean tryCalculate(String expression, CalculationResult result) {
+        CalculatorListener listener = this.listener;
+        long start = listener == CalculatorListener.NONE ? 0 : System.nanoTime();
+        CompiledExpression compiled = tryCompile(expression, result);
+        if (compiled == null) {
+            listener.validationFailed(expression, result.getError().getMessage());
+            return false;
+        }
+        if (!compiled.tryEvaluate(NO_VARIABLES, result)) {
+            listener.evaluationFailed(compiled, result.getError());
+            return false;
+        }
+        if (listener != CalculatorListener.NONE) {
+            listener.expressionEvaluated(compiled, System.nanoTime() - start);
+        }
+        return true;
+    }
 
-        double result = evaluateExpression(expression);
-        System.out.println("Result: " + result);
+    /**
+     * Evaluates a mathematical expression without throwing if it is invalid or its evaluation fails.
+     *
+     * @param expression the mathematical expression to evaluate
+     * @return a new holder with the value or the error
+     * @see #tryCalculate(String, CalculationResult)
+     */
+    public CalculationResult tryCalculate(String expression) {
+        CalculationResult result = new CalculationResult();
+        tryCalculate(expression, result);
         return result;
     }
 
     /**
-     * Validates the format of a mathematical expression.
+     * Evaluates a mathematical expression directly while parsing it, without compiling or caching it.
+     * This is the cheapest way to evaluate an expression that is seen only once: no tree, program
+     * or string is created, and the expression can be any character sequence, e.g. a view of an
+     * input buffer. The expression is read as {@link #normalize(String)} would read it, so values,
+     * errors and error positions are those reported by {@link #tryCalculate(String, CalculationResult)}.
+     * The attached listener is not notified.
      *
-     * @param expression the expression to validate
-     * @return true if the expression is valid, false otherwise
+     * @param expression the mathematical expression to evaluate
+     * @param result     the holder receiving the value or the error
+     * @return true if the expression was evaluated, false if an error was reported
      */
-    private boolean isValidExpression(String expression) {
-        String scientificFunctionsRegex = "(sin|cos|tan|log|exp|sqrt)";
-        if (expression.matches(".*" + scientificFunctionsRegex + ".*")) {
-            String trimmedExpression = expression.replaceAll("\\s+", "");
-            if (trimmedExpression.matches(".*" + scientificFunctionsRegex + "\\(.*\\).*") ||
-                    trimmedExpression.matches(".*" + scientificFunctionsRegex + "\\d+.*") ||
-                    containsFactorial(trimmedExpression)) { // Check for factorial expression
-                return true;
-            } else {
-                System.out.println("Invalid expression format: " + expression);
-                return false;
-            }
-        } else {
-            for (int i = 0; i < expression.length(); i++) {
-                char character = expression.charAt(i);
-                if (!isNumeric(character) && !isOperator(character) && !isParenthesis(character) && !Character.isWhitespace(character) && character != '!') {
-                    System.out.println("Invalid character found: " + character);
-                    return false;
-                }
-            }
-            return true;
-        }
+    public boolean tryCalculateOnce(CharSequence expression, CalculationResult result) {
+        if (expression == null) {
+            result.fail(CalculationError.EMPTY_EXPRESSION);
+            return false;
+        }
+        int start = trimmedStart(expression);
+        int end = trimmedEnd(expression, start);
+        if (start == end) {
+            result.fail(CalculationError.EMPTY_EXPRESSION);
+            return false;
+        }
+        return parser.evaluate(start == 0 && end == expression.length() ? expression : expression.subSequence(start, end), result);
     }
 
     /**
-     * Evaluates a valid mathematical expression and returns the result.
+     * Compiles a mathematical expression into a tree that can be evaluated repeatedly.
+     * Compiled expressions are cached by their normalized text, so compiling the same
+     * expression again returns the cached instance without parsing.
      *
-     * @param expression the expression to evaluate
-     * @return the result of the evaluated expression
-     * @throws IllegalArgumentException if the expression format is invalid
+     * @param expression the mathematical expression to compile
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is null, empty, or invalid
      */
-    private double evaluateExpression(String expression) {
-        Stack<Double> numberStack = new Stack<>();
-        Stack<String> operatorStack = new Stack<>();
-        String[] tokens = expression.split("(?<=[-+*/()^!])|(?=[-+*/()^!])|(?<=[a-zA-Z])(?=\\d)|(?<=\\d)(?=[a-zA-Z])");
-
-        for (String token : tokens) {
-            if (token.isEmpty()) {
-                continue;
-            }
+    public CompiledExpression compile(String expression) {
+        if (expression == null || expression.isEmpty()) {
+            listener.validationFailed(expression, "Expression cannot be null or empty");
+            throw new IllegalArgumentException("Expression cannot be null or empty");
+        }
 
-            if (isNumeric(token.charAt(0))) {
-                double number = Double.parseDouble(token);
-                numberStack.push(number);
-            } else if (isOperator(token.charAt(0))) {
-                while (!operatorStack.isEmpty() && hasHigherPrecedence(operatorStack.peek(), token)) {
-                    processOperator(numberStack, operatorStack.pop());
-                }
-                operatorStack.push(token);
-            } else if (isParenthesis(token.charAt(0))) {
-                if (token.charAt(0) == '(') {
-                    operatorStack.push(token);
-                } else if (token.charAt(0) == ')') {
-                    while (!operatorStack.isEmpty() && !operatorStack.peek().equals("(")) {
-                        processOperator(numberStack, operatorStack.pop());
-                    }
-                    operatorStack.pop();
-                }
-            } else if (isScientificFunction(token)) {
-                operatorStack.push(token);
-            } else {
-                throw new IllegalArgumentException("Invalid token: " + token);
+        String normalized = normalize(expression);
+        if (normalized.isEmpty()) {
+            listener.validationFailed(expression, "Expression cannot be null or empty");
+            throw new IllegalArgumentException("Expression cannot be null or empty");
+        }
+        CompiledExpression compiled = expressionCache.get(normalized);
+        if (compiled == null) {
+            try {
+                compiled = parser.parse(normalized);
+            } catch (IllegalArgumentException e) {
+                listener.validationFailed(expression, e.getMessage());
+                throw e;
             }
+            expressionCache.put(compiled);
         }
+        return compiled;
+    }
 
-        while (!operatorStack.isEmpty()) {
-            processOperator(numberStack, operatorStack.pop());
+    /**
+     * Compiles a mathematical expression, or returns it from the cache, without throwing if it is invalid.
+     *
+     * @param expression the mathematical expression to compile
+     * @param result     the holder receiving the error if the expression is invalid
+     * @return the compiled expression, or null if the expression is invalid
+     */
+    CompiledExpression tryCompile(String expression, CalculationResult result) {
+        if (expression == null || expression.isEmpty()) {
+            result.fail(CalculationError.EMPTY_EXPRESSION);
+            return null;
         }
 
-        if (numberStack.size() != 1) {
-            throw new IllegalArgumentException("Invalid expression format");
+        String normalized = normalize(expression);
+        if (normalized.isEmpty()) {
+            result.fail(CalculationError.EMPTY_EXPRESSION);
+            return null;
+        }
+        CompiledExpression compiled = expressionCache.get(normalized);
+        if (compiled == null) {
+            compiled = parser.parse(normalized, result);
+            if (compiled == null) {
+                return null;
+            }
+            expressionCache.put(compiled);
         }
+        return compiled;
+    }
 
-        return numberStack.pop();
+    /**
+     * Attaches a listener that is notified about every calculation.
+     * Without a listener, calculations are neither timed nor reported.
+     *
+     * @param listener the listener, or null to detach the current one
+     */
+    public void setListener(CalculatorListener listener) {
+        this.listener = listener == null ? CalculatorListener.NONE : listener;
     }
 
     /**
-     * Applies a scientific function to a given operand.
+     * Gets the attached listener.
      *
-     * @param function the scientific function to apply
-     * @param operand  the operand to apply the function to
-     * @return the result of the function
-     * @throws IllegalArgumentException if the function is invalid
+     * @return the attached listener, or {@link CalculatorListener#NONE} if there is none
      */
-    private double applyScientificFunction(String function, double operand) {
-        ScientificOperation scientificOperation = scientificOperations.get(function);
-        if (scientificOperation != null) {
-            return scientificOperation.apply(operand);
-        } else {
-            throw new IllegalArgumentException("Invalid scientific function: " + function);
-        }
+    public CalculatorListener getListener() {
+        return listener;
     }
 
     /**
-     * Checks if the first operator has higher precedence over the second operator.
+     * Evaluates a compiled expression over columns of x and y values.
+     * Row {@code i} binds the variable {@code x} to {@code x[i]} and {@code y} to {@code y[i]}
+     * and its result is written to {@code out[i]}. A column may be null if the expression does not use it.
      *
-     * @param op1 the first operator
-     * @param op2 the second operator
-     * @return true if the first operator has higher precedence, false otherwise
+     * @param expression the compiled expression, using at most the variables x and y
+     * @param x          the values of x
+     * @param y          the values of y
+     * @param out        the array receiving one result per row
+     * @throws IllegalArgumentException if the expression uses another variable or a needed column is missing or too short
+     * @throws ArithmeticException      if an operation fails, e.g. division by zero
      */
-    private boolean hasHigherPrecedence(String op1, String op2) {
-        if (op2.equals("(") || op2.equals(")")) return false;
-        if (scientificOperations.containsKey(op1)) return false;
-        return (op1.equals("*") || op1.equals("/") || op1.equals("^")) && (op2.equals("+") || op2.equals("-"));
+    public void evaluate(CompiledExpression expression, double[] x, double[] y, double[] out) {
+        expression.evaluate(bindColumns(expression, x, y), out);
     }
 
     /**
-     * Processes an operator by applying it to the operands from the number stack.
+     * Evaluates a compiled expression over columns of x and y values in parallel with the
+     * calculator's {@link BatchEvaluator}. Rows are bound as by {@link #evaluate(CompiledExpression, double[], double[], double[])},
+     * but a row that fails, e.g. on division by zero, does not abort the batch: it is set to NaN
+     * and reported in the result.
      *
-     * @param numberStack the stack of numbers
-     * @param operator    the operator to process
-     * @throws IllegalArgumentException if the operator is invalid
+     * @param expression the compiled expression, using at most the variables x and y
+     * @param x          the values of x
+     * @param y          the values of y
+     * @param out        the array receiving one result per row
+     * @return the rows that failed, if any
+     * @throws IllegalArgumentException if the expression uses another variable or a needed column is missing or too short
      */
-    private void processOperator(Stack<Double> numberStack, String operator) {
-        if (isScientificFunction(operator)) {
-            double operand = numberStack.pop();
-            double result = applyScientificFunction(operator, operand);
-            numberStack.push(result);
-        } else {
-            double operand2 = numberStack.pop();
-            double operand1 = numberStack.pop();
-            Operation operation = operations.get(operator);
-            if (operation != null) {
-                double result = operation.apply(operand1, operand2);
-                numberStack.push(result);
+    public BatchResult evaluateParallel(CompiledExpression expression, double[] x, double[] y, double[] out) {
+        return batchEvaluator.evaluate(expression, bindColumns(expression, x, y), out);
+    }
+
+    /**
+     * Binds the variables of an expression to the x and y columns.
+     *
+     * @return the columns indexed by variable number
+     */
+    private static double[][] bindColumns(CompiledExpression expression, double[] x, double[] y) {
+        double[][] columns = new double[expression.getVariableCount()][];
+        for (int v = 0; v < columns.length; v++) {
+            String name = expression.getVariableNames().get(v);
+            if (name.equals("x")) {
+                columns[v] = x;
+            } else if (name.equals("y")) {
+                columns[v] = y;
             } else {
-                throw new IllegalArgumentException("Invalid operator: " + operator);
+                throw new IllegalArgumentException("Unsupported variable " + name + ": only x and y can be bound");
+            }
+            if (columns[v] == null) {
+                throw new IllegalArgumentException("Missing values for variable " + name);
             }
         }
+        return columns;
     }
 
     /**
-     * Checks if a character is an arithmetic operator.
+     * Sets the evaluator used by {@link #evaluateParallel}, e.g. to run on a dedicated pool or with another threshold.
      *
-     * @param character the character to check
-     * @return true if the character is an operator, false otherwise
+     * @param batchEvaluator the batch evaluator
      */
-    private boolean isOperator(char character) {
-        return character == '+' || character == '-' || character == '*' || character == '/' || character == '^';
+    public void setBatchEvaluator(BatchEvaluator batchEvaluator) {
+        this.batchEvaluator = Objects.requireNonNull(batchEvaluator, "batchEvaluator");
     }
 
     /**
-     * Checks if a character is a parenthesis.
+     * Gets the evaluator used by {@link #evaluateParallel}.
      *
-     * @param character the character to check
-     * @return true if the character is a parenthesis, false otherwise
+     * @return the batch evaluator
      */
-    private boolean isParenthesis(char character) {
-        return character == '(' || character == ')';
+    public BatchEvaluator getBatchEvaluator() {
+        return batchEvaluator;
     }
 
     /**
-     * Checks if a character is numeric.
+     * Gets the cache of compiled expressions used by this calculator.
      *
-     * @param character the character to check
-     * @return true if the character is numeric, false otherwise
+     * @return the expression cache
      */
-    private boolean isNumeric(char character) {
-        return Character.isDigit(character) || character == '.';
+    public ExpressionCache getExpressionCache() {
+        return expressionCache;
     }
 
     /**
-     * Checks if an expression contains a factorial.
+     * Gets the result caches of the memoized functions.
      *
-     * @param expression the expression to check
-     * @return true if the expression contains a factorial, false otherwise
+     * @return the caches keyed by function name, empty if no function is memoized
      */
-    private boolean containsFactorial(String expression) {
-        return expression.contains("!");
+    public Map<String, MemoizingOperation> getFunctionCaches() {
+        return functionCaches;
     }
 
     /**
-     * Checks if a token is a scientific function.
+     * Gets the operators and functions this calculator understands.
      *
-     * @param token the token to check
-     * @return true if the token is a scientific function, false otherwise
+     * @return the operator registry
      */
-    private boolean isScientificFunction(String token) {
-        return scientificOperations.containsKey(token.toLowerCase());
+    public OperatorRegistry getOperators() {
+        return operators;
     }
 
-    interface Operation {
-        double apply(double a, double b);
+    /**
+     * Normalizes an expression by trimming surrounding whitespace and converting ASCII letters to
+     * lower case. This is exactly what the tokenizer ignores: it skips whitespace as defined by
+     * {@link Character#isWhitespace(char)} and matches function names ignoring ASCII case, so a
+     * normalized expression has the same tokens as the original, and evaluating the original
+     * directly by {@link #tryCalculateOnce} gives the same results. Whitespace inside the expression
+     * is kept, because it separates tokens: {@code "2 3"} stays two numbers and is rejected rather
+     * than read as 23. An expression that is already normalized is returned as is, without copying.
+     *
+     * @param expression the expression to normalize
+     * @return the normalized expression
+     */
+    static String normalize(String expression) {
+        int start = trimmedStart(expression);
+        int end = trimmedEnd(expression, start);
+        for (int i = start; i < end; i++) {
+            char character = expression.charAt(i);
+            if (character >= 'A' && character <= 'Z') {
+                char[] characters = expression.substring(start, end).toCharArray();
+                for (int j = i - start; j < characters.length; j++) {
+                    if (characters[j] >= 'A' && characters[j] <= 'Z') {
+                        characters[j] += 'a' - 'A';
+                    }
+                }
+                return new String(characters);
+            }
+        }
+        return start == 0 && end == expression.length() ? expression : expression.substring(start, end);
     }
 
-    interface ScientificOperation {
-        double apply(double a);
+    private static int trimmedStart(CharSequence expression) {
+        int start = 0;
+        while (start < expression.length() && Character.isWhitespace(expression.charAt(start))) {
+            start++;
+        }
+        return start;
     }
 
-    class Addition implements Operation {
+    private static int trimmedEnd(CharSequence expression, int start) {
+        int end = expression.length();
+        while (end > start && Character.isWhitespace(expression.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    static class Addition implements Operation {
         @Override
         public double apply(double a, double b) {
             double result = add(a, b);
             return result;
         }
 
+        @Override
+        public void differentiate(double a, double b, double[] partials) {
+            partials[0] = 1;
+            partials[1] = 1;
+        }
+
         private double add(double a, double b) {
             double sum = calculateSum(a, b);
             return sum;
@@ -277,56 +514,59 @@ public class Calculator {
         }
     }
 
-    class Cosine implements ScientificOperation {
+    static class Cosine implements ScientificOperation {
         @Override
         public double apply(double a) {
-            double radians = toRadians(a);
-            double result = calculateCosine(radians);
+            double result = calculateCosine(a);
             return result;
         }
 
-        private double toRadians(double degrees) {
-            double radians = Math.toRadians(degrees);
-            return radians;
+        @Override
+        public double derivative(double a) {
+            return -DEGREE * ComplexFunctions.sinDegrees(a);
         }
 
-        private double calculateCosine(double radians) {
-            return ComplexFunctions.cos(radians);
+        private double calculateCosine(double degrees) {
+            return ComplexFunctions.cosDegrees(degrees);
         }
     }
 
-    class Logarithm implements ScientificOperation {
+    static class Logarithm implements ScientificOperation {
         @Override
         public double apply(double a) {
             double result = calculateLogarithm(a);
             return result;
         }
 
+        @Override
+        public double derivative(double a) {
+            return 1 / a;
+        }
+
         private double calculateLogarithm(double a) {
             double logValue = Math.log(a);
             return logValue;
         }
     }
 
-    class Sine implements ScientificOperation {
+    static class Sine implements ScientificOperation {
         @Override
         public double apply(double a) {
-            double radians = toRadians(a);
-            double result = calculateSine(radians);
+            double result = calculateSine(a);
             return result;
         }
 
-        private double toRadians(double degrees) {
-            double radians = Math.toRadians(degrees);
-            return radians;
+        @Override
+        public double derivative(double a) {
+            return DEGREE * ComplexFunctions.cosDegrees(a);
         }
 
-        private double calculateSine(double radians) {
-            return ComplexFunctions.sin(radians);
+        private double calculateSine(double degrees) {
+            return ComplexFunctions.sinDegrees(degrees);
         }
     }
 
-    class Division implements Operation {
+    static class Division implements Operation {
         @Override
         public double apply(double a, double b) {
             validateNonZero(b);
@@ -334,6 +574,17 @@ public class Calculator {
             return result;
         }
 
+        @Override
+        public CalculationError check(double a, double b) {
+            return b == 0 ? CalculationError.DIVISION_BY_ZERO : null;
+        }
+
+        @Override
+        public void differentiate(double a, double b, double[] partials) {
+            partials[0] = 1 / b;
+            partials[1] = -a / (b * b);
+        }
+
         private void validateNonZero(double b) {
             if (b == 0) {
                 throw new ArithmeticException("Division by zero");
@@ -350,13 +601,19 @@ public class Calculator {
         }
     }
 
-    class Subtraction implements Operation {
+    static class Subtraction implements Operation {
         @Override
         public double apply(double a, double b) {
             double result = subtract(a, b);
             return result;
         }
 
+        @Override
+        public void differentiate(double a, double b, double[] partials) {
+            partials[0] = 1;
+            partials[1] = -1;
+        }
+
         private double subtract(double a, double b) {
             double difference = calculateDifference(a, b);
             return difference;
@@ -367,57 +624,85 @@ public class Calculator {
         }
     }
 
-    class SquareRoot implements ScientificOperation {
+    static class SquareRoot implements ScientificOperation {
         @Override
         public double apply(double a) {
             double result = calculateSquareRoot(a);
             return result;
         }
 
+        @Override
+        public double derivative(double a) {
+            return 0.5 / Math.sqrt(a);
+        }
+
         private double calculateSquareRoot(double a) {
             double sqrtValue = Math.sqrt(a);
             return sqrtValue;
         }
     }
 
-    class Tangent implements ScientificOperation {
+    static class Tangent implements ScientificOperation {
         @Override
         public double apply(double a) {
-            double radians = toRadians(a);
-            double result = calculateTangent(radians);
+            double result = calculateTangent(a);
             return result;
         }
 
-        private double toRadians(double degrees) {
-            double radians = Math.toRadians(degrees);
-            return radians;
+        @Override
+        public double derivative(double a) {
+            double cosine = ComplexFunctions.cosDegrees(a);
+            return DEGREE / (cosine * cosine);
         }
 
-        private double calculateTangent(double radians) {
-            return ComplexFunctions.tan(radians);
+        private double calculateTangent(double degrees) {
+            return ComplexFunctions.tanDegrees(degrees);
         }
     }
 
-    class Exponential implements ScientificOperation {
+    static class Exponential implements ScientificOperation {
         @Override
         public double apply(double a) {
             double result = calculateExponential(a);
             return result;
         }
 
+        @Override
+        public double derivative(double a) {
+            return Math.exp(a);
+        }
+
         private double calculateExponential(double a) {
             double expValue = Math.exp(a);
             return expValue;
         }
     }
 
-    class Multiplication implements Operation {
+    static class Negation implements ScientificOperation {
+        @Override
+        public double apply(double a) {
+            return -a;
+        }
+
+        @Override
+        public double derivative(double a) {
+            return -1;
+        }
+    }
+
+    static class Multiplication implements Operation {
         @Override
         public double apply(double a, double b) {
             double result = multiply(a, b);
             return result;
         }
 
+        @Override
+        public void differentiate(double a, double b, double[] partials) {
+            partials[0] = b;
+            partials[1] = a;
+        }
+
         private double multiply(double a, double b) {
             double product = calculateProduct(a, b);
             return product;
@@ -428,42 +713,73 @@ public class Calculator {
         }
     }
 
-    class Power implements Operation {
+    static class Power implements Operation {
         @Override
         public double apply(double a, double b) {
             double result = calculatePower(a, b);
             return result;
         }
 
+        @Override
+        public void differentiate(double a, double b, double[] partials) {
+            partials[0] = b == 0 ? 0 : b * Math.pow(a, b - 1);
+            partials[1] = Math.pow(a, b) * Math.log(a);
+        }
+
         private double calculatePower(double a, double b) {
             double powerValue = Math.pow(a, b);
             return powerValue;
         }
     }
 
-    class Factorial implements ScientificOperation {
+    static class Factorial implements ScientificOperation {
         @Override
         public double apply(double a) {
             validateNonNegative(a);
             validateTooLarge(a);
-            double result = calculateFactorial(a);
-            return result;
+            return calculateFactorial(a);
         }
 
         private void validateNonNegative(double a) {
             if (a < 0) {
-                throw new IllegalArgumentException("Factorial is defined only for non-negative integers.");
+                throw new IllegalArgumentException("Factorial is defined only for non-negative numbers.");
             }
         }
 
         private void validateTooLarge(double a) {
-            if (a > 10) {
+            if (overflows(a)) {
                 throw new IllegalArgumentException("Number is too large");
             }
         }
 
+        @Override
+        public CalculationError check(double a) {
+            if (a < 0) {
+                return CalculationError.DOMAIN_ERROR;
+            }
+            return overflows(a) ? CalculationError.OVERFLOW : null;
+        }
+
+        @Override
+        public double derivative(double a) {
+            return calculateFactorial(a) * ComplexFunctions.digamma(a + 1);
+        }
+
+        /**
+         * Tells from the argument alone whether its factorial overflows a double.
+         */
+        private static boolean overflows(double a) {
+            if (a == Math.rint(a)) {
+                return a > ComplexFunctions.MAX_DOUBLE_FACTORIAL;
+            }
+            return a + 1 > ComplexFunctions.MAX_GAMMA_ARGUMENT;
+        }
+
         private double calculateFactorial(double a) {
-            return ComplexFunctions.factorial((int) a);
+            if (a == Math.rint(a)) {
+                return ComplexFunctions.factorialAsDouble((int) Math.min(a, Integer.MAX_VALUE));
+            }
+            return ComplexFunctions.gamma(a + 1);
         }
     }
 }
\ No newline at end of file
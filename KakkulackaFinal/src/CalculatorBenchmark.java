@@ -0,0 +1,889 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.MathContext;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Benchmarks for the GUI-less evaluation path of the calculator.
+ * Every benchmark is warmed up and then measured over several timed iterations; the report lists
+ * the throughput with its standard deviation, the bytes allocated per operation and the resulting
+ * allocation rate.
+ *
+ * <p>Usage: {@code java CalculatorBenchmark [--json results.json] [--filter name] [--iterations n]}.
+ * The JSON file holds one object per benchmark with the fields {@code benchmark}, {@code score},
+ * {@code scoreError}, {@code unit}, {@code bytesPerOp} and {@code allocationRateMBs}, so results of
+ * two runs can be diffed by CI.
+ */
+public class CalculatorBenchmark {
+
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+    private static final int DEFAULT_ITERATIONS = 5;
+    private static final int BATCH_SIZE = 1_000;
+    private static final int ARGUMENT_COUNT = 1024;
+
+    private static final String ARITHMETIC = "2+3*4-5/2";
+    private static final String NESTED = "((((1+2)*3)-4)/(5+(6*7)))*(8-(9/(10+11)))";
+    private static final String SCIENTIFIC = "sin(30)*cos(60)+tan(45)-sqrt(16)+log(10)+exp(1)";
+    private static final String GENERATED = "sqrt(4)*x+2^10+sin(x)*sin(x)+y*1";
+    private static final String POLYNOMIAL = "x*y+x/3-y*y*0.5+(x-y)*(x+y)";
+    private static final int[] BATCH_SIZES = {16, 1024, 65536};
+    private static final int HISTORY_ENTRIES = 10_000_000;
+    private static final int PIPELINE_SIZE = 1_000_000;
+    private static final String OBJECTIVE = "(1-a)^2+100*(b-a^2)^2+c*sin(d*30)+exp(e/2)*log(f+1)+sqrt(a*a+c*c+e*e)/f";
+    private static final int GRADIENT_ROWS = 1024;
+    // The cube root of the double epsilon, which balances truncation against rounding for central differences.
+    private static final double FINITE_DIFFERENCE_STEP = 6e-6;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static double sink;
+
+    private final List<Result> results = new ArrayList<>();
+    private final String filter;
+    private final int iterations;
+
+    /**
+     * Constructs a benchmark run.
+     *
+     * @param filter     only benchmarks whose name contains this text are run; null runs all
+     * @param iterations the number of measured iterations per benchmark
+     */
+    CalculatorBenchmark(String filter, int iterations) {
+        this.filter = filter;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args the command line options
+     * @throws IOException if the JSON report cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        String jsonFile = null;
+        String filter = null;
+        int iterations = DEFAULT_ITERATIONS;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--json":
+                    jsonFile = args[++i];
+                    break;
+                case "--filter":
+                    filter = args[++i];
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        CalculatorBenchmark benchmark = new CalculatorBenchmark(filter, iterations);
+        benchmark.runAll();
+        if (jsonFile != null) {
+            try (Writer writer = new FileWriter(jsonFile)) {
+                benchmark.writeJson(writer);
+            }
+        }
+        if (sink == 42) {
+            System.out.println(sink);
+        }
+    }
+
+    /**
+     * Runs every benchmark matching the filter.
+     */
+    void runAll() {
+        Calculator calculator = new Calculator();
+        EvaluationContext context = new EvaluationContext();
+        double[] noVariables = new double[0];
+
+        String[][] expressions = {{"arithmetic", ARITHMETIC}, {"nested", NESTED}, {"scientific", SCIENTIFIC}};
+        for (String[] expression : expressions) {
+            String name = expression[0];
+            String text = expression[1];
+            CompiledExpression compiled = calculator.compile(text);
+            run("evaluate." + name + ".warm", () -> calculator.compile(text).evaluate());
+            run("evaluate." + name + ".cold", () -> {
+                calculator.getExpressionCache().clear();
+                return calculator.compile(text).evaluate();
+            });
+            run("evaluate." + name + ".compiled", () -> compiled.evaluate(noVariables, context));
+            run("evaluate." + name + ".tree", () -> compiled.evaluateTree(noVariables));
+        }
+        CompiledExpression generated = calculator.compile(GENERATED);
+        double[] generatedVariables = {0.5, 2};
+        CompiledExpression interpreted = new Calculator().compile(GENERATED);
+        interpreted.disableGeneration();
+        run("evaluate.generated.compiled", () -> generated.evaluate(generatedVariables, context));
+        run("evaluate.generated.interpreted", () -> interpreted.evaluate(generatedVariables, context));
+        run("evaluate.generated.tree", () -> generated.evaluateTree(generatedVariables));
+
+        // One operation evaluates a whole batch of rows.
+        double[][] columns = new double[2][ARGUMENT_COUNT];
+        Random columnRandom = new Random(42);
+        for (int i = 0; i < ARGUMENT_COUNT; i++) {
+            columns[0][i] = columnRandom.nextDouble() * 100;
+            columns[1][i] = columnRandom.nextDouble() * 100;
+        }
+        double[] bulkOut = new double[ARGUMENT_COUNT];
+        generated.generate();
+        run("bulk.interpreted", () -> {
+            interpreted.evaluate(columns, bulkOut);
+            return bulkOut[0];
+        });
+        run("bulk.rowByRow", () -> {
+            double[] row = new double[2];
+            for (int i = 0; i < ARGUMENT_COUNT; i++) {
+                row[0] = columns[0][i];
+                row[1] = columns[1][i];
+                bulkOut[i] = interpreted.evaluate(row, context);
+            }
+            return bulkOut[0];
+        });
+        run("bulk.generated", () -> {
+            generated.evaluate(columns, bulkOut);
+            return bulkOut[0];
+        });
+
+        for (int size : BATCH_SIZES) {
+            runBatch(size);
+        }
+
+        runMixedValidity();
+        runMemoization();
+        runHistory();
+        runWire();
+        runPrecision();
+        runGradient();
+
+        run("calculate.noListener", () -> calculator.calculate(SCIENTIFIC));
+        Calculator recordingCalculator = new Calculator();
+        recordingCalculator.setListener(new MetricsRecorder());
+        run("calculate.metricsRecorder", () -> recordingCalculator.calculate(SCIENTIFIC));
+
+        Calculator shared = new Calculator();
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+            runThreads("concurrency.shared." + threads + "t", threads, () -> () -> shared.calculate(SCIENTIFIC));
+            runThreads("concurrency.perThread." + threads + "t", threads, () -> {
+                Calculator own = new Calculator();
+                return () -> own.calculate(SCIENTIFIC);
+            });
+        }
+
+        double[] angles = new double[ARGUMENT_COUNT];
+        double[] largeAngles = new double[ARGUMENT_COUNT];
+        Random random = new Random(42);
+        for (int i = 0; i < ARGUMENT_COUNT; i++) {
+            angles[i] = (random.nextDouble() * 2 - 1) * Math.PI;
+            largeAngles[i] = angles[i] * 1e4;
+        }
+        int[] cursor = {0};
+        double[] sinCos = new double[2];
+        run("complex.sin", () -> ComplexFunctions.sin(angles[cursor[0]++ & (ARGUMENT_COUNT - 1)]));
+        run("complex.cos", () -> ComplexFunctions.cos(angles[cursor[0]++ & (ARGUMENT_COUNT - 1)]));
+        run("complex.tan", () -> ComplexFunctions.tan(angles[cursor[0]++ & (ARGUMENT_COUNT - 1)]));
+        run("complex.sincos", () -> {
+            ComplexFunctions.sincos(angles[cursor[0]++ & (ARGUMENT_COUNT - 1)], sinCos);
+            return sinCos[0] + sinCos[1];
+        });
+        run("complex.factorial", () -> ComplexFunctions.factorial(cursor[0]++ & 15));
+        run("complex.factorialAsDouble", () -> ComplexFunctions.factorialAsDouble(cursor[0]++ & 127));
+        run("complex.gamma", () -> ComplexFunctions.gamma(Math.abs(angles[cursor[0]++ & (ARGUMENT_COUNT - 1)]) * 20));
+        run("complex.bigFactorial.1000", () -> ComplexFunctions.bigFactorial(1000).bitLength());
+        run("complex.bigFactorial.10000", () -> ComplexFunctions.bigFactorial(10000).bitLength());
+        run("legacy.taylorSin", () -> taylorSin(angles[cursor[0]++ & (ARGUMENT_COUNT - 1)]));
+        run("math.sin", () -> Math.sin(angles[cursor[0]++ & (ARGUMENT_COUNT - 1)]));
+        double[] degrees = new double[ARGUMENT_COUNT];
+        for (int i = 0; i < ARGUMENT_COUNT; i++) {
+            degrees[i] = random.nextDouble() * 720 - 360;
+        }
+        TrigTable linearTable = new TrigTable(TrigTable.DEFAULT_RESOLUTION, TrigTable.Interpolation.LINEAR);
+        TrigTable cubicTable = new TrigTable(TrigTable.DEFAULT_RESOLUTION, TrigTable.Interpolation.CUBIC);
+        run("degrees.sin.polynomial", () -> ComplexFunctions.sin(Math.toRadians(degrees[cursor[0]++ & (ARGUMENT_COUNT - 1)])));
+        run("degrees.sin.linearTable", () -> linearTable.sin(degrees[cursor[0]++ & (ARGUMENT_COUNT - 1)]));
+        run("degrees.sin.cubicTable", () -> cubicTable.sin(degrees[cursor[0]++ & (ARGUMENT_COUNT - 1)]));
+        run("complex.sin.large", () -> ComplexFunctions.sin(largeAngles[cursor[0]++ & (ARGUMENT_COUNT - 1)]));
+        run("math.sin.large", () -> Math.sin(largeAngles[cursor[0]++ & (ARGUMENT_COUNT - 1)]));
+    }
+
+    /**
+     * Compares throwing and non-throwing calculation over input of which one expression in twenty is
+     * invalid or fails to evaluate, in expressions per second. Invalid expressions are rejected by the
+     * parser each time, as they are never cached. The last benchmark evaluates the expressions from
+     * bytes while parsing them, as the file evaluator does.
+     */
+    private void runMixedValidity() {
+        String[] invalid = {"2+*4", "(1+2", "7$1", "1/(3-3)", "(0-2)!", "171!"};
+        String[] inputs = new String[ARGUMENT_COUNT];
+        Random random = new Random(7);
+        for (int i = 0; i < ARGUMENT_COUNT; i++) {
+            inputs[i] = i % 20 == 0
+                    ? invalid[random.nextInt(invalid.length)]
+                    : random.nextInt(100) + "*(" + random.nextInt(100) + "+sqrt(" + random.nextInt(100) + "))/4";
+        }
+        Calculator mixed = new Calculator();
+        run("mixed.calculate", ARGUMENT_COUNT, () -> {
+            double sum = 0;
+            for (String input : inputs) {
+                try {
+                    sum += mixed.calculate(input);
+                } catch (IllegalArgumentException | ArithmeticException e) {
+                    sum--;
+                }
+            }
+            return sum;
+        });
+        CalculationResult result = new CalculationResult();
+        run("mixed.tryCalculate", ARGUMENT_COUNT, () -> {
+            double sum = 0;
+            for (String input : inputs) {
+                sum += mixed.tryCalculate(input, result) ? result.getValue() : -1;
+            }
+            return sum;
+        });
+        ByteSequence[] sequences = new ByteSequence[ARGUMENT_COUNT];
+        for (int i = 0; i < ARGUMENT_COUNT; i++) {
+            byte[] bytes = inputs[i].getBytes(StandardCharsets.US_ASCII);
+            sequences[i] = new ByteSequence().set(bytes, 0, bytes.length);
+        }
+        run("mixed.tryCalculateOnce", ARGUMENT_COUNT, () -> {
+            double sum = 0;
+            for (ByteSequence sequence : sequences) {
+                sum += mixed.tryCalculateOnce(sequence, result) ? result.getValue() : -1;
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * Compares expressions calling a function over a recurring set of 64 arguments with and without
+     * memoization of the function, and the cost memoization adds to calls whose argument never
+     * recurs. The last benchmark shares one memoized sine between threads.
+     */
+    private void runMemoization() {
+        double[][] arguments = new double[64][];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = new double[]{Math.abs(i * 7.3 - 233.1) + 1};
+        }
+        int[] cursor = {0};
+        for (String name : new String[]{"sin", "log", "sqrt"}) {
+            CompiledExpression computed = new Calculator().compile(name + "(x)");
+            CompiledExpression memoized = new Calculator(Calculator.DEFAULT_CACHE_CAPACITY, 1024, Collections.singleton(name)).compile(name + "(x)");
+            run("memo." + name + ".computed", () -> computed.evaluate(arguments[cursor[0]++ & 63]));
+            run("memo." + name + ".memoized", () -> memoized.evaluate(arguments[cursor[0]++ & 63]));
+        }
+        ScientificOperation sine = new Calculator.Sine();
+        MemoizingOperation missing = new MemoizingOperation(sine, 1024);
+        run("memo.sin.computed.unique", () -> sine.apply(cursor[0]++ * 0.001));
+        run("memo.sin.memoized.unique", () -> missing.apply(cursor[0]++ * 0.001));
+        MemoizingOperation shared = new MemoizingOperation(sine, 1024);
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+            runThreads("memo.sin.shared." + threads + "t", threads, () -> {
+                int[] own = {0};
+                return () -> shared.apply(arguments[own[0]++ & 63][0]);
+            });
+        }
+    }
+
+    /**
+     * Compares loading a history of ten million entries from the text and the binary format, in
+     * entries per second, each entry being split into its expression and its result. The binary
+     * history is also read by entry number and from its end, which the text history cannot do
+     * without reading it whole. The files are generated in a temporary directory and deleted afterwards.
+     */
+    private void runHistory() {
+        String[] names = {"history.load.text.10M", "history.load.binary.10M", "history.get.binary", "history.tail.binary"};
+        if (!selected(names)) {
+            return;
+        }
+        try {
+            Path directory = Files.createTempDirectory("history");
+            Path text = directory.resolve("history.txt");
+            Path binary = directory.resolve("history.bin");
+            try {
+                Random random = new Random(11);
+                try (BufferedWriter writer = Files.newBufferedWriter(text, StandardCharsets.UTF_8)) {
+                    for (int i = 0; i < HISTORY_ENTRIES; i++) {
+                        writer.write(random.nextInt(100) + "*(" + random.nextInt(100) + "+sqrt(" + random.nextInt(100)
+                                + "))/4 = " + random.nextDouble() * 1000 + "\n");
+                    }
+                }
+                BinaryHistory.fromText(text, binary);
+                runOnce(names[0], HISTORY_ENTRIES, () -> loadText(text));
+                runOnce(names[1], HISTORY_ENTRIES, () -> loadBinary(binary));
+                try (BinaryHistory history = new BinaryHistory(binary)) {
+                    long[] cursor = {0};
+                    run(names[2], () -> {
+                        try {
+                            cursor[0] = (cursor[0] + 7_919_993) % HISTORY_ENTRIES;
+                            return history.get(cursor[0]).getResult();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                    run(names[3], 1000, () -> {
+                        try {
+                            return history.readLatest(1000).size();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+            } finally {
+                Files.deleteIfExists(text);
+                Files.deleteIfExists(binary);
+                Files.deleteIfExists(BinaryHistory.indexPath(binary));
+                Files.delete(directory);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Compares evaluating over loopback one request at a time through the HTTP server with
+     * pipelining requests through the binary wire protocol, in expressions per second. Pipelined
+     * requests are sent in batches of {@value #PIPELINE_SIZE} without waiting for replies, either as
+     * text or by the id of a compiled expression with its variable values.
+     */
+    private void runWire() {
+        String[] names = {"wire.http.roundTrip", "wire.compiled.roundTrip", "wire.text.pipelined", "wire.compiled.pipelined"};
+        if (!selected(names)) {
+            return;
+        }
+        InetSocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        double[] sum = {0};
+        CalculatorWireClient.ReplyHandler handler = new CalculatorWireClient.ReplyHandler() {
+            @Override
+            public void value(long requestId, double value) {
+                sum[0] += value;
+            }
+
+            @Override
+            public void error(long requestId, CalculationError error) {
+                throw new IllegalStateException(error.getMessage());
+            }
+        };
+        try (CalculatorServer http = new CalculatorServer(new Calculator(), loopback);
+             CalculatorWireServer wire = new CalculatorWireServer(new Calculator(), loopback);
+             CalculatorWireClient client = new CalculatorWireClient(wire.getAddress(), handler)) {
+            URL url = new URL("http://127.0.0.1:" + http.getAddress().getPort() + "/calculate?expression="
+                    + URLEncoder.encode(ARITHMETIC, StandardCharsets.UTF_8));
+            byte[] buffer = new byte[64];
+            run(names[0], 1, () -> {
+                try {
+                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                    try (InputStream in = connection.getInputStream()) {
+                        return in.read(buffer);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            client.compile(0, POLYNOMIAL);
+            client.await();
+            double[] variables = {0.5, 2};
+            run(names[1], () -> {
+                try {
+                    client.evaluate(0, 0, variables);
+                    client.await();
+                    return sum[0];
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            runOnce(names[2], PIPELINE_SIZE, () -> {
+                try {
+                    for (int i = 0; i < PIPELINE_SIZE; i++) {
+                        client.evaluate(i, ARITHMETIC);
+                    }
+                    client.await();
+                    return sum[0];
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            runOnce(names[3], PIPELINE_SIZE, () -> {
+                try {
+                    for (int i = 0; i < PIPELINE_SIZE; i++) {
+                        variables[0] = i;
+                        client.evaluate(i, 0, variables);
+                    }
+                    client.await();
+                    return sum[0];
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Measures the cost of each numeric tier of precise evaluation against plain double evaluation
+     * of a polynomial with decimal variable values. Each tier is started in directly, at a precision
+     * it can answer, and the adaptive benchmark starts in doubles at 16 digits and escalates as needed.
+     */
+    private void runPrecision() {
+        String[] names = {"precision.plain", "precision.double", "precision.doubleDouble", "precision.decimal", "precision.adaptive"};
+        if (!selected(names)) {
+            return;
+        }
+        CompiledExpression expression = new Calculator().compile(POLYNOMIAL);
+        double[][] rows = new double[64][];
+        Random random = new Random(5);
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new double[]{random.nextInt(100000) / 100.0, random.nextInt(100000) / 100.0};
+        }
+        EvaluationContext context = new EvaluationContext();
+        MathContext twelveDigits = new MathContext(12);
+        MathContext twentyFiveDigits = new MathContext(25);
+        int[] cursor = {0};
+        run(names[0], () -> expression.evaluate(rows[cursor[0]++ & 63], context));
+        run(names[1], () -> expression.evaluate(rows[cursor[0]++ & 63], twelveDigits, NumericTier.DOUBLE).doubleValue());
+        run(names[2], () -> expression.evaluate(rows[cursor[0]++ & 63], twentyFiveDigits, NumericTier.DOUBLE_DOUBLE).doubleValue());
+        run(names[3], () -> expression.evaluate(rows[cursor[0]++ & 63], MathContext.DECIMAL128, NumericTier.DECIMAL).doubleValue());
+        int[] tiers = new int[NumericTier.values().length];
+        run(names[4], () -> {
+            PreciseResult result = expression.evaluate(rows[cursor[0]++ & 63], MathContext.DECIMAL64);
+            tiers[result.getTier().ordinal()]++;
+            return result.doubleValue();
+        });
+        if (selected(names[4])) {
+            System.out.printf(Locale.ROOT, "    answered by tier: double %d, double-double %d, decimal %d%n", tiers[0], tiers[1], tiers[2]);
+        }
+    }
+
+    /**
+     * Compares gradients by forward-mode differentiation on dual numbers, which run on the
+     * interpreter, with central finite differences, which evaluate the expression 2N+1 times for N
+     * variables with generated bytecode or the interpreter, and reports the largest relative error
+     * of the finite differences against the dual numbers.
+     */
+    private void runGradient() {
+        String[] names = {"gradient.finiteDifference.generated", "gradient.finiteDifference.interpreted", "gradient.dual",
+                "gradient.dual.columns." + GRADIENT_ROWS};
+        if (!selected(names)) {
+            return;
+        }
+        CompiledExpression expression = new Calculator().compile(OBJECTIVE);
+        expression.generate();
+        CompiledExpression interpreted = new Calculator().compile(OBJECTIVE);
+        interpreted.disableGeneration();
+        int variableCount = expression.getVariableCount();
+        double[][] points = new double[64][variableCount];
+        double[][] columns = new double[variableCount][GRADIENT_ROWS];
+        Random random = new Random(11);
+        for (int v = 0; v < variableCount; v++) {
+            for (double[] point : points) {
+                point[v] = random.nextDouble() * 2 + 0.5;
+            }
+            for (int i = 0; i < GRADIENT_ROWS; i++) {
+                columns[v][i] = random.nextDouble() * 2 + 0.5;
+            }
+        }
+        EvaluationContext context = new EvaluationContext();
+        double[] shifted = new double[variableCount];
+        double[] differences = new double[variableCount];
+        double[] gradient = new double[variableCount];
+        int[] cursor = {0};
+        run(names[0], () -> finiteDifferences(expression, points[cursor[0]++ & 63], shifted, differences, context));
+        run(names[1], () -> finiteDifferences(interpreted, points[cursor[0]++ & 63], shifted, differences, context));
+        run(names[2], () -> expression.evaluateGradient(points[cursor[0]++ & 63], gradient));
+        double[] values = new double[GRADIENT_ROWS];
+        double[][] gradients = new double[variableCount][GRADIENT_ROWS];
+        run(names[3], GRADIENT_ROWS, () -> {
+            expression.evaluateGradient(columns, values, gradients);
+            return values[0];
+        });
+        if (selected(names[0], names[1])) {
+            double maxError = 0;
+            for (double[] point : points) {
+                finiteDifferences(expression, point, shifted, differences, context);
+                expression.evaluateGradient(point, gradient);
+                for (int v = 0; v < variableCount; v++) {
+                    maxError = Math.max(maxError, Math.abs(differences[v] - gradient[v]) / Math.max(1, Math.abs(gradient[v])));
+                }
+            }
+            System.out.printf(Locale.ROOT, "    finite differences: largest relative error %.2e%n", maxError);
+        }
+    }
+
+    /**
+     * Estimates a gradient by central differences with steps scaled to the variables.
+     *
+     * @return the value of the expression
+     */
+    private static double finiteDifferences(CompiledExpression expression, double[] point, double[] shifted,
+                                            double[] gradient, EvaluationContext context) {
+        double value = expression.evaluate(point, context);
+        System.arraycopy(point, 0, shifted, 0, point.length);
+        for (int v = 0; v < point.length; v++) {
+            double step = FINITE_DIFFERENCE_STEP * Math.max(1, Math.abs(point[v]));
+            shifted[v] = point[v] + step;
+            double above = expression.evaluate(shifted, context);
+            shifted[v] = point[v] - step;
+            double below = expression.evaluate(shifted, context);
+            shifted[v] = point[v];
+            gradient[v] = (above - below) / (2 * step);
+        }
+        return value;
+    }
+
+    /**
+     * Reads a text history line by line, as the calculator did, splitting every entry.
+     */
+    private static double loadText(Path text) {
+        double sum = 0;
+        try (BufferedReader reader = Files.newBufferedReader(text, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.lastIndexOf(" = ");
+                sum += line.substring(0, separator).length() + Double.parseDouble(line.substring(separator + 3));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sum;
+    }
+
+    /**
+     * Reads a binary history sequentially.
+     */
+    private static double loadBinary(Path binary) {
+        double[] sum = {0};
+        try (BinaryHistory history = new BinaryHistory(binary)) {
+            history.forEach(0, history.size(), (number, expression, result, timestamp) -> sum[0] += expression.length() + result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sum[0];
+    }
+
+    /**
+     * Compares the ways of evaluating an arithmetic expression over columns of the given length,
+     * in elements per second: one row at a time through the interpreter, chunk by chunk through the
+     * columnar evaluator, and in the generated bytecode loop; large batches are also split over the
+     * common fork-join pool.
+     *
+     * @param size the number of rows
+     */
+    private void runBatch(int size) {
+        double[][] columns = new double[2][size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            columns[0][i] = random.nextDouble() * 100;
+            columns[1][i] = random.nextDouble() * 100 + 1;
+        }
+        double[] out = new double[size];
+        EvaluationContext context = new EvaluationContext();
+        CompiledExpression interpreted = new Calculator().compile(POLYNOMIAL);
+        interpreted.disableGeneration();
+        CompiledExpression generated = new Calculator().compile(POLYNOMIAL);
+        generated.generate();
+
+        run("batch.scalar." + size, size, () -> {
+            double[] row = new double[2];
+            for (int i = 0; i < size; i++) {
+                row[0] = columns[0][i];
+                row[1] = columns[1][i];
+                out[i] = interpreted.evaluate(row, context);
+            }
+            return out[0];
+        });
+        run("batch.columnar." + size, size, () -> {
+            interpreted.evaluate(columns, out);
+            return out[0];
+        });
+        run("batch.generated." + size, size, () -> {
+            generated.evaluate(columns, out);
+            return out[0];
+        });
+        if (size > BatchEvaluator.DEFAULT_SEQUENTIAL_THRESHOLD) {
+            BatchEvaluator parallel = new BatchEvaluator();
+            run("batch.forkJoin.interpreted." + size, size, () -> parallel.evaluate(interpreted, columns, out).getFailureCount());
+            run("batch.forkJoin.generated." + size, size, () -> parallel.evaluate(generated, columns, out).getFailureCount());
+        }
+    }
+
+    /**
+     * Warms up and measures one benchmark, then prints and records its result.
+     *
+     * @param name      the benchmark name
+     * @param operation the operation to measure; its result is consumed so it cannot be optimized away
+     */
+    void run(String name, DoubleSupplier operation) {
+        run(name, 1, operation);
+    }
+
+    /**
+     * Warms up and measures a benchmark whose operation processes several elements, reporting elements per second.
+     *
+     * @param name      the benchmark name
+     * @param elements  the number of elements processed by one operation
+     * @param operation the operation to measure; its result is consumed so it cannot be optimized away
+     */
+    void run(String name, int elements, DoubleSupplier operation) {
+        if (!selected(name)) {
+            return;
+        }
+
+        measure(operation, WARMUP_NANOS);
+        double[] scores = new double[iterations];
+        long operations = 0;
+        long allocatedBytes = 0;
+        long elapsedNanos = 0;
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < iterations; i++) {
+            long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long count = measure(operation, ITERATION_NANOS);
+            long elapsed = System.nanoTime() - start;
+            allocatedBytes += THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+            elapsedNanos += elapsed;
+            operations += count;
+            scores[i] = count * elements * 1e9 / elapsed;
+        }
+
+        Result result = new Result(name, elements == 1 ? "ops/s" : "elements/s", mean(scores), standardDeviation(scores),
+                (double) allocatedBytes / operations, allocatedBytes / (elapsedNanos / 1e9) / (1024 * 1024));
+        results.add(result);
+        System.out.println(result);
+    }
+
+    /**
+     * Measures an operation too long to be run in batches by timing single runs, after one warm-up run.
+     *
+     * @param name      the benchmark name
+     * @param elements  the number of elements processed by one run
+     * @param operation the operation to measure; its result is consumed so it cannot be optimized away
+     */
+    void runOnce(String name, int elements, DoubleSupplier operation) {
+        if (!selected(name)) {
+            return;
+        }
+
+        sink += operation.getAsDouble();
+        double[] scores = new double[iterations];
+        long allocatedBytes = 0;
+        long elapsedNanos = 0;
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < iterations; i++) {
+            long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            sink += operation.getAsDouble();
+            long elapsed = System.nanoTime() - start;
+            allocatedBytes += THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+            elapsedNanos += elapsed;
+            scores[i] = elements * 1e9 / elapsed;
+        }
+
+        Result result = new Result(name, "elements/s", mean(scores), standardDeviation(scores),
+                (double) allocatedBytes / iterations, allocatedBytes / (elapsedNanos / 1e9) / (1024 * 1024));
+        results.add(result);
+        System.out.println(result);
+    }
+
+    /**
+     * Tells whether any of the given benchmarks matches the filter.
+     */
+    private boolean selected(String... names) {
+        for (String name : names) {
+            if (filter == null || name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Measures the combined throughput of several threads running an operation at the same time.
+     *
+     * @param name      the benchmark name
+     * @param threads   the number of threads
+     * @param operation creates the operation run by each thread
+     */
+    void runThreads(String name, int threads, Supplier<DoubleSupplier> operation) {
+        if (!selected(name)) {
+            return;
+        }
+
+        double[] scores = new double[iterations];
+        long operations = 0;
+        long allocatedBytes = 0;
+        for (int i = -1; i < iterations; i++) {
+            long nanos = i < 0 ? WARMUP_NANOS : ITERATION_NANOS;
+            long[] counts = new long[threads];
+            long[] bytes = new long[threads];
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int index = t;
+                workers[t] = new Thread(() -> {
+                    DoubleSupplier threadOperation = operation.get();
+                    long threadId = Thread.currentThread().getId();
+                    long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+                    counts[index] = measure(threadOperation, nanos);
+                    bytes[index] = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (i >= 0) {
+                long count = 0;
+                for (int t = 0; t < threads; t++) {
+                    count += counts[t];
+                    allocatedBytes += bytes[t];
+                }
+                operations += count;
+                scores[i] = count * 1e9 / elapsed;
+            }
+        }
+
+        Result result = new Result(name, "ops/s", mean(scores), standardDeviation(scores),
+                (double) allocatedBytes / operations, allocatedBytes / (iterations * ITERATION_NANOS / 1e9) / (1024 * 1024));
+        results.add(result);
+        System.out.println(result);
+    }
+
+    /**
+     * Runs an operation in batches until the given time has elapsed.
+     *
+     * @param operation the operation to run
+     * @param nanos     the minimum time to run for
+     * @return the number of operations run
+     */
+    private static long measure(DoubleSupplier operation, long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long count = 0;
+        double accumulator = 0;
+        do {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                accumulator += operation.getAsDouble();
+            }
+            count += BATCH_SIZE;
+        } while (System.nanoTime() < deadline);
+        sink += accumulator;
+        return count;
+    }
+
+    /**
+     * Writes the recorded results as a JSON array.
+     *
+     * @param writer the destination
+     * @throws IOException if writing fails
+     */
+    void writeJson(Writer writer) throws IOException {
+        writer.write("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            writer.write(String.format(Locale.ROOT,
+                    "  {\"benchmark\": \"%s\", \"score\": %.3f, \"scoreError\": %.3f, \"unit\": \"%s\", "
+                            + "\"bytesPerOp\": %.3f, \"allocationRateMBs\": %.3f}%s%n",
+                    result.name, result.score, result.error, result.unit, result.bytesPerOperation, result.allocationRate,
+                    i + 1 < results.size() ? "," : ""));
+        }
+        writer.write("]\n");
+    }
+
+    /**
+     * The five-term Taylor series ComplexFunctions.sin used before range reduction, kept as a baseline.
+     */
+    private static double taylorSin(double x) {
+        double result = 0;
+        int sign = 1;
+        for (int i = 1; i < 10; i += 2) {
+            result += sign * (Math.pow(x, i) / ComplexFunctions.factorial(i));
+            sign = -sign;
+        }
+        return result;
+    }
+
+    /**
+     * Computes the arithmetic mean of the given values.
+     */
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    /**
+     * Computes the sample standard deviation of the given values.
+     */
+    private static double standardDeviation(double[] values) {
+        if (values.length < 2) {
+            return 0;
+        }
+        double mean = mean(values);
+        double sum = 0;
+        for (double value : values) {
+            sum += (value - mean) * (value - mean);
+        }
+        return Math.sqrt(sum / (values.length - 1));
+    }
+
+    /**
+     * The measured result of one benchmark.
+     */
+    static final class Result {
+        final String name;
+        final String unit;
+        final double score;
+        final double error;
+        final double bytesPerOperation;
+        final double allocationRate;
+
+        Result(String name, String unit, double score, double error, double bytesPerOperation, double allocationRate) {
+            this.name = name;
+            this.unit = unit;
+            this.score = score;
+            this.error = error;
+            this.bytesPerOperation = bytesPerOperation;
+            this.allocationRate = allocationRate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-36s %14.1f +- %12.1f %-10s %10.2f B/op %10.2f MB/s",
+                    name, score, error, unit, bytesPerOperation, allocationRate);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Stress tests for sharing one Calculator instance between threads.
+ */
+public class CalculatorConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 20_000;
+    private static final String[] EXPRESSIONS = {"2+3*4", "sqrt(16)*(1+2)", "sin(30)+cos(60)", "x*2+y", "6!/(3+3)"};
+
+    /**
+     * Tests that many threads evaluating through one calculator, including cache misses and
+     * evictions, always get the same results as a single thread.
+     */
+    @Test
+    public void testSharedCalculatorUnderContention() throws Exception {
+        Calculator calculator = new Calculator(3);
+        double[] variables = {1.5, 2.5};
+        double[] expected = new double[EXPRESSIONS.length];
+        for (int i = 0; i < EXPRESSIONS.length; i++) {
+            expected[i] = new Calculator().compile(EXPRESSIONS[i]).evaluate(variables);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger mismatches = new AtomicInteger();
+        Future<?>[] workers = new Future<?>[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            int offset = t;
+            workers[t] = executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    int index = (i + offset) % EXPRESSIONS.length;
+                    double result = calculator.compile(EXPRESSIONS[index]).evaluate(variables);
+                    if (Double.compare(result, expected[index]) != 0) {
+                        mismatches.incrementAndGet();
+                    }
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS), "workers should finish");
+
+        ExpressionCache cache = calculator.getExpressionCache();
+        assertEquals(0, mismatches.get(), "every thread should see the single-threaded results");
+        assertEquals((long) THREADS * ITERATIONS, cache.getHitCount() + cache.getMissCount(),
+                "every lookup should be counted exactly once");
+        assertTrue(cache.size() <= cache.getCapacity(), "cache should stay within its capacity");
+    }
+}
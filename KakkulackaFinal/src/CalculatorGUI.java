@@ -2,22 +2,52 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A class representing the GUI for a calculator application.
+ *
+ * <p>Calculations and history file work run on a single background worker thread, in the order
+ * they were requested, and their results are handed back to the event dispatch thread, so a slow
+ * expression or disk never freezes the window. The output is a list over a
+ * {@link HistoryListModel} with a fixed row height, which renders only its visible rows however
+ * long the history grows; older pages of the history file are read when the list is scrolled to
+ * the top.
  */
 public class CalculatorGUI extends JFrame {
 
+    private static final String HISTORY_FILE = "calculator_history.txt";
+    private static final int HISTORY_PAGE_SIZE = 1000;
+    private static final int VISIBLE_ROWS = 10;
+    private static final String PROTOTYPE_LINE = "0 = 0.0";
+    private static final int SHUTDOWN_SECONDS = 5;
+
     private JTextField inputField;
-    private JTextArea outputArea;
+    private JList<String> outputList;
+    private HistoryListModel outputModel;
+    private JScrollPane scrollPane;
     private Calculator calculator;
-    private ArrayList<String> history;
+    private HistoryJournal history;
     private UserPreferences userPreferences;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "calculator-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Used on the worker thread only: the newest page of the file before this session's
+    // calculations, and the oldest page shown.
+    private HistoryPage newestPage;
+    private HistoryPage oldestShownPage;
+    // Used on the event dispatch thread only.
+    private boolean loadingHistory;
 
     /**
      * Constructs the CalculatorGUI, initializing all components and settings.
@@ -29,12 +59,16 @@ public class CalculatorGUI extends JFrame {
         setSize(500, 700);
 
         inputField = new JTextField();
-        outputArea = new JTextArea();
-        outputArea.setEditable(false);
-        outputArea.setFont(new Font("Arial", Font.PLAIN, userPreferences.getFontSize()));
+        outputModel = new HistoryListModel();
+        outputList = new JList<>(outputModel);
+        outputList.setVisibleRowCount(VISIBLE_ROWS);
+        outputList.setFont(new Font("Arial", Font.PLAIN, userPreferences.getFontSize()));
+        updateCellSize();
 
-        JScrollPane scrollPane = new JScrollPane(outputArea);
+        scrollPane = new JScrollPane(outputList);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(this::scrolled);
 
         JPanel panel = new JPanel();
         panel.setLayout(new GridLayout(7, 5, 5, 5));
@@ -71,7 +105,20 @@ public class CalculatorGUI extends JFrame {
         getContentPane().add(BorderLayout.CENTER, panel);
         getContentPane().add(BorderLayout.SOUTH, scrollPane);
 
-        history = new ArrayList<>();
+        try {
+            history = new HistoryJournal(Paths.get(HISTORY_FILE));
+            worker.execute(this::markNewestPage);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Error opening calculation history file.");
+            e.printStackTrace();
+        }
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                stopWorker();
+                closeHistory();
+            }
+        });
 
         applyTheme(userPreferences.getTheme());
 
@@ -88,14 +135,14 @@ public class CalculatorGUI extends JFrame {
             getContentPane().setBackground(Color.DARK_GRAY);
             inputField.setBackground(Color.BLACK);
             inputField.setForeground(Color.WHITE);
-            outputArea.setBackground(Color.BLACK);
-            outputArea.setForeground(Color.WHITE);
+            outputList.setBackground(Color.BLACK);
+            outputList.setForeground(Color.WHITE);
         } else {
             getContentPane().setBackground(Color.LIGHT_GRAY);
             inputField.setBackground(Color.WHITE);
             inputField.setForeground(Color.BLACK);
-            outputArea.setBackground(Color.WHITE);
-            outputArea.setForeground(Color.BLACK);
+            outputList.setBackground(Color.WHITE);
+            outputList.setForeground(Color.BLACK);
         }
     }
 
@@ -123,13 +170,14 @@ public class CalculatorGUI extends JFrame {
     }
 
     /**
-     * Updates the font sizes of the input field, output area, and buttons.
+     * Updates the font sizes of the input field, output list, and buttons.
      *
      * @param fontSize the new font size
      */
     private void updateFontSizes(int fontSize) {
         inputField.setFont(new Font("Arial", Font.PLAIN, fontSize));
-        outputArea.setFont(new Font("Arial", Font.PLAIN, fontSize));
+        outputList.setFont(new Font("Arial", Font.PLAIN, fontSize));
+        updateCellSize();
 
         Component[] components = ((JPanel) getContentPane().getComponent(1)).getComponents();
         for (Component component : components) {
@@ -138,32 +186,192 @@ public class CalculatorGUI extends JFrame {
     }
 
     /**
-     * Saves the calculation history to a file.
+     * Fixes the size of the output rows to that of a prototype line in the current font. Without
+     * a fixed size the list would measure every row to lay itself out. Rows are as wide as the
+     * list, which follows the width of the window; longer lines are cut short.
      */
-    private void saveHistoryToFile() {
-        try (FileWriter writer = new FileWriter("calculator_history.txt")) {
-            for (String calculation : history) {
-                writer.write(calculation + "\n");
+    private void updateCellSize() {
+        Dimension size = outputList.getCellRenderer()
+                .getListCellRendererComponent(outputList, PROTOTYPE_LINE, 0, false, false)
+                .getPreferredSize();
+        outputList.setFixedCellWidth(size.width);
+        outputList.setFixedCellHeight(size.height);
+    }
+
+    /**
+     * Evaluates an expression on the worker thread and shows the result, or the error, when it is done.
+     *
+     * @param expression the expression entered
+     */
+    private void calculate(String expression) {
+        worker.execute(() -> {
+            String line;
+            try {
+                line = expression + " = " + calculator.calculate(expression);
+                if (history != null) {
+                    history.append(line);
+                }
+            } catch (Exception ex) {
+                line = "Error: " + ex.getMessage();
+            }
+            String output = line;
+            SwingUtilities.invokeLater(() -> {
+                outputModel.add(output);
+                outputList.ensureIndexIsVisible(outputModel.getSize() - 1);
+            });
+        });
+    }
+
+    /**
+     * Clears the output once the pending calculations are shown. The history file is then read
+     * afresh, so that loading it shows the calculations just cleared.
+     */
+    private void clearOutput() {
+        worker.execute(() -> {
+            if (history != null) {
+                try {
+                    history.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                markNewestPage();
             }
-            JOptionPane.showMessageDialog(this, "Calculation history saved to file.");
+            SwingUtilities.invokeLater(outputModel::clear);
+        });
+    }
+
+    /**
+     * Reads the newest page of the history file, which the next load shows. Runs on the worker thread.
+     */
+    private void markNewestPage() {
+        oldestShownPage = null;
+        try {
+            newestPage = history.readLatest(HISTORY_PAGE_SIZE);
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Error saving calculation history to file.");
+            newestPage = null;
             e.printStackTrace();
         }
     }
 
     /**
-     * Loads the calculation history from a file.
+     * Waits on the worker thread until the calculation history is written to its file, then reports it.
+     * Calculations are journaled as they are made, so this only makes sure they have reached the disk.
      */
-    private void loadHistoryFromFile() {
-        try (BufferedReader reader = new BufferedReader(new FileReader("calculator_history.txt"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                outputArea.append(line + "\n");
+    private void saveHistoryToFile() {
+        if (history == null) {
+            JOptionPane.showMessageDialog(this, "Error saving calculation history to file.");
+            return;
+        }
+        worker.execute(new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                history.flush();
+                return null;
             }
-            JOptionPane.showMessageDialog(this, "Calculation history loaded from file.");
-        } catch (IOException e) {
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    JOptionPane.showMessageDialog(CalculatorGUI.this, "Calculation history saved to file.");
+                } catch (InterruptedException | ExecutionException e) {
+                    JOptionPane.showMessageDialog(CalculatorGUI.this, "Error saving calculation history to file.");
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the next older page of the calculation history on the worker thread and adds it in
+     * front of the output, keeping the rows in view where they are. The first page is the newest
+     * one from before the calculations shown.
+     *
+     * @param announce whether to tell the user when the page is loaded, as when asked by the button
+     */
+    private void loadHistoryFromFile(boolean announce) {
+        if (history == null) {
             JOptionPane.showMessageDialog(this, "Error loading calculation history from file.");
+            return;
+        }
+        if (loadingHistory) {
+            return;
+        }
+        loadingHistory = true;
+        worker.execute(new SwingWorker<HistoryPage, Void>() {
+            @Override
+            protected HistoryPage doInBackground() throws IOException {
+                HistoryPage page;
+                if (oldestShownPage == null) {
+                    page = newestPage != null ? newestPage : history.readLatest(HISTORY_PAGE_SIZE);
+                } else if (oldestShownPage.hasOlder()) {
+                    page = history.readOlder(oldestShownPage, HISTORY_PAGE_SIZE);
+                } else {
+                    return null;
+                }
+                oldestShownPage = page;
+                return page;
+            }
+
+            @Override
+            protected void done() {
+                loadingHistory = false;
+                try {
+                    HistoryPage page = get();
+                    if (page != null) {
+                        JViewport viewport = scrollPane.getViewport();
+                        Point position = viewport.getViewPosition();
+                        outputModel.addOlder(page);
+                        scrollPane.validate();
+                        position.y += page.getEntries().size() * outputList.getFixedCellHeight();
+                        viewport.setViewPosition(position);
+                    }
+                    if (announce) {
+                        JOptionPane.showMessageDialog(CalculatorGUI.this, page != null
+                                ? "Calculation history loaded from file." : "No older calculation history in file.");
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    JOptionPane.showMessageDialog(CalculatorGUI.this, "Error loading calculation history from file.");
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the next older page of the history when the output is scrolled to its top, once the
+     * history has been loaded.
+     *
+     * @param e the scroll bar event
+     */
+    private void scrolled(AdjustmentEvent e) {
+        if (e.getValue() == scrollPane.getVerticalScrollBar().getMinimum() && outputModel.hasOlder()) {
+            loadHistoryFromFile(false);
+        }
+    }
+
+    /**
+     * Stops the worker thread, letting it finish the work already requested.
+     */
+    private void stopWorker() {
+        worker.shutdown();
+        try {
+            worker.awaitTermination(SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the pending calculation history and closes its file.
+     */
+    private void closeHistory() {
+        if (history == null) {
+            return;
+        }
+        try {
+            history.close();
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
@@ -180,27 +388,18 @@ public class CalculatorGUI extends JFrame {
                     showPreferencesDialog();
                     break;
                 case "=":
-                    try {
-                        String expression = inputField.getText();
-                        double result = calculator.calculate(expression);
-                        String calculation = expression + " = " + result;
-                        outputArea.append(calculation + "\n");
-                        history.add(calculation);
-                        outputArea.setCaretPosition(outputArea.getDocument().getLength());
-                    } catch (Exception ex) {
-                        outputArea.append("Error: " + ex.getMessage() + "\n");
-                    }
+                    calculate(inputField.getText());
                     inputField.setText("");
                     break;
                 case "Clear":
-                    outputArea.setText("");
+                    clearOutput();
                     inputField.setText("");
                     break;
                 case "Save History":
                     saveHistoryToFile();
                     break;
                 case "Load History":
-                    loadHistoryFromFile();
+                    loadHistoryFromFile(true);
                     break;
                 default:
                     inputField.setText(inputField.getText() + command);
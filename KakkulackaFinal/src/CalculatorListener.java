@@ -0,0 +1,51 @@
+/**
+ * Receives notifications about the expressions evaluated by a {@link Calculator}.
+ * Listeners are called on the evaluating thread, so implementations must be thread-safe
+ * and should return quickly. All methods do nothing by default.
+ */
+public interface CalculatorListener {
+
+    /**
+     * A listener that ignores every notification. A calculator with this listener attached
+     * skips timing and notification entirely.
+     */
+    CalculatorListener NONE = new CalculatorListener() {
+    };
+
+    /**
+     * Called after an expression has been evaluated successfully.
+     *
+     * @param expression   the evaluated expression
+     * @param elapsedNanos the time spent compiling (or looking up) and evaluating the expression
+     */
+    default void expressionEvaluated(CompiledExpression expression, long elapsedNanos) {
+    }
+
+    /**
+     * Called when the evaluation of a valid expression fails, e.g. on division by zero.
+     *
+     * @param expression the expression whose evaluation failed
+     * @param failure    the exception thrown by the evaluation
+     */
+    default void evaluationFailed(CompiledExpression expression, RuntimeException failure) {
+    }
+
+    /**
+     * Called when the evaluation of a valid expression by {@link Calculator#tryCalculate} fails.
+     * No exception is created on that path, so only the error category is reported.
+     *
+     * @param expression the expression whose evaluation failed
+     * @param error      the error reported by the evaluation
+     */
+    default void evaluationFailed(CompiledExpression expression, CalculationError error) {
+    }
+
+    /**
+     * Called when an expression is rejected as invalid.
+     *
+     * @param expression the rejected expression text
+     * @param reason     the reason it was rejected
+     */
+    default void validationFailed(String expression, String reason) {
+    }
+}
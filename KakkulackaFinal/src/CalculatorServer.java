@@ -0,0 +1,337 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A headless HTTP front end sharing one thread-safe {@link Calculator} between all requests, so
+ * that services can call a single warm calculator instead of embedding their own. It uses the
+ * JDK's built-in HTTP server and keeps connections alive between requests.
+ * <ul>
+ *     <li>{@code GET /calculate?expression=2+3}, percent-encoded with {@code +} kept as a plus, or
+ *     {@code POST /calculate} with the expression as the body answers {@code 200} with the result,
+ *     or {@code 400} with {@code Error: message};</li>
+ *     <li>{@code POST /batch} takes one expression per line and answers {@code 200} with one line per
+ *     expression in the same order, each the result or {@code Error: message}.</li>
+ * </ul>
+ * Requests run on a virtual thread each when the JDK provides them, and otherwise on a fixed pool
+ * of platform threads; evaluation never blocks, so a pool sized to the processors keeps them busy.
+ *
+ * <p>Usage: {@code java CalculatorServer [port]}, or {@code java Main --server [port]}. The JDK server
+ * closes idle keep-alive connections beyond {@code sun.net.httpserver.maxIdleConnections}, 200 by
+ * default; {@link #main} raises it to {@value #MAX_IDLE_CONNECTIONS} unless it is set. The JDK
+ * server also writes the headers and the body of a response separately, which Nagle's algorithm
+ * holds back until the client acknowledges the headers, often 40 ms later; {@link #main} disables
+ * it by setting {@code sun.net.httpserver.nodelay} unless it is set.
+ */
+public final class CalculatorServer implements AutoCloseable {
+
+    /**
+     * The port listened on when none is given.
+     */
+    public static final int DEFAULT_PORT = 8080;
+
+    /**
+     * The number of idle keep-alive connections the command line server keeps open.
+     */
+    static final int MAX_IDLE_CONNECTIONS = 20_000;
+
+    private static final int BACKLOG = 4096;
+    private static final int MAX_BODY_SIZE = 16 << 20;
+    private static final String PLAIN_TEXT = "text/plain; charset=utf-8";
+    private static final byte[] NOT_ALLOWED = "Error: Method not allowed\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MALFORMED_QUERY = "Error: Malformed query\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TOO_LARGE = "Error: Request body too large\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Calculator calculator;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+
+    /**
+     * Creates a server and starts listening.
+     *
+     * @param calculator the calculator shared by all requests
+     * @param address    the address to listen on; port 0 picks a free port
+     * @throws IOException if the address cannot be bound
+     */
+    public CalculatorServer(Calculator calculator, InetSocketAddress address) throws IOException {
+        this.calculator = calculator;
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(
+                2 * Runtime.getRuntime().availableProcessors(), new WorkerFactory());
+        this.server = HttpServer.create(address, BACKLOG);
+        server.createContext("/calculate", this::calculate);
+        server.createContext("/batch", this::batch);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Starts a server on the loopback interface and runs until the process is stopped.
+     *
+     * @param args the port, {@value #DEFAULT_PORT} by default
+     * @throws IOException if the port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 1) {
+            System.err.println("Usage: java CalculatorServer [port]");
+            System.exit(2);
+        }
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        }
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        int port = args.length == 1 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        CalculatorServer server = new CalculatorServer(new Calculator(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        System.out.println("Listening on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort()
+                + (server.usesVirtualThreads() ? " (virtual threads)" : " (platform threads)"));
+    }
+
+    /**
+     * Gets the address the server listens on, with the port actually bound.
+     *
+     * @return the address
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Tells whether requests run on virtual threads.
+     *
+     * @return true on JDKs that provide virtual threads, false if a platform thread pool is used
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Stops accepting requests, lets the running ones finish for up to a second and stops the threads.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Answers {@code /calculate}.
+     */
+    private void calculate(HttpExchange exchange) throws IOException {
+        try {
+            String expression;
+            if ("GET".equals(exchange.getRequestMethod())) {
+                try {
+                    expression = queryParameter(exchange.getRequestURI().getRawQuery(), "expression");
+                } catch (IllegalArgumentException e) {
+                    respond(exchange, 400, MALFORMED_QUERY);
+                    return;
+                }
+            } else if ("POST".equals(exchange.getRequestMethod())) {
+                byte[] body = readBody(exchange);
+                if (body == null) {
+                    return;
+                }
+                expression = new String(body, StandardCharsets.UTF_8).trim();
+            } else {
+                respond(exchange, 405, NOT_ALLOWED);
+                return;
+            }
+            CalculationResult result = new CalculationResult();
+            boolean successful = expression != null && calculator.tryCalculate(expression, result);
+            StringBuilder response = new StringBuilder(32);
+            if (expression == null) {
+                response.append("Error: Missing expression parameter");
+            } else {
+                appendResult(response, result);
+            }
+            respond(exchange, successful ? 200 : 400, response.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answers {@code /batch}.
+     */
+    private void batch(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, NOT_ALLOWED);
+                return;
+            }
+            byte[] body = readBody(exchange);
+            if (body == null) {
+                return;
+            }
+            String text = new String(body, StandardCharsets.UTF_8);
+            CalculationResult result = new CalculationResult();
+            StringBuilder response = new StringBuilder(body.length * 2 + 16);
+            int start = 0;
+            while (start < text.length()) {
+                int end = text.indexOf('\n', start);
+                if (end < 0) {
+                    end = text.length();
+                }
+                String line = text.substring(start, end > start && text.charAt(end - 1) == '\r' ? end - 1 : end);
+                calculator.tryCalculate(line, result);
+                appendResult(response, result);
+                response.append('\n');
+                start = end + 1;
+            }
+            respond(exchange, 200, response.toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Appends the value of a calculation, or its error in the format of the history file.
+     */
+    private static void appendResult(StringBuilder response, CalculationResult result) {
+        if (result.isSuccessful()) {
+            response.append(result.getValue());
+        } else {
+            response.append("Error: ").append(result.getError().getMessage());
+        }
+    }
+
+    /**
+     * Reads the whole request body, answering {@code 413} if it is too large.
+     *
+     * @return the body, or null if the request was answered
+     */
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        ByteArrayOutputStream body = new ByteArrayOutputStream(length == null ? 256
+                : (int) Math.min(Math.max(Long.parseLong(length), 0), MAX_BODY_SIZE));
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            if (body.size() + read > MAX_BODY_SIZE) {
+                respond(exchange, 413, TOO_LARGE);
+                return null;
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Sends a plain text response with its length, so that the connection can be kept alive.
+     */
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", PLAIN_TEXT);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Finds a parameter of a query. The value is percent-decoded as in RFC 3986 and not as an HTML
+     * form, so a {@code +} stays a plus: {@code expression=2+3} is {@code 2+3}, not {@code 2 3}.
+     *
+     * @return the decoded value, or null if the query has no such parameter
+     * @throws IllegalArgumentException if the value has a malformed percent escape
+     */
+    static String queryParameter(String rawQuery, String name) {
+        if (rawQuery == null) {
+            return null;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int separator = pair.indexOf('=');
+            String key = separator < 0 ? pair : pair.substring(0, separator);
+            if (key.equals(name)) {
+                return separator < 0 ? "" : percentDecode(pair.substring(separator + 1));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces every {@code %XX} escape of a text by the byte it encodes, reading runs of escaped
+     * bytes as UTF-8.
+     *
+     * @throws IllegalArgumentException if an escape is not followed by two hexadecimal digits
+     */
+    private static String percentDecode(String text) {
+        int percent = text.indexOf('%');
+        if (percent < 0) {
+            return text;
+        }
+        StringBuilder decoded = new StringBuilder(text.length()).append(text, 0, percent);
+        byte[] bytes = new byte[text.length() / 3];
+        int i = percent;
+        while (i < text.length()) {
+            if (text.charAt(i) != '%') {
+                decoded.append(text.charAt(i++));
+                continue;
+            }
+            int count = 0;
+            while (i < text.length() && text.charAt(i) == '%') {
+                int high = i + 2 < text.length() ? Character.digit(text.charAt(i + 1), 16) : -1;
+                int low = high < 0 ? -1 : Character.digit(text.charAt(i + 2), 16);
+                if (low < 0) {
+                    throw new IllegalArgumentException("Malformed percent escape at " + i);
+                }
+                bytes[count++] = (byte) (high << 4 | low);
+                i += 3;
+            }
+            decoded.append(new String(bytes, 0, count, StandardCharsets.UTF_8));
+        }
+        return decoded.toString();
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task, looked up reflectively so that the
+     * calculator still runs on JDKs without virtual threads.
+     *
+     * @return the executor, or null if the JDK does not provide virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the daemon threads of the platform thread pool.
+     */
+    private static final class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "calculator-server-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
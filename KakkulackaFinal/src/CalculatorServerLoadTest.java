@@ -0,0 +1,306 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A closed-loop load test of the {@link CalculatorServer} over loopback. Every client keeps one
+ * connection alive and sends its next request as soon as the previous response has arrived, so the
+ * number of clients is the number of requests in flight. Clients are multiplexed over one selector
+ * per processor, so ten thousand of them need ten thousand sockets but no thread each.
+ *
+ * <p>After a warm-up, the latency of every request, from writing it to reading the end of its
+ * response, is recorded in a {@link LatencyHistogram}; the report lists requests per second and the
+ * latency percentiles. One expression in the mix divides by zero, so that error responses are
+ * exercised too; they are counted separately. Unless a port is given, the server is started in a
+ * child JVM on a free port, so that client and server sockets count against separate file
+ * descriptor limits.
+ *
+ * <p>Usage: {@code java CalculatorServerLoadTest [--clients n] [--seconds s] [--warmup s] [--batch k] [--port p]}.
+ * With {@code --batch} each request posts {@code k} expressions to {@code /batch}.
+ */
+public final class CalculatorServerLoadTest {
+
+    private static final String[] EXPRESSIONS = {
+            "2+3*4-5/2", "sin(30)*cos(60)+tan(45)", "sqrt(16)+log(10)*exp(1)", "((1+2)*3-4)/(5+6)", "2^10+7!", "1/0"
+    };
+    private static final int CONNECTIONS_PER_ROUND = 250;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final InetSocketAddress address;
+    private final byte[][] requests;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private volatile boolean recording;
+    private volatile boolean running = true;
+
+    private CalculatorServerLoadTest(InetSocketAddress address, int batchSize) {
+        this.address = address;
+        this.requests = new byte[EXPRESSIONS.length][];
+        for (int i = 0; i < EXPRESSIONS.length; i++) {
+            String request;
+            if (batchSize > 0) {
+                StringBuilder body = new StringBuilder();
+                for (int j = 0; j < batchSize; j++) {
+                    body.append(EXPRESSIONS[(i + j) % EXPRESSIONS.length]).append('\n');
+                }
+                request = "POST /batch HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\nContent-Length: "
+                        + body.length() + "\r\n\r\n" + body;
+            } else {
+                request = "GET /calculate?expression=" + URLEncoder.encode(EXPRESSIONS[i], StandardCharsets.UTF_8)
+                        + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            }
+            requests[i] = request.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Runs the load test and prints its report.
+     *
+     * @param args the command line options
+     * @throws Exception if the server cannot be started or reached
+     */
+    public static void main(String[] args) throws Exception {
+        int clients = 10_000;
+        int seconds = 10;
+        int warmup = 5;
+        int batchSize = 0;
+        int port = -1;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clients":
+                    clients = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--batch":
+                    batchSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        Process server = null;
+        try {
+            if (port < 0) {
+                server = startServer();
+                port = readPort(server);
+            }
+            CalculatorServerLoadTest test = new CalculatorServerLoadTest(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port), batchSize);
+            test.run(clients, warmup, seconds);
+        } finally {
+            if (server != null) {
+                server.destroy();
+            }
+        }
+    }
+
+    /**
+     * Runs the clients through the warm-up and the measurement and prints the report.
+     */
+    private void run(int clients, int warmupSeconds, int seconds) throws Exception {
+        int threadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), clients));
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            int share = clients / threadCount + (t < clients % threadCount ? 1 : 0);
+            int first = t;
+            threads[t] = new Thread(() -> drive(share, first), "load-client-" + t);
+            threads[t].setDaemon(true);
+            threads[t].start();
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        latency.reset();
+        completed.set(0);
+        errors.set(0);
+        reconnects.set(0);
+        recording = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        recording = false;
+        long elapsed = System.nanoTime() - start;
+        running = false;
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        long requests = completed.get();
+        System.out.printf(Locale.ROOT, "clients=%d threads=%d duration=%.1fs requests=%,d error responses=%,d reconnects=%,d%n",
+                clients, threadCount, elapsed / 1e9, requests, errors.get(), reconnects.get());
+        System.out.printf(Locale.ROOT, "throughput=%,.0f requests/s%n", requests / (elapsed / 1e9));
+        System.out.printf(Locale.ROOT, "latency p50=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms mean=%.2fms%n",
+                latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(99) / 1e6,
+                latency.getValueAtPercentile(99.9) / 1e6, latency.getMax() / 1e6, latency.getMean() / 1e6);
+    }
+
+    /**
+     * Runs a share of the clients on the calling thread until the test ends. Connections are opened
+     * in rounds, so that the server's accept backlog is not flooded.
+     */
+    private void drive(int clientCount, int seed) {
+        try (Selector selector = Selector.open()) {
+            int opened = 0;
+            while (running) {
+                for (int i = 0; i < CONNECTIONS_PER_ROUND && opened < clientCount; i++, opened++) {
+                    connect(selector, new Client(seed + opened));
+                }
+                selector.select(10);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            ((SocketChannel) key.channel()).finishConnect();
+                            send(key, client);
+                        } else if (key.isWritable()) {
+                            send(key, client);
+                        } else if (key.isReadable()) {
+                            receive(key, client);
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        key.channel().close();
+                        reconnects.incrementAndGet();
+                        connect(selector, client);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        } catch (IOException e) {
+            System.err.println("Client thread failed: " + e);
+        }
+    }
+
+    private void connect(Selector selector, Client client) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        if (channel.connect(address)) {
+            send(channel.register(selector, SelectionKey.OP_WRITE, client), client);
+        } else {
+            channel.register(selector, SelectionKey.OP_CONNECT, client);
+        }
+    }
+
+    /**
+     * Writes the next request, or the rest of it.
+     */
+    private void send(SelectionKey key, Client client) throws IOException {
+        if (client.request == null) {
+            client.request = ByteBuffer.wrap(requests[client.next++ % requests.length]);
+            client.response.clear();
+            client.sentAt = System.nanoTime();
+        }
+        ((SocketChannel) key.channel()).write(client.request);
+        key.interestOps(client.request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads the response and, once it is complete, records it and sends the next request.
+     */
+    private void receive(SelectionKey key, Client client) throws IOException {
+        ByteBuffer response = client.response;
+        if (!response.hasRemaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(response.capacity() * 2);
+            response.flip();
+            client.response = response = grown.put(response);
+        }
+        if (((SocketChannel) key.channel()).read(response) < 0) {
+            throw new IOException("Connection closed by the server");
+        }
+        int length = responseLength(response);
+        if (length < 0 || response.position() < length) {
+            return;
+        }
+        if (recording) {
+            latency.record(System.nanoTime() - client.sentAt);
+            completed.incrementAndGet();
+            if (response.get(9) != '2') {
+                errors.incrementAndGet();
+            }
+        }
+        client.request = null;
+        send(key, client);
+    }
+
+    /**
+     * Gets the total length of a response from its headers.
+     *
+     * @return the length of the headers and the body, or -1 if the headers are not complete
+     */
+    private static int responseLength(ByteBuffer response) {
+        int end = response.position();
+        for (int i = 3; i < end; i++) {
+            if (response.get(i) == '\n' && response.get(i - 1) == '\r' && response.get(i - 2) == '\n'
+                    && response.get(i - 3) == '\r') {
+                String headers = new String(response.array(), 0, i, StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT);
+                int header = headers.indexOf("content-length:");
+                if (header < 0) {
+                    return i + 1;
+                }
+                int lineEnd = headers.indexOf('\r', header);
+                return i + 1 + Integer.parseInt(headers.substring(header + "content-length:".length(), lineEnd).trim());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts the server in a child JVM on a free port.
+     */
+    private static Process startServer() throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "CalculatorServer", "0")
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    /**
+     * Reads the port from the line the server prints once it listens.
+     */
+    private static int readPort(Process server) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IOException("Server exited before listening");
+        }
+        System.out.println("Server: " + line);
+        int colon = line.lastIndexOf(':');
+        int end = line.indexOf(' ', colon);
+        return Integer.parseInt(line.substring(colon + 1, end < 0 ? line.length() : end));
+    }
+
+    /**
+     * The state of one client connection.
+     */
+    private static final class Client {
+        private ByteBuffer request;
+        private ByteBuffer response = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private int next;
+        private long sentAt;
+
+        Client(int first) {
+            this.next = first;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the HTTP evaluation server.
+ */
+public class CalculatorServerTest {
+
+    /**
+     * Tests single and batch evaluation, errors and rejected methods over loopback.
+     */
+    @Test
+    public void testEndpoints() throws IOException {
+        try (CalculatorServer server = new CalculatorServer(new Calculator(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            assertResponse(200, "14.0\n", request(base + "/calculate?expression=2%2B3*4", "GET", null));
+            assertResponse(200, "5.0\n", request(base + "/calculate?expression=2+3", "GET", null));
+            assertResponse(200, "3.0\n", request(base + "/calculate", "POST", "sqrt(9)\n"));
+            assertResponse(400, "Error: Division by zero\n", request(base + "/calculate?expression=1/0", "GET", null));
+            assertResponse(400, "Error: Missing expression parameter\n", request(base + "/calculate", "GET", null));
+            assertResponse(200, "3.0\nError: Division by zero\n120.0\n",
+                    request(base + "/batch", "POST", "1+2\r\n1/0\n5!"));
+            assertEquals(405, request(base + "/batch", "GET", null).status, "GET /batch should be rejected");
+        }
+        assertNull(CalculatorServer.queryParameter("a=1&b", "c"));
+        assertEquals("", CalculatorServer.queryParameter("a=1&b", "b"));
+        assertEquals("1+++2", CalculatorServer.queryParameter("x=0&a=1+%2B+2", "a"), "+ should not be read as a space");
+        assertEquals("1 + \u221a2", CalculatorServer.queryParameter("a=1%20+%20%E2%88%9A2", "a"));
+        assertThrows(IllegalArgumentException.class, () -> CalculatorServer.queryParameter("a=2%2", "a"));
+    }
+
+    private static void assertResponse(int status, String body, Response response) {
+        assertEquals(status, response.status, "status of " + body.trim());
+        assertEquals(body, response.body);
+    }
+
+    /**
+     * Sends a request and reads its response.
+     */
+    private static Response request(String url, String method, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (in != null) {
+                in.transferTo(content);
+            }
+        }
+        return new Response(status, content.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The status and body of a response.
+     */
+    private static final class Response {
+        private final int status;
+        private final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
@@ -1,4 +1,11 @@
 import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -52,4 +59,365 @@ public class CalculatorTest {
         double result = calculator.calculate("sqrt(4)");
         assertEquals(2, result, "sqrt(4) should be 2");
     }
+
+    /**
+     * Tests that arithmetic operators are applied left to right with the usual precedence.
+     */
+    @Test
+    public void testOperatorPrecedence() {
+        assertEquals(14, calculator.calculate("2+3*4"), "2+3*4 should be 14");
+        assertEquals(3, calculator.calculate("8-3-2"), "8-3-2 should be 3");
+        assertEquals(-1, calculator.calculate("-(2-1)"), "-(2-1) should be -1");
+        assertEquals(18, calculator.calculate("2*3^2"), "^ should bind tighter than *");
+        assertEquals(512, calculator.calculate("2^3^2"), "^ should be right-associative");
+        assertEquals(-4, calculator.calculate("-2^2"), "^ should bind tighter than unary minus");
+        assertEquals(0.5, calculator.calculate("2^-1"), "unary minus should apply to the exponent");
+        assertEquals(-6, calculator.calculate("-3!"), "! should bind tighter than unary minus");
+    }
+
+    /**
+     * Tests that a scientific function applies only to the operand that follows it.
+     */
+    @Test
+    public void testFunctionBinding() {
+        assertEquals(1.5, calculator.calculate("sin(30)+1"), 0.01, "sin(30)+1 should be 1.5");
+        assertEquals(1.5, calculator.calculate("sin30+1"), 0.01, "sin30+1 should be 1.5");
+        assertEquals(721, calculator.calculate("6!+1"), "6!+1 should be 721");
+    }
+
+    /**
+     * Tests factorials beyond the old limit of ten and of non-integers through the gamma function.
+     */
+    @Test
+    public void testLargeAndNonIntegerFactorial() {
+        assertEquals(6227020800.0, calculator.calculate("13!"), "13! should not overflow");
+        assertEquals(7.257415615307999e306, calculator.calculate("170!"), "170! should be the nearest double");
+        assertEquals(Math.sqrt(Math.PI) / 2, calculator.calculate("0.5!"), 1e-14, "0.5! should be gamma(1.5)");
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("171!"));
+        assertTrue(Double.isFinite(calculator.calculate("170.62!")), "170.62! should be just below the gamma overflow");
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("170.63!"));
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("10000000000.5!"));
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("(-1)!"));
+    }
+
+    /**
+     * Tests that compiling the same expression twice is served from the cache.
+     */
+    @Test
+    public void testCompiledExpressionIsCached() {
+        Calculator cachingCalculator = new Calculator(2);
+        CompiledExpression first = cachingCalculator.compile("sqrt(16) * 2");
+        CompiledExpression second = cachingCalculator.compile(" SQRT(16) * 2");
+        assertSame(first, second, "normalized expressions should share one compiled instance");
+        assertEquals(8, second.evaluate(), "sqrt(16)*2 should be 8");
+
+        ExpressionCache cache = cachingCalculator.getExpressionCache();
+        assertEquals(1, cache.getHitCount(), "second compile should be a cache hit");
+        assertEquals(1, cache.getMissCount(), "first compile should be a cache miss");
+
+        cachingCalculator.compile("1+1");
+        cachingCalculator.compile("2+2");
+        assertEquals(1, cache.getEvictionCount(), "third distinct expression should evict one entry");
+        assertEquals(2, cache.size(), "cache should stay within its capacity");
+    }
+
+    /**
+     * Tests that malformed expressions are rejected.
+     */
+    @Test
+    public void testInvalidExpression() {
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("2+"));
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("(2+3"));
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("2$3"));
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("2 3"), "spaces should not join numbers");
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("1 . 5"), "spaces should not join a number");
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("si n(30)"), "spaces should not join a name");
+        assertEquals(5, calculator.calculate(" 2 + 3 "), "spaces between tokens should be allowed");
+    }
+
+    /**
+     * Tests evaluating an expression with variables over columns of values.
+     */
+    @Test
+    public void testBulkEvaluation() {
+        CompiledExpression expression = calculator.compile("sin(x)*2+y");
+        assertEquals(2, expression.getVariableCount(), "sin(x)*2+y should have two variables");
+
+        double[] x = {0, 30, 90};
+        double[] y = {1, 2, 3};
+        double[] out = new double[3];
+        calculator.evaluate(expression, x, y, out);
+
+        assertEquals(1, out[0], 0.01, "sin(0)*2+1 should be 1");
+        assertEquals(3, out[1], 0.01, "sin(30)*2+2 should be 3");
+        assertEquals(5, out[2], 0.01, "sin(90)*2+3 should be 5");
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("x+1"));
+    }
+
+    /**
+     * Tests that the optimizer folds constants, applies only IEEE-safe identities and shares
+     * repeated subexpressions without changing any result.
+     */
+    @Test
+    public void testOptimization() {
+        assertEquals(2, calculator.compile("sin(x)*sin(x)").getRemovedNodeCount(), "the repeated sin(x) should be shared");
+        assertEquals(2, calculator.compile("2^10+y").getRemovedNodeCount(), "2^10 should be folded");
+        assertEquals(0, calculator.compile("x+0").getRemovedNodeCount(), "x+0 should be kept for negative zero");
+
+        assertEquals(Double.POSITIVE_INFINITY, 1 / calculator.compile("x+0").evaluate(new double[]{-0.0}), "-0+0 should be +0");
+        assertEquals(Double.NEGATIVE_INFINITY, 1 / calculator.compile("x-0").evaluate(new double[]{-0.0}), "-0-0 should be -0");
+        assertTrue(Double.isNaN(calculator.compile("x*1").evaluate(new double[]{Double.NaN})), "NaN*1 should be NaN");
+        assertThrows(ArithmeticException.class, () -> calculator.calculate("2*(1/0)"));
+
+        String[] expressions = {"sqrt(4)*x+2^10+y", "sin(x)*sin(x)+cos(y)^1", "(x-y)*(x-y)/1+--x", "x/(y-y)+(-0)+x"};
+        double[] values = {-2.5, -0.0, 0.0, 1, 3.75, Double.NaN};
+        for (String expression : expressions) {
+            CompiledExpression compiled = calculator.compile(expression);
+            for (double x : values) {
+                for (double y : values) {
+                    double[] variables = {x, y};
+                    double expected;
+                    try {
+                        expected = compiled.evaluateTree(variables);
+                    } catch (ArithmeticException e) {
+                        assertThrows(ArithmeticException.class, () -> compiled.evaluate(variables));
+                        continue;
+                    }
+                    assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(compiled.evaluate(variables)),
+                            expression + " should match the unoptimized tree at x=" + x + ", y=" + y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that expressions translated to bytecode give bit-identical results and failures to the
+     * interpreter, per row, in bulk and as primitive functions, and that hot expressions are translated.
+     */
+    @Test
+    public void testGeneratedExpression() {
+        String[] expressions = {"sqrt(4)*x+2^10+sin(x)*sin(x)+y*1", "x/(y-y)+3!", "(x-y)^2/(x+y)-cos(x)", "-x*-y+log(x)"};
+        double[] values = {-2.5, -0.0, 0.0, 1, 3.75, Double.NaN};
+        for (String expression : expressions) {
+            CompiledExpression compiled = calculator.compile(expression);
+            assertTrue(compiled.generate(), expression + " should be translated to bytecode");
+            for (double x : values) {
+                for (double y : values) {
+                    double[] variables = {x, y};
+                    double expected;
+                    try {
+                        expected = compiled.evaluateTree(variables);
+                    } catch (RuntimeException e) {
+                        assertThrows(e.getClass(), () -> compiled.evaluate(variables));
+                        continue;
+                    }
+                    assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(compiled.evaluate(variables)),
+                            expression + " should match the interpreter at x=" + x + ", y=" + y);
+                    assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(compiled.asBinaryOperator().applyAsDouble(x, y)),
+                            expression + " as a binary operator should match the interpreter at x=" + x + ", y=" + y);
+                }
+            }
+        }
+
+        CompiledExpression bulk = calculator.compile("x*x-y/3+sin(x)");
+        bulk.generate();
+        double[] x = {1, 2, 3, 4, 5};
+        double[] y = {6, 7, 8, 9, 10};
+        double[] out = new double[x.length];
+        bulk.evaluate(new double[][]{x, y}, out);
+        for (int i = 0; i < x.length; i++) {
+            assertEquals(bulk.evaluateTree(new double[]{x[i], y[i]}), out[i], "generated row " + i + " should match the interpreter");
+        }
+        assertThrows(IllegalArgumentException.class, () -> bulk.asUnaryOperator());
+
+        CompiledExpression hot = calculator.compile("x*3+1");
+        for (long i = 0; i <= ExpressionCompiler.THRESHOLD && !hot.isGenerated(); i++) {
+            hot.evaluate(new double[]{i});
+        }
+        assertTrue(hot.isGenerated(), "a hot expression should be translated to bytecode");
+        assertEquals(7, hot.asUnaryOperator().applyAsDouble(2), "generated x*3+1 at 2 should be 7");
+    }
+
+    /**
+     * Tests that the columnar evaluator matches the reference tree over several chunks, including
+     * scalar operands, shared subexpressions and a division by zero in a late row.
+     */
+    @Test
+    public void testColumnarEvaluation() {
+        int rows = ColumnarEvaluator.CHUNK_SIZE * 3 + 17;
+        double[] x = new double[rows];
+        double[] y = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            x[i] = i * 0.37 - 50;
+            y[i] = 1 + i % 7;
+        }
+        String[] expressions = {"2^3", "x", "x*y+x/3-y*y*0.5+(x-y)*(x+y)", "-(x^2)/y+sqrt(y)*sqrt(y)", "2/y-x*(0-y)"};
+        for (String expression : expressions) {
+            CompiledExpression compiled = new Calculator().compile(expression);
+            compiled.disableGeneration();
+            double[] out = new double[rows];
+            compiled.evaluate(new double[][]{x, y}, out);
+            for (int i = 0; i < rows; i++) {
+                double expected = compiled.evaluateTree(new double[]{x[i], y[i]});
+                assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(out[i]),
+                        expression + " row " + i + " should match the reference tree");
+            }
+        }
+
+        y[rows - 1] = 0;
+        CompiledExpression division = new Calculator().compile("x/y");
+        division.disableGeneration();
+        assertThrows(ArithmeticException.class, () -> division.evaluate(new double[][]{x, y}, new double[rows]));
+    }
+
+    /**
+     * Tests that parallel evaluation matches sequential evaluation and reports failed rows.
+     */
+    @Test
+    public void testParallelEvaluation() {
+        int rows = ColumnarEvaluator.CHUNK_SIZE * 10 + 5;
+        double[] x = new double[rows];
+        double[] y = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            x[i] = i * 0.25 - 100;
+            y[i] = i % 3 - 1;
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Calculator parallel = new Calculator();
+            parallel.setBatchEvaluator(new BatchEvaluator(pool, 300));
+            CompiledExpression polynomial = parallel.compile("x*y+x/3-y*y*0.5");
+            double[] expected = new double[rows];
+            double[] out = new double[rows];
+            parallel.evaluate(polynomial, x, y, expected);
+            BatchResult result = parallel.evaluateParallel(polynomial, x, y, out);
+            assertTrue(result.isSuccessful(), "polynomial should not fail");
+            assertArrayEquals(expected, out, "parallel results should match sequential results");
+
+            CompiledExpression division = parallel.compile("x/y");
+            result = parallel.evaluateParallel(division, x, y, out);
+            int[] failed = result.getFailedRows();
+            assertEquals((rows + 1) / 3, failed.length, "every row with y=0 should fail");
+            for (int i = 0; i < failed.length; i++) {
+                assertEquals(1 + 3 * i, failed[i], "failed rows should be reported in order");
+                assertTrue(result.getFailure(i) instanceof ArithmeticException, "failure should be division by zero");
+            }
+            for (int i = 0; i < rows; i++) {
+                assertEquals(y[i] == 0 ? Double.NaN : x[i] / y[i], out[i], 0, "row " + i);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Tests that tryCalculate reports the category of each error instead of throwing.
+     */
+    @Test
+    public void testTryCalculate() {
+        CalculationResult result = new CalculationResult();
+        assertTrue(calculator.tryCalculate("2+3*4", result), "valid expression should succeed");
+        assertEquals(14, result.getValue(), "2+3*4 should be 14");
+
+        String[][] cases = {
+                {"", "EMPTY_EXPRESSION"}, {"2$3", "INVALID_CHARACTER"}, {"2*\u03c0", "INVALID_CHARACTER"},
+                {".+1", "INVALID_NUMBER"}, {"2+", "SYNTAX_ERROR"}, {"2*/3", "SYNTAX_ERROR"}, {"(2+3", "MISMATCHED_PARENTHESES"},
+                {"2+3)", "MISMATCHED_PARENTHESES"}, {"x+1", "UNBOUND_VARIABLE"}, {"2*(1/0)", "DIVISION_BY_ZERO"},
+                {"(-1)!", "DOMAIN_ERROR"}, {"171!", "OVERFLOW"}, {"sin(30)/(2-2)", "DIVISION_BY_ZERO"}
+        };
+        for (String[] c : cases) {
+            assertFalse(calculator.tryCalculate(c[0], result), c[0] + " should fail");
+            assertEquals(CalculationError.valueOf(c[1]), result.getError(), c[0] + " should report " + c[1]);
+            assertTrue(Double.isNaN(result.getValue()), c[0] + " should have no value");
+        }
+        calculator.tryCalculate("2*/3", result);
+        assertEquals(2, result.getErrorStart(), "the unexpected operator should be located");
+        assertTrue(calculator.tryCalculate("5!/2", result), "result holder should be reusable");
+        assertNull(result.getError(), "a success should clear the error");
+        assertEquals(60, result.getValue(), "5!/2 should be 60");
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> calculator.calculate("2$3"));
+        assertEquals("Invalid character found: $", e.getMessage(), "calculate should keep its messages");
+
+        MetricsRecorder recorder = new MetricsRecorder();
+        calculator.setListener(recorder);
+        calculator.tryCalculate("1/0");
+        calculator.tryCalculate("2+");
+        assertEquals(1, recorder.getEvaluationFailureCount(), "evaluation failure should be counted");
+        assertEquals(1, recorder.getValidationFailureCount(), "validation failure should be counted");
+    }
+
+    /**
+     * Tests that evaluating while parsing gives the same values and errors as compiling first.
+     */
+    @Test
+    public void testCalculateOnce() {
+        String[] expressions = {
+                "2+3*4", "SIN(30) + 2", "-(2^3)/sqrt(16)!", "((1+2)*3-4)/(5+6)", "exp(1)*log(10)-cos(60)",
+                "2$3", ".+1", "2+", "2*/3", "(2+3", "2+3)", "x+1", "1/0", "(0-1)!", "171!", "1/0+)", "x/0",
+                " 2 + 3\t", "2 3", "1 . 5", "si n(30)", "\t 2*/3", " 2$3 ", "SQRT(X)", "   ", "", "\u2003sin(90)\n"
+        };
+        CalculationResult compiled = new CalculationResult();
+        CalculationResult once = new CalculationResult();
+        for (String expression : expressions) {
+            boolean evaluated = calculator.tryCalculate(expression, compiled);
+            assertEquals(evaluated, calculator.tryCalculateOnce(expression, once), expression + " should succeed alike");
+            assertEquals(compiled.getError(), once.getError(), expression + " should report the same error");
+            assertEquals(compiled.getValue(), once.getValue(), 0, expression + " should have the same value");
+            assertEquals(compiled.getErrorStart(), once.getErrorStart(), expression + " should locate the error alike");
+        }
+    }
+
+    /**
+     * Tests that a file of expressions is evaluated line by line across mapping windows.
+     */
+    @Test
+    public void testExpressionFileEvaluator() throws IOException {
+        Path input = Files.createTempFile("expressions", ".txt");
+        Path output = Files.createTempFile("results", ".txt");
+        try {
+            Files.write(input, "sin(30) = 0.5\r\n\n2*(3+4)\n  1/0\n6!".getBytes());
+            ExpressionFileEvaluator evaluator = new ExpressionFileEvaluator(calculator, 16);
+            try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+                evaluator.evaluate(input, channel);
+            }
+            assertEquals("sin(30) = 0.5\n2*(3+4) = 14.0\n1/0 = Error: Division by zero\n6! = 720.0\n",
+                    new String(Files.readAllBytes(output)), "every expression line should be answered");
+            assertEquals(4, evaluator.getExpressionCount(), "blank lines should be skipped");
+            assertEquals(1, evaluator.getFailureCount(), "division by zero should be counted");
+        } finally {
+            Files.delete(input);
+            Files.delete(output);
+        }
+    }
+
+    /**
+     * Tests that numbers are scanned to the same value as Double.parseDouble.
+     */
+    @Test
+    public void testNumberParsing() {
+        assertEquals(0.1 + 0.2, calculator.calculate("0.1+0.2"), "0.1+0.2 should match double arithmetic");
+        assertEquals(123456789.125, calculator.calculate("123456789.125"), "decimal should parse exactly");
+        assertEquals(Double.parseDouble("12345678901234567890.5"), calculator.calculate("12345678901234567890.5"),
+                "long numbers should fall back to Double.parseDouble");
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("1.2.3"));
+    }
+
+    /**
+     * Tests that an attached metrics recorder counts evaluations, operators and failures.
+     */
+    @Test
+    public void testMetricsRecorder() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        calculator.setListener(recorder);
+        calculator.calculate("sin(30)+sin(60)*2");
+        assertThrows(ArithmeticException.class, () -> calculator.calculate("1/0"));
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("2+"));
+
+        assertEquals(1, recorder.getLatency().getCount(), "one evaluation should be timed");
+        assertEquals(2, recorder.getOperatorCount("sin"), "sin should be counted twice");
+        assertEquals(1, recorder.getOperatorCount("*"), "* should be counted once");
+        assertEquals(1, recorder.getEvaluationFailureCount(), "division by zero should be counted");
+        assertEquals(1, recorder.getValidationFailureCount(), "invalid expression should be counted");
+    }
 }
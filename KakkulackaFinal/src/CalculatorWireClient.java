@@ -0,0 +1,310 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A client of the {@link CalculatorWireServer}. Requests are written to a buffer and sent when it
+ * fills up or on {@link #flush()}, without waiting for replies, so any number of them can be in
+ * flight; replies are passed to the {@link ReplyHandler} given at construction, in the order of the
+ * requests. Replies are handled whenever the client reads: in {@link #poll()} and {@link #await()},
+ * and while sending if the server is not taking requests until its replies are read.
+ *
+ * <p>Requests are identified by ids chosen by the caller, which the replies repeat. Encoding a
+ * request and decoding a reply allocate nothing. A client is not thread-safe.
+ */
+public final class CalculatorWireClient implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final double[] NO_VARIABLES = new double[0];
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final ReplyHandler handler;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long pendingCount;
+
+    /**
+     * Receives the replies of the server.
+     */
+    public interface ReplyHandler {
+
+        /**
+         * Receives the result of an evaluation.
+         *
+         * @param requestId the id of the request
+         * @param value     the result
+         */
+        void value(long requestId, double value);
+
+        /**
+         * Receives the error of a compilation or an evaluation.
+         *
+         * @param requestId the id of the request
+         * @param error     the error
+         */
+        void error(long requestId, CalculationError error);
+
+        /**
+         * Receives the id under which an expression was compiled. Compiling the same expression
+         * again on the same connection gives the same id.
+         *
+         * @param requestId     the id of the request
+         * @param compiledId    the id to evaluate the expression by
+         * @param variableCount the number of variable values the expression needs
+         */
+        default void compiled(long requestId, int compiledId, int variableCount) {
+        }
+
+        /**
+         * Receives the refusal of a request naming an unknown compiled expression, or compiling one
+         * too many. By default the refusal is treated as a programming error.
+         *
+         * @param requestId the id of the request
+         * @throws IllegalStateException by default
+         */
+        default void rejected(long requestId) {
+            throw new IllegalStateException("Request " + requestId + " was rejected");
+        }
+    }
+
+    /**
+     * Connects to a server.
+     *
+     * @param address the address of the server
+     * @param handler the handler receiving every reply
+     * @throws IOException if the server cannot be reached
+     */
+    public CalculatorWireClient(InetSocketAddress address, ReplyHandler handler) throws IOException {
+        this.handler = handler;
+        this.channel = SocketChannel.open(address);
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            this.selector = Selector.open();
+            this.key = channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Requests the evaluation of an expression without variables.
+     *
+     * @param requestId  the id repeated by the reply
+     * @param expression the expression, in ASCII
+     * @throws IOException              if the request cannot be sent
+     * @throws IllegalArgumentException if the expression is not ASCII or too long for a frame
+     */
+    public void evaluate(long requestId, CharSequence expression) throws IOException {
+        evaluate(requestId, expression, NO_VARIABLES);
+    }
+
+    /**
+     * Requests the evaluation of an expression. Evaluating an expression with variables costs the
+     * server a lookup by its text; expressions evaluated repeatedly are better compiled once.
+     *
+     * @param requestId  the id repeated by the reply
+     * @param expression the expression, in ASCII
+     * @param variables  the variable values, in the order the variables first appear in the expression
+     * @throws IOException              if the request cannot be sent
+     * @throws IllegalArgumentException if the expression is not ASCII or the request is too long for a frame
+     */
+    public void evaluate(long requestId, CharSequence expression, double... variables) throws IOException {
+        if (variables.length > 0xFFFF) {
+            throw new IllegalArgumentException("Too many variables");
+        }
+        int start = begin(CalculatorWireServer.EVALUATE, requestId, 2 + variables.length * 8 + expression.length());
+        out.putShort((short) variables.length);
+        putVariables(variables);
+        putText(expression, start);
+        pendingCount++;
+    }
+
+    /**
+     * Requests the compilation of an expression, answered by {@link ReplyHandler#compiled} or
+     * {@link ReplyHandler#error}.
+     *
+     * @param requestId  the id repeated by the reply
+     * @param expression the expression, in ASCII
+     * @throws IOException              if the request cannot be sent
+     * @throws IllegalArgumentException if the expression is not ASCII or too long for a frame
+     */
+    public void compile(long requestId, CharSequence expression) throws IOException {
+        int start = begin(CalculatorWireServer.COMPILE, requestId, expression.length());
+        putText(expression, start);
+        pendingCount++;
+    }
+
+    /**
+     * Requests the evaluation of an expression compiled on this connection.
+     *
+     * @param requestId  the id repeated by the reply
+     * @param compiledId the id the expression was compiled under
+     * @param variables  the variable values, in the order the variables first appear in the expression
+     * @throws IOException              if the request cannot be sent
+     * @throws IllegalArgumentException if there are too many variables for a frame
+     */
+    public void evaluate(long requestId, int compiledId, double... variables) throws IOException {
+        begin(CalculatorWireServer.EVALUATE_COMPILED, requestId, 4 + variables.length * 8);
+        out.putInt(compiledId);
+        putVariables(variables);
+        pendingCount++;
+    }
+
+    /**
+     * Sends the buffered requests.
+     *
+     * @throws IOException if the requests cannot be sent
+     */
+    public void flush() throws IOException {
+        out.flip();
+        try {
+            while (out.hasRemaining()) {
+                if (channel.write(out) == 0) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    selector.select();
+                    if (key.isReadable()) {
+                        read();
+                    }
+                    selector.selectedKeys().clear();
+                }
+            }
+        } finally {
+            out.compact();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Handles the replies that have arrived, without waiting for more. Buffered requests are not sent.
+     *
+     * @return the number of replies handled
+     * @throws IOException if the connection fails
+     */
+    public int poll() throws IOException {
+        return read();
+    }
+
+    /**
+     * Sends the buffered requests and handles replies until every request has been answered.
+     *
+     * @throws IOException if the connection fails
+     */
+    public void await() throws IOException {
+        flush();
+        while (pendingCount > 0) {
+            selector.select();
+            selector.selectedKeys().clear();
+            read();
+        }
+    }
+
+    /**
+     * Gets the number of requests sent or buffered that have not been answered.
+     *
+     * @return the number of pending requests
+     */
+    public long getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Closes the connection. Buffered requests are not sent.
+     *
+     * @throws IOException if the connection cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            selector.close();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Starts a request frame, sending the buffered requests first if the frame does not fit.
+     *
+     * @return the position of the frame in the buffer
+     */
+    private int begin(byte type, long requestId, int payload) throws IOException {
+        int length = CalculatorWireServer.HEADER_SIZE + payload;
+        if (length > CalculatorWireServer.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Request is longer than " + CalculatorWireServer.MAX_FRAME_SIZE + " bytes");
+        }
+        if (out.remaining() < 4 + length) {
+            flush();
+        }
+        int start = out.position();
+        out.putInt(length).put(type).putLong(requestId);
+        return start;
+    }
+
+    private void putVariables(double[] variables) {
+        for (double variable : variables) {
+            out.putDouble(variable);
+        }
+    }
+
+    /**
+     * Writes the text of an expression, dropping the whole frame if it is not ASCII.
+     */
+    private void putText(CharSequence expression, int start) {
+        for (int i = 0, length = expression.length(); i < length; i++) {
+            char c = expression.charAt(i);
+            if (c > 0x7F) {
+                out.position(start);
+                throw new IllegalArgumentException("Expression is not ASCII at index " + i);
+            }
+            out.put((byte) c);
+        }
+    }
+
+    /**
+     * Reads what has arrived and handles every complete reply.
+     */
+    private int read() throws IOException {
+        if (channel.read(in) < 0) {
+            throw new EOFException("Connection closed by the server");
+        }
+        in.flip();
+        int count = 0;
+        try {
+            while (in.remaining() >= 4 && in.remaining() >= 4 + in.getInt(in.position())) {
+                in.getInt();
+                byte type = in.get();
+                long requestId = in.getLong();
+                pendingCount--;
+                count++;
+                switch (type) {
+                    case CalculatorWireServer.VALUE:
+                        handler.value(requestId, in.getDouble());
+                        break;
+                    case CalculatorWireServer.ERROR:
+                        handler.error(requestId, CalculatorWireServer.error(in.get()));
+                        break;
+                    case CalculatorWireServer.COMPILED:
+                        int compiledId = in.getInt();
+                        handler.compiled(requestId, compiledId, in.getShort() & 0xFFFF);
+                        break;
+                    case CalculatorWireServer.REJECTED:
+                        handler.rejected(requestId);
+                        break;
+                    default:
+                        throw new IOException("Unknown reply type " + type);
+                }
+            }
+        } finally {
+            in.compact();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,570 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server evaluating expressions sent in a compact binary protocol, for clients that evaluate in
+ * bulk and cannot afford a text request per expression. Clients pipeline any number of requests
+ * without waiting for replies, and each reply carries the raw IEEE-754 bits of its result.
+ * {@link CalculatorWireClient} speaks the protocol.
+ *
+ * <p>Every frame, in either direction, is a big-endian {@code int} giving the number of bytes that
+ * follow, at most {@value #MAX_FRAME_SIZE}, then a type byte and the {@code long} id of the request,
+ * which the reply repeats. Requests are:
+ * <ul>
+ *     <li>{@link #EVALUATE}: an unsigned {@code short} count of variable values, the values as
+ *     {@code double}s and the expression in ASCII up to the end of the frame;</li>
+ *     <li>{@link #COMPILE}: the expression in ASCII up to the end of the frame;</li>
+ *     <li>{@link #EVALUATE_COMPILED}: the {@code int} id of a compiled expression and the variable
+ *     values as {@code double}s up to the end of the frame.</li>
+ * </ul>
+ * Replies are {@link #VALUE} followed by a {@code double}, {@link #ERROR} followed by the ordinal of
+ * a {@link CalculationError} as one byte, {@link #COMPILED} followed by the {@code int} id of the
+ * expression and an unsigned {@code short} giving its number of variables, or {@link #REJECTED} if a
+ * request names an unknown expression or the connection already holds
+ * {@value #MAX_COMPILED_EXPRESSIONS} of them. Variables are numbered in the order they first appear
+ * in the expression. Compiled ids belong to the connection that compiled them. Replies are sent in
+ * the order of the requests. A malformed frame closes the connection.
+ *
+ * <p>Each connection owns a direct buffer for each direction, and frames are decoded in place:
+ * expressions without variables are evaluated while parsing a view of the frame, and compiled
+ * expressions are evaluated from a reused array of variable values, so neither allocates. Only
+ * {@code EVALUATE} frames with variables create the expression's string, to look it up in the cache
+ * of compiled expressions. Connections are spread over one selector thread per processor. A client
+ * that does not read its replies stops being read from once its output buffer is full.
+ *
+ * <p>Usage: {@code java CalculatorWireServer [port]}, or {@code java Main --wire [port]}.
+ */
+public final class CalculatorWireServer implements AutoCloseable {
+
+    /**
+     * The port listened on when none is given.
+     */
+    public static final int DEFAULT_PORT = 8081;
+
+    /**
+     * The largest number of bytes following the length of a frame.
+     */
+    public static final int MAX_FRAME_SIZE = 1 << 16;
+
+    /**
+     * The largest number of expressions a connection can compile.
+     */
+    public static final int MAX_COMPILED_EXPRESSIONS = 1 << 16;
+
+    /**
+     * The request type evaluating an expression given as text.
+     */
+    public static final byte EVALUATE = 1;
+
+    /**
+     * The request type compiling an expression for {@link #EVALUATE_COMPILED}.
+     */
+    public static final byte COMPILE = 2;
+
+    /**
+     * The request type evaluating an expression compiled on the same connection.
+     */
+    public static final byte EVALUATE_COMPILED = 3;
+
+    /**
+     * The reply type carrying a result.
+     */
+    public static final byte VALUE = 0;
+
+    /**
+     * The reply type carrying a calculation error.
+     */
+    public static final byte ERROR = 1;
+
+    /**
+     * The reply type carrying the id of a compiled expression.
+     */
+    public static final byte COMPILED = 2;
+
+    /**
+     * The reply type refusing a request naming an unknown compiled expression, or compiling one too many.
+     */
+    public static final byte REJECTED = 3;
+
+    static final int HEADER_SIZE = 1 + 8;
+    static final int MAX_REPLY_SIZE = 4 + HEADER_SIZE + 8;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    private static final CalculationError[] ERRORS = CalculationError.values();
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+    private static final long ACCEPT_WARNING_INTERVAL_NANOS = 10_000_000_000L;
+
+    private final Calculator calculator;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private volatile boolean running = true;
+    private int nextLoop;
+
+    /**
+     * Creates a server with one selector thread per processor and starts listening.
+     *
+     * @param calculator the calculator shared by all connections
+     * @param address    the address to listen on; port 0 picks a free port
+     * @throws IOException if the address cannot be bound
+     */
+    public CalculatorWireServer(Calculator calculator, InetSocketAddress address) throws IOException {
+        this(calculator, address, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a server and starts listening.
+     *
+     * @param calculator the calculator shared by all connections
+     * @param address    the address to listen on; port 0 picks a free port
+     * @param threads    the number of selector threads serving the connections
+     * @throws IOException              if the address cannot be bound
+     * @throws IllegalArgumentException if the number of threads is not positive
+     */
+    public CalculatorWireServer(Calculator calculator, InetSocketAddress address, int threads) throws IOException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.calculator = calculator;
+        this.serverChannel = ServerSocketChannel.open();
+        this.loops = new EventLoop[threads];
+        try {
+            serverChannel.bind(address, 1024);
+            serverChannel.configureBlocking(false);
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new EventLoop(i);
+            }
+            serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.selector.close();
+                }
+            }
+            throw e;
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Starts a server on the loopback interface and runs until the process is stopped.
+     *
+     * @param args the port, {@value #DEFAULT_PORT} by default
+     * @throws IOException if the port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 1) {
+            System.err.println("Usage: java CalculatorWireServer [port]");
+            System.exit(2);
+        }
+        int port = args.length == 1 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        CalculatorWireServer server = new CalculatorWireServer(new Calculator(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        System.out.println("Listening on " + server.getAddress().getHostString() + ":" + server.getAddress().getPort());
+    }
+
+    /**
+     * Gets the address the server listens on, with the port actually bound.
+     *
+     * @return the address
+     */
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            throw new IllegalStateException("Server is closed", e);
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes the open ones and waits for the selector threads to end.
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+            try {
+                loop.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+            // Nothing is left to release.
+        }
+    }
+
+    /**
+     * Gets the error with the given ordinal, as sent in {@link #ERROR} replies.
+     *
+     * @param ordinal the ordinal
+     * @return the error
+     * @throws IllegalArgumentException if no error has the ordinal
+     */
+    static CalculationError error(int ordinal) {
+        if (ordinal < 0 || ordinal >= ERRORS.length) {
+            throw new IllegalArgumentException("Unknown error " + ordinal);
+        }
+        return ERRORS[ordinal];
+    }
+
+    /**
+     * A selector thread serving a share of the connections. The first one also accepts connections
+     * and hands them out in turn.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private SelectionKey pausedAcceptKey;
+        private long acceptResumeTime;
+        private long lastAcceptWarningTime;
+        private boolean acceptWarned;
+        private int acceptFailures;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "calculator-wire-" + index);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(acceptTimeout());
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        register(channel);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (key.isAcceptable()) {
+                            accept(key);
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                connection.writable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.readable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                System.err.println("Wire server thread failed: " + e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // The selector holds no data.
+                }
+            }
+        }
+
+        /**
+         * Accepts every pending connection. A failure to accept, e.g. when the process is out of
+         * file descriptors, is taken as transient: accepting pauses for
+         * {@value #ACCEPT_BACKOFF_MILLIS} ms, since the selector would otherwise report the pending
+         * connection again at once, while the connections already open keep being served. The
+         * failures are reported at most once every ten seconds.
+         */
+        private void accept(SelectionKey key) {
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException e) {
+                    pauseAccepting(key, e);
+                    return;
+                }
+                if (channel == null) {
+                    return;
+                }
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                if (loop == this) {
+                    register(channel);
+                } else {
+                    loop.accepted.add(channel);
+                    loop.selector.wakeup();
+                }
+            }
+        }
+
+        private void pauseAccepting(SelectionKey key, IOException failure) {
+            key.interestOps(0);
+            pausedAcceptKey = key;
+            long now = System.nanoTime();
+            acceptResumeTime = now + TimeUnit.MILLISECONDS.toNanos(ACCEPT_BACKOFF_MILLIS);
+            acceptFailures++;
+            if (!acceptWarned || now - lastAcceptWarningTime >= ACCEPT_WARNING_INTERVAL_NANOS) {
+                System.err.println("Wire server could not accept connections (" + acceptFailures + " times): " + failure);
+                acceptWarned = true;
+                lastAcceptWarningTime = now;
+                acceptFailures = 0;
+            }
+        }
+
+        /**
+         * Resumes accepting once the pause after a failure has passed.
+         *
+         * @return how long to wait for the selector in milliseconds, or 0 to wait without limit
+         */
+        private long acceptTimeout() {
+            if (pausedAcceptKey == null) {
+                return 0;
+            }
+            long remaining = acceptResumeTime - System.nanoTime();
+            if (remaining > 0) {
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+            }
+            if (pausedAcceptKey.isValid()) {
+                pausedAcceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+            pausedAcceptKey = null;
+            return 0;
+        }
+
+        /**
+         * Starts serving an accepted connection, or closes it if it cannot be set up.
+         */
+        private void register(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // The connection was never served.
+                }
+            }
+        }
+    }
+
+    /**
+     * The buffers and compiled expressions of one client connection, used only by its selector thread.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(4 + MAX_FRAME_SIZE);
+        private final ByteBuffer out = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+        private final CalculationResult result = new CalculationResult();
+        private final ByteSequence sequence = new ByteSequence();
+        private final Map<CompiledExpression, Integer> ids = new HashMap<>();
+        private CompiledExpression[] compiled = new CompiledExpression[16];
+        private int compiledCount;
+        private double[] variables = new double[16];
+        private byte[] text = new byte[256];
+        private SelectionKey key;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void readable() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            process();
+        }
+
+        void writable() throws IOException {
+            flush();
+            if (out.position() == 0) {
+                process();
+            }
+        }
+
+        /**
+         * Handles every complete frame in the input buffer for which the output buffer has room,
+         * sends the replies and waits for more input, or for the output to drain if it is full.
+         */
+        private void process() throws IOException {
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    break;
+                }
+                if (out.remaining() < MAX_REPLY_SIZE) {
+                    flush();
+                    if (out.remaining() < MAX_REPLY_SIZE) {
+                        break;
+                    }
+                }
+                int end = in.position() + 4 + length;
+                in.position(in.position() + 4);
+                handle(end);
+                in.position(end);
+            }
+            in.compact();
+            flush();
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Handles the frame ending at the given position, whose length has been read.
+         */
+        private void handle(int end) throws IOException {
+            byte type = in.get();
+            long requestId = in.getLong();
+            switch (type) {
+                case EVALUATE: {
+                    if (end - in.position() < 2) {
+                        throw new IOException("Truncated frame");
+                    }
+                    int count = in.getShort() & 0xFFFF;
+                    int textLength = end - in.position() - count * 8;
+                    if (textLength < 0) {
+                        throw new IOException("Truncated frame");
+                    }
+                    readVariables(count);
+                    readText(textLength);
+                    // Both paths read the text as Calculator.normalize does, so they accept the same expressions.
+                    if (count == 0) {
+                        calculator.tryCalculateOnce(sequence, result);
+                    } else {
+                        CompiledExpression expression = calculator.tryCompile(sequence.toString(), result);
+                        if (expression != null) {
+                            evaluate(expression, count);
+                        }
+                    }
+                    reply(requestId);
+                    break;
+                }
+                case COMPILE: {
+                    readText(end - in.position());
+                    CompiledExpression expression = calculator.tryCompile(sequence.toString(), result);
+                    if (expression == null) {
+                        reply(requestId);
+                        break;
+                    }
+                    Integer id = ids.get(expression);
+                    if (id == null) {
+                        if (compiledCount == MAX_COMPILED_EXPRESSIONS) {
+                            header(requestId, REJECTED, 0);
+                            break;
+                        }
+                        if (compiledCount == compiled.length) {
+                            compiled = Arrays.copyOf(compiled, compiledCount * 2);
+                        }
+                        id = compiledCount;
+                        compiled[compiledCount++] = expression;
+                        ids.put(expression, id);
+                    }
+                    header(requestId, COMPILED, 4 + 2);
+                    out.putInt(id).putShort((short) expression.getVariableCount());
+                    break;
+                }
+                case EVALUATE_COMPILED: {
+                    if (end - in.position() < 4 || (end - in.position() - 4) % 8 != 0) {
+                        throw new IOException("Truncated frame");
+                    }
+                    int id = in.getInt();
+                    int count = (end - in.position()) / 8;
+                    if (id < 0 || id >= compiledCount) {
+                        header(requestId, REJECTED, 0);
+                        break;
+                    }
+                    readVariables(count);
+                    evaluate(compiled[id], count);
+                    reply(requestId);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown request type " + type);
+            }
+        }
+
+        private void evaluate(CompiledExpression expression, int count) {
+            if (count < expression.getVariableCount()) {
+                result.fail(CalculationError.UNBOUND_VARIABLE);
+            } else {
+                expression.tryEvaluate(variables, result);
+            }
+        }
+
+        private void readVariables(int count) {
+            if (variables.length < count) {
+                variables = new double[Math.max(count, variables.length * 2)];
+            }
+            for (int i = 0; i < count; i++) {
+                variables[i] = in.getDouble();
+            }
+        }
+
+        private void readText(int length) {
+            if (text.length < length) {
+                text = new byte[Math.max(length, text.length * 2)];
+            }
+            in.get(text, 0, length);
+            sequence.set(text, 0, length);
+        }
+
+        /**
+         * Writes the reply for the calculation held in the result.
+         */
+        private void reply(long requestId) {
+            if (result.isSuccessful()) {
+                header(requestId, VALUE, 8);
+                out.putDouble(result.getValue());
+            } else {
+                header(requestId, ERROR, 1);
+                out.put((byte) result.getError().ordinal());
+            }
+        }
+
+        private void header(long requestId, byte type, int payload) {
+            out.putInt(HEADER_SIZE + payload).put(type).putLong(requestId);
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // The connection is gone either way.
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the binary wire protocol.
+ */
+public class CalculatorWireTest {
+
+    /**
+     * Tests evaluation by text and by compiled id, the errors reported for each and rejected ids.
+     */
+    @Test
+    public void testRequests() throws IOException {
+        Replies replies = new Replies();
+        try (CalculatorWireServer server = newServer();
+             CalculatorWireClient client = new CalculatorWireClient(server.getAddress(), replies)) {
+            client.evaluate(1, "2+3*4");
+            client.evaluate(2, "1/0");
+            client.evaluate(3, "2+*");
+            client.evaluate(4, "x*y+1", 2, 5);
+            client.evaluate(5, "x*y+1", 2);
+            client.compile(6, "x^2+y");
+            client.compile(7, "X^2+Y");
+            client.compile(8, "(1");
+            client.evaluate(9, 7);
+            client.await();
+            assertEquals(0, client.getPendingCount());
+            assertEquals(14.0, (double) replies.values.get(1L));
+            assertEquals(CalculationError.DIVISION_BY_ZERO, replies.errors.get(2L));
+            assertEquals(CalculationError.SYNTAX_ERROR, replies.errors.get(3L));
+            assertEquals(11.0, (double) replies.values.get(4L), "variables should bind in order of appearance");
+            assertEquals(CalculationError.UNBOUND_VARIABLE, replies.errors.get(5L));
+            assertEquals(2, (int) replies.variableCounts.get(6L));
+            assertEquals(replies.compiledIds.get(6L), replies.compiledIds.get(7L),
+                    "the same expression should be compiled under the same id");
+            assertEquals(CalculationError.MISMATCHED_PARENTHESES, replies.errors.get(8L));
+            assertTrue(replies.rejected.contains(9L), "an unknown compiled id should be rejected");
+
+            int id = replies.compiledIds.get(6L);
+            client.evaluate(10, id, 3, 1);
+            client.evaluate(11, id, 3);
+            client.await();
+            assertEquals(10.0, (double) replies.values.get(10L));
+            assertEquals(CalculationError.UNBOUND_VARIABLE, replies.errors.get(11L));
+
+            client.evaluate(14, "2 3");
+            client.evaluate(15, "2 3+x", 1);
+            client.evaluate(16, " 2 + 3 ");
+            client.evaluate(17, " 2 + X ", 3);
+            client.await();
+            assertEquals(CalculationError.SYNTAX_ERROR, replies.errors.get(14L), "spaces should not join numbers");
+            assertEquals(CalculationError.SYNTAX_ERROR, replies.errors.get(15L), "with or without variables");
+            assertEquals(5.0, (double) replies.values.get(16L));
+            assertEquals(5.0, (double) replies.values.get(17L));
+
+            assertThrows(IllegalArgumentException.class, () -> client.evaluate(12, "2\u00d73"));
+            assertThrows(IllegalArgumentException.class, () -> client.evaluate(13, 0, new double[CalculatorWireServer.MAX_FRAME_SIZE / 8]));
+            assertEquals(0, client.getPendingCount(), "refused requests should not be pending");
+        }
+    }
+
+    /**
+     * Tests that many more requests than fit in the socket buffers can be pipelined without waiting
+     * for replies, and that replies arrive in order.
+     */
+    @Test
+    public void testPipelining() throws IOException {
+        int count = 200_000;
+        double[] sum = {0};
+        long[] next = {0};
+        CalculatorWireClient.ReplyHandler handler = new CalculatorWireClient.ReplyHandler() {
+            @Override
+            public void value(long requestId, double value) {
+                assertEquals(next[0]++, requestId, "replies should arrive in order");
+                sum[0] += value;
+            }
+
+            @Override
+            public void error(long requestId, CalculationError error) {
+                fail("Request " + requestId + " failed: " + error);
+            }
+        };
+        try (CalculatorWireServer server = newServer();
+             CalculatorWireClient client = new CalculatorWireClient(server.getAddress(), handler)) {
+            client.compile(-1, "2*x+1");
+            client.await();
+            next[0] = 0;
+            double expected = 0;
+            for (int i = 0; i < count; i++) {
+                client.evaluate(i, 0, i);
+                expected += 2.0 * i + 1;
+            }
+            client.await();
+            assertEquals(count, next[0]);
+            assertEquals(expected, sum[0]);
+        }
+    }
+
+    /**
+     * Tests that a malformed frame closes the connection.
+     */
+    @Test
+    public void testMalformedFrame() throws IOException {
+        try (CalculatorWireServer server = newServer();
+             SocketChannel channel = SocketChannel.open(server.getAddress())) {
+            channel.write(ByteBuffer.allocate(13).putInt(9).put((byte) 42).putLong(1).flip());
+            assertEquals(-1, channel.read(ByteBuffer.allocate(64)), "the server should close the connection");
+        }
+    }
+
+    private static CalculatorWireServer newServer() throws IOException {
+        return new CalculatorWireServer(new Calculator(), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+    }
+
+    /**
+     * Records every reply by request id.
+     */
+    private static final class Replies implements CalculatorWireClient.ReplyHandler {
+        private final Map<Long, Double> values = new HashMap<>();
+        private final Map<Long, CalculationError> errors = new HashMap<>();
+        private final Map<Long, Integer> compiledIds = new HashMap<>();
+        private final Map<Long, Integer> variableCounts = new HashMap<>();
+        private final Set<Long> rejected = new HashSet<>();
+
+        @Override
+        public void value(long requestId, double value) {
+            values.put(requestId, value);
+        }
+
+        @Override
+        public void error(long requestId, CalculationError error) {
+            errors.put(requestId, error);
+        }
+
+        @Override
+        public void compiled(long requestId, int compiledId, int variableCount) {
+            compiledIds.put(requestId, compiledId);
+            variableCounts.put(requestId, variableCount);
+        }
+
+        @Override
+        public void rejected(long requestId) {
+            rejected.add(requestId);
+        }
+    }
+}
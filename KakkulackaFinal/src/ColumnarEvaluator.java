@@ -0,0 +1,325 @@
+import java.util.Arrays;
+
+/**
+ * Evaluates an {@link ExpressionProgram} over columns of variable values one chunk of rows at a time.
+ * Each opcode is applied to a whole chunk by a simple counted loop over primitive arrays, so the
+ * interpretation overhead is paid once per chunk instead of once per row, and HotSpot's superword
+ * optimization compiles the arithmetic loops to SIMD instructions. Chunks are small enough for the
+ * intermediate buffers of an expression to stay in the L1 cache.
+ *
+ * <p>Operands on the stack are either a scalar or a chunk-sized buffer. Variables are copied into
+ * the buffer of their stack slot, so that every loop reads and writes its arrays at the same index,
+ * which lets the superword optimization prove the iterations independent; constants are only
+ * broadcast into buffers for operators from the {@link OperatorRegistry}, whose vectorized
+ * implementations take whole columns. Functions are applied to a chunk through
+ * {@link ScientificOperation#applyAll}. An evaluator is not thread-safe; each thread gets its own
+ * from its {@link EvaluationContext}.
+ */
+final class ColumnarEvaluator {
+
+    /**
+     * The number of rows processed by each opcode loop.
+     */
+    static final int CHUNK_SIZE = 256;
+
+    private double[][] buffers = new double[0][];
+    private double[][] sources = new double[0][];
+    private boolean[] scalar = new boolean[0];
+    private double[] values = new double[0];
+
+    /**
+     * Evaluates a program for a range of rows of columnar variable values.
+     * Row {@code i} binds variable {@code v} to {@code columns[v][i]} and its result is written to {@code out[i]}.
+     *
+     * @param program the program to run
+     * @param columns the variable columns, indexed by variable number, each at least {@code to} long
+     * @param out     the array receiving one result per row
+     * @param from    the first row, inclusive
+     * @param to      the last row, exclusive
+     * @throws ArithmeticException      on division by zero in any row
+     * @throws IllegalArgumentException if an operand is outside the domain of a function
+     */
+    void evaluate(ExpressionProgram program, double[][] columns, double[] out, int from, int to) {
+        int depth = program.getMaxStackDepth();
+        ensureSlots(depth + program.getLocalCount());
+        for (int start = from; start < to; start += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, to - start);
+            execute(program, depth, columns, start, length);
+            if (scalar[0]) {
+                double value = values[0];
+                for (int i = 0; i < length; i++) {
+                    out[start + i] = value;
+                }
+            } else {
+                System.arraycopy(sources[0], 0, out, start, length);
+            }
+        }
+    }
+
+    /**
+     * Runs the program over one chunk, leaving the result in slot 0.
+     */
+    private void execute(ExpressionProgram program, int depth, double[][] columns, int start, int length) {
+        int[] code = program.getCode();
+        double[] constants = program.getConstants();
+        ScientificOperation[] functions = program.getFunctions();
+        Operation[] operations = program.getOperations();
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc++];
+            switch (opcode) {
+                case ExpressionProgram.CONSTANT:
+                    scalar[sp] = true;
+                    values[sp++] = constants[code[pc++]];
+                    break;
+                case ExpressionProgram.VARIABLE:
+                    System.arraycopy(columns[code[pc++]], start, buffers[sp], 0, length);
+                    ownBuffer(sp++);
+                    break;
+                case ExpressionProgram.ADD:
+                case ExpressionProgram.SUBTRACT:
+                case ExpressionProgram.MULTIPLY:
+                case ExpressionProgram.DIVIDE:
+                case ExpressionProgram.POWER:
+                    sp--;
+                    binary(opcode, sp - 1, sp, length);
+                    break;
+                case ExpressionProgram.NEGATE:
+                    if (scalar[sp - 1]) {
+                        values[sp - 1] = -values[sp - 1];
+                    } else {
+                        negate(sources[sp - 1], buffers[sp - 1], length);
+                        ownBuffer(sp - 1);
+                    }
+                    break;
+                case ExpressionProgram.CALL:
+                    ScientificOperation function = functions[code[pc++]];
+                    if (scalar[sp - 1]) {
+                        values[sp - 1] = function.apply(values[sp - 1]);
+                    } else {
+                        function.applyAll(sources[sp - 1], buffers[sp - 1], length);
+                        ownBuffer(sp - 1);
+                    }
+                    break;
+                case ExpressionProgram.APPLY:
+                    sp--;
+                    apply(operations[code[pc++]], sp - 1, sp, length);
+                    break;
+                case ExpressionProgram.STORE:
+                    store(sp - 1, depth + code[pc++], length);
+                    break;
+                case ExpressionProgram.LOAD:
+                    int local = depth + code[pc++];
+                    scalar[sp] = scalar[local];
+                    values[sp] = values[local];
+                    sources[sp++] = sources[local];
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid opcode: " + opcode);
+            }
+        }
+    }
+
+    /**
+     * Applies a binary operator to the operands in two slots and leaves the result in the left slot.
+     */
+    private void binary(int opcode, int left, int right, int length) {
+        if (scalar[left] && scalar[right]) {
+            values[left] = apply(opcode, values[left], values[right]);
+            return;
+        }
+        if (opcode == ExpressionProgram.DIVIDE) {
+            checkDivisor(right, length);
+        }
+        double[] out = buffers[left];
+        if (scalar[right]) {
+            columnScalar(opcode, sources[left], values[right], out, length);
+        } else if (scalar[left]) {
+            scalarColumn(opcode, values[left], sources[right], out, length);
+        } else {
+            columnColumn(opcode, sources[left], sources[right], out, length);
+        }
+        ownBuffer(left);
+    }
+
+    /**
+     * Applies a registered binary operation to the operands in two slots and leaves the result in the
+     * left slot. A scalar operand is broadcast into the buffer of its slot so that the operation's
+     * vectorized form always receives two columns.
+     */
+    private void apply(Operation operation, int left, int right, int length) {
+        if (scalar[left] && scalar[right]) {
+            values[left] = operation.apply(values[left], values[right]);
+            return;
+        }
+        for (int slot = left; slot <= right; slot++) {
+            if (scalar[slot]) {
+                Arrays.fill(buffers[slot], 0, length, values[slot]);
+                ownBuffer(slot);
+            }
+        }
+        operation.applyAll(sources[left], sources[right], buffers[left], length);
+        ownBuffer(left);
+    }
+
+    private void checkDivisor(int slot, int length) {
+        if (scalar[slot]) {
+            if (values[slot] == 0) {
+                throw new ArithmeticException("Division by zero");
+            }
+            return;
+        }
+        double[] divisor = sources[slot];
+        for (int i = 0; i < length; i++) {
+            if (divisor[i] == 0) {
+                throw new ArithmeticException("Division by zero");
+            }
+        }
+    }
+
+    private static double apply(int opcode, double a, double b) {
+        switch (opcode) {
+            case ExpressionProgram.ADD:
+                return a + b;
+            case ExpressionProgram.SUBTRACT:
+                return a - b;
+            case ExpressionProgram.MULTIPLY:
+                return a * b;
+            case ExpressionProgram.DIVIDE:
+                return ExpressionProgram.divide(a, b);
+            default:
+                return Math.pow(a, b);
+        }
+    }
+
+    private static void columnColumn(int opcode, double[] a, double[] b, double[] out, int length) {
+        switch (opcode) {
+            case ExpressionProgram.ADD:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] + b[i];
+                }
+                break;
+            case ExpressionProgram.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] - b[i];
+                }
+                break;
+            case ExpressionProgram.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] * b[i];
+                }
+                break;
+            case ExpressionProgram.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] / b[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < length; i++) {
+                    out[i] = Math.pow(a[i], b[i]);
+                }
+                break;
+        }
+    }
+
+    private static void columnScalar(int opcode, double[] a, double b, double[] out, int length) {
+        switch (opcode) {
+            case ExpressionProgram.ADD:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] + b;
+                }
+                break;
+            case ExpressionProgram.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] - b;
+                }
+                break;
+            case ExpressionProgram.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] * b;
+                }
+                break;
+            case ExpressionProgram.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] / b;
+                }
+                break;
+            default:
+                for (int i = 0; i < length; i++) {
+                    out[i] = Math.pow(a[i], b);
+                }
+                break;
+        }
+    }
+
+    private static void scalarColumn(int opcode, double a, double[] b, double[] out, int length) {
+        switch (opcode) {
+            case ExpressionProgram.ADD:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a + b[i];
+                }
+                break;
+            case ExpressionProgram.SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a - b[i];
+                }
+                break;
+            case ExpressionProgram.MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a * b[i];
+                }
+                break;
+            case ExpressionProgram.DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a / b[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < length; i++) {
+                    out[i] = Math.pow(a, b[i]);
+                }
+                break;
+        }
+    }
+
+    private static void negate(double[] a, double[] out, int length) {
+        for (int i = 0; i < length; i++) {
+            out[i] = -a[i];
+        }
+    }
+
+    /**
+     * Copies the operand in a stack slot to a local slot. Buffers of stack slots are overwritten
+     * by later opcodes, so a buffer owned by the stack slot is copied; other operands are referenced.
+     */
+    private void store(int slot, int local, int length) {
+        scalar[local] = scalar[slot];
+        values[local] = values[slot];
+        if (!scalar[slot] && sources[slot] == buffers[slot]) {
+            System.arraycopy(buffers[slot], 0, buffers[local], 0, length);
+            sources[local] = buffers[local];
+        } else {
+            sources[local] = sources[slot];
+        }
+    }
+
+    private void ownBuffer(int slot) {
+        scalar[slot] = false;
+        sources[slot] = buffers[slot];
+    }
+
+    private void ensureSlots(int count) {
+        if (buffers.length >= count) {
+            return;
+        }
+        double[][] grown = Arrays.copyOf(buffers, count);
+        for (int i = buffers.length; i < count; i++) {
+            grown[i] = new double[CHUNK_SIZE];
+        }
+        buffers = grown;
+        sources = new double[count][];
+        scalar = new boolean[count];
+        values = new double[count];
+    }
+}
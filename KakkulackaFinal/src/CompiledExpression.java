@@ -0,0 +1,604 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A mathematical expression that has been parsed once into a tree, simplified by the
+ * {@link ExpressionOptimizer} and lowered to an {@link ExpressionProgram}. Evaluating a compiled
+ * expression runs the program on a reusable primitive operand stack and performs no parsing,
+ * validation or allocation. The parsed tree is kept unoptimized as a reference.
+ * Variables are numbered in order of their first appearance in the expression.
+ *
+ * <p>Once an expression has been evaluated {@link ExpressionCompiler#THRESHOLD} times it is
+ * translated to bytecode by the {@link ExpressionCompiler} and later evaluations run the generated
+ * class. Cold expressions, and expressions whose class cannot be generated, stay interpreted.
+ */
+public final class CompiledExpression {
+
+    private static final double[] NO_VARIABLES = new double[0];
+
+    private final String expression;
+    private final Node root;
+    private final List<String> variableNames;
+    private final ExpressionProgram program;
+    private final String[] operatorSymbols;
+    private final int[] operatorOccurrences;
+    private final int removedNodeCount;
+    private final boolean canFail;
+
+    private volatile GeneratedExpression generated;
+    private volatile PreciseProgram preciseProgram;
+    // Counted without synchronization; a lost update only delays generation.
+    private long evaluationCount;
+    private volatile boolean generationAttempted;
+
+    /**
+     * Constructs a compiled expression.
+     *
+     * @param expression    the normalized source text of the expression
+     * @param root          the root node of the parsed tree
+     * @param variableNames the names of the variables, indexed by variable number
+     */
+    CompiledExpression(String expression, Node root, List<String> variableNames) {
+        this.expression = expression;
+        this.root = root;
+        this.variableNames = Collections.unmodifiableList(variableNames);
+        Node optimized = ExpressionOptimizer.optimize(root);
+        this.program = ExpressionProgram.lower(optimized);
+        this.removedNodeCount = ExpressionOptimizer.countNodes(root) - ExpressionOptimizer.countNodes(optimized);
+        this.canFail = program.canFail();
+
+        Map<String, Integer> occurrences = new LinkedHashMap<>();
+        countOperators(root, occurrences);
+        this.operatorSymbols = occurrences.keySet().toArray(new String[0]);
+        this.operatorOccurrences = new int[operatorSymbols.length];
+        for (int i = 0; i < operatorSymbols.length; i++) {
+            operatorOccurrences[i] = occurrences.get(operatorSymbols[i]);
+        }
+    }
+
+    /**
+     * Counts the operators and functions of a subtree by symbol.
+     *
+     * @param node        the root of the subtree
+     * @param occurrences the counts to update
+     */
+    private static void countOperators(Node node, Map<String, Integer> occurrences) {
+        if (node instanceof BinaryNode) {
+            BinaryNode binary = (BinaryNode) node;
+            occurrences.merge(binary.symbol, 1, Integer::sum);
+            countOperators(binary.left, occurrences);
+            countOperators(binary.right, occurrences);
+        } else if (node instanceof UnaryNode) {
+            UnaryNode unary = (UnaryNode) node;
+            occurrences.merge(unary.symbol, 1, Integer::sum);
+            countOperators(unary.operand, occurrences);
+        }
+    }
+
+    /**
+     * Gets the normalized source text this expression was compiled from.
+     *
+     * @return the normalized expression text
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Gets the names of the variables used by the expression.
+     *
+     * @return the variable names, indexed by variable number
+     */
+    public List<String> getVariableNames() {
+        return variableNames;
+    }
+
+    /**
+     * Gets the number of distinct variables used by the expression.
+     *
+     * @return the number of variables
+     */
+    public int getVariableCount() {
+        return variableNames.size();
+    }
+
+    /**
+     * Gets the number of a variable.
+     *
+     * @param name the variable name
+     * @return the variable number, or -1 if the expression does not use the variable
+     */
+    public int indexOfVariable(String name) {
+        return variableNames.indexOf(name);
+    }
+
+    /**
+     * Gets how many nodes of the parsed tree the optimizer removed by constant folding,
+     * algebraic identities and sharing common subexpressions.
+     *
+     * @return the number of removed nodes
+     */
+    public int getRemovedNodeCount() {
+        return removedNodeCount;
+    }
+
+    /**
+     * Evaluates an expression that has no variables.
+     *
+     * @return the result of the expression
+     * @throws IllegalArgumentException if the expression has variables or an operand is outside the domain of a function
+     * @throws ArithmeticException      if an operation fails, e.g. division by zero
+     */
+    public double evaluate() {
+        return evaluate(NO_VARIABLES);
+    }
+
+    /**
+     * Evaluates the expression for the given variable values.
+     *
+     * @param variables the variable values, indexed by variable number
+     * @return the result of the expression
+     * @throws IllegalArgumentException if fewer values than variables are given or an operand is outside the domain of a function
+     * @throws ArithmeticException      if an operation fails, e.g. division by zero
+     */
+    public double evaluate(double[] variables) {
+        return evaluate(variables, EvaluationContext.current());
+    }
+
+    /**
+     * Evaluates the expression for the given variable values using caller-supplied scratch memory.
+     *
+     * @param variables the variable values, indexed by variable number
+     * @param context   the evaluation context of the calling thread
+     * @return the result of the expression
+     * @throws IllegalArgumentException if fewer values than variables are given or an operand is outside the domain of a function
+     * @throws ArithmeticException      if an operation fails, e.g. division by zero
+     */
+    public double evaluate(double[] variables, EvaluationContext context) {
+        checkVariables(variables);
+        GeneratedExpression generated = this.generated;
+        if (generated != null) {
+            return generated.evaluate(variables);
+        }
+        countEvaluations(1);
+        return program.execute(variables, context.stack(program.getFrameSize()));
+    }
+
+    /**
+     * Evaluates the expression for the given variable values, reporting errors through a result
+     * holder instead of throwing. Expressions that can fail, because they divide or call a function,
+     * are run by the interpreter with checks before each division and call; all others take the
+     * same path as {@link #evaluate(double[])}.
+     *
+     * @param variables the variable values, indexed by variable number
+     * @param result    the holder receiving the value or the error
+     * @return true if the expression was evaluated, false if an error was reported
+     */
+    public boolean tryEvaluate(double[] variables, CalculationResult result) {
+        if (variables.length < variableNames.size()) {
+            result.fail(CalculationError.UNBOUND_VARIABLE);
+            return false;
+        }
+        if (!canFail) {
+            result.succeed(evaluate(variables));
+            return true;
+        }
+        return program.tryExecute(variables, EvaluationContext.current().stack(program.getFrameSize()), result);
+    }
+
+    /**
+     * Evaluates the expression to a decimal result correctly rounded to the given precision.
+     * Literals and variable values are taken as the decimals they are written as, so that
+     * {@code 0.1+0.2} is exactly {@code 0.3}. The expression is evaluated with doubles first,
+     * tracking a bound on the rounding error, and again with double-doubles and then with
+     * {@link BigDecimal}s only if cancellation or rounding leave the result in doubt at the requested
+     * precision; the result tells which {@link NumericTier} answered. Expressions of the four
+     * arithmetic operators, negation and powers with constant integer exponents up to
+     * {@value PreciseProgram#MAX_EXPONENT} are verified this way; others are evaluated with doubles
+     * and the result is marked as unverified.
+     *
+     * @param variables   the variable values, indexed by variable number
+     * @param mathContext the precision and rounding of the result; with unlimited precision only exact results are accepted
+     * @return the result
+     * @throws IllegalArgumentException if fewer values than variables are given or a value is not finite,
+     *                                  or if the precision is unlimited and the result has no finite decimal expansion
+     * @throws ArithmeticException      if an operation fails, e.g. division by zero
+     */
+    public PreciseResult evaluate(double[] variables, MathContext mathContext) {
+        return evaluate(variables, mathContext, NumericTier.DOUBLE);
+    }
+
+    /**
+     * Evaluates the expression to a decimal result, starting in the given tier.
+     *
+     * @param variables   the variable values, indexed by variable number
+     * @param mathContext the precision and rounding of the result
+     * @param firstTier   the tier to start in
+     * @return the result
+     * @see #evaluate(double[], MathContext)
+     */
+    PreciseResult evaluate(double[] variables, MathContext mathContext, NumericTier firstTier) {
+        checkVariables(variables);
+        PreciseProgram precise = preciseProgram;
+        if (precise == null) {
+            precise = PreciseProgram.lower(root);
+            preciseProgram = precise;
+        }
+        if (precise.isSupported()) {
+            return precise.evaluate(variables, mathContext, firstTier);
+        }
+        double value = evaluate(variables);
+        if (!Double.isFinite(value)) {
+            throw new ArithmeticException(CalculationError.OVERFLOW.getMessage());
+        }
+        return new PreciseResult(new BigDecimal(value).round(mathContext), NumericTier.DOUBLE, false);
+    }
+
+    /**
+     * Evaluates the expression by walking the unoptimized parsed tree instead of running the lowered program.
+     *
+     * @param variables the variable values, indexed by variable number
+     * @return the result of the expression
+     */
+    double evaluateTree(double[] variables) {
+        checkVariables(variables);
+        return root.evaluate(variables);
+    }
+
+    /**
+     * Evaluates the expression for every row of columnar variable values.
+     * Row {@code i} binds variable {@code v} to {@code columns[v][i]} and its result is written to {@code out[i]}.
+     * Until the expression is translated to bytecode, the rows are evaluated in chunks by the {@link ColumnarEvaluator}.
+     *
+     * @param columns the variable columns, indexed by variable number
+     * @param out     the array receiving one result per row
+     * @throws IllegalArgumentException if a column is missing or shorter than the output
+     * @throws ArithmeticException      if an operation fails, e.g. division by zero
+     */
+    public void evaluate(double[][] columns, double[] out) {
+        checkColumns(columns, out.length);
+        evaluate(columns, out, 0, out.length);
+    }
+
+    /**
+     * Evaluates the expression for a range of rows of columns that were already checked.
+     *
+     * @param columns the variable columns, indexed by variable number
+     * @param out     the array receiving one result per row
+     * @param from    the first row, inclusive
+     * @param to      the last row, exclusive
+     * @throws ArithmeticException      if an operation fails, e.g. division by zero
+     * @throws IllegalArgumentException if an operand is outside the domain of a function
+     */
+    void evaluate(double[][] columns, double[] out, int from, int to) {
+        GeneratedExpression generated = this.generated;
+        if (generated != null) {
+            generated.evaluate(columns, out, from, to);
+            return;
+        }
+        countEvaluations(to - from);
+        EvaluationContext.current().columnarEvaluator().evaluate(program, columns, out, from, to);
+    }
+
+    /**
+     * Evaluates the expression and its gradient by the variables in one pass of forward-mode
+     * automatic differentiation, with dual numbers carrying the derivatives by every variable
+     * through each operation by the chain rule. The derivatives are exact up to rounding, unlike
+     * finite differences, and cost about one evaluation per variable. Functions and registered
+     * operators contribute the derivatives of {@link ScientificOperation#derivative} and
+     * {@link Operation#differentiate}; where the result depends on one that has none, the
+     * gradient is NaN.
+     *
+     * @param variables the variable values, indexed by variable number
+     * @param gradient  the array receiving the derivative by each variable, indexed by variable number
+     * @return the value of the expression
+     * @throws IllegalArgumentException if fewer values or gradient elements than variables are given,
+     *                                  or an operand is outside the domain of a function
+     * @throws ArithmeticException      if an operation fails, e.g. division by zero
+     */
+    public double evaluateGradient(double[] variables, double[] gradient) {
+        checkVariables(variables);
+        if (gradient.length < variableNames.size()) {
+            throw new IllegalArgumentException("Gradient is shorter than the variables " + variableNames + " of: " + expression);
+        }
+        return EvaluationContext.current().gradientEvaluator().evaluate(program, variableNames.size(), variables, gradient);
+    }
+
+    /**
+     * Evaluates the expression and its gradient for every row of columnar variable values.
+     * Row {@code i} binds variable {@code v} to {@code columns[v][i]}; its value is written to
+     * {@code values[i]} and its derivative by variable {@code v} to {@code gradients[v][i]}.
+     *
+     * @param columns   the variable columns, indexed by variable number
+     * @param values    the array receiving one value per row
+     * @param gradients the arrays receiving one derivative per row, indexed by variable number
+     * @throws IllegalArgumentException if a column or a gradient array is missing or shorter than the
+     *                                  values, or an operand is outside the domain of a function
+     * @throws ArithmeticException      if an operation fails, e.g. division by zero
+     * @see #evaluateGradient(double[], double[])
+     */
+    public void evaluateGradient(double[][] columns, double[] values, double[][] gradients) {
+        int length = values.length;
+        checkColumns(columns, length);
+        int variableCount = variableNames.size();
+        if (gradients.length < variableCount) {
+            throw new IllegalArgumentException("Expected gradient arrays for variables " + variableNames + " in: " + expression);
+        }
+        for (int v = 0; v < variableCount; v++) {
+            if (gradients[v].length < length) {
+                throw new IllegalArgumentException("Gradient array for variable " + variableNames.get(v) + " is shorter than the values");
+            }
+        }
+        EvaluationContext context = EvaluationContext.current();
+        context.gradientEvaluator().evaluate(program, variableCount, columns, values, gradients, context.row(variableCount),
+                0, length);
+    }
+
+    /**
+     * Checks that a column of the given length is given for every variable.
+     *
+     * @param columns the variable columns
+     * @param length  the number of rows
+     * @throws IllegalArgumentException if a column is missing or shorter than the number of rows
+     */
+    void checkColumns(double[][] columns, int length) {
+        int variableCount = variableNames.size();
+        if (columns.length < variableCount) {
+            throw new IllegalArgumentException("Expected columns for variables " + variableNames + " in: " + expression);
+        }
+        for (int v = 0; v < variableCount; v++) {
+            if (columns[v].length < length) {
+                throw new IllegalArgumentException("Column for variable " + variableNames.get(v) + " is shorter than the output");
+            }
+        }
+    }
+
+    /**
+     * Gets the expression as a function of its only variable, compiled to bytecode if possible.
+     *
+     * @return the function, mapping the value of the variable to the result of the expression
+     * @throws IllegalArgumentException if the expression has more than one variable
+     */
+    public DoubleUnaryOperator asUnaryOperator() {
+        if (variableNames.size() > 1) {
+            throw new IllegalArgumentException("Expected at most one variable but found " + variableNames + " in: " + expression);
+        }
+        if (generate() && generated instanceof DoubleUnaryOperator) {
+            return (DoubleUnaryOperator) generated;
+        }
+        return x -> evaluate(new double[]{x});
+    }
+
+    /**
+     * Gets the expression as a function of its two variables, compiled to bytecode if possible.
+     *
+     * @return the function, mapping the values of variables 0 and 1 to the result of the expression
+     * @throws IllegalArgumentException if the expression has more than two variables
+     */
+    public DoubleBinaryOperator asBinaryOperator() {
+        if (variableNames.size() > 2) {
+            throw new IllegalArgumentException("Expected at most two variables but found " + variableNames + " in: " + expression);
+        }
+        if (generate() && generated instanceof DoubleBinaryOperator) {
+            return (DoubleBinaryOperator) generated;
+        }
+        return (x, y) -> evaluate(new double[]{x, y});
+    }
+
+    /**
+     * Counts interpreted evaluations and generates bytecode once the threshold is reached.
+     *
+     * @param count the number of evaluations
+     */
+    private void countEvaluations(int count) {
+        // Counting stops once generation was attempted, so a failed or disabled generation is not retried on every evaluation.
+        if (generationAttempted) {
+            return;
+        }
+        evaluationCount += count;
+        if (evaluationCount >= ExpressionCompiler.THRESHOLD && ExpressionCompiler.THRESHOLD >= 0) {
+            generate();
+        }
+    }
+
+    /**
+     * Translates the expression to bytecode unless that was already attempted or is disabled.
+     * If the class cannot be generated the expression stays interpreted.
+     *
+     * @return true if evaluations now run generated bytecode
+     */
+    synchronized boolean generate() {
+        if (!generationAttempted) {
+            generationAttempted = true;
+            if (ExpressionCompiler.THRESHOLD >= 0) {
+                try {
+                    generated = ExpressionCompiler.compile(program, variableNames.size());
+                } catch (IllegalStateException | LinkageError e) {
+                    // The interpreter remains correct for any expression.
+                }
+            }
+        }
+        return generated != null;
+    }
+
+    /**
+     * Tells whether evaluations run generated bytecode.
+     *
+     * @return true if the expression has been translated to bytecode
+     */
+    boolean isGenerated() {
+        return generated != null;
+    }
+
+    /**
+     * Keeps the expression interpreted, e.g. to measure the interpreter against generated bytecode.
+     */
+    synchronized void disableGeneration() {
+        generationAttempted = true;
+    }
+
+    /**
+     * Checks that a value is given for every variable.
+     *
+     * @param variables the variable values
+     * @throws IllegalArgumentException if fewer values than variables are given
+     */
+    private void checkVariables(double[] variables) {
+        if (variables.length < variableNames.size()) {
+            throw new IllegalArgumentException("Expected values for variables " + variableNames + " in: " + expression);
+        }
+    }
+
+    /**
+     * Gets the number of distinct operators and functions used by the expression.
+     *
+     * @return the number of distinct operator symbols
+     */
+    int getOperatorKindCount() {
+        return operatorSymbols.length;
+    }
+
+    /**
+     * Gets the symbol of a distinct operator or function used by the expression.
+     *
+     * @param index the index, below {@link #getOperatorKindCount()}
+     * @return the operator symbol or function name
+     */
+    String getOperatorSymbol(int index) {
+        return operatorSymbols[index];
+    }
+
+    /**
+     * Gets how many times a distinct operator or function occurs in the expression.
+     *
+     * @param index the index, below {@link #getOperatorKindCount()}
+     * @return the number of occurrences
+     */
+    int getOperatorOccurrences(int index) {
+        return operatorOccurrences[index];
+    }
+
+    /**
+     * Gets the root node of the parsed tree.
+     *
+     * @return the root node
+     */
+    Node getRoot() {
+        return root;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * A node of the parsed expression tree.
+     */
+    abstract static class Node {
+        /**
+         * Evaluates the subtree rooted at this node.
+         *
+         * @param variables the variable values, indexed by variable number
+         * @return the value of the subtree
+         */
+        abstract double evaluate(double[] variables);
+    }
+
+    /**
+     * A numeric literal, or a constant computed by the optimizer.
+     */
+    static final class Constant extends Node {
+        final double value;
+        // The literal as written, or null for a computed constant.
+        final String text;
+
+        Constant(double value) {
+            this(value, null);
+        }
+
+        Constant(double value, String text) {
+            this.value = value;
+            this.text = text;
+        }
+
+        @Override
+        double evaluate(double[] variables) {
+            return value;
+        }
+    }
+
+    /**
+     * A reference to a variable.
+     */
+    static final class Variable extends Node {
+        final String name;
+        final int index;
+
+        Variable(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        @Override
+        double evaluate(double[] variables) {
+            return variables[index];
+        }
+    }
+
+    /**
+     * A binary operator applied to two operands.
+     */
+    static final class BinaryNode extends Node {
+        final int opcode;
+        final String symbol;
+        final Operation operation;
+        final boolean pure;
+        final Node left;
+        final Node right;
+
+        BinaryNode(int opcode, String symbol, Operation operation, boolean pure, Node left, Node right) {
+            this.opcode = opcode;
+            this.symbol = symbol;
+            this.operation = operation;
+            this.pure = pure;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double evaluate(double[] variables) {
+            return operation.apply(left.evaluate(variables), right.evaluate(variables));
+        }
+    }
+
+    /**
+     * A function, prefix or postfix operator applied to a single operand.
+     */
+    static final class UnaryNode extends Node {
+        final int opcode;
+        final String symbol;
+        final ScientificOperation operation;
+        final boolean pure;
+        final Node operand;
+
+        UnaryNode(int opcode, String symbol, ScientificOperation operation, boolean pure, Node operand) {
+            this.opcode = opcode;
+            this.symbol = symbol;
+            this.operation = operation;
+            this.pure = pure;
+            this.operand = operand;
+        }
+
+        @Override
+        double evaluate(double[] variables) {
+            return operation.apply(operand.evaluate(variables));
+        }
+    }
+}
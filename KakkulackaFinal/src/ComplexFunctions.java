@@ -1,100 +1,501 @@
-import java.util.HashMap;
+import java.math.BigInteger;
+import java.util.Arrays;
 
 /**
  * A class providing complex mathematical functions including trigonometric calculations
  * and factorial computation.
+ *
+ * <p>The trigonometric functions reduce their argument to [-&pi;/4, &pi;/4] with the fdlibm
+ * medium-path Cody-Waite reduction by multiples of &pi;/2, which subtracts further parts of &pi;/2
+ * as the argument nears a multiple of it, and evaluate the fdlibm minimax polynomials for sine
+ * and cosine in Horner form. For arguments up to {@link #MAX_REDUCED_ARGUMENT} the sine and cosine
+ * are within two ulps of {@link StrictMath} and the tangent within three; larger arguments need a
+ * multi-precision reduction and are delegated to {@link StrictMath}.
+ *
+ * <p>Factorials of small integers are answered in constant time from precomputed tables: exactly
+ * as a long up to {@value #MAX_LONG_FACTORIAL}! and as the nearest double up to
+ * {@value #MAX_DOUBLE_FACTORIAL}!. Larger exact factorials are computed as {@link BigInteger}
+ * by binary splitting, and non-integer arguments are handled by the {@link #gamma} function.
+ *
+ * <p>The functions taking degrees answer the angles of the exact-value table from the table. When
+ * a {@link TrigTable} is selected at startup through the {@code calculator.trigTable} system
+ * properties, all other angles in degrees are answered from that table instead.
  */
 public class ComplexFunctions {
-    public static final int DEPTH = 10;
+    /**
+     * The largest magnitude of a radian argument reduced by the Cody-Waite reduction.
+     */
+    public static final double MAX_REDUCED_ARGUMENT = 0x1p19 * Math.PI / 2;
+    /**
+     * The largest integer whose factorial fits in a long.
+     */
+    public static final int MAX_LONG_FACTORIAL = 20;
+    /**
+     * The largest integer whose factorial is finite as a double.
+     */
+    public static final int MAX_DOUBLE_FACTORIAL = 170;
+    /**
+     * The largest argument whose gamma function is finite as a double.
+     */
+    public static final double MAX_GAMMA_ARGUMENT = 171.62437695630274;
     public static final int[] tableKeys = {0, 30, 45, 60, 90, 120, 135, 150, 180, 210, 225, 240, 270, 300, 315, 330, 360};
-    public static final double[] tableValuesSin = {0.0, 0.5, 0.70710678118, 0.86602540378, 1.0, 0.86602540378, 0.70710678118, 0.5, 0.0, -0.5, -0.70710678118, -0.86602540378, -1.0, -0.86602540378, -0.70710678118, -0.5, 0.0};
-    public static final double[] tableValuesCos = {1.0, 0.86602540378, 0.70710678118, 0.5, 0.0, -0.5, -0.70710678118, -0.86602540378, -1.0, -0.86602540378, -0.70710678118, -0.5, 0.0, 0.5, 0.70710678118, 0.86602540378, 1.0};
+    public static final double[] tableValuesSin = {0.0, 0.5, 0.7071067811865476, 0.8660254037844386, 1.0, 0.8660254037844386, 0.7071067811865476, 0.5, 0.0, -0.5, -0.7071067811865476, -0.8660254037844386, -1.0, -0.8660254037844386, -0.7071067811865476, -0.5, 0.0};
+    public static final double[] tableValuesCos = {1.0, 0.8660254037844386, 0.7071067811865476, 0.5, 0.0, -0.5, -0.7071067811865476, -0.8660254037844386, -1.0, -0.8660254037844386, -0.7071067811865476, -0.5, 0.0, 0.5, 0.7071067811865476, 0.8660254037844386, 1.0};
+
+    private static final double TWO_OVER_PI = 6.36619772367581382433e-01;
+    private static final double PI_OVER_TWO_1 = 1.57079632673412561417e+00;
+    private static final double PI_OVER_TWO_1_TAIL = 6.07710050650619224932e-11;
+    private static final double PI_OVER_TWO_2 = 6.07710050630396597660e-11;
+    private static final double PI_OVER_TWO_2_TAIL = 2.02226624879595063154e-21;
+    private static final double PI_OVER_TWO_3 = 2.02226624871116645580e-21;
+    private static final double PI_OVER_TWO_3_TAIL = 8.47842766036889956997e-32;
+
+    private static final double S1 = -1.66666666666666324348e-01;
+    private static final double S2 = 8.33333333332248946124e-03;
+    private static final double S3 = -1.98412698298579493134e-04;
+    private static final double S4 = 2.75573137070700676789e-06;
+    private static final double S5 = -2.50507602534068634195e-08;
+    private static final double S6 = 1.58969099521155010221e-10;
+
+    private static final double C1 = 4.16666666666666019037e-02;
+    private static final double C2 = -1.38888888888741095749e-03;
+    private static final double C3 = 2.48015872894767294178e-05;
+    private static final double C4 = -2.75573143513906633035e-07;
+    private static final double C5 = 2.08757232129817482790e-09;
+    private static final double C6 = -1.13596475577881948265e-11;
+
+    private static final double LANCZOS_G = 7;
+    private static final double DIGAMMA_ASYMPTOTIC = 10;
+    private static final double[] LANCZOS = {
+            0.99999999999980993, 676.5203681218851, -1259.1392167224028, 771.32342877765313,
+            -176.61502916214059, 12.507343278686905, -0.13857109526572012, 9.9843695780195716e-6,
+            1.5056327351493116e-7
+    };
+    private static final double SQRT_TWO_PI = 2.5066282746310002;
+    private static final int PRODUCT_LEAF_SIZE = 16;
+
+    private static final long[] longFactorials = new long[MAX_LONG_FACTORIAL + 1];
+    private static final double[] doubleFactorials = new double[MAX_DOUBLE_FACTORIAL + 1];
+    private static final double[] exactSin = new double[361];
+    private static final double[] exactCos = new double[361];
+    private static final TrigTable degreeTable = loadDegreeTable();
+
+    static {
+        BigInteger factorial = BigInteger.ONE;
+        for (int i = 0; i <= MAX_DOUBLE_FACTORIAL; i++) {
+            if (i > 0) {
+                factorial = factorial.multiply(BigInteger.valueOf(i));
+            }
+            if (i <= MAX_LONG_FACTORIAL) {
+                longFactorials[i] = factorial.longValueExact();
+            }
+            doubleFactorials[i] = factorial.doubleValue();
+        }
 
-    static HashMap<Integer, Double> sinMap = new HashMap<>();
-    static HashMap<Integer, Double> cosMap = new HashMap<>();
+        Arrays.fill(exactSin, Double.NaN);
+        Arrays.fill(exactCos, Double.NaN);
+        for (int i = 0; i < tableKeys.length; i++) {
+            exactSin[tableKeys[i]] = tableValuesSin[i];
+            exactCos[tableKeys[i]] = tableValuesCos[i];
+        }
+    }
 
     /**
-     * Computes the factorial of a given non-negative integer.
+     * Computes the factorial of a given non-negative integer from a precomputed table.
      *
      * @param n the integer for which the factorial is to be calculated
      * @return the factorial of the given integer
      * @throws IllegalArgumentException if the input is negative
+     * @throws ArithmeticException if the factorial does not fit in a long, i.e. n is above {@value #MAX_LONG_FACTORIAL}
      */
-    public static int factorial(int n) {
+    public static long factorial(int n) {
         if (n < 0) {
             throw new IllegalArgumentException("Factorial cannot be negative");
         }
-        if (n == 0 || n == 1) {
-            return 1;
+        if (n > MAX_LONG_FACTORIAL) {
+            throw new ArithmeticException("Factorial of " + n + " overflows a long");
         }
-        return n * factorial(n - 1);
+        return longFactorials[n];
     }
 
     /**
-     * Initializes the sine and cosine lookup tables.
+     * Computes the factorial of a given non-negative integer as the nearest double, from a precomputed table.
+     *
+     * @param n the integer for which the factorial is to be calculated
+     * @return the factorial of the given integer, or positive infinity if n is above {@value #MAX_DOUBLE_FACTORIAL}
+     * @throws IllegalArgumentException if the input is negative
      */
-    public static void setMaps() {
-        for (int i = 0; i < tableKeys.length; i++) {
-            sinMap.put(tableKeys[i], tableValuesSin[i]);
-            cosMap.put(tableKeys[i], tableValuesCos[i]);
+    public static double factorialAsDouble(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Factorial cannot be negative");
+        }
+        return n > MAX_DOUBLE_FACTORIAL ? Double.POSITIVE_INFINITY : doubleFactorials[n];
+    }
+
+    /**
+     * Computes the exact factorial of a given non-negative integer.
+     * The product is formed by binary splitting, so most multiplications are between numbers of
+     * similar size and benefit from the sub-quadratic multiplication of {@link BigInteger}.
+     *
+     * @param n the integer for which the factorial is to be calculated
+     * @return the factorial of the given integer
+     * @throws IllegalArgumentException if the input is negative
+     */
+    public static BigInteger bigFactorial(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Factorial cannot be negative");
+        }
+        if (n <= MAX_LONG_FACTORIAL) {
+            return BigInteger.valueOf(longFactorials[n]);
+        }
+        return product(MAX_LONG_FACTORIAL + 1, n).multiply(BigInteger.valueOf(longFactorials[MAX_LONG_FACTORIAL]));
+    }
+
+    /**
+     * Computes the product of all integers in a range by splitting it in halves.
+     *
+     * @param low  the first factor
+     * @param high the last factor
+     * @return the product
+     */
+    private static BigInteger product(long low, long high) {
+        if (high - low < PRODUCT_LEAF_SIZE) {
+            // Small factors are multiplied as longs and only moved into the BigInteger before they overflow.
+            BigInteger result = BigInteger.ONE;
+            long partial = 1;
+            for (long i = low; i <= high; i++) {
+                if (partial > Long.MAX_VALUE / i) {
+                    result = result.multiply(BigInteger.valueOf(partial));
+                    partial = i;
+                } else {
+                    partial *= i;
+                }
+            }
+            return result.multiply(BigInteger.valueOf(partial));
+        }
+        long middle = (low + high) >>> 1;
+        return product(low, middle).multiply(product(middle + 1, high));
+    }
+
+    /**
+     * Computes the gamma function, the extension of the factorial with gamma(n + 1) = n!.
+     * Positive integers are answered from the factorial table. Other arguments use the Lanczos
+     * approximation (g = 7, nine terms), which is accurate to about 15 significant digits,
+     * and the reflection formula for arguments below one half.
+     *
+     * @param x the argument
+     * @return the gamma function of x, NaN at the poles (zero and the negative integers) and
+     * positive infinity where the result overflows
+     */
+    public static double gamma(double x) {
+        if (x == Math.rint(x)) {
+            if (x <= 0) {
+                return Double.NaN;
+            }
+            return x > MAX_DOUBLE_FACTORIAL + 1 ? Double.POSITIVE_INFINITY : doubleFactorials[(int) x - 1];
+        }
+        if (x < 0.5) {
+            return Math.PI / (sin(Math.PI * x) * gamma(1 - x));
+        }
+
+        x -= 1;
+        double sum = LANCZOS[0];
+        for (int i = 1; i < LANCZOS.length; i++) {
+            sum += LANCZOS[i] / (x + i);
+        }
+        double t = x + LANCZOS_G + 0.5;
+        // t^(x + 0.5) is split in two halves so it does not overflow before exp(-t) scales it down.
+        double half = Math.pow(t, (x + 0.5) / 2);
+        return SQRT_TWO_PI * half * (half * Math.exp(-t)) * sum;
+    }
+
+    /**
+     * Computes the digamma function, the derivative of the logarithm of the gamma function, so that
+     * the derivative of gamma(x) is gamma(x) * digamma(x). Arguments are raised to at least
+     * {@value #DIGAMMA_ASYMPTOTIC} by the recurrence digamma(x) = digamma(x + 1) - 1/x and then
+     * answered by the asymptotic series, which is accurate to about 14 significant digits there;
+     * arguments below one half use the reflection formula.
+     *
+     * @param x the argument
+     * @return the digamma function of x, NaN at the poles (zero and the negative integers)
+     */
+    public static double digamma(double x) {
+        if (x <= 0 && x == Math.rint(x)) {
+            return Double.NaN;
+        }
+        if (x < 0.5) {
+            return digamma(1 - x) - Math.PI * cotg(Math.PI * x);
+        }
+        double result = 0;
+        while (x < DIGAMMA_ASYMPTOTIC) {
+            result -= 1 / x;
+            x++;
         }
+        double z = 1 / (x * x);
+        double series = z * (1.0 / 12 - z * (1.0 / 120 - z * (1.0 / 252 - z * (1.0 / 240 - z * (1.0 / 132)))));
+        return result + Math.log(x) - 0.5 / x - series;
     }
 
     /**
-     * Computes the sine of a given angle in degrees using a Taylor series approximation.
+     * Computes the sine of a given angle in radians.
      *
-     * @param x the angle in degrees
+     * @param x the angle in radians
      * @return the sine of the given angle
      */
     public static double sin(double x) {
-        if (x - (int) x == 0 && sinMap.containsKey((int) x)) {
-            return sinMap.get((int) x);
+        if (!(Math.abs(x) <= MAX_REDUCED_ARGUMENT)) {
+            return StrictMath.sin(x);
         }
-        double result = 0;
-        int sign = 1;
-        for (int i = 1; i < DEPTH; i += 2) {
-            result += (sign * (Math.pow(x, i) / factorial(i)));
-            sign = -sign;
+        double k = Math.rint(x * TWO_OVER_PI);
+        double r = reduce(x, k);
+        switch ((int) k & 3) {
+            case 0:
+                return kernelSin(r);
+            case 1:
+                return kernelCos(r);
+            case 2:
+                return -kernelSin(r);
+            default:
+                return -kernelCos(r);
         }
-        return result;
     }
 
     /**
-     * Computes the cosine of a given angle in degrees using a Taylor series approximation.
+     * Computes the cosine of a given angle in radians.
      *
-     * @param x the angle in degrees
+     * @param x the angle in radians
      * @return the cosine of the given angle
      */
     public static double cos(double x) {
-        if (x - (int) x == 0 && cosMap.containsKey((int) x)) {
-            return cosMap.get((int) x);
+        if (!(Math.abs(x) <= MAX_REDUCED_ARGUMENT)) {
+            return StrictMath.cos(x);
         }
-        double result = 0;
-        int sign = 1;
-        for (int i = 0; i < DEPTH; i += 2) {
-            result += (sign * (Math.pow(x, i) / factorial(i)));
-            sign = -sign;
+        double k = Math.rint(x * TWO_OVER_PI);
+        double r = reduce(x, k);
+        switch ((int) k & 3) {
+            case 0:
+                return kernelCos(r);
+            case 1:
+                return -kernelSin(r);
+            case 2:
+                return -kernelCos(r);
+            default:
+                return kernelSin(r);
         }
-        return result;
     }
 
     /**
-     * Computes the tangent of a given angle in degrees.
+     * Computes the sine and the cosine of a given angle in radians with a single range reduction.
      *
-     * @param x the angle in degrees
+     * @param x   the angle in radians
+     * @param out an array of at least two elements receiving the sine at index 0 and the cosine at index 1
+     */
+    public static void sincos(double x, double[] out) {
+        if (!(Math.abs(x) <= MAX_REDUCED_ARGUMENT)) {
+            out[0] = StrictMath.sin(x);
+            out[1] = StrictMath.cos(x);
+            return;
+        }
+        double k = Math.rint(x * TWO_OVER_PI);
+        double r = reduce(x, k);
+        double s = kernelSin(r);
+        double c = kernelCos(r);
+        switch ((int) k & 3) {
+            case 0:
+                out[0] = s;
+                out[1] = c;
+                break;
+            case 1:
+                out[0] = c;
+                out[1] = -s;
+                break;
+            case 2:
+                out[0] = -s;
+                out[1] = -c;
+                break;
+            default:
+                out[0] = -c;
+                out[1] = s;
+                break;
+        }
+    }
+
+    /**
+     * Computes the tangent of a given angle in radians.
+     *
+     * @param x the angle in radians
      * @return the tangent of the given angle
      */
     public static double tan(double x) {
-        return sin(x) / cos(x);
+        if (!(Math.abs(x) <= MAX_REDUCED_ARGUMENT)) {
+            return StrictMath.tan(x);
+        }
+        double k = Math.rint(x * TWO_OVER_PI);
+        double r = reduce(x, k);
+        double s = kernelSin(r);
+        double c = kernelCos(r);
+        return ((int) k & 1) == 0 ? s / c : -c / s;
     }
 
     /**
-     * Computes the cotangent of a given angle in degrees.
+     * Computes the cotangent of a given angle in radians.
      *
-     * @param x the angle in degrees
+     * @param x the angle in radians
      * @return the cotangent of the given angle
      */
     public static double cotg(double x) {
-        return cos(x) / sin(x);
+        if (!(Math.abs(x) <= MAX_REDUCED_ARGUMENT)) {
+            return StrictMath.cos(x) / StrictMath.sin(x);
+        }
+        double k = Math.rint(x * TWO_OVER_PI);
+        double r = reduce(x, k);
+        double s = kernelSin(r);
+        double c = kernelCos(r);
+        return ((int) k & 1) == 0 ? c / s : -s / c;
+    }
+
+    /**
+     * Computes the sine of a given angle in degrees. The angle is reduced modulo 360 exactly,
+     * and the angles of the exact-value table are answered from the table. A zero sine has the
+     * sign of the reduced angle, so that the sine of -0.0 is -0.0 as in {@link Math#sin}.
+     *
+     * @param degrees the angle in degrees
+     * @return the sine of the given angle
+     */
+    public static double sinDegrees(double degrees) {
+        double reduced = degrees % 360;
+        if (reduced == (int) reduced) {
+            double exact = exactSin[(int) reduced < 0 ? (int) reduced + 360 : (int) reduced];
+            if (exact == exact) {
+                return exact == 0 ? Math.copySign(0.0, reduced) : exact;
+            }
+        }
+        return degreeTable != null ? degreeTable.sin(reduced) : sin(Math.toRadians(reduced));
+    }
+
+    /**
+     * Computes the cosine of a given angle in degrees. The angle is reduced modulo 360 exactly,
+     * and the angles of the exact-value table are answered from the table.
+     *
+     * @param degrees the angle in degrees
+     * @return the cosine of the given angle
+     */
+    public static double cosDegrees(double degrees) {
+        double reduced = degrees % 360;
+        if (reduced == (int) reduced) {
+            double exact = exactCos[(int) reduced < 0 ? (int) reduced + 360 : (int) reduced];
+            if (exact == exact) {
+                return exact;
+            }
+        }
+        return degreeTable != null ? degreeTable.cos(reduced) : cos(Math.toRadians(reduced));
+    }
+
+    /**
+     * Gets the lookup table selected at startup for angles in degrees.
+     *
+     * @return the table, or null if the polynomial implementation is used
+     */
+    public static TrigTable getDegreeTable() {
+        return degreeTable;
+    }
+
+    /**
+     * Gets the table selected by system properties, falling back to the polynomial implementation
+     * with a warning if they are invalid rather than failing the initialization of this class.
+     */
+    private static TrigTable loadDegreeTable() {
+        try {
+            return TrigTable.fromSystemProperties();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring the trigonometric table: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Computes the tangent of a given angle in degrees. The angle is reduced modulo 360 once;
+     * the angles of the exact-value table are answered as the quotient of the exact sine and
+     * cosine, and all others by the tangent of the selected table or of the radian angle.
+     *
+     * @param degrees the angle in degrees
+     * @return the tangent of the given angle, infinite where the cosine is exactly zero
+     */
+    public static double tanDegrees(double degrees) {
+        double reduced = degrees % 360;
+        if (reduced == (int) reduced) {
+            int index = (int) reduced < 0 ? (int) reduced + 360 : (int) reduced;
+            double exact = exactSin[index];
+            if (exact == exact) {
+                return (exact == 0 ? Math.copySign(0.0, reduced) : exact) / exactCos[index];
+            }
+        }
+        return degreeTable != null ? degreeTable.tan(reduced) : tan(Math.toRadians(reduced));
+    }
+
+    /**
+     * Subtracts k multiples of &pi;/2 from x as the fdlibm medium path does. The first step uses
+     * &pi;/2 to 85 bits; when the result loses more than 16 bits to cancellation, as it does near
+     * multiples of &pi;/2, the next 33 bits are subtracted too, and after 49 lost bits another 33,
+     * each with the tail of &pi;/2 beyond them. The products with k are exact for |k| below 2^20.
+     * An argument that needs no reduction is returned as is, keeping the sign of zero.
+     *
+     * @param x the argument in radians
+     * @param k the nearest integer to x / (&pi;/2)
+     * @return the reduced argument in [-&pi;/4, &pi;/4]
+     */
+    private static double reduce(double x, double k) {
+        if (k == 0) {
+            return x;
+        }
+        double r = x - k * PI_OVER_TWO_1;
+        double w = k * PI_OVER_TWO_1_TAIL;
+        double y = r - w;
+        int exponent = Math.getExponent(x);
+        if (exponent - Math.getExponent(y) > 16) {
+            double t = r;
+            w = k * PI_OVER_TWO_2;
+            r = t - w;
+            w = k * PI_OVER_TWO_2_TAIL - ((t - r) - w);
+            y = r - w;
+            if (exponent - Math.getExponent(y) > 49) {
+                t = r;
+                w = k * PI_OVER_TWO_3;
+                r = t - w;
+                w = k * PI_OVER_TWO_3_TAIL - ((t - r) - w);
+                y = r - w;
+            }
+        }
+        return y;
+    }
+
+    /**
+     * Evaluates the minimax polynomial for the sine on [-&pi;/4, &pi;/4].
+     *
+     * @param r the reduced argument
+     * @return the sine of r, with the sign of r if it is zero
+     */
+    private static double kernelSin(double r) {
+        if (r == 0) {
+            return r;
+        }
+        double z = r * r;
+        double p = S2 + z * (S3 + z * (S4 + z * (S5 + z * S6)));
+        return r + r * z * (S1 + z * p);
+    }
+
+    /**
+     * Evaluates the minimax polynomial for the cosine on [-&pi;/4, &pi;/4].
+     * The leading terms are summed so that 1 - r^2/2 keeps its low-order bits.
+     *
+     * @param r the reduced argument
+     * @return the cosine of r
+     */
+    private static double kernelCos(double r) {
+        double z = r * r;
+        double p = z * z * (C1 + z * (C2 + z * (C3 + z * (C4 + z * (C5 + z * C6)))));
+        double halfZ = 0.5 * z;
+        double w = 1.0 - halfZ;
+        return w + (((1.0 - w) - halfZ) + p);
     }
 }
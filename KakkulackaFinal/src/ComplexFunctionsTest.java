@@ -0,0 +1,177 @@
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the ComplexFunctions class.
+ */
+public class ComplexFunctionsTest {
+
+    private static final int SAMPLES = 200_000;
+    private static final double MAX_ULPS = 2;
+    private static final double MAX_TAN_ULPS = 3;
+
+    /**
+     * Tests sin, cos and tan against StrictMath at random arguments of every magnitude
+     * from 1e-8 up to well beyond the Cody-Waite reduction range.
+     */
+    @Test
+    public void testTrigonometryMatchesStrictMath() {
+        Random random = new Random(42);
+        double[] sinCos = new double[2];
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = Math.pow(10, random.nextDouble() * 17 - 8) * (random.nextBoolean() ? 1 : -1);
+            assertWithinUlps(StrictMath.sin(x), ComplexFunctions.sin(x), MAX_ULPS, "sin(" + x + ")");
+            assertWithinUlps(StrictMath.cos(x), ComplexFunctions.cos(x), MAX_ULPS, "cos(" + x + ")");
+            assertWithinUlps(StrictMath.tan(x), ComplexFunctions.tan(x), MAX_TAN_ULPS, "tan(" + x + ")");
+
+            ComplexFunctions.sincos(x, sinCos);
+            assertEquals(ComplexFunctions.sin(x), sinCos[0], "sincos should return the sine of " + x);
+            assertEquals(ComplexFunctions.cos(x), sinCos[1], "sincos should return the cosine of " + x);
+        }
+    }
+
+    /**
+     * Tests the arguments nearest to multiples of &pi;/2, where the reduction cancels most bits.
+     */
+    @Test
+    public void testTrigonometryNearMultiplesOfHalfPi() {
+        for (int k = 1; k < 1 << 19; k += 7) {
+            double nearest = k * (Math.PI / 2);
+            for (double x : new double[]{nearest, Math.nextUp(nearest), Math.nextDown(nearest), -nearest}) {
+                assertWithinUlps(StrictMath.sin(x), ComplexFunctions.sin(x), MAX_ULPS, "sin(" + x + ")");
+                assertWithinUlps(StrictMath.cos(x), ComplexFunctions.cos(x), MAX_ULPS, "cos(" + x + ")");
+                assertWithinUlps(StrictMath.tan(x), ComplexFunctions.tan(x), MAX_TAN_ULPS, "tan(" + x + ")");
+            }
+        }
+        assertEquals(-4.429600834596129E-17, ComplexFunctions.cos(321307.9594422229), Math.ulp(4.4e-17) * 2);
+    }
+
+    /**
+     * Tests the special values of the trigonometric functions.
+     */
+    @Test
+    public void testTrigonometrySpecialValues() {
+        assertEquals(0.0, ComplexFunctions.sin(0.0), "sin(0) should be 0");
+        assertEquals(1.0, ComplexFunctions.cos(0.0), "cos(0) should be 1");
+        assertEquals(Double.NEGATIVE_INFINITY, 1 / ComplexFunctions.sin(-0.0), "sin(-0) should be -0");
+        assertEquals(Double.NEGATIVE_INFINITY, 1 / ComplexFunctions.tan(-0.0), "tan(-0) should be -0");
+        assertTrue(Double.isNaN(ComplexFunctions.sin(Double.NaN)), "sin(NaN) should be NaN");
+        assertTrue(Double.isNaN(ComplexFunctions.cos(Double.POSITIVE_INFINITY)), "cos(Infinity) should be NaN");
+        assertEquals(0.5, ComplexFunctions.sinDegrees(390), "sin(390 degrees) should be exactly 0.5");
+        assertEquals(0.0, ComplexFunctions.cosDegrees(-90), "cos(-90 degrees) should be exactly 0");
+        assertEquals(1.0, ComplexFunctions.tanDegrees(45), 1e-15, "tan(45 degrees) should be 1");
+        assertEquals(Double.POSITIVE_INFINITY, ComplexFunctions.tanDegrees(450), "tan(450 degrees) should be infinite");
+        assertEquals(Double.NEGATIVE_INFINITY, 1 / ComplexFunctions.sinDegrees(-0.0), "sin(-0 degrees) should be -0");
+        assertEquals(Double.NEGATIVE_INFINITY, 1 / ComplexFunctions.tanDegrees(-0.0), "tan(-0 degrees) should be -0");
+        for (double degrees = -720; degrees <= 720; degrees += 0.37) {
+            double expected = Math.tan(Math.toRadians(degrees % 360));
+            assertEquals(expected, ComplexFunctions.tanDegrees(degrees), Math.ulp(expected) * 4, "tan(" + degrees + " degrees)");
+        }
+    }
+
+    /**
+     * Tests that linear and cubic lookup tables stay within their reported error bounds
+     * and that a table built for a maximum error honours it.
+     */
+    @Test
+    public void testTrigTableErrorBound() {
+        TrigTable[] tables = {
+                new TrigTable(TrigTable.DEFAULT_RESOLUTION, TrigTable.Interpolation.LINEAR),
+                new TrigTable(TrigTable.DEFAULT_RESOLUTION, TrigTable.Interpolation.CUBIC),
+                new TrigTable(1, TrigTable.Interpolation.CUBIC),
+                TrigTable.forMaxError(1e-6, TrigTable.Interpolation.LINEAR)
+        };
+        assertTrue(tables[3].getErrorBound() <= 1e-6, "table built for 1e-6 should report at most 1e-6");
+
+        Random random = new Random(7);
+        for (TrigTable table : tables) {
+            for (int i = 0; i < SAMPLES; i++) {
+                double degrees = (random.nextDouble() * 2 - 1) * 1000;
+                double radians = Math.toRadians(degrees % 360);
+                assertEquals(StrictMath.sin(radians), table.sin(degrees), table.getErrorBound(), table + " sin(" + degrees + ")");
+                assertEquals(StrictMath.cos(radians), table.cos(degrees), table.getErrorBound(), table + " cos(" + degrees + ")");
+            }
+        }
+    }
+
+    /**
+     * Tests that the table selected by system properties is validated with a clear error.
+     */
+    @Test
+    public void testTrigTableFromSystemProperties() {
+        try {
+            System.setProperty("calculator.trigTable", "CUBIC");
+            System.setProperty("calculator.trigTable.resolution", "1");
+            assertEquals(TrigTable.Interpolation.CUBIC, TrigTable.fromSystemProperties().getInterpolation());
+            System.setProperty("calculator.trigTable.resolution", "fine");
+            assertThrows(IllegalArgumentException.class, TrigTable::fromSystemProperties);
+            System.setProperty("calculator.trigTable", "quadratic");
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, TrigTable::fromSystemProperties);
+            assertTrue(e.getMessage().contains("quadratic"), "the error should name the invalid value");
+        } finally {
+            System.clearProperty("calculator.trigTable");
+            System.clearProperty("calculator.trigTable.resolution");
+        }
+        assertNull(TrigTable.fromSystemProperties(), "no table should be selected by default");
+    }
+
+    /**
+     * Tests the factorial tables against the exact BigInteger factorial and the binary splitting
+     * against a plain running product.
+     */
+    @Test
+    public void testFactorial() {
+        assertEquals(1, ComplexFunctions.factorial(0), "0! should be 1");
+        assertEquals(6227020800L, ComplexFunctions.factorial(13), "13! should not overflow");
+        assertEquals(2432902008176640000L, ComplexFunctions.factorial(20), "20! should be the largest long factorial");
+        assertThrows(ArithmeticException.class, () -> ComplexFunctions.factorial(21));
+        assertThrows(IllegalArgumentException.class, () -> ComplexFunctions.factorial(-1));
+
+        BigInteger expected = BigInteger.ONE;
+        for (int n = 0; n <= 1000; n++) {
+            if (n > 0) {
+                expected = expected.multiply(BigInteger.valueOf(n));
+            }
+            assertEquals(expected, ComplexFunctions.bigFactorial(n), n + "! should be exact");
+            if (n <= ComplexFunctions.MAX_DOUBLE_FACTORIAL) {
+                assertEquals(expected.doubleValue(), ComplexFunctions.factorialAsDouble(n), n + "! should be correctly rounded");
+            }
+        }
+        assertEquals(Double.POSITIVE_INFINITY, ComplexFunctions.factorialAsDouble(171), "171! should overflow");
+    }
+
+    /**
+     * Tests the gamma function at integers, half-integers and across the reflection formula.
+     */
+    @Test
+    public void testGamma() {
+        double sqrtPi = Math.sqrt(Math.PI);
+        assertEquals(120, ComplexFunctions.gamma(6), "gamma(6) should be 5!");
+        assertEquals(sqrtPi, ComplexFunctions.gamma(0.5), 1e-14 * sqrtPi, "gamma(1/2) should be sqrt(pi)");
+        assertEquals(sqrtPi / 2, ComplexFunctions.gamma(1.5), 1e-14 * sqrtPi, "gamma(3/2) should be sqrt(pi)/2");
+        assertEquals(-2 * sqrtPi, ComplexFunctions.gamma(-0.5), 1e-14 * sqrtPi, "gamma(-1/2) should be -2 sqrt(pi)");
+        assertTrue(Double.isNaN(ComplexFunctions.gamma(0)), "gamma(0) should be a pole");
+        assertTrue(Double.isNaN(ComplexFunctions.gamma(-3)), "gamma(-3) should be a pole");
+        assertEquals(Double.POSITIVE_INFINITY, ComplexFunctions.gamma(172.5), "gamma(172.5) should overflow");
+
+        Random random = new Random(11);
+        for (int i = 0; i < 10_000; i++) {
+            double x = 0.5 + random.nextDouble() * 150;
+            double recurrence = x * ComplexFunctions.gamma(x);
+            assertEquals(recurrence, ComplexFunctions.gamma(x + 1), 1e-13 * recurrence, "gamma(" + x + " + 1) should be x gamma(x)");
+        }
+    }
+
+    /**
+     * Asserts that a result is within the given number of units in the last place of the expected value.
+     */
+    private static void assertWithinUlps(double expected, double actual, double maxUlps, String message) {
+        double error = Math.abs(expected - actual) / Math.ulp(expected);
+        assertTrue(error <= maxUlps, message + " should be " + expected + " but was " + actual
+                + " (" + error + " ulps)");
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Reusable scratch memory for evaluating compiled expressions.
+ * A context is not thread-safe; each thread uses its own, either supplied by the caller
+ * or obtained from {@link #current()}.
+ */
+public final class EvaluationContext {
+
+    private static final ThreadLocal<EvaluationContext> CURRENT = ThreadLocal.withInitial(EvaluationContext::new);
+
+    private double[] stack = new double[16];
+    private double[] row = new double[4];
+    private ColumnarEvaluator columnarEvaluator;
+    private GradientEvaluator gradientEvaluator;
+
+    /**
+     * Gets the context of the current thread.
+     *
+     * @return the thread's evaluation context
+     */
+    public static EvaluationContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Gets an operand stack that can hold at least the given number of values.
+     *
+     * @param depth the required stack depth
+     * @return the operand stack
+     */
+    double[] stack(int depth) {
+        if (stack.length < depth) {
+            stack = new double[Math.max(depth, stack.length * 2)];
+        }
+        return stack;
+    }
+
+    /**
+     * Gets a buffer that can hold at least the given number of variable values.
+     *
+     * @param size the required number of values
+     * @return the variable buffer
+     */
+    double[] row(int size) {
+        if (row.length < size) {
+            row = new double[Math.max(size, row.length * 2)];
+        }
+        return row;
+    }
+
+    /**
+     * Gets the evaluator running programs over chunks of columns, created on first use.
+     *
+     * @return the columnar evaluator
+     */
+    ColumnarEvaluator columnarEvaluator() {
+        if (columnarEvaluator == null) {
+            columnarEvaluator = new ColumnarEvaluator();
+        }
+        return columnarEvaluator;
+    }
+
+    /**
+     * Gets the evaluator running programs on dual numbers, created on first use.
+     *
+     * @return the gradient evaluator
+     */
+    GradientEvaluator gradientEvaluator() {
+        if (gradientEvaluator == null) {
+            gradientEvaluator = new GradientEvaluator();
+        }
+        return gradientEvaluator;
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of compiled expressions keyed by normalized expression text.
+ * Lookups are lock-free and safe to run from many threads. When the cache is full, an entry is
+ * evicted with the CLOCK (second chance) policy, an approximation of least-recently-used: entries
+ * that were looked up since the last sweep are skipped once. The cache keeps hit, miss and
+ * eviction counters so its effectiveness can be monitored.
+ */
+public class ExpressionCache {
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * Constructs a new cache holding at most the given number of expressions.
+     *
+     * @param capacity the maximum number of cached expressions
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public ExpressionCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Looks up a compiled expression and records a hit or a miss.
+     *
+     * @param expression the normalized expression text
+     * @return the cached compiled expression, or null if it is not cached
+     */
+    public CompiledExpression get(String expression) {
+        Entry entry = entries.get(expression);
+        if (entry == null) {
+            missCount.increment();
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        hitCount.increment();
+        return entry.compiled;
+    }
+
+    /**
+     * Stores a compiled expression, evicting entries if the cache is full.
+     * If another thread cached the same expression first, its entry is kept.
+     *
+     * @param compiled the compiled expression to store
+     */
+    public void put(CompiledExpression compiled) {
+        Entry entry = new Entry(compiled);
+        if (entries.putIfAbsent(compiled.getExpression(), entry) != null) {
+            return;
+        }
+        synchronized (clock) {
+            clock.addLast(entry);
+            while (clock.size() > capacity) {
+                Entry candidate = clock.pollFirst();
+                if (candidate.referenced) {
+                    candidate.referenced = false;
+                    clock.addLast(candidate);
+                } else {
+                    entries.remove(candidate.compiled.getExpression(), candidate);
+                    evictionCount.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all cached expressions. The counters are kept.
+     */
+    public void clear() {
+        synchronized (clock) {
+            clock.clear();
+            entries.clear();
+        }
+    }
+
+    /**
+     * Gets the number of cached expressions.
+     *
+     * @return the number of cached expressions
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the maximum number of cached expressions.
+     *
+     * @return the cache capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of lookups that found a cached expression.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * Gets the number of lookups that did not find a cached expression.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * Gets the number of expressions evicted to respect the capacity.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ExpressionCache[size=" + size() + ", capacity=" + capacity
+                + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    /**
+     * A cached expression with its CLOCK reference bit.
+     */
+    private static final class Entry {
+        final CompiledExpression compiled;
+        volatile boolean referenced;
+
+        Entry(CompiledExpression compiled) {
+            this.compiled = compiled;
+        }
+    }
+}
@@ -0,0 +1,636 @@
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Translates an {@link ExpressionProgram} into a hidden class implementing {@link GeneratedExpression},
+ * the tier above the interpreter for expressions that are evaluated often. Each opcode becomes the
+ * equivalent bytecode: arithmetic operators become {@code dadd}, {@code dsub}, {@code dmul} and
+ * {@code dneg}, division and powers become static calls, scientific functions become interface calls
+ * on final fields, registered binary operators become static calls passing a final field, and shared subexpressions live in local variables. The generated methods contain no
+ * dispatch, so HotSpot compiles each expression to straight-line machine code and can inline it.
+ *
+ * <p>The class file is written directly, since the classfile API is not available on the JDKs this
+ * calculator runs on, and defined with {@link MethodHandles.Lookup#defineHiddenClass}. A hidden class
+ * is unloaded together with the compiled expression that owns it.
+ */
+final class ExpressionCompiler {
+
+    /**
+     * The number of evaluations after which a compiled expression is translated to bytecode,
+     * configured by the {@code calculator.jitThreshold} system property. A negative value disables
+     * bytecode generation.
+     */
+    static final long THRESHOLD = Long.getLong("calculator.jitThreshold", 10_000);
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final String CLASS_NAME = "GeneratedExpressionImpl";
+    private static final String FUNCTION_DESCRIPTOR = "LScientificOperation;";
+    private static final String OPERATION_DESCRIPTOR = "LOperation;";
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int ILOAD = 0x15;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int DALOAD = 0x31;
+    private static final int AALOAD = 0x32;
+    private static final int ISTORE = 0x36;
+    private static final int DSTORE = 0x39;
+    private static final int ASTORE = 0x3a;
+    private static final int DASTORE = 0x52;
+    private static final int POP = 0x57;
+    private static final int DUP_X2 = 0x5b;
+    private static final int DUP2 = 0x5c;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DNEG = 0x77;
+    private static final int IINC = 0x84;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int GOTO = 0xa7;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int WIDE = 0xc4;
+
+    private static final int FULL_FRAME = 255;
+    private static final int ITEM_INTEGER = 1;
+    private static final int ITEM_OBJECT = 7;
+
+    /**
+     * Variables are read from the {@code double[]} argument.
+     */
+    private static final int FROM_ARRAY = 0;
+    /**
+     * Variables are read from column arrays held in local variables, at the row counter.
+     */
+    private static final int FROM_COLUMNS = 1;
+    /**
+     * Variables are the {@code double} arguments of the method.
+     */
+    private static final int FROM_ARGUMENTS = 2;
+    /**
+     * The local variable holding the first column array in the bulk method, after this, columns, out, from and to.
+     */
+    private static final int FIRST_COLUMN_LOCAL = 5;
+
+    private final ExpressionProgram program;
+    private final int variableCount;
+    private final ConstantPool pool = new ConstantPool();
+    private final int thisClass;
+
+    private Bytes code;
+    private int stack;
+    private int maxStack;
+
+    private ExpressionCompiler(ExpressionProgram program, int variableCount) {
+        this.program = program;
+        this.variableCount = variableCount;
+        this.thisClass = pool.classInfo(CLASS_NAME);
+    }
+
+    /**
+     * Translates a program into a hidden class and instantiates it.
+     *
+     * @param program       the program to translate
+     * @param variableCount the number of variables the program reads
+     * @return the generated expression
+     * @throws IllegalStateException if the program is too large for a class file or the class cannot be defined
+     */
+    static GeneratedExpression compile(ExpressionProgram program, int variableCount) {
+        byte[] classFile = new ExpressionCompiler(program, variableCount).generate();
+        try {
+            Class<?> generated = LOOKUP.defineHiddenClass(classFile, true).lookupClass();
+            return (GeneratedExpression) generated.getDeclaredConstructor(ScientificOperation[].class, Operation[].class)
+                    .newInstance(program.getFunctions(), program.getOperations());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot define generated expression class", e);
+        }
+    }
+
+    /**
+     * Writes the class file.
+     *
+     * @return the class file bytes
+     */
+    private byte[] generate() {
+        int functionCount = program.getFunctions().length;
+        int operationCount = program.getOperations().length;
+        int[] interfaces = {
+                pool.classInfo("GeneratedExpression"),
+                variableCount <= 1 ? pool.classInfo("java/util/function/DoubleUnaryOperator") : 0,
+                variableCount <= 2 ? pool.classInfo("java/util/function/DoubleBinaryOperator") : 0
+        };
+        int objectClass = pool.classInfo("java/lang/Object");
+
+        Bytes fields = new Bytes();
+        for (int f = 0; f < functionCount; f++) {
+            fields.u2(ACC_PRIVATE | ACC_FINAL).u2(pool.utf8("f" + f)).u2(pool.utf8(FUNCTION_DESCRIPTOR)).u2(0);
+        }
+        for (int o = 0; o < operationCount; o++) {
+            fields.u2(ACC_PRIVATE | ACC_FINAL).u2(pool.utf8("o" + o)).u2(pool.utf8(OPERATION_DESCRIPTOR)).u2(0);
+        }
+
+        Bytes methods = new Bytes();
+        int methodCount = 0;
+        writeConstructor(methods, functionCount, operationCount);
+        methodCount++;
+        writeEvaluate(methods);
+        methodCount++;
+        writeBulkEvaluate(methods);
+        methodCount++;
+        if (variableCount <= 1) {
+            writeApplyAsDouble(methods, "(D)D", 3);
+            methodCount++;
+        }
+        if (variableCount <= 2) {
+            writeApplyAsDouble(methods, "(DD)D", 5);
+            methodCount++;
+        }
+
+        Bytes classFile = new Bytes();
+        classFile.u4(0xCAFEBABE).u2(0).u2(52);
+        pool.writeTo(classFile);
+        classFile.u2(ACC_FINAL | ACC_SUPER).u2(thisClass).u2(objectClass);
+        int interfaceCount = 0;
+        for (int anInterface : interfaces) {
+            if (anInterface != 0) {
+                interfaceCount++;
+            }
+        }
+        classFile.u2(interfaceCount);
+        for (int anInterface : interfaces) {
+            if (anInterface != 0) {
+                classFile.u2(anInterface);
+            }
+        }
+        classFile.u2(functionCount + operationCount).bytes(fields);
+        classFile.u2(methodCount).bytes(methods);
+        classFile.u2(0);
+        return classFile.toArray();
+    }
+
+    /**
+     * Writes the constructor, which stores each function and operation of the program in its own final field.
+     */
+    private void writeConstructor(Bytes methods, int functionCount, int operationCount) {
+        beginMethod();
+        instruction(ALOAD_0, 1);
+        code.u1(INVOKESPECIAL).u2(pool.methodRef("java/lang/Object", "<init>", "()V", false));
+        pop(1);
+        for (int f = 0; f < functionCount; f++) {
+            instruction(ALOAD_0, 1);
+            instruction(ALOAD_1, 1);
+            pushInt(f);
+            instruction(AALOAD, -1);
+            code.u1(PUTFIELD).u2(pool.fieldRef(CLASS_NAME, "f" + f, FUNCTION_DESCRIPTOR));
+            pop(2);
+        }
+        for (int o = 0; o < operationCount; o++) {
+            instruction(ALOAD_0, 1);
+            instruction(ALOAD_2, 1);
+            pushInt(o);
+            instruction(AALOAD, -1);
+            code.u1(PUTFIELD).u2(pool.fieldRef(CLASS_NAME, "o" + o, OPERATION_DESCRIPTOR));
+            pop(2);
+        }
+        code.u1(RETURN);
+        endMethod(methods, "<init>", "([LScientificOperation;[LOperation;)V", 3, null);
+    }
+
+    /**
+     * Writes {@code double evaluate(double[] variables)}.
+     */
+    private void writeEvaluate(Bytes methods) {
+        beginMethod();
+        emitExpression(FROM_ARRAY, 2, 0);
+        code.u1(DRETURN);
+        endMethod(methods, "evaluate", "([D)D", 2 + 2 * program.getLocalCount(), null);
+    }
+
+    /**
+     * Writes {@code double applyAsDouble(double...)} for one or two variables passed as arguments.
+     */
+    private void writeApplyAsDouble(Bytes methods, String descriptor, int firstLocal) {
+        beginMethod();
+        emitExpression(FROM_ARGUMENTS, firstLocal, 0);
+        code.u1(DRETURN);
+        endMethod(methods, "applyAsDouble", descriptor, firstLocal + 2 * program.getLocalCount(), null);
+    }
+
+    /**
+     * Writes {@code void evaluate(double[][] columns, double[] out, int from, int to)} as a counted loop
+     * over the rows. The column arrays are loaded into local variables once, before the loop.
+     */
+    private void writeBulkEvaluate(Bytes methods) {
+        beginMethod();
+        int row = FIRST_COLUMN_LOCAL + variableCount;
+        for (int v = 0; v < variableCount; v++) {
+            instruction(ALOAD_1, 1);
+            pushInt(v);
+            instruction(AALOAD, -1);
+            local(ASTORE, FIRST_COLUMN_LOCAL + v, -1);
+        }
+        local(ILOAD, 3, 1);
+        local(ISTORE, row, -1);
+        int jumpToCondition = code.length();
+        code.u1(GOTO).u2(0);
+
+        int body = code.length();
+        local(ALOAD, 2, 1);
+        local(ILOAD, row, 1);
+        emitExpression(FROM_COLUMNS, row + 1, row);
+        instruction(DASTORE, -4);
+        iinc(row);
+
+        int condition = code.length();
+        code.patchU2(jumpToCondition + 1, branchOffset(condition - jumpToCondition));
+        local(ILOAD, row, 1);
+        local(ILOAD, 4, 1);
+        int branch = code.length();
+        code.u1(IF_ICMPLT).u2(branchOffset(body - branch));
+        pop(2);
+        code.u1(RETURN);
+
+        // Both jump targets see the same locals: the arguments, the column arrays and the row counter.
+        Bytes frame = new Bytes();
+        frame.u2(row + 1);
+        frame.u1(ITEM_OBJECT).u2(thisClass);
+        frame.u1(ITEM_OBJECT).u2(pool.classInfo("[[D"));
+        int doubleArray = pool.classInfo("[D");
+        frame.u1(ITEM_OBJECT).u2(doubleArray);
+        frame.u1(ITEM_INTEGER);
+        frame.u1(ITEM_INTEGER);
+        for (int v = 0; v < variableCount; v++) {
+            frame.u1(ITEM_OBJECT).u2(doubleArray);
+        }
+        frame.u1(ITEM_INTEGER);
+        frame.u2(0);
+
+        Bytes stackMap = new Bytes();
+        stackMap.u2(2);
+        stackMap.u1(FULL_FRAME).u2(body).bytes(frame);
+        stackMap.u1(FULL_FRAME).u2(condition - body - 1).bytes(frame);
+        endMethod(methods, "evaluate", "([[D[DII)V", row + 1 + 2 * program.getLocalCount(), stackMap);
+    }
+
+    /**
+     * Checks that a jump fits the signed 16-bit offset of a branch instruction, which limits the
+     * loop body to about half the length allowed for a method.
+     *
+     * @param offset the distance from the branch instruction to its target
+     * @return the offset
+     * @throws IllegalStateException if the offset does not fit
+     */
+    private static int branchOffset(int offset) {
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+            throw new IllegalStateException("Expression is too large to compile to bytecode");
+        }
+        return offset;
+    }
+
+    /**
+     * Translates the program's opcodes, leaving the result of the expression on the operand stack.
+     *
+     * @param variables  where the variables are read from
+     * @param firstLocal the first local variable available for shared subexpressions
+     * @param row        the local variable holding the row counter, for {@link #FROM_COLUMNS}
+     */
+    private void emitExpression(int variables, int firstLocal, int row) {
+        int[] instructions = program.getCode();
+        double[] constants = program.getConstants();
+        int pc = 0;
+        while (pc < instructions.length) {
+            int opcode = instructions[pc++];
+            switch (opcode) {
+                case ExpressionProgram.CONSTANT:
+                    emitConstant(constants[instructions[pc++]]);
+                    break;
+                case ExpressionProgram.VARIABLE:
+                    emitVariable(variables, instructions[pc++], row);
+                    break;
+                case ExpressionProgram.ADD:
+                    instruction(DADD, -2);
+                    break;
+                case ExpressionProgram.SUBTRACT:
+                    instruction(DSUB, -2);
+                    break;
+                case ExpressionProgram.MULTIPLY:
+                    instruction(DMUL, -2);
+                    break;
+                case ExpressionProgram.DIVIDE:
+                    code.u1(INVOKESTATIC).u2(pool.methodRef("ExpressionProgram", "divide", "(DD)D", false));
+                    pop(2);
+                    break;
+                case ExpressionProgram.POWER:
+                    code.u1(INVOKESTATIC).u2(pool.methodRef("java/lang/Math", "pow", "(DD)D", false));
+                    pop(2);
+                    break;
+                case ExpressionProgram.NEGATE:
+                    instruction(DNEG, 0);
+                    break;
+                case ExpressionProgram.CALL:
+                    // The receiver is loaded after the operand and moved below it: D, f -> f, D, f -> f, D.
+                    instruction(ALOAD_0, 1);
+                    code.u1(GETFIELD).u2(pool.fieldRef(CLASS_NAME, "f" + instructions[pc++], FUNCTION_DESCRIPTOR));
+                    instruction(DUP_X2, 1);
+                    instruction(POP, -1);
+                    code.u1(INVOKEINTERFACE).u2(pool.methodRef("ScientificOperation", "apply", "(D)D", true)).u1(3).u1(0);
+                    pop(1);
+                    break;
+                case ExpressionProgram.APPLY:
+                    instruction(ALOAD_0, 1);
+                    code.u1(GETFIELD).u2(pool.fieldRef(CLASS_NAME, "o" + instructions[pc++], OPERATION_DESCRIPTOR));
+                    code.u1(INVOKESTATIC).u2(pool.methodRef("ExpressionProgram", "apply", "(DDLOperation;)D", false));
+                    pop(3);
+                    break;
+                case ExpressionProgram.STORE:
+                    instruction(DUP2, 2);
+                    local(DSTORE, firstLocal + 2 * instructions[pc++], -2);
+                    break;
+                case ExpressionProgram.LOAD:
+                    local(DLOAD, firstLocal + 2 * instructions[pc++], 2);
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid opcode: " + opcode);
+            }
+            if (code.length() > MAX_CODE_LENGTH) {
+                throw new IllegalStateException("Expression is too large to compile to bytecode");
+            }
+        }
+    }
+
+    private void emitConstant(double value) {
+        if (Double.doubleToRawLongBits(value) == 0) {
+            instruction(DCONST_0, 2);
+        } else if (value == 1) {
+            instruction(DCONST_1, 2);
+        } else {
+            code.u1(LDC2_W).u2(pool.doubleInfo(value));
+            push(2);
+        }
+    }
+
+    private void emitVariable(int variables, int index, int row) {
+        switch (variables) {
+            case FROM_ARRAY:
+                instruction(ALOAD_1, 1);
+                pushInt(index);
+                instruction(DALOAD, 0);
+                break;
+            case FROM_COLUMNS:
+                local(ALOAD, FIRST_COLUMN_LOCAL + index, 1);
+                local(ILOAD, row, 1);
+                instruction(DALOAD, 0);
+                break;
+            default:
+                local(DLOAD, 1 + 2 * index, 2);
+                break;
+        }
+    }
+
+    private void pushInt(int value) {
+        if (value <= 5) {
+            code.u1(ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            code.u1(BIPUSH).u1(value);
+        } else if (value <= Short.MAX_VALUE) {
+            code.u1(SIPUSH).u2(value);
+        } else {
+            code.u1(LDC_W).u2(pool.integerInfo(value));
+        }
+        push(1);
+    }
+
+    /**
+     * Writes an instruction without operands and records its effect on the operand stack, in slots.
+     */
+    private void instruction(int opcode, int stackEffect) {
+        code.u1(opcode);
+        push(stackEffect);
+    }
+
+    /**
+     * Writes an instruction accessing a local variable, widened if the index needs it.
+     */
+    private void local(int opcode, int index, int stackEffect) {
+        if (index > 255) {
+            code.u1(WIDE).u1(opcode).u2(index);
+        } else {
+            code.u1(opcode).u1(index);
+        }
+        push(stackEffect);
+    }
+
+    private void iinc(int index) {
+        if (index > 255) {
+            code.u1(WIDE).u1(IINC).u2(index).u2(1);
+        } else {
+            code.u1(IINC).u1(index).u1(1);
+        }
+    }
+
+    private void push(int slots) {
+        stack += slots;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void pop(int slots) {
+        stack -= slots;
+    }
+
+    private void beginMethod() {
+        code = new Bytes();
+        stack = 0;
+        maxStack = 0;
+    }
+
+    /**
+     * Appends the method being written, with its Code attribute, to the methods of the class.
+     */
+    private void endMethod(Bytes methods, String name, String descriptor, int maxLocals, Bytes stackMap) {
+        Bytes attribute = new Bytes();
+        attribute.u2(maxStack).u2(maxLocals).u4(code.length()).bytes(code).u2(0);
+        if (stackMap == null) {
+            attribute.u2(0);
+        } else {
+            attribute.u2(1).u2(pool.utf8("StackMapTable")).u4(stackMap.length()).bytes(stackMap);
+        }
+        methods.u2(ACC_PUBLIC).u2(pool.utf8(name)).u2(pool.utf8(descriptor)).u2(1);
+        methods.u2(pool.utf8("Code")).u4(attribute.length()).bytes(attribute);
+    }
+
+    /**
+     * A growable big-endian byte buffer.
+     */
+    private static final class Bytes {
+        private byte[] data = new byte[256];
+        private int length;
+
+        Bytes u1(int value) {
+            ensure(1);
+            data[length++] = (byte) value;
+            return this;
+        }
+
+        Bytes u2(int value) {
+            return u1(value >>> 8).u1(value);
+        }
+
+        Bytes u4(int value) {
+            return u2(value >>> 16).u2(value);
+        }
+
+        Bytes bytes(Bytes other) {
+            ensure(other.length);
+            System.arraycopy(other.data, 0, data, length, other.length);
+            length += other.length;
+            return this;
+        }
+
+        void patchU2(int position, int value) {
+            data[position] = (byte) (value >>> 8);
+            data[position + 1] = (byte) value;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(data, length);
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+            }
+        }
+    }
+
+    /**
+     * The constant pool of the generated class, with each constant stored once.
+     */
+    private static final class ConstantPool {
+        private static final int UTF8 = 1;
+        private static final int INTEGER = 3;
+        private static final int DOUBLE = 6;
+        private static final int CLASS = 7;
+        private static final int FIELD_REF = 9;
+        private static final int METHOD_REF = 10;
+        private static final int INTERFACE_METHOD_REF = 11;
+        private static final int NAME_AND_TYPE = 12;
+
+        private final Bytes entries = new Bytes();
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            Integer index = indexes.get("U" + value);
+            if (index != null) {
+                return index;
+            }
+            entries.u1(UTF8).u2(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                entries.u1(value.charAt(i));
+            }
+            return add("U" + value, 1);
+        }
+
+        int integerInfo(int value) {
+            Integer index = indexes.get("I" + value);
+            if (index != null) {
+                return index;
+            }
+            entries.u1(INTEGER).u4(value);
+            return add("I" + value, 1);
+        }
+
+        int doubleInfo(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            Integer index = indexes.get("D" + bits);
+            if (index != null) {
+                return index;
+            }
+            entries.u1(DOUBLE).u4((int) (bits >>> 32)).u4((int) bits);
+            return add("D" + bits, 2);
+        }
+
+        int classInfo(String name) {
+            Integer index = indexes.get("C" + name);
+            if (index != null) {
+                return index;
+            }
+            int nameIndex = utf8(name);
+            entries.u1(CLASS).u2(nameIndex);
+            return add("C" + name, 1);
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return memberRef(FIELD_REF, owner, name, descriptor);
+        }
+
+        int methodRef(String owner, String name, String descriptor, boolean isInterface) {
+            return memberRef(isInterface ? INTERFACE_METHOD_REF : METHOD_REF, owner, name, descriptor);
+        }
+
+        void writeTo(Bytes classFile) {
+            if (count > 0xFFFF) {
+                throw new IllegalStateException("Expression is too large to compile to bytecode");
+            }
+            classFile.u2(count).bytes(entries);
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            String key = "M" + tag + owner + "." + name + descriptor;
+            Integer index = indexes.get(key);
+            if (index != null) {
+                return index;
+            }
+            int ownerIndex = classInfo(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            entries.u1(tag).u2(ownerIndex).u2(nameAndType);
+            return add(key, 1);
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            String key = "N" + name + descriptor;
+            Integer index = indexes.get(key);
+            if (index != null) {
+                return index;
+            }
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            entries.u1(NAME_AND_TYPE).u2(nameIndex).u2(descriptorIndex);
+            return add(key, 1);
+        }
+
+        private int add(String key, int slots) {
+            int index = count;
+            indexes.put(key, index);
+            count += slots;
+            return index;
+        }
+    }
+}
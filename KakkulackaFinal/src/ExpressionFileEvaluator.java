@@ -0,0 +1,296 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * A headless entry point that evaluates a file of expressions, one per line, in the format of the
+ * calculator history: each line holds an expression, optionally followed by {@code = result}, which
+ * is ignored and recalculated. Every non-blank line is written back as {@code expression = result},
+ * or {@code expression = Error: message} if it cannot be evaluated.
+ *
+ * <p>The input is memory-mapped in large windows. Each window is copied in cache-sized blocks, one
+ * bulk transfer per block, since reading a mapped buffer byte by byte pays a bounds check per byte;
+ * each line is then evaluated directly from the block by {@link Calculator#tryCalculateOnce}, so no
+ * string is created per line and invalid lines cost no exception. Results are formatted into a
+ * reused buffer and written through a channel in large blocks. The input must be ASCII text with
+ * {@code \n} or {@code \r\n} line endings.
+ *
+ * <p>Usage: {@code java ExpressionFileEvaluator input [output]}. Without an output file the
+ * results are written to standard output; the throughput is reported on standard error at the end.
+ */
+public final class ExpressionFileEvaluator {
+
+    /**
+     * The number of input bytes mapped at a time unless configured otherwise.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    private static final byte[] SEPARATOR = {' ', '=', ' '};
+    private static final byte[][] ERROR_TEXTS = new byte[CalculationError.values().length][];
+
+    static {
+        for (CalculationError error : CalculationError.values()) {
+            ERROR_TEXTS[error.ordinal()] = ("Error: " + error.getMessage()).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final Calculator calculator;
+    private final int windowSize;
+    private final CalculationResult result = new CalculationResult();
+    private final ByteSequence line = new ByteSequence();
+    private final StringBuilder number = new StringBuilder(32);
+    private final ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+    private byte[] block = new byte[BLOCK_SIZE];
+    private WritableByteChannel channel;
+    private long expressionCount;
+    private long failureCount;
+    private long byteCount;
+
+    /**
+     * Constructs an evaluator mapping the input in windows of the default size.
+     *
+     * @param calculator the calculator evaluating the expressions
+     */
+    public ExpressionFileEvaluator(Calculator calculator) {
+        this(calculator, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructs an evaluator.
+     *
+     * @param calculator the calculator evaluating the expressions
+     * @param windowSize the number of input bytes mapped at a time, which bounds the length of a line
+     * @throws IllegalArgumentException if the window size is not positive
+     */
+    public ExpressionFileEvaluator(Calculator calculator, int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        this.calculator = calculator;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Evaluates the expressions of a file and reports the throughput.
+     *
+     * @param args the input file and, optionally, the output file
+     * @throws IOException if a file cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java ExpressionFileEvaluator input [output]");
+            System.exit(2);
+        }
+        ExpressionFileEvaluator evaluator = new ExpressionFileEvaluator(new Calculator());
+        long start = System.nanoTime();
+        try (WritableByteChannel output = args.length == 2
+                ? FileChannel.open(Paths.get(args[1]), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)
+                : new FileOutputStream(FileDescriptor.out).getChannel()) {
+            evaluator.evaluate(Paths.get(args[0]), output);
+        }
+        System.err.println(evaluator.report(System.nanoTime() - start));
+    }
+
+    /**
+     * Evaluates every line of a file and writes the results to a channel.
+     * The counters accumulate over calls.
+     *
+     * @param input  the file of expressions
+     * @param output the channel receiving the results; it is not closed
+     * @throws IOException if the file cannot be read, a line is longer than the window size, or the output cannot be written
+     */
+    public void evaluate(Path input, WritableByteChannel output) throws IOException {
+        channel = output;
+        try (FileChannel file = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = file.size();
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(windowSize, size - position);
+                MappedByteBuffer window = file.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int end = position + length < size ? lastLineEnd(window, length) : length;
+                if (end == 0) {
+                    throw new IOException("Line at offset " + position + " is longer than " + windowSize + " bytes");
+                }
+                evaluateLines(window, end);
+                position += end;
+                byteCount += end;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Gets the number of expressions evaluated, including those that failed.
+     *
+     * @return the number of non-blank lines read
+     */
+    public long getExpressionCount() {
+        return expressionCount;
+    }
+
+    /**
+     * Gets the number of expressions that could not be evaluated.
+     *
+     * @return the number of lines written with an error
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Gets the number of input bytes read.
+     *
+     * @return the number of bytes
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Describes the work done in the given time.
+     *
+     * @param elapsedNanos the time the evaluation took
+     * @return a line with the counts and the throughput in expressions and megabytes per second
+     */
+    public String report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        return String.format(Locale.ROOT, "Evaluated %,d expressions (%,d failed) from %.1f MB in %.3f s: %,.0f expressions/s, %.1f MB/s",
+                expressionCount, failureCount, byteCount / 1e6, seconds,
+                expressionCount / seconds, byteCount / 1e6 / seconds);
+    }
+
+    /**
+     * Finds the end of the last complete line of a window.
+     *
+     * @return the index after the last newline, or 0 if there is none
+     */
+    private static int lastLineEnd(ByteBuffer window, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (window.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Finds the end of the last complete line of a block.
+     *
+     * @return the index after the last newline, or 0 if there is none
+     */
+    private static int lastLineEnd(byte[] block, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (block[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Evaluates the complete lines of a window, copying them block by block.
+     */
+    private void evaluateLines(ByteBuffer window, int end) throws IOException {
+        int position = 0;
+        while (position < end) {
+            int length = Math.min(block.length, end - position);
+            window.get(position, block, 0, length);
+            int blockEnd = position + length < end ? lastLineEnd(block, length) : length;
+            if (blockEnd == 0) {
+                block = new byte[block.length * 2];
+                continue;
+            }
+            int start = 0;
+            while (start < blockEnd) {
+                int newline = start;
+                while (newline < blockEnd && block[newline] != '\n') {
+                    newline++;
+                }
+                evaluateLine(start, newline);
+                start = newline + 1;
+            }
+            position += blockEnd;
+        }
+    }
+
+    /**
+     * Evaluates the expression of one line of the current block and writes its result.
+     */
+    private void evaluateLine(int start, int end) throws IOException {
+        byte[] block = this.block;
+        int expressionEnd = start;
+        while (expressionEnd < end && block[expressionEnd] != '=') {
+            expressionEnd++;
+        }
+        int first = start;
+        while (first < expressionEnd && isWhitespace(block[first])) {
+            first++;
+        }
+        int last = expressionEnd;
+        while (last > first && isWhitespace(block[last - 1])) {
+            last--;
+        }
+        if (first == last && expressionEnd == end) {
+            return;
+        }
+
+        expressionCount++;
+        boolean evaluated = calculator.tryCalculateOnce(line.set(block, first, last), result);
+        write(block, first, last - first);
+        write(SEPARATOR, 0, SEPARATOR.length);
+        if (evaluated) {
+            number.setLength(0);
+            number.append(result.getValue());
+            for (int i = 0; i < number.length(); i++) {
+                write((byte) number.charAt(i));
+            }
+        } else {
+            failureCount++;
+            byte[] text = ERROR_TEXTS[result.getError().ordinal()];
+            write(text, 0, text.length);
+        }
+        write((byte) '\n');
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > output.remaining()) {
+            int part = output.remaining();
+            output.put(bytes, offset, part);
+            offset += part;
+            length -= part;
+            flush();
+        }
+        output.put(bytes, offset, length);
+    }
+
+    private void write(byte b) throws IOException {
+        if (!output.hasRemaining()) {
+            flush();
+        }
+        output.put(b);
+    }
+
+    private void flush() throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+        output.clear();
+    }
+}
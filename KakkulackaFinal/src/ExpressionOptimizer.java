@@ -0,0 +1,223 @@
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Rewrites a parsed expression tree into an equivalent, smaller graph before it is lowered.
+ * Three rewrites are applied bottom-up:
+ * <ul>
+ *     <li>constant folding: an operator or function whose operands are all constants is replaced
+ *     by its value, unless evaluating it fails, so that errors such as division by zero are still
+ *     raised when the expression is evaluated;</li>
+ *     <li>identities that hold for every double including NaN, infinities and negative zero:
+ *     {@code x*1}, {@code 1*x}, {@code x/1}, {@code x^1}, {@code x-0}, {@code x+(-0)}, {@code (-0)+x}
+ *     and {@code --x} become {@code x}; {@code x+0} is kept because it turns -0 into +0;</li>
+ *     <li>common-subexpression elimination: structurally equal subtrees are replaced by a single
+ *     shared node, so a repeated {@code sin(x)} is computed once by the lowered program.</li>
+ * </ul>
+ * Operators and functions registered as impure are neither folded nor shared, and neither are the
+ * subtrees containing them. The result is a directed acyclic graph and may share nodes.
+ */
+final class ExpressionOptimizer {
+
+    private final Map<Key, CompiledExpression.Node> canonical = new HashMap<>();
+
+    private ExpressionOptimizer() {
+    }
+
+    /**
+     * Optimizes an expression tree.
+     *
+     * @param root the root of the parsed tree
+     * @return the root of the optimized graph
+     */
+    static CompiledExpression.Node optimize(CompiledExpression.Node root) {
+        return new ExpressionOptimizer().rewrite(root);
+    }
+
+    /**
+     * Counts the distinct nodes of a tree or graph, counting a shared node once.
+     *
+     * @param root the root node
+     * @return the number of distinct nodes
+     */
+    static int countNodes(CompiledExpression.Node root) {
+        return countNodes(root, new IdentityHashMap<>());
+    }
+
+    private static int countNodes(CompiledExpression.Node node, Map<CompiledExpression.Node, Boolean> seen) {
+        if (seen.put(node, Boolean.TRUE) != null) {
+            return 0;
+        }
+        if (node instanceof CompiledExpression.BinaryNode) {
+            CompiledExpression.BinaryNode binary = (CompiledExpression.BinaryNode) node;
+            return 1 + countNodes(binary.left, seen) + countNodes(binary.right, seen);
+        }
+        if (node instanceof CompiledExpression.UnaryNode) {
+            return 1 + countNodes(((CompiledExpression.UnaryNode) node).operand, seen);
+        }
+        return 1;
+    }
+
+    private CompiledExpression.Node rewrite(CompiledExpression.Node node) {
+        if (node instanceof CompiledExpression.BinaryNode) {
+            CompiledExpression.BinaryNode binary = (CompiledExpression.BinaryNode) node;
+            CompiledExpression.Node left = rewrite(binary.left);
+            CompiledExpression.Node right = rewrite(binary.right);
+            CompiledExpression.Node simplified = simplify(binary.opcode, left, right);
+            if (simplified != null) {
+                return simplified;
+            }
+            if (left != binary.left || right != binary.right) {
+                binary = new CompiledExpression.BinaryNode(binary.opcode, binary.symbol, binary.operation, binary.pure,
+                        left, right);
+            }
+            if (!binary.pure) {
+                return binary;
+            }
+            CompiledExpression.Node folded = fold(binary);
+            return folded != binary ? folded : intern(binary, new Key(binary.opcode, binary.operation, left, right));
+        }
+        if (node instanceof CompiledExpression.UnaryNode) {
+            CompiledExpression.UnaryNode unary = (CompiledExpression.UnaryNode) node;
+            CompiledExpression.Node operand = rewrite(unary.operand);
+            if (unary.opcode == ExpressionProgram.NEGATE && operand instanceof CompiledExpression.UnaryNode
+                    && ((CompiledExpression.UnaryNode) operand).opcode == ExpressionProgram.NEGATE) {
+                return ((CompiledExpression.UnaryNode) operand).operand;
+            }
+            if (operand != unary.operand) {
+                unary = new CompiledExpression.UnaryNode(unary.opcode, unary.symbol, unary.operation, unary.pure, operand);
+            }
+            if (!unary.pure) {
+                return unary;
+            }
+            CompiledExpression.Node folded = fold(unary);
+            return folded != unary ? folded : intern(unary, new Key(unary.opcode, unary.operation, operand, null));
+        }
+        if (node instanceof CompiledExpression.Constant) {
+            return intern(node, constantKey(((CompiledExpression.Constant) node).value));
+        }
+        return intern(node, new Key(ExpressionProgram.VARIABLE, null, null, null, ((CompiledExpression.Variable) node).index));
+    }
+
+    /**
+     * Applies the identities that make a binary operator return its left or right operand unchanged.
+     *
+     * @return the operand the operator reduces to, or null if no identity applies
+     */
+    private static CompiledExpression.Node simplify(int opcode, CompiledExpression.Node left, CompiledExpression.Node right) {
+        switch (opcode) {
+            case ExpressionProgram.MULTIPLY:
+                if (isConstant(right, 1)) {
+                    return left;
+                }
+                return isConstant(left, 1) ? right : null;
+            case ExpressionProgram.DIVIDE:
+            case ExpressionProgram.POWER:
+                return isConstant(right, 1) ? left : null;
+            case ExpressionProgram.SUBTRACT:
+                return isConstant(right, 0.0) ? left : null;
+            case ExpressionProgram.ADD:
+                if (isConstant(right, -0.0)) {
+                    return left;
+                }
+                return isConstant(left, -0.0) ? right : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Replaces a node whose operands are all constants by its value.
+     *
+     * @return the constant, or the node itself if it has a non-constant operand or its evaluation fails
+     */
+    private CompiledExpression.Node fold(CompiledExpression.Node node) {
+        boolean constantOperands = node instanceof CompiledExpression.BinaryNode
+                ? ((CompiledExpression.BinaryNode) node).left instanceof CompiledExpression.Constant
+                && ((CompiledExpression.BinaryNode) node).right instanceof CompiledExpression.Constant
+                : ((CompiledExpression.UnaryNode) node).operand instanceof CompiledExpression.Constant;
+        if (!constantOperands || wouldFail(node)) {
+            return node;
+        }
+        try {
+            double value = node.evaluate(null);
+            return intern(new CompiledExpression.Constant(value), constantKey(value));
+        } catch (RuntimeException e) {
+            // Left in place so the failure is raised when the expression is evaluated.
+            return node;
+        }
+    }
+
+    /**
+     * Checks without throwing whether evaluating a node with constant operands fails, so that
+     * compiling an invalid expression such as {@code 1/0} does not construct an exception.
+     */
+    private static boolean wouldFail(CompiledExpression.Node node) {
+        if (node instanceof CompiledExpression.BinaryNode) {
+            CompiledExpression.BinaryNode binary = (CompiledExpression.BinaryNode) node;
+            return binary.operation.check(((CompiledExpression.Constant) binary.left).value,
+                    ((CompiledExpression.Constant) binary.right).value) != null;
+        }
+        CompiledExpression.UnaryNode unary = (CompiledExpression.UnaryNode) node;
+        return unary.operation.check(((CompiledExpression.Constant) unary.operand).value) != null;
+    }
+
+    /**
+     * Returns the node already seen for a key, or records the given node for it.
+     */
+    private CompiledExpression.Node intern(CompiledExpression.Node node, Key key) {
+        CompiledExpression.Node existing = canonical.putIfAbsent(key, node);
+        return existing == null ? node : existing;
+    }
+
+    private static boolean isConstant(CompiledExpression.Node node, double value) {
+        return node instanceof CompiledExpression.Constant
+                && Double.doubleToRawLongBits(((CompiledExpression.Constant) node).value) == Double.doubleToRawLongBits(value);
+    }
+
+    private static Key constantKey(double value) {
+        return new Key(ExpressionProgram.CONSTANT, null, null, null, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Identifies a node by its opcode, operation and already canonical operands, so that two
+     * structurally equal subtrees map to the same key.
+     */
+    private static final class Key {
+        final int opcode;
+        final Object operation;
+        final CompiledExpression.Node left;
+        final CompiledExpression.Node right;
+        final long value;
+
+        Key(int opcode, Object operation, CompiledExpression.Node left, CompiledExpression.Node right) {
+            this(opcode, operation, left, right, 0);
+        }
+
+        Key(int opcode, Object operation, CompiledExpression.Node left, CompiledExpression.Node right, long value) {
+            this.opcode = opcode;
+            this.operation = operation;
+            this.left = left;
+            this.right = right;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return opcode == key.opcode && operation == key.operation && left == key.left && right == key.right
+                    && value == key.value;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(opcode, System.identityHashCode(operation), System.identityHashCode(left),
+                    System.identityHashCode(right), value);
+        }
+    }
+}
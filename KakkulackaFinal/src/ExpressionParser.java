@@ -0,0 +1,464 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses normalized mathematical expressions into {@link CompiledExpression} trees
+ * using the shunting-yard algorithm. The operators, functions, precedences and associativities
+ * come from an {@link OperatorRegistry}; pending operators are kept on an int stack holding the
+ * index of their registry entry.
+ *
+ * <p>The same pass can also evaluate an expression directly while parsing it, reducing
+ * operators on a stack of values instead of tree nodes. That mode builds nothing and is used
+ * for expressions that are evaluated only once, such as the lines of a large input file.
+ */
+class ExpressionParser {
+
+    private static final int LEFT_PAREN = -1;
+    private static final String NEGATION = "neg";
+
+    private final OperatorRegistry registry;
+    private final int[] precedences;
+    private final boolean[] rightAssociative;
+    private final boolean[] binary;
+    private final boolean[] prefix;
+    private final int[] opcodes;
+    private final String[] symbols;
+    private final Operation[] operations;
+    private final ScientificOperation[] functions;
+    private final boolean[] pure;
+    private final ThreadLocal<ExpressionTokenizer> tokenizers;
+    private final ThreadLocal<Interpreter> interpreters;
+
+    /**
+     * Constructs a parser for the operators and functions of a registry.
+     *
+     * @param operators the registry
+     */
+    ExpressionParser(OperatorRegistry operators) {
+        this.registry = operators;
+        int count = operators.getEntries().size();
+        precedences = new int[count];
+        rightAssociative = new boolean[count];
+        binary = new boolean[count];
+        prefix = new boolean[count];
+        opcodes = new int[count];
+        symbols = new String[count];
+        operations = new Operation[count];
+        functions = new ScientificOperation[count];
+        pure = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            OperatorRegistry.Entry entry = operators.entry(i);
+            precedences[i] = entry.getPrecedence();
+            rightAssociative[i] = entry.getAssociativity() == OperatorRegistry.Associativity.RIGHT;
+            binary[i] = entry.getKind() == OperatorRegistry.Kind.BINARY;
+            prefix[i] = entry.getKind() == OperatorRegistry.Kind.PREFIX || entry.getKind() == OperatorRegistry.Kind.FUNCTION;
+            opcodes[i] = entry.opcode;
+            symbols[i] = entry.opcode == ExpressionProgram.NEGATE ? NEGATION : entry.getSymbol();
+            operations[i] = entry.getOperation();
+            functions[i] = entry.getFunction();
+            pure[i] = entry.isPure();
+        }
+        this.tokenizers = ThreadLocal.withInitial(() -> new ExpressionTokenizer(operators));
+        this.interpreters = ThreadLocal.withInitial(Interpreter::new);
+    }
+
+    /**
+     * Parses a normalized expression (trimmed, lower case) into a compiled expression.
+     * Functions and prefix operators apply to the operand that follows them and postfix operators
+     * to the operand that precedes them, as far as their precedence reaches; a unary plus is ignored.
+     * Any name that is not a function is a variable.
+     *
+     * @param expression the normalized expression
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    CompiledExpression parse(String expression) {
+        CalculationResult result = new CalculationResult();
+        CompiledExpression compiled = parse(expression, result);
+        if (compiled == null) {
+            throw exception(expression, result);
+        }
+        return compiled;
+    }
+
+    /**
+     * Parses a normalized expression without throwing if it is invalid.
+     *
+     * @param expression the normalized expression
+     * @param result     the holder receiving the error and its position if the expression is invalid;
+     *                   it is left unchanged otherwise
+     * @return the compiled expression, or null if the expression is invalid
+     */
+    CompiledExpression parse(String expression, CalculationResult result) {
+        TreeBuilder builder = new TreeBuilder();
+        if (!shuntingYard(expression, builder, result)) {
+            return null;
+        }
+        return new CompiledExpression(expression, builder.operands[0], builder.variableNames);
+    }
+
+    /**
+     * Evaluates an expression while parsing it, without building a tree or throwing.
+     * Whitespace is skipped and function names are matched ignoring case, so the expression need
+     * not be normalized. Errors are reported as they would be by parsing the expression and then
+     * evaluating the compiled expression: syntax errors first, then variables, which have no
+     * values here, then the first error raised by evaluation.
+     *
+     * @param expression the expression
+     * @param result     the holder receiving the value or the error
+     * @return true if the expression was evaluated, false if an error was reported
+     */
+    boolean evaluate(CharSequence expression, CalculationResult result) {
+        Interpreter interpreter = interpreters.get();
+        return shuntingYard(expression, interpreter, result) && interpreter.finish(result);
+    }
+
+    /**
+     * Runs the shunting-yard algorithm over the tokens of an expression, reducing operators on the given operand stack.
+     *
+     * @param expression the expression
+     * @param operands   the operand stack
+     * @param result     the holder receiving the error and its position if the expression is invalid
+     * @return true if the expression is valid, false if a syntax error was reported
+     */
+    private boolean shuntingYard(CharSequence expression, Operands operands, CalculationResult result) {
+        ExpressionTokenizer tokenizer = tokenizers.get();
+        int tokenCount = tokenizer.tokenize(expression);
+        if (tokenCount < 0) {
+            result.fail(tokenizer.error(), tokenizer.errorPosition(), tokenizer.errorPosition() + 1);
+            return false;
+        }
+        int[] operators = operands.start(tokenCount);
+        int operatorCount = 0;
+        boolean expectOperand = true;
+
+        for (int t = 0; t < tokenCount; t++) {
+            switch (tokenizer.kind(t)) {
+                case ExpressionTokenizer.NUMBER:
+                case ExpressionTokenizer.NAME:
+                    if (!expectOperand) {
+                        return unexpected(tokenizer, t, result);
+                    }
+                    if (tokenizer.kind(t) == ExpressionTokenizer.NUMBER) {
+                        operands.number(tokenizer.number(t), expression, tokenizer.start(t), tokenizer.end(t));
+                    } else {
+                        operands.name(expression, tokenizer.start(t), tokenizer.end(t));
+                    }
+                    expectOperand = false;
+                    break;
+                case ExpressionTokenizer.FUNCTION:
+                    if (!expectOperand) {
+                        return unexpected(tokenizer, t, result);
+                    }
+                    operators[operatorCount++] = tokenizer.code(t);
+                    break;
+                case ExpressionTokenizer.OPERATOR:
+                    int symbol = tokenizer.code(t);
+                    if (expectOperand) {
+                        int prefixOperator = registry.prefixOperator(symbol);
+                        if (prefixOperator >= 0) {
+                            operators[operatorCount++] = prefixOperator;
+                        } else if (symbol != '+') {
+                            return unexpected(tokenizer, t, result);
+                        }
+                        break;
+                    }
+                    int postfixOperator = registry.postfixOperator(symbol);
+                    if (postfixOperator >= 0) {
+                        // Prefix operators that bind tighter take the operand first, as sin in sin x!.
+                        while (operatorCount > 0 && operators[operatorCount - 1] != LEFT_PAREN
+                                && prefix[operators[operatorCount - 1]]
+                                && precedences[operators[operatorCount - 1]] > precedences[postfixOperator]) {
+                            operands.reduce(operators[--operatorCount]);
+                        }
+                        operands.reduce(postfixOperator);
+                        break;
+                    }
+                    int binaryOperator = registry.binaryOperator(symbol);
+                    if (binaryOperator < 0) {
+                        return unexpected(tokenizer, t, result);
+                    }
+                    while (operatorCount > 0 && operators[operatorCount - 1] != LEFT_PAREN
+                            && reducesBefore(operators[operatorCount - 1], binaryOperator)) {
+                        operands.reduce(operators[--operatorCount]);
+                    }
+                    operators[operatorCount++] = binaryOperator;
+                    expectOperand = true;
+                    break;
+                case ExpressionTokenizer.LEFT_PAREN:
+                    if (!expectOperand) {
+                        return unexpected(tokenizer, t, result);
+                    }
+                    operators[operatorCount++] = LEFT_PAREN;
+                    break;
+                case ExpressionTokenizer.RIGHT_PAREN:
+                    if (expectOperand) {
+                        return unexpected(tokenizer, t, result);
+                    }
+                    while (operatorCount > 0 && operators[operatorCount - 1] != LEFT_PAREN) {
+                        operands.reduce(operators[--operatorCount]);
+                    }
+                    if (operatorCount == 0) {
+                        result.fail(CalculationError.MISMATCHED_PARENTHESES, tokenizer.start(t), tokenizer.end(t));
+                        return false;
+                    }
+                    operatorCount--;
+                    break;
+            }
+        }
+
+        if (expectOperand) {
+            result.fail(CalculationError.SYNTAX_ERROR);
+            return false;
+        }
+        while (operatorCount > 0) {
+            int operator = operators[--operatorCount];
+            if (operator == LEFT_PAREN) {
+                result.fail(CalculationError.MISMATCHED_PARENTHESES);
+                return false;
+            }
+            operands.reduce(operator);
+        }
+        return true;
+    }
+
+    /**
+     * Creates the node for a variable, numbering it on its first appearance.
+     *
+     * @param name          the variable name
+     * @param variableNames the names of the variables seen so far, indexed by variable number
+     * @return the variable node
+     */
+    private static CompiledExpression.Node variable(String name, List<String> variableNames) {
+        int index = variableNames.indexOf(name);
+        if (index < 0) {
+            index = variableNames.size();
+            variableNames.add(name);
+        }
+        return new CompiledExpression.Variable(name, index);
+    }
+
+    /**
+     * Checks if a pending operator must be applied before a binary operator is pushed: it binds
+     * tighter, or as tight and the binary operator is left-associative.
+     *
+     * @param pending  the entry index of the operator on top of the stack
+     * @param incoming the entry index of the binary operator
+     * @return true if the pending operator is applied first
+     */
+    private boolean reducesBefore(int pending, int incoming) {
+        return precedences[pending] > precedences[incoming]
+                || precedences[pending] == precedences[incoming] && !rightAssociative[incoming];
+    }
+
+    /**
+     * Records an unexpected token as a syntax error.
+     *
+     * @param tokenizer the tokenizer holding the tokens of the expression
+     * @param token     the index of the unexpected token
+     * @param result    the holder receiving the error
+     * @return false
+     */
+    private static boolean unexpected(ExpressionTokenizer tokenizer, int token, CalculationResult result) {
+        result.fail(CalculationError.SYNTAX_ERROR, tokenizer.start(token), tokenizer.end(token));
+        return false;
+    }
+
+    /**
+     * Creates the exception thrown for a parse error.
+     *
+     * @param expression the expression being parsed
+     * @param result     the holder describing the error
+     * @return the exception to throw
+     */
+    private static IllegalArgumentException exception(String expression, CalculationResult result) {
+        int start = result.getErrorStart();
+        switch (result.getError()) {
+            case INVALID_CHARACTER:
+                return new IllegalArgumentException("Invalid character found: " + expression.charAt(start));
+            case INVALID_NUMBER:
+                return new IllegalArgumentException("Invalid number at position " + start);
+            case MISMATCHED_PARENTHESES:
+                return new IllegalArgumentException("Mismatched parentheses in expression: " + expression);
+            default:
+                if (start < 0) {
+                    return new IllegalArgumentException("Invalid expression: " + expression);
+                }
+                return new IllegalArgumentException("Invalid expression: " + expression
+                        + " (unexpected '" + expression.substring(start, result.getErrorEnd()) + "')");
+        }
+    }
+
+    /**
+     * The operand stack of the shunting-yard algorithm, together with its operator stack.
+     */
+    private abstract static class Operands {
+        private int[] operators = new int[16];
+
+        /**
+         * Prepares the stacks for an expression.
+         *
+         * @param tokenCount the number of tokens, which bounds the depth of both stacks
+         * @return the operator stack
+         */
+        int[] start(int tokenCount) {
+            if (operators.length < tokenCount) {
+                operators = new int[tokenCount];
+            }
+            reset(tokenCount);
+            return operators;
+        }
+
+        /**
+         * Empties the operand stack, making room for the given number of operands.
+         */
+        abstract void reset(int capacity);
+
+        /**
+         * Pushes a number written in a range of the expression.
+         */
+        abstract void number(double value, CharSequence expression, int start, int end);
+
+        /**
+         * Pushes a variable named by a range of the expression.
+         */
+        abstract void name(CharSequence expression, int start, int end);
+
+        /**
+         * Replaces the operands of an int-coded operator on the stack with the result of applying it.
+         */
+        abstract void reduce(int operator);
+    }
+
+    /**
+     * Builds the parsed tree of an expression.
+     */
+    private final class TreeBuilder extends Operands {
+        private final List<String> variableNames = new ArrayList<>();
+        private CompiledExpression.Node[] operands;
+        private int count;
+
+        @Override
+        void reset(int capacity) {
+            operands = new CompiledExpression.Node[capacity];
+            count = 0;
+        }
+
+        @Override
+        void number(double value, CharSequence expression, int start, int end) {
+            operands[count++] = new CompiledExpression.Constant(value, expression.subSequence(start, end).toString());
+        }
+
+        @Override
+        void name(CharSequence expression, int start, int end) {
+            operands[count++] = variable(expression.subSequence(start, end).toString(), variableNames);
+        }
+
+        @Override
+        void reduce(int operator) {
+            if (binary[operator]) {
+                count--;
+                operands[count - 1] = new CompiledExpression.BinaryNode(opcodes[operator], symbols[operator],
+                        operations[operator], pure[operator], operands[count - 1], operands[count]);
+            } else {
+                operands[count - 1] = new CompiledExpression.UnaryNode(opcodes[operator], symbols[operator],
+                        functions[operator], pure[operator], operands[count - 1]);
+            }
+        }
+    }
+
+    /**
+     * Evaluates an expression on a stack of values. Once an error is recorded nothing more is
+     * computed, but parsing goes on so that a later syntax error still takes precedence.
+     * An interpreter is reused by its thread and allocates nothing once its stacks have grown.
+     */
+    private final class Interpreter extends Operands {
+        private double[] values = new double[16];
+        private int count;
+        private boolean unbound;
+        private CalculationError error;
+
+        @Override
+        void reset(int capacity) {
+            if (values.length < capacity) {
+                values = new double[capacity];
+            }
+            count = 0;
+            unbound = false;
+            error = null;
+        }
+
+        @Override
+        void number(double value, CharSequence expression, int start, int end) {
+            values[count++] = value;
+        }
+
+        @Override
+        void name(CharSequence expression, int start, int end) {
+            unbound = true;
+            values[count++] = Double.NaN;
+        }
+
+        @Override
+        void reduce(int operator) {
+            if (unbound || error != null) {
+                count -= binary[operator] ? 1 : 0;
+                return;
+            }
+            if (binary[operator]) {
+                count--;
+                values[count - 1] = apply(opcodes[operator], operations[operator], values[count - 1], values[count]);
+            } else if (opcodes[operator] == ExpressionProgram.NEGATE) {
+                values[count - 1] = -values[count - 1];
+            } else {
+                call(functions[operator]);
+            }
+        }
+
+        private double apply(int opcode, Operation operation, double a, double b) {
+            switch (opcode) {
+                case ExpressionProgram.ADD:
+                    return a + b;
+                case ExpressionProgram.SUBTRACT:
+                    return a - b;
+                case ExpressionProgram.MULTIPLY:
+                    return a * b;
+                case ExpressionProgram.DIVIDE:
+                    if (b == 0) {
+                        error = CalculationError.DIVISION_BY_ZERO;
+                        return Double.NaN;
+                    }
+                    return a / b;
+                case ExpressionProgram.POWER:
+                    return Math.pow(a, b);
+                default:
+                    error = operation.check(a, b);
+                    return error == null ? operation.apply(a, b) : Double.NaN;
+            }
+        }
+
+        private void call(ScientificOperation function) {
+            double operand = values[count - 1];
+            error = function.check(operand);
+            values[count - 1] = error == null ? function.apply(operand) : Double.NaN;
+        }
+
+        /**
+         * Reports the value of a syntactically valid expression, or its error.
+         *
+         * @param result the holder receiving the value or the error
+         * @return true if the expression was evaluated
+         */
+        boolean finish(CalculationResult result) {
+            if (unbound) {
+                result.fail(CalculationError.UNBOUND_VARIABLE);
+            } else if (error != null) {
+                result.fail(error);
+            } else {
+                result.succeed(values[0]);
+                return true;
+            }
+            return false;
+        }
+    }
+}
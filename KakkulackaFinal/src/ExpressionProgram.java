@@ -0,0 +1,386 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled expression lowered to postfix opcodes that run on a primitive operand stack.
+ * Arithmetic operators are executed inline by an opcode switch; scientific functions and
+ * other registered operators are called through tables indexed by the instruction operand. A subexpression shared by several
+ * parents of an optimized graph is computed once, stored in a local slot and loaded again where
+ * it recurs; the local slots follow the operand stack in the same scratch array.
+ */
+final class ExpressionProgram {
+
+    static final int ADD = 0;
+    static final int SUBTRACT = 1;
+    static final int MULTIPLY = 2;
+    static final int DIVIDE = 3;
+    static final int POWER = 4;
+    static final int NEGATE = 5;
+    static final int CALL = 6;
+    static final int CONSTANT = 7;
+    static final int VARIABLE = 8;
+    static final int STORE = 9;
+    static final int LOAD = 10;
+    static final int APPLY = 11;
+
+    private final int[] code;
+    private final double[] constants;
+    private final ScientificOperation[] functions;
+    private final Operation[] operations;
+    private final int maxStackDepth;
+    private final int localCount;
+
+    private ExpressionProgram(int[] code, double[] constants, ScientificOperation[] functions, Operation[] operations,
+                              int maxStackDepth, int localCount) {
+        this.code = code;
+        this.constants = constants;
+        this.functions = functions;
+        this.operations = operations;
+        this.maxStackDepth = maxStackDepth;
+        this.localCount = localCount;
+    }
+
+    /**
+     * Lowers an expression tree or graph to a program.
+     *
+     * @param root the root node of the tree or graph
+     * @return the program evaluating the tree
+     */
+    static ExpressionProgram lower(CompiledExpression.Node root) {
+        Builder builder = new Builder();
+        builder.countReferences(root);
+        builder.emit(root);
+        return builder.build();
+    }
+
+    /**
+     * Gets the operand stack depth needed to run the program.
+     *
+     * @return the maximum stack depth
+     */
+    int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    /**
+     * Gets the length of the scratch array needed to run the program: the operand stack followed by the local slots.
+     *
+     * @return the frame size
+     */
+    int getFrameSize() {
+        return maxStackDepth + localCount;
+    }
+
+    /**
+     * Gets the number of local slots holding shared subexpressions.
+     *
+     * @return the number of local slots
+     */
+    int getLocalCount() {
+        return localCount;
+    }
+
+    /**
+     * Gets the instructions of the program. The array is shared and must not be modified.
+     *
+     * @return the opcodes, each followed by its operand if it has one
+     */
+    int[] getCode() {
+        return code;
+    }
+
+    /**
+     * Gets the constants loaded by {@link #CONSTANT} instructions. The array is shared and must not be modified.
+     *
+     * @return the constants, indexed by instruction operand
+     */
+    double[] getConstants() {
+        return constants;
+    }
+
+    /**
+     * Gets the functions called by {@link #CALL} instructions. The array is shared and must not be modified.
+     *
+     * @return the functions, indexed by instruction operand
+     */
+    ScientificOperation[] getFunctions() {
+        return functions;
+    }
+
+    /**
+     * Gets the binary operations applied by {@link #APPLY} instructions. The array is shared and must not be modified.
+     *
+     * @return the operations, indexed by instruction operand
+     */
+    Operation[] getOperations() {
+        return operations;
+    }
+
+    /**
+     * Applies a binary operation, taking the operation after its operands as generated code pushes them.
+     *
+     * @param a         the first operand
+     * @param b         the second operand
+     * @param operation the operation
+     * @return the result of the operation
+     */
+    static double apply(double a, double b, Operation operation) {
+        return operation.apply(a, b);
+    }
+
+    /**
+     * Divides two numbers, rejecting a zero divisor like the division operator does.
+     *
+     * @param dividend the dividend
+     * @param divisor  the divisor
+     * @return the quotient
+     * @throws ArithmeticException if the divisor is zero
+     */
+    static double divide(double dividend, double divisor) {
+        if (divisor == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        return dividend / divisor;
+    }
+
+    /**
+     * Tells whether running the program can fail: it divides or calls an operation, which may reject its operands.
+     *
+     * @return true if the program has a division, a function call or a registered binary operation
+     */
+    boolean canFail() {
+        for (int pc = 0; pc < code.length; pc += code[pc] == CALL || code[pc] >= CONSTANT ? 2 : 1) {
+            if (code[pc] == DIVIDE || code[pc] == CALL || code[pc] == APPLY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the program.
+     *
+     * @param variables the variable values, indexed by variable number
+     * @param stack     the operand stack and local slots, at least {@link #getFrameSize()} long
+     * @return the result of the expression
+     * @throws ArithmeticException      on division by zero
+     * @throws IllegalArgumentException if an operand is outside the domain of a function
+     */
+    double execute(double[] variables, double[] stack) {
+        return run(variables, stack, null);
+    }
+
+    /**
+     * Runs the program without throwing on division by zero or on operands that a function rejects.
+     *
+     * @param variables the variable values, indexed by variable number
+     * @param stack     the operand stack and local slots, at least {@link #getFrameSize()} long
+     * @param result    the holder receiving the value or the error
+     * @return true if the program succeeded
+     */
+    boolean tryExecute(double[] variables, double[] stack, CalculationResult result) {
+        result.succeed(Double.NaN);
+        double value = run(variables, stack, result);
+        if (!result.isSuccessful()) {
+            return false;
+        }
+        result.succeed(value);
+        return true;
+    }
+
+    /**
+     * Runs the program, reporting errors by exception or, if a result holder is given, through the holder.
+     *
+     * @return the result of the expression, or NaN after an error was reported through the holder
+     */
+    private double run(double[] variables, double[] stack, CalculationResult result) {
+        int[] code = this.code;
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONSTANT:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case VARIABLE:
+                    stack[sp++] = variables[code[pc++]];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    break;
+                case SUBTRACT:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    break;
+                case MULTIPLY:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] * stack[sp];
+                    break;
+                case DIVIDE:
+                    sp--;
+                    if (result != null && stack[sp] == 0) {
+                        result.fail(CalculationError.DIVISION_BY_ZERO);
+                        return Double.NaN;
+                    }
+                    stack[sp - 1] = divide(stack[sp - 1], stack[sp]);
+                    break;
+                case POWER:
+                    sp--;
+                    stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+                    break;
+                case NEGATE:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case CALL:
+                    ScientificOperation function = functions[code[pc++]];
+                    if (result != null) {
+                        CalculationError error = function.check(stack[sp - 1]);
+                        if (error != null) {
+                            result.fail(error);
+                            return Double.NaN;
+                        }
+                    }
+                    stack[sp - 1] = function.apply(stack[sp - 1]);
+                    break;
+                case APPLY:
+                    Operation operation = operations[code[pc++]];
+                    sp--;
+                    if (result != null) {
+                        CalculationError error = operation.check(stack[sp - 1], stack[sp]);
+                        if (error != null) {
+                            result.fail(error);
+                            return Double.NaN;
+                        }
+                    }
+                    stack[sp - 1] = operation.apply(stack[sp - 1], stack[sp]);
+                    break;
+                case STORE:
+                    stack[maxStackDepth + code[pc++]] = stack[sp - 1];
+                    break;
+                case LOAD:
+                    stack[sp++] = stack[maxStackDepth + code[pc++]];
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid opcode: " + code[pc - 1]);
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Emits the postfix code of a tree.
+     */
+    private static final class Builder {
+        private int[] code = new int[16];
+        private int length;
+        private final List<Double> constants = new ArrayList<>();
+        private final List<ScientificOperation> functions = new ArrayList<>();
+        private final List<Operation> operations = new ArrayList<>();
+        private final Map<CompiledExpression.Node, Integer> references = new IdentityHashMap<>();
+        private final Map<CompiledExpression.Node, Integer> locals = new IdentityHashMap<>();
+        private int depth;
+        private int maxDepth;
+
+        /**
+         * Counts how many parents refer to each node, visiting a shared node's operands once.
+         */
+        void countReferences(CompiledExpression.Node node) {
+            if (references.merge(node, 1, Integer::sum) > 1) {
+                return;
+            }
+            if (node instanceof CompiledExpression.BinaryNode) {
+                countReferences(((CompiledExpression.BinaryNode) node).left);
+                countReferences(((CompiledExpression.BinaryNode) node).right);
+            } else if (node instanceof CompiledExpression.UnaryNode) {
+                countReferences(((CompiledExpression.UnaryNode) node).operand);
+            }
+        }
+
+        void emit(CompiledExpression.Node node) {
+            boolean shared = references.getOrDefault(node, 1) > 1
+                    && (node instanceof CompiledExpression.BinaryNode || node instanceof CompiledExpression.UnaryNode);
+            if (shared && locals.containsKey(node)) {
+                append(LOAD, locals.get(node));
+                push();
+                return;
+            }
+            emitNode(node);
+            if (shared) {
+                int local = locals.size();
+                locals.put(node, local);
+                append(STORE, local);
+            }
+        }
+
+        private void emitNode(CompiledExpression.Node node) {
+            if (node instanceof CompiledExpression.Constant) {
+                int index = constants.indexOf(((CompiledExpression.Constant) node).value);
+                if (index < 0) {
+                    index = constants.size();
+                    constants.add(((CompiledExpression.Constant) node).value);
+                }
+                append(CONSTANT, index);
+                push();
+            } else if (node instanceof CompiledExpression.Variable) {
+                append(VARIABLE, ((CompiledExpression.Variable) node).index);
+                push();
+            } else if (node instanceof CompiledExpression.BinaryNode) {
+                CompiledExpression.BinaryNode binary = (CompiledExpression.BinaryNode) node;
+                emit(binary.left);
+                emit(binary.right);
+                if (binary.opcode == APPLY) {
+                    int index = operations.indexOf(binary.operation);
+                    if (index < 0) {
+                        index = operations.size();
+                        operations.add(binary.operation);
+                    }
+                    append(APPLY, index);
+                } else {
+                    append(binary.opcode);
+                }
+                depth--;
+            } else {
+                CompiledExpression.UnaryNode unary = (CompiledExpression.UnaryNode) node;
+                emit(unary.operand);
+                if (unary.opcode == NEGATE) {
+                    append(NEGATE);
+                } else {
+                    int index = functions.indexOf(unary.operation);
+                    if (index < 0) {
+                        index = functions.size();
+                        functions.add(unary.operation);
+                    }
+                    append(CALL, index);
+                }
+            }
+        }
+
+        ExpressionProgram build() {
+            double[] constantValues = new double[constants.size()];
+            for (int i = 0; i < constantValues.length; i++) {
+                constantValues[i] = constants.get(i);
+            }
+            return new ExpressionProgram(Arrays.copyOf(code, length), constantValues,
+                    functions.toArray(new ScientificOperation[0]), operations.toArray(new Operation[0]), maxDepth,
+                    locals.size());
+        }
+
+        private void push() {
+            depth++;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void append(int... instruction) {
+            if (length + instruction.length > code.length) {
+                code = Arrays.copyOf(code, Math.max(code.length * 2, length + instruction.length));
+            }
+            for (int value : instruction) {
+                code[length++] = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import java.util.Arrays;
+
+/**
+ * A single-pass scanner that splits an expression into tokens.
+ * Token kinds, numeric values and positions are written into primitive buffers that are reused
+ * between calls, so tokenizing does not allocate once the buffers have grown to the expression size.
+ * Errors are reported by a result code rather than an exception, so rejecting bad input is as cheap
+ * as accepting good input. A tokenizer is not thread-safe; use one instance per thread.
+ */
+final class ExpressionTokenizer {
+
+    static final int NUMBER = 0;
+    static final int NAME = 1;
+    static final int FUNCTION = 2;
+    static final int OPERATOR = 3;
+    static final int LEFT_PAREN = 4;
+    static final int RIGHT_PAREN = 5;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    private final OperatorRegistry operators;
+    private int[] kinds = new int[16];
+    private int[] codes = new int[16];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private double[] numbers = new double[16];
+    private int count;
+    private CalculationError error;
+    private int errorPosition;
+
+    /**
+     * Constructs a tokenizer that recognizes the operators and functions of a registry.
+     *
+     * @param operators the registry; a function token's code is the index of its entry
+     */
+    ExpressionTokenizer(OperatorRegistry operators) {
+        this.operators = operators;
+    }
+
+    /**
+     * Tokenizes an expression. Whitespace is skipped and function names are matched ignoring case.
+     *
+     * @param input the expression to tokenize
+     * @return the number of tokens, or -1 if the expression contains an invalid character or a
+     * malformed number; the problem is then described by {@link #error()} and {@link #errorPosition()}
+     */
+    int tokenize(CharSequence input) {
+        count = 0;
+        error = null;
+        int length = input.length();
+        int i = 0;
+        while (i < length) {
+            char character = input.charAt(i);
+            if (Character.isWhitespace(character)) {
+                i++;
+            } else if (isDigit(character) || character == '.') {
+                i = scanNumber(input, i);
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (isLetter(character)) {
+                int end = i + 1;
+                while (end < length && isLetter(input.charAt(end))) {
+                    end++;
+                }
+                int function = operators.findFunction(input, i, end);
+                add(function < 0 ? NAME : FUNCTION, function, i, end, 0);
+                i = end;
+            } else if (operators.isOperator(character)) {
+                add(OPERATOR, character, i, i + 1, 0);
+                i++;
+            } else if (character == '(') {
+                add(LEFT_PAREN, character, i, i + 1, 0);
+                i++;
+            } else if (character == ')') {
+                add(RIGHT_PAREN, character, i, i + 1, 0);
+                i++;
+            } else {
+                return fail(CalculationError.INVALID_CHARACTER, i);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the error found by the last call to {@link #tokenize(CharSequence)}.
+     *
+     * @return {@link CalculationError#INVALID_CHARACTER}, {@link CalculationError#INVALID_NUMBER}, or null if there was none
+     */
+    CalculationError error() {
+        return error;
+    }
+
+    /**
+     * Gets the offset of the error found by the last call to {@link #tokenize(CharSequence)}.
+     *
+     * @return the offset of the invalid character or of the start of the malformed number
+     */
+    int errorPosition() {
+        return errorPosition;
+    }
+
+    /**
+     * Gets the kind of a token.
+     *
+     * @param token the token index
+     * @return one of the token kind constants
+     */
+    int kind(int token) {
+        return kinds[token];
+    }
+
+    /**
+     * Gets the code of a token: the operator character for operators and parentheses,
+     * or the index of the function's registry entry for functions.
+     *
+     * @param token the token index
+     * @return the token code
+     */
+    int code(int token) {
+        return codes[token];
+    }
+
+    /**
+     * Gets the value of a number token.
+     *
+     * @param token the token index
+     * @return the numeric value
+     */
+    double number(int token) {
+        return numbers[token];
+    }
+
+    /**
+     * Gets the start offset of a token in the input.
+     *
+     * @param token the token index
+     * @return the offset of the first character
+     */
+    int start(int token) {
+        return starts[token];
+    }
+
+    /**
+     * Gets the end offset of a token in the input.
+     *
+     * @param token the token index
+     * @return the offset after the last character
+     */
+    int end(int token) {
+        return ends[token];
+    }
+
+    /**
+     * Scans a decimal number in place. Numbers with at most 18 significant digits and a small
+     * decimal exponent are converted exactly with a single rounding; longer numbers fall back to
+     * {@link Double#parseDouble(String)}.
+     *
+     * @param input the expression
+     * @param start the offset of the first character of the number
+     * @return the offset after the number, or -1 if it has no digits
+     */
+    private int scanNumber(CharSequence input, int start) {
+        int length = input.length();
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        boolean truncated = false;
+
+        int i = start;
+        for (; i < length; i++) {
+            char character = input.charAt(i);
+            if (isDigit(character)) {
+                seenDigit = true;
+                int digit = character - '0';
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + digit;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    if (seenPoint) {
+                        exponent--;
+                    }
+                } else {
+                    truncated |= digit != 0;
+                    if (!seenPoint) {
+                        exponent++;
+                    }
+                }
+            } else if (character == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (!seenDigit) {
+            return fail(CalculationError.INVALID_NUMBER, start);
+        }
+
+        double value;
+        if (!truncated && mantissa < MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        } else {
+            value = Double.parseDouble(input.subSequence(start, i).toString());
+        }
+        add(NUMBER, 0, start, i, value);
+        return i;
+    }
+
+    /**
+     * Records an error.
+     *
+     * @return -1
+     */
+    private int fail(CalculationError error, int position) {
+        this.error = error;
+        errorPosition = position;
+        return -1;
+    }
+
+    /**
+     * Appends a token to the buffers, growing them if needed.
+     */
+    private void add(int kind, int code, int start, int end, double number) {
+        if (count == kinds.length) {
+            int capacity = count * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            codes = Arrays.copyOf(codes, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+        }
+        kinds[count] = kind;
+        codes[count] = code;
+        starts[count] = start;
+        ends[count] = end;
+        numbers[count] = number;
+        count++;
+    }
+
+    /**
+     * Checks if a character is an ASCII digit.
+     *
+     * @param character the character to check
+     * @return true if the character is between '0' and '9', false otherwise
+     */
+    private static boolean isDigit(char character) {
+        return character >= '0' && character <= '9';
+    }
+
+    /**
+     * Checks if a character is an ASCII letter, the only letters names are made of.
+     *
+     * @param character the character to check
+     * @return true if the character is between 'a' and 'z' or between 'A' and 'Z', false otherwise
+     */
+    private static boolean isLetter(char character) {
+        return (character >= 'a' && character <= 'z') || (character >= 'A' && character <= 'Z');
+    }
+}
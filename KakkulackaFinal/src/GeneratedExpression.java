@@ -0,0 +1,26 @@
+/**
+ * An expression compiled to bytecode by the {@link ExpressionCompiler}. Implementations are hidden
+ * classes with straight-line arithmetic that HotSpot can inline into their callers. Generated
+ * classes of expressions with at most one or two variables also implement
+ * {@link java.util.function.DoubleUnaryOperator} or {@link java.util.function.DoubleBinaryOperator}.
+ */
+interface GeneratedExpression {
+
+    /**
+     * Evaluates the expression for the given variable values.
+     *
+     * @param variables the variable values, indexed by variable number
+     * @return the result of the expression
+     */
+    double evaluate(double[] variables);
+
+    /**
+     * Evaluates the expression for a range of rows of columnar variable values in a generated loop.
+     *
+     * @param columns the variable columns, indexed by variable number, each at least {@code to} long
+     * @param out     the array receiving one result per row
+     * @param from    the first row, inclusive
+     * @param to      the last row, exclusive
+     */
+    void evaluate(double[][] columns, double[] out, int from, int to);
+}
@@ -0,0 +1,236 @@
+import java.util.Arrays;
+
+/**
+ * Evaluates an {@link ExpressionProgram} on dual numbers, computing the value of an expression
+ * together with its gradient by its variables in a single forward pass.
+ *
+ * <p>Each stack slot and local slot holds a value followed by its tangent: the derivatives of the
+ * value by every variable. A variable enters as its value with a unit tangent in its own position,
+ * a constant with a zero tangent, and every instruction maps the tangents of its operands through
+ * the chain rule. Inline arithmetic is differentiated inline; functions and registered operators
+ * supply their derivatives through {@link ScientificOperation#derivative} and
+ * {@link Operation#differentiate}. A derivative only enters the tangent where the tangent of its
+ * operand is not zero, so an infinite or unknown derivative at an operand that does not depend on
+ * the variables leaves the gradient alone. Shared subexpressions are stored and loaded with their
+ * tangents, so they are differentiated once.
+ *
+ * <p>The cost is that of evaluating the expression once per variable plus one, without the
+ * repeated interpretation and rounding trade-off of finite differences. An evaluator is not
+ * thread-safe; each thread gets its own from its {@link EvaluationContext}.
+ */
+final class GradientEvaluator {
+
+    private double[] frame = new double[0];
+    private final double[] partials = new double[2];
+
+    /**
+     * Evaluates a program and its gradient for one set of variable values.
+     *
+     * @param program       the program to run
+     * @param variableCount the number of variables to differentiate by
+     * @param variables     the variable values, indexed by variable number
+     * @param gradient      the array receiving the derivative by each variable
+     * @return the value of the expression
+     * @throws ArithmeticException      on division by zero
+     * @throws IllegalArgumentException if an operand is outside the domain of a function
+     */
+    double evaluate(ExpressionProgram program, int variableCount, double[] variables, double[] gradient) {
+        int stride = variableCount + 1;
+        int size = program.getFrameSize() * stride;
+        if (frame.length < size) {
+            frame = new double[Math.max(size, frame.length * 2)];
+        }
+        execute(program, stride, variables);
+        System.arraycopy(frame, 1, gradient, 0, variableCount);
+        return frame[0];
+    }
+
+    /**
+     * Evaluates a program and its gradient for a range of rows of columnar variable values.
+     * Row {@code i} binds variable {@code v} to {@code columns[v][i]}; its value is written to
+     * {@code values[i]} and its derivative by variable {@code v} to {@code gradients[v][i]}.
+     *
+     * @param program       the program to run
+     * @param variableCount the number of variables to differentiate by
+     * @param columns       the variable columns, indexed by variable number, each at least {@code to} long
+     * @param values        the array receiving one value per row
+     * @param gradients     the arrays receiving one derivative per row, indexed by variable number
+     * @param row           a buffer for the variable values of a row, at least {@code variableCount} long
+     * @param from          the first row, inclusive
+     * @param to            the last row, exclusive
+     * @throws ArithmeticException      on division by zero in any row
+     * @throws IllegalArgumentException if an operand is outside the domain of a function
+     */
+    void evaluate(ExpressionProgram program, int variableCount, double[][] columns, double[] values,
+                  double[][] gradients, double[] row, int from, int to) {
+        int stride = variableCount + 1;
+        int size = program.getFrameSize() * stride;
+        if (frame.length < size) {
+            frame = new double[Math.max(size, frame.length * 2)];
+        }
+        for (int i = from; i < to; i++) {
+            for (int v = 0; v < variableCount; v++) {
+                row[v] = columns[v][i];
+            }
+            execute(program, stride, row);
+            values[i] = frame[0];
+            for (int v = 0; v < variableCount; v++) {
+                gradients[v][i] = frame[1 + v];
+            }
+        }
+    }
+
+    /**
+     * Runs the program once, leaving the value and the tangent of the result in slot 0.
+     */
+    private void execute(ExpressionProgram program, int stride, double[] variables) {
+        int[] code = program.getCode();
+        double[] constants = program.getConstants();
+        ScientificOperation[] functions = program.getFunctions();
+        Operation[] operations = program.getOperations();
+        double[] frame = this.frame;
+        int locals = program.getMaxStackDepth() * stride;
+        int top = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case ExpressionProgram.CONSTANT:
+                    frame[top] = constants[code[pc++]];
+                    Arrays.fill(frame, top + 1, top + stride, 0);
+                    top += stride;
+                    break;
+                case ExpressionProgram.VARIABLE: {
+                    int variable = code[pc++];
+                    frame[top] = variables[variable];
+                    Arrays.fill(frame, top + 1, top + stride, 0);
+                    frame[top + 1 + variable] = 1;
+                    top += stride;
+                    break;
+                }
+                case ExpressionProgram.ADD: {
+                    top -= stride;
+                    int a = top - stride;
+                    for (int i = 0; i < stride; i++) {
+                        frame[a + i] += frame[top + i];
+                    }
+                    break;
+                }
+                case ExpressionProgram.SUBTRACT: {
+                    top -= stride;
+                    int a = top - stride;
+                    for (int i = 0; i < stride; i++) {
+                        frame[a + i] -= frame[top + i];
+                    }
+                    break;
+                }
+                case ExpressionProgram.MULTIPLY: {
+                    top -= stride;
+                    double x = frame[top - stride];
+                    double y = frame[top];
+                    frame[top - stride] = x * y;
+                    chain(frame, top - stride, top, stride, y, x);
+                    break;
+                }
+                case ExpressionProgram.DIVIDE: {
+                    top -= stride;
+                    double y = frame[top];
+                    double quotient = ExpressionProgram.divide(frame[top - stride], y);
+                    frame[top - stride] = quotient;
+                    chain(frame, top - stride, top, stride, 1 / y, -quotient / y);
+                    break;
+                }
+                case ExpressionProgram.POWER: {
+                    top -= stride;
+                    double x = frame[top - stride];
+                    double y = frame[top];
+                    double power = Math.pow(x, y);
+                    frame[top - stride] = power;
+                    double byBase = y == 0 ? 0 : y * Math.pow(x, y - 1);
+                    chain(frame, top - stride, top, stride, byBase, isConstant(frame, top, stride) ? 0 : power * Math.log(x));
+                    break;
+                }
+                case ExpressionProgram.NEGATE:
+                    for (int i = top - stride; i < top; i++) {
+                        frame[i] = -frame[i];
+                    }
+                    break;
+                case ExpressionProgram.CALL: {
+                    ScientificOperation function = functions[code[pc++]];
+                    int a = top - stride;
+                    double x = frame[a];
+                    frame[a] = function.apply(x);
+                    double derivative = function.derivative(x);
+                    if (Double.isFinite(derivative)) {
+                        for (int i = a + 1; i < top; i++) {
+                            frame[i] *= derivative;
+                        }
+                    } else {
+                        for (int i = a + 1; i < top; i++) {
+                            if (frame[i] != 0) {
+                                frame[i] *= derivative;
+                            }
+                        }
+                    }
+                    break;
+                }
+                case ExpressionProgram.APPLY: {
+                    Operation operation = operations[code[pc++]];
+                    top -= stride;
+                    double x = frame[top - stride];
+                    double y = frame[top];
+                    frame[top - stride] = operation.apply(x, y);
+                    operation.differentiate(x, y, partials);
+                    chain(frame, top - stride, top, stride, partials[0], partials[1]);
+                    break;
+                }
+                case ExpressionProgram.STORE:
+                    System.arraycopy(frame, top - stride, frame, locals + code[pc++] * stride, stride);
+                    break;
+                case ExpressionProgram.LOAD:
+                    System.arraycopy(frame, locals + code[pc++] * stride, frame, top, stride);
+                    top += stride;
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid opcode: " + code[pc - 1]);
+            }
+        }
+    }
+
+    /**
+     * Tells whether the value in a slot does not depend on any variable, as a constant exponent does.
+     */
+    private static boolean isConstant(double[] frame, int slot, int stride) {
+        for (int i = slot + 1; i < slot + stride; i++) {
+            if (frame[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Combines the tangents of two operands by the partial derivatives of a binary operation,
+     * leaving the result in the tangent of the first. An infinite or NaN partial derivative is
+     * ignored where the tangent it multiplies is zero.
+     *
+     * @param frame  the slots
+     * @param a      the slot of the first operand, whose value already holds the result
+     * @param b      the slot of the second operand
+     * @param stride the length of a slot
+     * @param da     the derivative by the first operand
+     * @param db     the derivative by the second operand
+     */
+    private static void chain(double[] frame, int a, int b, int stride, double da, double db) {
+        if (Double.isFinite(da) && Double.isFinite(db)) {
+            for (int i = 1; i < stride; i++) {
+                frame[a + i] = da * frame[a + i] + db * frame[b + i];
+            }
+            return;
+        }
+        for (int i = 1; i < stride; i++) {
+            double ta = frame[a + i];
+            double tb = frame[b + i];
+            frame[a + i] = (ta == 0 ? 0 : da * ta) + (tb == 0 ? 0 : db * tb);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for evaluating expressions together with their gradients.
+ */
+public class GradientTest {
+
+    /**
+     * Tests the gradients of the arithmetic operators and the standard functions against their
+     * derivatives worked out by hand.
+     */
+    @Test
+    public void testDerivatives() {
+        Calculator calculator = new Calculator();
+        double[] gradient = new double[2];
+        double value = calculator.compile("x*y+x/3-y*y*0.5+(x-y)*(x+y)").evaluateGradient(new double[]{2, 5}, gradient);
+        assertEquals(10 + 2.0 / 3 - 12.5 - 21, value, 1e-12);
+        assertEquals(5 + 1.0 / 3 + 4, gradient[0], 1e-12);
+        assertEquals(2 - 5 - 10, gradient[1], 1e-12);
+
+        calculator.compile("x^y").evaluateGradient(new double[]{2, 3}, gradient);
+        assertEquals(12, gradient[0], 1e-12);
+        assertEquals(8 * Math.log(2), gradient[1], 1e-12);
+
+        calculator.compile("(x+y)*(x+y)").evaluateGradient(new double[]{1, 2}, gradient);
+        assertEquals(6, gradient[0], 1e-12, "a shared subexpression should carry its derivatives");
+        assertEquals(6, gradient[1], 1e-12, "a shared subexpression should carry its derivatives");
+
+        assertEquals(0, derivative(calculator, "x^2", 0), "a constant exponent should not take the logarithm of the base");
+        assertEquals(Math.PI / 180 * Math.sqrt(3) / 2, derivative(calculator, "sin(x)", 30), 1e-15, "angles are in degrees");
+        assertEquals(-Math.PI / 180 / 2, derivative(calculator, "cos(x)", 30), 1e-15);
+        assertEquals(Math.PI / 180 * 2, derivative(calculator, "tan(x)", 45), 1e-15);
+        assertEquals(0.25, derivative(calculator, "log(x)", 4), 1e-15);
+        assertEquals(Math.exp(2), derivative(calculator, "exp(x)", 2), 1e-12);
+        assertEquals(0.25, derivative(calculator, "sqrt(x)", 4), 1e-15);
+        assertEquals(-1, derivative(calculator, "-x", 4));
+        assertEquals(-0.25, derivative(calculator, "1/x", 2), 1e-15);
+        assertEquals(6 * (1 + 1.0 / 2 + 1.0 / 3 - 0.5772156649015329), derivative(calculator, "x!", 3), 1e-12,
+                "the factorial should be differentiated as the gamma function");
+        assertEquals(derivative(calculator, "sin(x)", 30), derivative(new Calculator(16, 16), "sin(x)", 30),
+                "memoized functions should have the same derivatives");
+
+        CompiledExpression expression = calculator.compile("sqrt(x)*exp(y)/log(x)-x!");
+        double[] point = {2.5, 0.5};
+        expression.evaluateGradient(point, gradient);
+        for (int v = 0; v < 2; v++) {
+            double[] above = point.clone();
+            double[] below = point.clone();
+            above[v] += 1e-6;
+            below[v] -= 1e-6;
+            assertEquals((expression.evaluate(above) - expression.evaluate(below)) / 2e-6, gradient[v], 1e-6,
+                    "the gradient should agree with central differences");
+        }
+
+        assertThrows(ArithmeticException.class, () -> calculator.compile("1/x").evaluateGradient(new double[]{0}, new double[1]));
+        assertThrows(IllegalArgumentException.class, () -> calculator.compile("x*y").evaluateGradient(new double[]{1, 2}, new double[1]));
+    }
+
+    /**
+     * Tests that registered operators contribute their derivatives and that a function without a
+     * derivative only spoils the gradients that depend on it.
+     */
+    @Test
+    public void testRegisteredOperations() {
+        Operation hypotenuse = new Operation() {
+            @Override
+            public double apply(double a, double b) {
+                return Math.hypot(a, b);
+            }
+
+            @Override
+            public void differentiate(double a, double b, double[] partials) {
+                double length = Math.hypot(a, b);
+                partials[0] = a / length;
+                partials[1] = b / length;
+            }
+        };
+        OperatorRegistry operators = Calculator.standardOperators().toBuilder()
+                .binary("#", OperatorRegistry.MULTIPLICATIVE_PRECEDENCE, OperatorRegistry.Associativity.LEFT, hypotenuse)
+                .function("square", a -> a * a, false, null)
+                .build();
+        Calculator calculator = new Calculator(operators);
+        double[] gradient = new double[2];
+        assertEquals(5, calculator.compile("x#y").evaluateGradient(new double[]{3, 4}, gradient));
+        assertEquals(0.6, gradient[0], 1e-15);
+        assertEquals(0.8, gradient[1], 1e-15);
+
+        calculator.compile("square(x)+y").evaluateGradient(new double[]{3, 4}, gradient);
+        assertTrue(Double.isNaN(gradient[0]), "a function without a derivative should give a NaN derivative");
+        assertEquals(1, gradient[1], "derivatives not depending on the function should be kept");
+        assertEquals(1, derivative(calculator, "square(2)+x", 3), "a function of a constant should not need a derivative");
+    }
+
+    /**
+     * Tests that the columnar variant agrees with evaluating each row.
+     */
+    @Test
+    public void testColumns() {
+        CompiledExpression expression = new Calculator().compile("x*sin(y)+y^2/x");
+        int rows = 1000;
+        double[][] columns = new double[2][rows];
+        for (int i = 0; i < rows; i++) {
+            columns[0][i] = i + 1;
+            columns[1][i] = i * 0.37;
+        }
+        double[] values = new double[rows];
+        double[][] gradients = new double[2][rows];
+        expression.evaluateGradient(columns, values, gradients);
+        double[] gradient = new double[2];
+        for (int i = 0; i < rows; i++) {
+            assertEquals(expression.evaluateGradient(new double[]{columns[0][i], columns[1][i]}, gradient), values[i]);
+            assertEquals(gradient[0], gradients[0][i]);
+            assertEquals(gradient[1], gradients[1][i]);
+        }
+        assertThrows(IllegalArgumentException.class, () -> expression.evaluateGradient(columns, values, new double[1][rows]));
+        assertThrows(IllegalArgumentException.class, () -> expression.evaluateGradient(columns, values, new double[2][rows - 1]));
+    }
+
+    private static double derivative(Calculator calculator, String expression, double x) {
+        double[] gradient = new double[1];
+        calculator.compile(expression).evaluateGradient(new double[]{x}, gradient);
+        return gradient[0];
+    }
+}
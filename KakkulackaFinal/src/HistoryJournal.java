@@ -0,0 +1,413 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An append-only journal of calculation history in the text format of the calculator history,
+ * one {@code expression = result} entry per line.
+ *
+ * <p>Appending never waits for the disk: entries are queued to a background writer thread that
+ * drains everything queued so far and writes it with a single write and a single
+ * {@link FileChannel#force(boolean) force} (group commit). The queue is bounded, so a caller that
+ * outpaces the disk is eventually slowed down instead of exhausting memory.
+ *
+ * <p>The journal is a ring buffer on disk: it is split into {@link #SEGMENT_COUNT} segment files,
+ * the active file and its rotated predecessors {@code file.1}, {@code file.2} and so on. When the
+ * active file reaches its share of the entry or byte cap it is rotated and the oldest segment is
+ * dropped, so the journal keeps roughly the most recent entries up to the caps.
+ *
+ * <p>Entries are read lazily in pages, newest first, by reading the files backwards from their
+ * end, so opening a journal with millions of entries does not read them.
+ */
+public final class HistoryJournal implements AutoCloseable {
+
+    /**
+     * The number of segment files the journal is split into.
+     */
+    public static final int SEGMENT_COUNT = 4;
+
+    /**
+     * The number of entries kept unless configured otherwise.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1_000_000;
+
+    /**
+     * The number of bytes kept unless configured otherwise.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int READ_BLOCK_SIZE = 8192;
+    private static final String CLOSE = new String("close");
+
+    private final Path file;
+    private final long segmentEntries;
+    private final long segmentBytes;
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // Makes checking for the close and queueing an entry atomic with respect to close().
+    private final Object appendLock = new Object();
+    private final Object segmentLock = new Object();
+    private final Object progressLock = new Object();
+    private final Thread writer;
+    private FileChannel channel;
+    private long activeEntries = -1;
+    private long generation;
+    private long appendedCount;
+    private long writtenCount;
+    private boolean closed;
+    private volatile IOException failure;
+
+    /**
+     * Opens a journal with the default caps.
+     *
+     * @param file the active journal file; it is created if it does not exist
+     * @throws IOException if the file cannot be opened
+     */
+    public HistoryJournal(Path file) throws IOException {
+        this(file, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Opens a journal.
+     *
+     * @param file       the active journal file; it is created if it does not exist
+     * @param maxEntries the approximate number of entries to keep
+     * @param maxBytes   the approximate number of bytes to keep
+     * @throws IOException              if the file cannot be opened
+     * @throws IllegalArgumentException if a cap is smaller than the number of segments
+     */
+    public HistoryJournal(Path file, int maxEntries, long maxBytes) throws IOException {
+        if (maxEntries < SEGMENT_COUNT || maxBytes < SEGMENT_COUNT) {
+            throw new IllegalArgumentException("Caps must be at least " + SEGMENT_COUNT);
+        }
+        this.file = file;
+        this.segmentEntries = maxEntries / SEGMENT_COUNT;
+        this.segmentBytes = maxBytes / SEGMENT_COUNT;
+        this.channel = openActive();
+        writer = new Thread(this::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends an entry. The entry is written by the background writer; use {@link #flush()} to wait for it.
+     * Line breaks in the entry are replaced by spaces.
+     *
+     * @param entry the entry, e.g. {@code "2+2 = 4.0"}
+     * @throws IllegalStateException if the journal is closed
+     */
+    public void append(String entry) {
+        String line = entry.indexOf('\n') < 0 && entry.indexOf('\r') < 0 ? entry : entry.replace('\n', ' ').replace('\r', ' ');
+        synchronized (appendLock) {
+            if (closed) {
+                throw new IllegalStateException("History journal is closed");
+            }
+            synchronized (progressLock) {
+                appendedCount++;
+            }
+            try {
+                queue.put(line);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                synchronized (progressLock) {
+                    appendedCount--;
+                    progressLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until every entry appended so far is written and forced to the disk.
+     *
+     * @throws IOException if the writer failed to write an entry
+     */
+    public void flush() throws IOException {
+        synchronized (progressLock) {
+            long target = appendedCount;
+            while (writtenCount < target && failure == null) {
+                try {
+                    progressLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while flushing the history journal", e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Reads the newest entries.
+     *
+     * @param count the maximum number of entries to read
+     * @return the page of the newest entries
+     * @throws IOException if a segment cannot be read
+     */
+    public HistoryPage readLatest(int count) throws IOException {
+        synchronized (segmentLock) {
+            return read(0, -1, count);
+        }
+    }
+
+    /**
+     * Reads the entries that precede a page.
+     *
+     * @param page  a page read from this journal
+     * @param count the maximum number of entries to read
+     * @return the page of the entries just older than the given page, empty if there are none
+     * @throws IOException if a segment cannot be read
+     */
+    public HistoryPage readOlder(HistoryPage page, int count) throws IOException {
+        synchronized (segmentLock) {
+            int segment = (int) Math.min(SEGMENT_COUNT, page.segment + generation - page.generation);
+            if (page.offset > 0) {
+                return read(segment, page.offset, count);
+            }
+            return read(segment + 1, -1, count);
+        }
+    }
+
+    /**
+     * Writes the remaining entries and stops the writer. Entries appended afterwards are rejected.
+     *
+     * @throws IOException if the writer failed to write an entry
+     */
+    @Override
+    public void close() throws IOException {
+        boolean interrupted = false;
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // The writer keeps draining, so a full queue makes room for the marker.
+            while (true) {
+                try {
+                    queue.put(CLOSE);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (segmentLock) {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Drains the queue in batches and writes each batch at once.
+     */
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch);
+            int count = batch.size();
+            if (batch.get(count - 1) == CLOSE) {
+                running = false;
+                count--;
+            }
+            if (failure == null && count > 0) {
+                try {
+                    write(batch, count);
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new IOException("Cannot write the history journal", e);
+                }
+            }
+            synchronized (progressLock) {
+                writtenCount += count;
+                progressLock.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes a batch of entries to the active segment, rotating it first if it is full.
+     */
+    private void write(List<String> batch, int count) throws IOException {
+        StringBuilder text = new StringBuilder(count * 32);
+        for (int i = 0; i < count; i++) {
+            text.append(batch.get(i)).append('\n');
+        }
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(text.toString());
+        FileChannel target;
+        synchronized (segmentLock) {
+            if (activeEntries < 0) {
+                activeEntries = countLines(file);
+            }
+            if (activeEntries >= segmentEntries || channel.size() >= segmentBytes) {
+                rotate();
+            }
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            activeEntries += count;
+            target = channel;
+        }
+        target.force(false);
+    }
+
+    /**
+     * Shifts every segment to the next older name, dropping the oldest, and starts a new active file.
+     */
+    private void rotate() throws IOException {
+        channel.close();
+        for (int segment = SEGMENT_COUNT - 1; segment > 0; segment--) {
+            Path source = segmentPath(segment - 1);
+            if (Files.exists(source)) {
+                Files.move(source, segmentPath(segment), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        channel = openActive();
+        activeEntries = 0;
+        generation++;
+    }
+
+    private FileChannel openActive() throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path segmentPath(int segment) {
+        return segment == 0 ? file : file.resolveSibling(file.getFileName() + "." + segment);
+    }
+
+    /**
+     * Reads up to a number of entries ending at an offset of a segment, continuing into older segments if needed.
+     *
+     * @param segment the segment to start in
+     * @param end     the offset after the last entry to read, or -1 for the end of the segment
+     * @param count   the maximum number of entries
+     * @return the page
+     */
+    private HistoryPage read(int segment, long end, int count) throws IOException {
+        ArrayDeque<String> entries = new ArrayDeque<>();
+        while (segment < SEGMENT_COUNT && Files.exists(segmentPath(segment))) {
+            try (FileChannel input = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                end = readBackwards(input, end < 0 ? input.size() : end, count - entries.size(), entries);
+            }
+            if (entries.size() == count || end > 0) {
+                break;
+            }
+            segment++;
+            end = -1;
+        }
+        boolean older = end > 0 || segment + 1 < SEGMENT_COUNT && Files.exists(segmentPath(segment + 1));
+        return new HistoryPage(new ArrayList<>(entries), older, Math.min(segment, SEGMENT_COUNT - 1), Math.max(end, 0), generation);
+    }
+
+    /**
+     * Reads lines backwards from an offset, adding them in front of the given entries.
+     *
+     * @param input the segment
+     * @param end   the offset after the last line to read
+     * @param count the maximum number of lines to read
+     * @return the offset of the first line read, 0 once the start of the segment is reached
+     */
+    private static long readBackwards(FileChannel input, long end, int count, ArrayDeque<String> entries) throws IOException {
+        long position = end;
+        byte[] carry = new byte[0];
+        // A segment whose last line lacks its line break still counts that line.
+        boolean terminated = end == 0 || readByte(input, end - 1) == '\n';
+        while (count > 0 && position > 0) {
+            int size = (int) Math.min(READ_BLOCK_SIZE, position);
+            byte[] block = new byte[size + carry.length];
+            ByteBuffer buffer = ByteBuffer.wrap(block, 0, size);
+            while (buffer.hasRemaining()) {
+                input.read(buffer, position - size + buffer.position());
+            }
+            System.arraycopy(carry, 0, block, size, carry.length);
+            position -= size;
+
+            int lineEnd = block.length;
+            int terminator = terminated ? 1 : 0;
+            for (int i = lineEnd - 1 - terminator; i >= 0 && count > 0; i--) {
+                if (block[i] == '\n') {
+                    entries.addFirst(decode(block, i + 1, lineEnd - terminator));
+                    count--;
+                    lineEnd = i + 1;
+                    terminator = 1;
+                }
+            }
+            if (count == 0) {
+                return position + lineEnd;
+            }
+            terminated = terminator == 1;
+            carry = Arrays.copyOf(block, lineEnd);
+            if (position == 0 && lineEnd > 0) {
+                entries.addFirst(decode(block, 0, lineEnd - terminator));
+                return 0;
+            }
+        }
+        return position;
+    }
+
+    private static byte readByte(FileChannel input, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        input.read(buffer, position);
+        return buffer.get(0);
+    }
+
+    private static String decode(byte[] bytes, int start, int end) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Counts the entries of the active segment, which the writer does once before its first write.
+     */
+    private static long countLines(Path file) throws IOException {
+        byte[] block = new byte[READ_BLOCK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        long lines = 0;
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (block[i] == '\n') {
+                        lines++;
+                    }
+                }
+                buffer.clear();
+            }
+        }
+        return lines;
+    }
+}
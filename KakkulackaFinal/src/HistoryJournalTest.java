@@ -0,0 +1,143 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the asynchronous history journal.
+ */
+public class HistoryJournalTest {
+
+    /**
+     * Tests that appended entries are written by the background writer and read back in pages, newest first.
+     */
+    @Test
+    public void testAppendAndPage() throws IOException {
+        Path directory = Files.createTempDirectory("history");
+        try {
+            Path file = directory.resolve("history.txt");
+            try (HistoryJournal journal = new HistoryJournal(file)) {
+                for (int i = 0; i < 25; i++) {
+                    journal.append(i + "+0 = " + i + ".0");
+                }
+                journal.flush();
+                assertEquals(25, Files.readAllLines(file).size(), "flush should write every entry");
+
+                HistoryPage page = journal.readLatest(10);
+                assertEquals(entries(15, 25), page.getEntries(), "the newest page should hold the last entries");
+                assertTrue(page.hasOlder(), "older entries should remain");
+                page = journal.readOlder(journal.readOlder(page, 10), 10);
+                assertEquals(entries(0, 5), page.getEntries(), "the oldest page should hold the rest");
+                assertFalse(page.hasOlder(), "the oldest page should be the last");
+            }
+            try (HistoryJournal journal = new HistoryJournal(file)) {
+                journal.append("multi\nline = 1.0");
+                journal.flush();
+                assertEquals(Arrays.asList("24+0 = 24.0", "multi line = 1.0"), journal.readLatest(2).getEntries(),
+                        "a reopened journal should append after the existing entries");
+            }
+            HistoryJournal closed = new HistoryJournal(file);
+            closed.close();
+            assertThrows(IllegalStateException.class, () -> closed.append("1 = 1.0"));
+            assertThrows(IllegalArgumentException.class, () -> new HistoryJournal(file, 2, 1024));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Tests that a full journal rotates its segments, drops the oldest entries and still pages across segments.
+     */
+    @Test
+    public void testRotation() throws IOException {
+        Path directory = Files.createTempDirectory("history");
+        try {
+            Path file = directory.resolve("history.txt");
+            try (HistoryJournal journal = new HistoryJournal(file, 40, 1 << 20)) {
+                for (int i = 0; i < 100; i++) {
+                    journal.append(i + "+0 = " + i + ".0");
+                    journal.flush();
+                }
+
+                List<String> all = new ArrayList<>();
+                HistoryPage page = journal.readLatest(6);
+                all.addAll(0, page.getEntries());
+                while (page.hasOlder()) {
+                    page = journal.readOlder(page, 6);
+                    all.addAll(0, page.getEntries());
+                }
+                assertTrue(all.size() >= 30 && all.size() <= 40, "the journal should keep about its cap, kept " + all.size());
+                assertEquals(entries(100 - all.size(), 100), all, "the journal should keep the newest entries in order");
+                assertTrue(Files.exists(directory.resolve("history.txt." + (HistoryJournal.SEGMENT_COUNT - 1))),
+                        "full segments should be rotated");
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Tests that closing while other threads append keeps every accepted entry and rejects the rest.
+     */
+    @Test
+    public void testCloseWhileAppending() throws Exception {
+        Path directory = Files.createTempDirectory("history");
+        try {
+            Path file = directory.resolve("history.txt");
+            HistoryJournal journal = new HistoryJournal(file, Integer.MAX_VALUE, Long.MAX_VALUE);
+            Thread[] threads = new Thread[4];
+            long[] accepted = new long[threads.length];
+            for (int t = 0; t < threads.length; t++) {
+                int index = t;
+                threads[t] = new Thread(() -> {
+                    try {
+                        while (true) {
+                            journal.append(index + " = " + accepted[index]);
+                            accepted[index]++;
+                        }
+                    } catch (IllegalStateException e) {
+                        // Closed.
+                    }
+                });
+                threads[t].start();
+            }
+            Thread.sleep(50);
+            journal.close();
+            long total = 0;
+            for (int t = 0; t < threads.length; t++) {
+                threads[t].join();
+                total += accepted[t];
+            }
+            journal.flush();
+            assertTrue(total > 0, "entries should have been appended before the close");
+            assertEquals(total, Files.readAllLines(file).size(), "every accepted entry should be written");
+            assertFalse(Files.readAllLines(file).contains("close"), "the close marker should not be written");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static List<String> entries(int from, int to) {
+        List<String> entries = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            entries.add(i + "+0 = " + i + ".0");
+        }
+        return entries;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+}
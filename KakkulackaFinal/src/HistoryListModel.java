@@ -0,0 +1,82 @@
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The lines shown in the output list of the {@link CalculatorGUI}: pages of older entries read
+ * from the {@link HistoryJournal}, followed by the lines of the current session.
+ *
+ * <p>Older pages are added in front of the list as the user scrolls back, and session lines at
+ * its end. Both are kept in array lists, the older entries newest first, so adding a page or a
+ * line costs its own length and looking up a row costs constant time however long the history
+ * is; together with a list of fixed cell height, only the visible rows are ever rendered.
+ * Like every Swing model, it is used on the event dispatch thread only.
+ */
+final class HistoryListModel extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> olderEntries = new ArrayList<>();
+    private final List<String> sessionLines = new ArrayList<>();
+    private boolean older;
+
+    @Override
+    public int getSize() {
+        return olderEntries.size() + sessionLines.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        int olderCount = olderEntries.size();
+        return index < olderCount ? olderEntries.get(olderCount - 1 - index) : sessionLines.get(index - olderCount);
+    }
+
+    /**
+     * Adds a line at the end.
+     *
+     * @param line the line, e.g. {@code "2+2 = 4.0"}
+     */
+    void add(String line) {
+        sessionLines.add(line);
+        int index = getSize() - 1;
+        fireIntervalAdded(this, index, index);
+    }
+
+    /**
+     * Adds a page of older entries in front of the list.
+     *
+     * @param page the page, read from the journal just before the entries already shown
+     */
+    void addOlder(HistoryPage page) {
+        List<String> entries = page.getEntries();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            olderEntries.add(entries.get(i));
+        }
+        older = page.hasOlder();
+        if (!entries.isEmpty()) {
+            fireIntervalAdded(this, 0, entries.size() - 1);
+        }
+    }
+
+    /**
+     * Tells whether the journal holds entries older than those shown.
+     *
+     * @return true if the last page added has an older page
+     */
+    boolean hasOlder() {
+        return older;
+    }
+
+    /**
+     * Removes every line.
+     */
+    void clear() {
+        int size = getSize();
+        olderEntries.clear();
+        sessionLines.clear();
+        older = false;
+        if (size > 0) {
+            fireIntervalRemoved(this, 0, size - 1);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import org.junit.jupiter.api.Test;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the list model of the calculator output.
+ */
+public class HistoryListModelTest {
+
+    /**
+     * Tests that older pages go in front of the session lines in order, and that listeners are told
+     * exactly which rows changed.
+     */
+    @Test
+    public void testPages() {
+        HistoryListModel model = new HistoryListModel();
+        List<String> events = new ArrayList<>();
+        model.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                events.add("added " + e.getIndex0() + "-" + e.getIndex1());
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+                events.add("removed " + e.getIndex0() + "-" + e.getIndex1());
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+                fail("rows should only be added or removed");
+            }
+        });
+
+        model.add("3 = 3.0");
+        model.addOlder(page(true, "1 = 1.0", "2 = 2.0"));
+        assertTrue(model.hasOlder());
+        model.addOlder(page(false, "0 = 0.0"));
+        assertFalse(model.hasOlder());
+        model.add("Error: Invalid expression");
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < model.getSize(); i++) {
+            rows.add(model.getElementAt(i));
+        }
+        assertEquals(Arrays.asList("0 = 0.0", "1 = 1.0", "2 = 2.0", "3 = 3.0", "Error: Invalid expression"), rows);
+
+        model.clear();
+        assertEquals(0, model.getSize());
+        model.clear();
+        assertEquals(Arrays.asList("added 0-0", "added 0-1", "added 0-0", "added 4-4", "removed 0-4"), events);
+    }
+
+    private static HistoryPage page(boolean older, String... entries) {
+        return new HistoryPage(Arrays.asList(entries), older, 0, 0, 0);
+    }
+}
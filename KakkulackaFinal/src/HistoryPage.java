@@ -0,0 +1,42 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of history entries read from a {@link HistoryJournal}, newest pages first.
+ * A page remembers where it started, so the next older page can be read with
+ * {@link HistoryJournal#readOlder(HistoryPage, int)} without reading the rest of the journal.
+ */
+public final class HistoryPage {
+
+    private final List<String> entries;
+    private final boolean older;
+    final int segment;
+    final long offset;
+    final long generation;
+
+    HistoryPage(List<String> entries, boolean older, int segment, long offset, long generation) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.older = older;
+        this.segment = segment;
+        this.offset = offset;
+        this.generation = generation;
+    }
+
+    /**
+     * Gets the entries of the page.
+     *
+     * @return the entries, oldest first
+     */
+    public List<String> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Tells whether the journal holds entries older than this page.
+     *
+     * @return true if there is an older page
+     */
+    public boolean hasOlder() {
+        return older;
+    }
+}
@@ -0,0 +1,371 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * A scientific operation that remembers the results of another one, for workloads where the same
+ * arguments recur, such as a fixed set of angles.
+ *
+ * <p>Results are kept in open-addressing hash tables of primitive {@code double} keys and values,
+ * so a lookup neither boxes nor allocates. The cache is split into stripes chosen by the hash of
+ * the argument, each with its own {@link StampedLock}: lookups are optimistic reads that take no
+ * lock unless an insertion into the same stripe interferes, and insertions only lock their stripe,
+ * so threads never contend on a global lock. When a stripe is full, an entry is evicted with the
+ * CLOCK (second chance) policy, as in {@link ExpressionCache}. Arguments are compared by their bits,
+ * so {@code -0.0} and {@code 0.0} are distinct keys.
+ *
+ * <p>Operations that throw for an argument are not memoized for it; the exception is thrown on
+ * every call.
+ */
+public final class MemoizingOperation implements ScientificOperation {
+
+    /**
+     * The number of stripes used unless configured otherwise.
+     */
+    public static final int DEFAULT_STRIPE_COUNT = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+
+    private final ScientificOperation delegate;
+    private final int capacity;
+    private final Stripe[] stripes;
+    private final int stripeBits;
+    private final LongAdder hitCount = new LongAdder();
+
+    /**
+     * Constructs a memoizing operation with the default number of stripes.
+     *
+     * @param delegate the operation computing the results
+     * @param capacity the maximum number of results to remember
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public MemoizingOperation(ScientificOperation delegate, int capacity) {
+        this(delegate, capacity, DEFAULT_STRIPE_COUNT);
+    }
+
+    /**
+     * Constructs a memoizing operation.
+     *
+     * @param delegate    the operation computing the results
+     * @param capacity    the maximum number of results to remember
+     * @param stripeCount the number of independently locked parts, rounded up to a power of two and
+     *                    reduced so each stripe holds at least one result
+     * @throws IllegalArgumentException if the capacity or the stripe count is not positive
+     */
+    public MemoizingOperation(ScientificOperation delegate, int capacity, int stripeCount) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("Stripe count must be positive");
+        }
+        this.delegate = delegate;
+        this.capacity = capacity;
+        int stripes = Math.min(Integer.highestOneBit(capacity), stripeCount == 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1);
+        this.stripes = new Stripe[stripes];
+        this.stripeBits = Integer.numberOfTrailingZeros(stripes);
+        int stripeCapacity = (capacity + stripes - 1) / stripes;
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    /**
+     * Returns the remembered result for the operand, or computes and remembers it.
+     *
+     * @param a the operand
+     * @return the result of the wrapped operation
+     */
+    @Override
+    public double apply(double a) {
+        long key = Double.doubleToRawLongBits(a);
+        int hash = hash(key);
+        Stripe stripe = stripes[stripe(hash)];
+        int home = hash;
+
+        long stamp = stripe.lock.tryOptimisticRead();
+        int slot = stripe.indexOf(key, home);
+        double value = slot >= 0 ? stripe.values[slot] : 0;
+        if (!stripe.lock.validate(stamp)) {
+            stamp = stripe.lock.readLock();
+            try {
+                slot = stripe.indexOf(key, home);
+                value = slot >= 0 ? stripe.values[slot] : 0;
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        if (slot >= 0) {
+            // The bit only guides eviction, so a racing write that marks a moved slot is harmless.
+            stripe.referenced[slot] = true;
+            hitCount.increment();
+            return value;
+        }
+
+        double result = delegate.apply(a);
+        stamp = stripe.lock.writeLock();
+        try {
+            // Misses take the stripe lock anyway, so they are counted under it rather than with another atomic update.
+            stripe.missCount++;
+            stripe.put(key, home, result);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+        return result;
+    }
+
+    @Override
+    public CalculationError check(double a) {
+        return delegate.check(a);
+    }
+
+    /**
+     * Computes the derivative with the wrapped operation; derivatives are not memoized.
+     *
+     * @param a the operand
+     * @return the derivative of the wrapped operation
+     */
+    @Override
+    public double derivative(double a) {
+        return delegate.derivative(a);
+    }
+
+    /**
+     * Gets the wrapped operation.
+     *
+     * @return the operation computing the results
+     */
+    public ScientificOperation getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Forgets all remembered results. The counters are kept.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.writeLock();
+            try {
+                stripe.clear();
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of remembered results.
+     *
+     * @return the number of results
+     */
+    public int size() {
+        return (int) sum(stripe -> stripe.size);
+    }
+
+    /**
+     * Gets the maximum number of remembered results.
+     *
+     * @return the cache capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of calls answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * Gets the number of calls computed by the wrapped operation.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return sum(stripe -> stripe.missCount);
+    }
+
+    /**
+     * Gets the number of results forgotten to respect the capacity.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return sum(stripe -> stripe.evictionCount);
+    }
+
+    /**
+     * Gets the share of calls answered from the cache.
+     *
+     * @return the hit ratio between 0 and 1, or 0 before the first call
+     */
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long calls = hits + getMissCount();
+        return calls == 0 ? 0 : (double) hits / calls;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoizingOperation[size=" + size() + ", capacity=" + capacity + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    /**
+     * Adds up a counter of every stripe, reading each under its lock.
+     */
+    private long sum(ToLongFunction<Stripe> counter) {
+        long sum = 0;
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                sum += counter.applyAsLong(stripe);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Mixes the bits of an argument with the MurmurHash3 finalizer. Arguments often differ only in a
+     * few mantissa or exponent bits, and both the stripe and the slot need every bit of the hash to
+     * depend on all of them.
+     */
+    private static int hash(long key) {
+        long h = key ^ key >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return (int) (h ^ h >>> 33);
+    }
+
+    /**
+     * Chooses the stripe of a hash from its top bits; the table slot is taken from its low bits.
+     */
+    private int stripe(int hash) {
+        return stripeBits == 0 ? 0 : hash >>> (Integer.SIZE - stripeBits);
+    }
+
+    /**
+     * One part of the cache: a linear-probing table at most half full, with a CLOCK hand over its slots.
+     * Its lock guards every other field except the reference bits.
+     */
+    private final class Stripe {
+        final StampedLock lock = new StampedLock();
+        final int capacity;
+        final int mask;
+        final long[] keys;
+        final double[] values;
+        final boolean[] occupied;
+        final boolean[] referenced;
+        int size;
+        long missCount;
+        long evictionCount;
+        int hand;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            int length = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+            this.mask = length - 1;
+            this.keys = new long[length];
+            this.values = new double[length];
+            this.occupied = new boolean[length];
+            this.referenced = new boolean[length];
+        }
+
+        /**
+         * Finds the slot of a key. The probe is bounded, so it ends even if an optimistic reader
+         * sees the table while it changes.
+         *
+         * @return the slot, or -1 if the key is absent
+         */
+        int indexOf(long key, int home) {
+            for (int probe = 0, slot = home & mask; probe <= mask; probe++, slot = (slot + 1) & mask) {
+                if (!occupied[slot]) {
+                    return -1;
+                }
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Stores a result, evicting one if the stripe is full.
+         */
+        void put(long key, int home, double value) {
+            int slot = indexOf(key, home);
+            if (slot >= 0) {
+                values[slot] = value;
+                return;
+            }
+            if (size == capacity) {
+                evict();
+                evictionCount++;
+            }
+            slot = home & mask;
+            while (occupied[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            referenced[slot] = false;
+            occupied[slot] = true;
+            size++;
+        }
+
+        /**
+         * Advances the hand to the first entry not referenced since the last sweep and removes it.
+         */
+        private void evict() {
+            while (true) {
+                int slot = hand;
+                hand = (hand + 1) & mask;
+                if (!occupied[slot]) {
+                    continue;
+                }
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                    continue;
+                }
+                remove(slot);
+                return;
+            }
+        }
+
+        /**
+         * Removes the entry of a slot and shifts back the entries that probed past it, so lookups
+         * never need tombstones.
+         */
+        private void remove(int slot) {
+            int hole = slot;
+            occupied[hole] = false;
+            size--;
+            for (int next = (hole + 1) & mask; occupied[next]; next = (next + 1) & mask) {
+                int home = hash(keys[next]) & mask;
+                boolean reachable = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (reachable) {
+                    continue;
+                }
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                referenced[hole] = referenced[next];
+                occupied[hole] = true;
+                occupied[next] = false;
+                hole = next;
+            }
+        }
+
+        void clear() {
+            Arrays.fill(occupied, false);
+            Arrays.fill(referenced, false);
+            size = 0;
+            hand = 0;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for memoizing scientific operations.
+ */
+public class MemoizingOperationTest {
+
+    /**
+     * Tests that remembered results equal computed ones, bit for bit, and that repeated arguments are hits.
+     */
+    @Test
+    public void testMemoization() {
+        AtomicLong calls = new AtomicLong();
+        ScientificOperation sine = a -> {
+            calls.incrementAndGet();
+            return Math.sin(a);
+        };
+        MemoizingOperation memoized = new MemoizingOperation(sine, 64);
+        double[] arguments = {0.0, -0.0, 1.5, Double.NaN, Double.POSITIVE_INFINITY, 1e300};
+        for (int round = 0; round < 3; round++) {
+            for (double argument : arguments) {
+                assertEquals(Double.doubleToRawLongBits(Math.sin(argument)), Double.doubleToRawLongBits(memoized.apply(argument)),
+                        "sin(" + argument + ") should be remembered exactly");
+            }
+        }
+        assertEquals(arguments.length, calls.get(), "each argument should be computed once");
+        assertEquals(arguments.length, memoized.size(), "-0.0 and 0.0 should be distinct keys");
+        assertEquals(2 * arguments.length, memoized.getHitCount(), "later rounds should hit");
+        assertEquals(2.0 / 3, memoized.getHitRatio(), 1e-12, "two calls in three should hit");
+
+        memoized.clear();
+        memoized.apply(1.5);
+        assertEquals(arguments.length + 1, calls.get(), "a cleared cache should recompute");
+        assertThrows(IllegalArgumentException.class, () -> new MemoizingOperation(sine, 0));
+    }
+
+    /**
+     * Tests that a full cache evicts down to its capacity, keeps recently used results and still answers correctly.
+     */
+    @Test
+    public void testEviction() {
+        AtomicLong calls = new AtomicLong();
+        MemoizingOperation memoized = new MemoizingOperation(a -> {
+            calls.incrementAndGet();
+            return a * 2;
+        }, 100, 1);
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i * 2.0, memoized.apply(i), "every result should be correct");
+            assertEquals(14.0, memoized.apply(7), "a result used all the time should be correct");
+            assertTrue(memoized.size() <= 100, "the cache should respect its capacity");
+        }
+        assertEquals(10_000, calls.get(), "a result used all the time should never be evicted");
+        assertEquals(100, memoized.size(), "a full cache should stay full");
+        assertEquals(10_000 - 100, memoized.getEvictionCount(), "each new argument beyond the capacity should evict one");
+        for (int i = 9_990; i < 10_000; i++) {
+            assertEquals(i * 2.0, memoized.apply(i), "results should survive the shifts of removal");
+        }
+    }
+
+    /**
+     * Tests that threads sharing one cache, with inserts and evictions racing with lookups, always get correct results.
+     */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        MemoizingOperation memoized = new MemoizingOperation(Math::cbrt, 256, 4);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        AtomicInteger mismatches = new AtomicInteger();
+        Future<?>[] workers = new Future<?>[8];
+        for (int t = 0; t < workers.length; t++) {
+            int seed = t;
+            workers[t] = executor.submit(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    double argument = (i * 31 + seed) % 1000;
+                    if (memoized.apply(argument) != Math.cbrt(argument)) {
+                        mismatches.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        executor.shutdown();
+        assertEquals(0, mismatches.get(), "no lookup should return another argument's result");
+        assertEquals(400_000, memoized.getHitCount() + memoized.getMissCount(), "every call should be counted");
+    }
+
+    /**
+     * Tests that a calculator memoizes the functions it is asked to and keeps its results and errors.
+     */
+    @Test
+    public void testCalculatorFunctionCaches() {
+        Calculator calculator = new Calculator(Calculator.DEFAULT_CACHE_CAPACITY, 1024);
+        assertEquals(Calculator.DEFAULT_MEMOIZED_FUNCTIONS, calculator.getFunctionCaches().keySet(),
+                "the software-computed functions should be memoized by default");
+        CompiledExpression expression = calculator.compile("sin(x)+cos(x)");
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1.0, expression.evaluate(new double[]{90}), 1e-12, "sin(90)+cos(90) should be 1");
+        }
+        assertEquals(9, calculator.getFunctionCaches().get("sin").getHitCount(), "repeated arguments should hit");
+        assertEquals(120.0, calculator.calculate("5!"), "memoized factorial should compute");
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("(0-1)!"));
+        assertFalse(calculator.tryCalculate("(0-1)!").isSuccessful(), "memoized factorial should still check its domain");
+
+        assertTrue(new Calculator().getFunctionCaches().isEmpty(), "memoization should be opt-in");
+        assertThrows(IllegalArgumentException.class,
+                () -> new Calculator(16, 16, Collections.singleton("cosh")));
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link CalculatorListener} that keeps metrics in memory: a latency histogram of successful
+ * evaluations, the number of times each operator and function occurred in evaluated expressions,
+ * and the number of failed evaluations and rejected expressions. The metrics can be read or dumped at any time.
+ */
+public class MetricsRecorder implements CalculatorListener {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Map<String, LongAdder> operatorCounts = new ConcurrentHashMap<>();
+    private final LongAdder evaluationFailures = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+
+    @Override
+    public void expressionEvaluated(CompiledExpression expression, long elapsedNanos) {
+        latency.record(elapsedNanos);
+        for (int i = 0; i < expression.getOperatorKindCount(); i++) {
+            operatorCounts.computeIfAbsent(expression.getOperatorSymbol(i), symbol -> new LongAdder())
+                    .add(expression.getOperatorOccurrences(i));
+        }
+    }
+
+    @Override
+    public void evaluationFailed(CompiledExpression expression, RuntimeException failure) {
+        evaluationFailures.increment();
+    }
+
+    @Override
+    public void evaluationFailed(CompiledExpression expression, CalculationError error) {
+        evaluationFailures.increment();
+    }
+
+    @Override
+    public void validationFailed(String expression, String reason) {
+        validationFailures.increment();
+    }
+
+    /**
+     * Gets the histogram of evaluation latencies in nanoseconds.
+     *
+     * @return the latency histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Gets the number of times an operator or function occurred in evaluated expressions, as written before optimization.
+     *
+     * @param symbol the operator symbol or function name, e.g. "+" or "sin"
+     * @return the number of evaluations
+     */
+    public long getOperatorCount(String symbol) {
+        LongAdder count = operatorCounts.get(symbol);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Gets the number of evaluations that failed, e.g. on division by zero.
+     *
+     * @return the number of failed evaluations
+     */
+    public long getEvaluationFailureCount() {
+        return evaluationFailures.sum();
+    }
+
+    /**
+     * Gets the number of expressions rejected as invalid.
+     *
+     * @return the number of validation failures
+     */
+    public long getValidationFailureCount() {
+        return validationFailures.sum();
+    }
+
+    /**
+     * Clears all metrics.
+     */
+    public void reset() {
+        latency.reset();
+        operatorCounts.clear();
+        evaluationFailures.reset();
+        validationFailures.reset();
+    }
+
+    /**
+     * Prints all metrics.
+     *
+     * @param out the stream to print to
+     */
+    public void dump(PrintStream out) {
+        out.println("Evaluation latency:");
+        latency.dump(out, "ns");
+        out.println("Operator evaluations:");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(operatorCounts).entrySet()) {
+            out.printf("  %-6s %d%n", entry.getKey(), entry.getValue().sum());
+        }
+        out.println("Evaluation failures: " + getEvaluationFailureCount());
+        out.println("Validation failures: " + getValidationFailureCount());
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * The number representations a precise evaluation can run in, from the cheapest to the most exact.
+ * An evaluation starts in the cheapest tier and moves to the next one only when the error bound
+ * of its result does not guarantee the requested number of digits.
+ *
+ * @see CompiledExpression#evaluate(double[], java.math.MathContext)
+ */
+public enum NumericTier {
+
+    /**
+     * IEEE-754 doubles, with about 16 significant digits.
+     */
+    DOUBLE,
+
+    /**
+     * Unevaluated sums of two doubles, with about 32 significant digits.
+     */
+    DOUBLE_DOUBLE,
+
+    /**
+     * Exact fractions of {@link java.math.BigDecimal}s, rounded once at the end.
+     */
+    DECIMAL
+}
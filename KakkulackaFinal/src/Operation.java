@@ -10,4 +10,45 @@ public interface Operation {
      * @return the result of the operation
      */
     double apply(double a, double b);
+
+    /**
+     * Checks without throwing whether {@link #apply(double, double)} accepts two operands.
+     * Operations that throw for some operands override this to report the same cases.
+     *
+     * @param a the first operand
+     * @param b the second operand
+     * @return the error applying the operation would raise, or null if it succeeds
+     */
+    default CalculationError check(double a, double b) {
+        return null;
+    }
+
+    /**
+     * Computes the partial derivatives of the operation at two operands, for the gradients of
+     * {@link CompiledExpression#evaluateGradient(double[], double[])}. Operations without
+     * derivatives keep the default, which makes the gradient NaN wherever it depends on them.
+     *
+     * @param a        the first operand
+     * @param b        the second operand
+     * @param partials the array receiving the derivative by the first operand at index 0 and by the second at index 1
+     */
+    default void differentiate(double a, double b, double[] partials) {
+        partials[0] = Double.NaN;
+        partials[1] = Double.NaN;
+    }
+
+    /**
+     * Applies the operation to a range of operand pairs, element by element. Operations with a
+     * faster bulk form override this; the results array may be one of the operand arrays.
+     *
+     * @param a       the first operands
+     * @param b       the second operands
+     * @param results the array receiving the results
+     * @param length  the number of elements, starting at index 0
+     */
+    default void applyAll(double[] a, double[] b, double[] results, int length) {
+        for (int i = 0; i < length; i++) {
+            results[i] = apply(a[i], b[i]);
+        }
+    }
 }
@@ -0,0 +1,712 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * The operators and functions a {@link Calculator} understands, each declared once with its
+ * symbol, arity, precedence, associativity and purity, and optionally a vectorized implementation
+ * used when an expression is evaluated over columns.
+ *
+ * <p>Operators are single ASCII characters and are binary, prefix or postfix; the same character
+ * may be both a binary and a prefix operator, as {@code -} is. Functions are names of ASCII letters,
+ * matched ignoring case, and apply to the operand that follows them. Operators with a higher
+ * precedence bind tighter; binary operators of equal precedence group by their associativity,
+ * and a postfix operator binds tighter than a prefix operator of equal precedence. The standard
+ * table, {@link Calculator#standardOperators()}, uses:
+ * <table>
+ *     <caption>Standard precedences</caption>
+ *     <tr><td>{@code + -}</td><td>{@value #ADDITIVE_PRECEDENCE}, left-associative</td></tr>
+ *     <tr><td>{@code * /}</td><td>{@value #MULTIPLICATIVE_PRECEDENCE}, left-associative</td></tr>
+ *     <tr><td>unary {@code -}</td><td>{@value #NEGATION_PRECEDENCE}</td></tr>
+ *     <tr><td>{@code ^}</td><td>{@value #POWER_PRECEDENCE}, right-associative</td></tr>
+ *     <tr><td>{@code !}</td><td>{@value #FACTORIAL_PRECEDENCE}</td></tr>
+ *     <tr><td>functions</td><td>{@value #FUNCTION_PRECEDENCE}</td></tr>
+ * </table>
+ * so {@code -2^2} is -4, {@code 2^3^2} is 512 and {@code sin x^2} is {@code (sin x)^2}.
+ *
+ * <p>A registry is immutable. The lookup tables used by the tokenizer and the parser, a trie of
+ * the function names and a table indexed by operator character, are built once by
+ * {@link Builder#build()}, so finding a function costs one step per letter however many are registered.
+ */
+public final class OperatorRegistry {
+
+    /**
+     * The precedence of the standard addition and subtraction.
+     */
+    public static final int ADDITIVE_PRECEDENCE = 1;
+
+    /**
+     * The precedence of the standard multiplication and division.
+     */
+    public static final int MULTIPLICATIVE_PRECEDENCE = 2;
+
+    /**
+     * The precedence of the standard unary minus.
+     */
+    public static final int NEGATION_PRECEDENCE = 3;
+
+    /**
+     * The precedence of the standard power.
+     */
+    public static final int POWER_PRECEDENCE = 4;
+
+    /**
+     * The precedence of the standard factorial.
+     */
+    public static final int FACTORIAL_PRECEDENCE = 5;
+
+    /**
+     * The precedence of functions.
+     */
+    public static final int FUNCTION_PRECEDENCE = 10;
+
+    private static final int ALPHABET = 26;
+    private static final int CHARACTERS = 128;
+
+    /**
+     * The kind of an operator, which determines its arity and where it is written.
+     */
+    public enum Kind {
+        /**
+         * An operator written between its two operands.
+         */
+        BINARY,
+        /**
+         * An operator written before its operand.
+         */
+        PREFIX,
+        /**
+         * An operator written after its operand.
+         */
+        POSTFIX,
+        /**
+         * A named function written before its operand.
+         */
+        FUNCTION
+    }
+
+    /**
+     * How binary operators of equal precedence group.
+     */
+    public enum Associativity {
+        /**
+         * {@code a-b-c} is {@code (a-b)-c}.
+         */
+        LEFT,
+        /**
+         * {@code a^b^c} is {@code a^(b^c)}.
+         */
+        RIGHT
+    }
+
+    /**
+     * A vectorized implementation of a unary operator or function.
+     */
+    @FunctionalInterface
+    public interface VectorFunction {
+        /**
+         * Applies the function to a range of operands; the results array may be the operand array.
+         *
+         * @param operands the operands
+         * @param results  the array receiving the results
+         * @param length   the number of elements, starting at index 0
+         */
+        void apply(double[] operands, double[] results, int length);
+    }
+
+    /**
+     * A vectorized implementation of a binary operator.
+     */
+    @FunctionalInterface
+    public interface VectorOperator {
+        /**
+         * Applies the operator to a range of operand pairs; the results array may be one of the operand arrays.
+         *
+         * @param a       the first operands
+         * @param b       the second operands
+         * @param results the array receiving the results
+         * @param length  the number of elements, starting at index 0
+         */
+        void apply(double[] a, double[] b, double[] results, int length);
+    }
+
+    private final Entry[] entries;
+    private final List<Entry> entryList;
+    private final int[] binaryByCharacter = new int[CHARACTERS];
+    private final int[] prefixByCharacter = new int[CHARACTERS];
+    private final int[] postfixByCharacter = new int[CHARACTERS];
+    private final int[] trie;
+    private final int[] trieEntries;
+
+    private OperatorRegistry(List<Entry> entries) {
+        this.entries = entries.toArray(new Entry[0]);
+        this.entryList = Collections.unmodifiableList(Arrays.asList(this.entries));
+        Arrays.fill(binaryByCharacter, -1);
+        Arrays.fill(prefixByCharacter, -1);
+        Arrays.fill(postfixByCharacter, -1);
+        int nodeCount = 1;
+        for (Entry entry : this.entries) {
+            if (entry.kind == Kind.FUNCTION) {
+                nodeCount += entry.symbol.length();
+            }
+        }
+        trie = new int[nodeCount * ALPHABET];
+        trieEntries = new int[nodeCount];
+        Arrays.fill(trieEntries, -1);
+        int nextNode = 1;
+        for (int index = 0; index < this.entries.length; index++) {
+            Entry entry = this.entries[index];
+            switch (entry.kind) {
+                case BINARY:
+                    binaryByCharacter[entry.symbol.charAt(0)] = index;
+                    break;
+                case PREFIX:
+                    prefixByCharacter[entry.symbol.charAt(0)] = index;
+                    break;
+                case POSTFIX:
+                    postfixByCharacter[entry.symbol.charAt(0)] = index;
+                    break;
+                default:
+                    int node = 0;
+                    for (int i = 0; i < entry.symbol.length(); i++) {
+                        int slot = node * ALPHABET + entry.symbol.charAt(i) - 'a';
+                        if (trie[slot] == 0) {
+                            trie[slot] = nextNode++;
+                        }
+                        node = trie[slot];
+                    }
+                    trieEntries[node] = index;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Creates a builder for a registry with no operators or functions.
+     *
+     * @return the builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates a builder holding the entries of this registry, to derive a registry with more or different entries.
+     *
+     * @return the builder
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.entries.addAll(entryList);
+        return builder;
+    }
+
+    /**
+     * Gets all operators and functions in the order they were registered.
+     *
+     * @return the unmodifiable list of entries
+     */
+    public List<Entry> getEntries() {
+        return entryList;
+    }
+
+    /**
+     * Finds an operator or function.
+     *
+     * @param symbol the operator symbol or the function name, in any case
+     * @param kind   the kind of the entry, which tells binary from prefix operators sharing a symbol
+     * @return the entry, or null if there is none
+     */
+    public Entry get(String symbol, Kind kind) {
+        String key = kind == Kind.FUNCTION ? symbol.toLowerCase(Locale.ROOT) : symbol;
+        for (Entry entry : entries) {
+            if (entry.kind == kind && entry.symbol.equals(key)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets an entry by its index, as found by the lookup methods.
+     *
+     * @param index the entry index
+     * @return the entry
+     */
+    Entry entry(int index) {
+        return entries[index];
+    }
+
+    /**
+     * Finds the function whose name matches a run of letters, ignoring case, by walking the trie.
+     *
+     * @param input the expression
+     * @param start the offset of the first letter
+     * @param end   the offset after the last letter
+     * @return the index of the function's entry, or -1 if there is none
+     */
+    int findFunction(CharSequence input, int start, int end) {
+        int node = 0;
+        for (int i = start; i < end; i++) {
+            int letter = (input.charAt(i) | 0x20) - 'a';
+            if (letter < 0 || letter >= ALPHABET) {
+                return -1;
+            }
+            node = trie[node * ALPHABET + letter];
+            if (node == 0) {
+                return -1;
+            }
+        }
+        return trieEntries[node];
+    }
+
+    /**
+     * Tells whether a character is the symbol of an operator of any kind.
+     *
+     * @param character the character
+     * @return true if an operator uses the character
+     */
+    boolean isOperator(char character) {
+        return character < CHARACTERS && (binaryByCharacter[character] >= 0 || prefixByCharacter[character] >= 0
+                || postfixByCharacter[character] >= 0);
+    }
+
+    /**
+     * Finds the binary operator written with a character.
+     *
+     * @param character the operator character, as reported by the tokenizer
+     * @return the index of the operator's entry, or -1 if there is none
+     */
+    int binaryOperator(int character) {
+        return binaryByCharacter[character];
+    }
+
+    /**
+     * Finds the prefix operator written with a character.
+     *
+     * @param character the operator character, as reported by the tokenizer
+     * @return the index of the operator's entry, or -1 if there is none
+     */
+    int prefixOperator(int character) {
+        return prefixByCharacter[character];
+    }
+
+    /**
+     * Finds the postfix operator written with a character.
+     *
+     * @param character the operator character, as reported by the tokenizer
+     * @return the index of the operator's entry, or -1 if there is none
+     */
+    int postfixOperator(int character) {
+        return postfixByCharacter[character];
+    }
+
+    @Override
+    public String toString() {
+        return "OperatorRegistry" + entryList;
+    }
+
+    /**
+     * An operator or function together with its metadata.
+     */
+    public static final class Entry {
+        final String symbol;
+        final Kind kind;
+        final int precedence;
+        final Associativity associativity;
+        final boolean pure;
+        final boolean vectorized;
+        final Operation operation;
+        final ScientificOperation function;
+        final int opcode;
+
+        Entry(String symbol, Kind kind, int precedence, Associativity associativity, boolean pure, boolean vectorized,
+              Operation operation, ScientificOperation function, int opcode) {
+            this.symbol = symbol;
+            this.kind = kind;
+            this.precedence = precedence;
+            this.associativity = associativity;
+            this.pure = pure;
+            this.vectorized = vectorized;
+            this.operation = operation;
+            this.function = function;
+            this.opcode = opcode;
+        }
+
+        /**
+         * Gets the symbol of the operator or the lower-case name of the function.
+         *
+         * @return the symbol
+         */
+        public String getSymbol() {
+            return symbol;
+        }
+
+        /**
+         * Gets the kind of the entry.
+         *
+         * @return the kind
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * Gets the number of operands.
+         *
+         * @return 2 for binary operators, 1 for all others
+         */
+        public int getArity() {
+            return kind == Kind.BINARY ? 2 : 1;
+        }
+
+        /**
+         * Gets the precedence; higher binds tighter.
+         *
+         * @return the precedence
+         */
+        public int getPrecedence() {
+            return precedence;
+        }
+
+        /**
+         * Gets how operators of equal precedence group. Only meaningful for binary operators.
+         *
+         * @return the associativity
+         */
+        public Associativity getAssociativity() {
+            return associativity;
+        }
+
+        /**
+         * Tells whether the result depends only on the operands. Applications of pure entries to
+         * constants are folded when an expression is compiled, and repeated applications to the
+         * same operands are computed once.
+         *
+         * @return true if the entry is pure
+         */
+        public boolean isPure() {
+            return pure;
+        }
+
+        /**
+         * Tells whether the entry was registered with a vectorized implementation.
+         *
+         * @return true if columns are evaluated by the vectorized implementation
+         */
+        public boolean isVectorized() {
+            return vectorized;
+        }
+
+        /**
+         * Gets the implementation of a binary operator.
+         *
+         * @return the operation, or null if the entry is not binary
+         */
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * Gets the implementation of a unary operator or function.
+         *
+         * @return the function, or null if the entry is binary
+         */
+        public ScientificOperation getFunction() {
+            return function;
+        }
+
+        @Override
+        public String toString() {
+            return kind == Kind.FUNCTION ? symbol + "()" : kind.name().toLowerCase(Locale.ROOT) + " " + symbol;
+        }
+    }
+
+    /**
+     * Collects the entries of a registry. Registering a symbol again with the same kind replaces the earlier entry.
+     */
+    public static final class Builder {
+        private final List<Entry> entries = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Registers a pure binary operator.
+         *
+         * @param symbol        the operator character
+         * @param precedence    the precedence
+         * @param associativity how operators of equal precedence group
+         * @param operation     the implementation
+         * @return this builder
+         * @throws IllegalArgumentException if the symbol is not a single ASCII character free for operators
+         */
+        public Builder binary(String symbol, int precedence, Associativity associativity, Operation operation) {
+            return binary(symbol, precedence, associativity, operation, true, null);
+        }
+
+        /**
+         * Registers a binary operator.
+         *
+         * @param symbol        the operator character
+         * @param precedence    the precedence
+         * @param associativity how operators of equal precedence group
+         * @param operation     the implementation
+         * @param pure          whether the result depends only on the operands
+         * @param vectorized    the implementation applied to columns, or null to apply the operation element by element
+         * @return this builder
+         * @throws IllegalArgumentException if the symbol is not a single ASCII character free for operators
+         */
+        public Builder binary(String symbol, int precedence, Associativity associativity, Operation operation,
+                              boolean pure, VectorOperator vectorized) {
+            Objects.requireNonNull(associativity, "associativity");
+            Objects.requireNonNull(operation, "operation");
+            Operation implementation = vectorized == null ? operation : new VectorizedOperation(operation, vectorized);
+            return add(new Entry(checkOperator(symbol), Kind.BINARY, precedence, associativity, pure, vectorized != null,
+                    implementation, null, ExpressionProgram.APPLY));
+        }
+
+        /**
+         * Registers a pure prefix operator.
+         *
+         * @param symbol     the operator character
+         * @param precedence the precedence
+         * @param function   the implementation
+         * @return this builder
+         * @throws IllegalArgumentException if the symbol is not a single ASCII character free for operators
+         */
+        public Builder prefix(String symbol, int precedence, ScientificOperation function) {
+            return prefix(symbol, precedence, function, true, null);
+        }
+
+        /**
+         * Registers a prefix operator.
+         *
+         * @param symbol     the operator character
+         * @param precedence the precedence
+         * @param function   the implementation
+         * @param pure       whether the result depends only on the operand
+         * @param vectorized the implementation applied to columns, or null to apply the function element by element
+         * @return this builder
+         * @throws IllegalArgumentException if the symbol is not a single ASCII character free for operators
+         */
+        public Builder prefix(String symbol, int precedence, ScientificOperation function, boolean pure,
+                              VectorFunction vectorized) {
+            return unary(checkOperator(symbol), Kind.PREFIX, precedence, function, pure, vectorized);
+        }
+
+        /**
+         * Registers a pure postfix operator.
+         *
+         * @param symbol     the operator character
+         * @param precedence the precedence
+         * @param function   the implementation
+         * @return this builder
+         * @throws IllegalArgumentException if the symbol is not a single ASCII character free for operators
+         */
+        public Builder postfix(String symbol, int precedence, ScientificOperation function) {
+            return postfix(symbol, precedence, function, true, null);
+        }
+
+        /**
+         * Registers a postfix operator.
+         *
+         * @param symbol     the operator character
+         * @param precedence the precedence
+         * @param function   the implementation
+         * @param pure       whether the result depends only on the operand
+         * @param vectorized the implementation applied to columns, or null to apply the function element by element
+         * @return this builder
+         * @throws IllegalArgumentException if the symbol is not a single ASCII character free for operators
+         */
+        public Builder postfix(String symbol, int precedence, ScientificOperation function, boolean pure,
+                               VectorFunction vectorized) {
+            return unary(checkOperator(symbol), Kind.POSTFIX, precedence, function, pure, vectorized);
+        }
+
+        /**
+         * Registers a pure function with the standard {@link #FUNCTION_PRECEDENCE}.
+         *
+         * @param name     the function name, made of ASCII letters
+         * @param function the implementation
+         * @return this builder
+         * @throws IllegalArgumentException if the name is empty or not made of ASCII letters
+         */
+        public Builder function(String name, ScientificOperation function) {
+            return function(name, function, true, null);
+        }
+
+        /**
+         * Registers a function with the standard {@link #FUNCTION_PRECEDENCE}.
+         *
+         * @param name       the function name, made of ASCII letters
+         * @param function   the implementation
+         * @param pure       whether the result depends only on the operand
+         * @param vectorized the implementation applied to columns, or null to apply the function element by element
+         * @return this builder
+         * @throws IllegalArgumentException if the name is empty or not made of ASCII letters
+         */
+        public Builder function(String name, ScientificOperation function, boolean pure, VectorFunction vectorized) {
+            return unary(checkFunctionName(name), Kind.FUNCTION, FUNCTION_PRECEDENCE, function, pure, vectorized);
+        }
+
+        /**
+         * Registers a standard binary operator that the expression backends execute inline.
+         */
+        Builder intrinsic(String symbol, int precedence, Associativity associativity, Operation operation, int opcode) {
+            return add(new Entry(checkOperator(symbol), Kind.BINARY, precedence, associativity, true, true, operation,
+                    null, opcode));
+        }
+
+        /**
+         * Registers the standard unary minus, which the expression backends execute inline.
+         */
+        Builder negation(String symbol, int precedence, ScientificOperation function) {
+            return add(new Entry(checkOperator(symbol), Kind.PREFIX, precedence, Associativity.RIGHT, true, true, null,
+                    function, ExpressionProgram.NEGATE));
+        }
+
+        /**
+         * Replaces the implementation of a unary operator or function, keeping its metadata.
+         *
+         * @param entry    the entry to replace
+         * @param function the new implementation, applied element by element to columns
+         * @return this builder
+         */
+        Builder replace(Entry entry, ScientificOperation function) {
+            return add(new Entry(entry.symbol, entry.kind, entry.precedence, entry.associativity, entry.pure, false,
+                    null, function, entry.opcode));
+        }
+
+        private Builder unary(String symbol, Kind kind, int precedence, ScientificOperation function, boolean pure,
+                              VectorFunction vectorized) {
+            Objects.requireNonNull(function, "function");
+            ScientificOperation implementation = vectorized == null ? function : new VectorizedFunction(function, vectorized);
+            return add(new Entry(symbol, kind, precedence, Associativity.RIGHT, pure, vectorized != null, null,
+                    implementation, ExpressionProgram.CALL));
+        }
+
+        private Builder add(Entry entry) {
+            for (int i = 0; i < entries.size(); i++) {
+                Entry existing = entries.get(i);
+                if (existing.kind == entry.kind && existing.symbol.equals(entry.symbol)) {
+                    entries.set(i, entry);
+                    return this;
+                }
+            }
+            entries.add(entry);
+            return this;
+        }
+
+        /**
+         * Builds the registry and its lookup tables.
+         *
+         * @return the registry
+         * @throws IllegalArgumentException if a character is both a binary and a postfix operator, which would be ambiguous
+         */
+        public OperatorRegistry build() {
+            for (Entry binary : entries) {
+                for (Entry postfix : entries) {
+                    if (binary.kind == Kind.BINARY && postfix.kind == Kind.POSTFIX && binary.symbol.equals(postfix.symbol)) {
+                        throw new IllegalArgumentException("Operator is both binary and postfix: " + binary.symbol);
+                    }
+                }
+            }
+            return new OperatorRegistry(entries);
+        }
+
+        private static String checkOperator(String symbol) {
+            if (symbol.length() != 1) {
+                throw new IllegalArgumentException("Operator symbol must be a single character: " + symbol);
+            }
+            char character = symbol.charAt(0);
+            if (character >= CHARACTERS || Character.isLetterOrDigit(character) || Character.isWhitespace(character)
+                    || Character.isISOControl(character) || character == '(' || character == ')' || character == '.') {
+                throw new IllegalArgumentException("Character cannot be used as an operator: " + symbol);
+            }
+            return symbol;
+        }
+
+        private static String checkFunctionName(String name) {
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Function name is empty");
+            }
+            String lowerCase = name.toLowerCase(Locale.ROOT);
+            for (int i = 0; i < lowerCase.length(); i++) {
+                if (lowerCase.charAt(i) < 'a' || lowerCase.charAt(i) > 'z') {
+                    throw new IllegalArgumentException("Function name must be made of ASCII letters: " + name);
+                }
+            }
+            return lowerCase;
+        }
+    }
+
+    /**
+     * A unary operation whose columns are evaluated by a separate vectorized implementation.
+     */
+    private static final class VectorizedFunction implements ScientificOperation {
+        private final ScientificOperation scalar;
+        private final VectorFunction vector;
+
+        VectorizedFunction(ScientificOperation scalar, VectorFunction vector) {
+            this.scalar = scalar;
+            this.vector = vector;
+        }
+
+        @Override
+        public double apply(double a) {
+            return scalar.apply(a);
+        }
+
+        @Override
+        public CalculationError check(double a) {
+            return scalar.check(a);
+        }
+
+        @Override
+        public double derivative(double a) {
+            return scalar.derivative(a);
+        }
+
+        @Override
+        public void applyAll(double[] operands, double[] results, int length) {
+            vector.apply(operands, results, length);
+        }
+    }
+
+    /**
+     * A binary operation whose columns are evaluated by a separate vectorized implementation.
+     */
+    private static final class VectorizedOperation implements Operation {
+        private final Operation scalar;
+        private final VectorOperator vector;
+
+        VectorizedOperation(Operation scalar, VectorOperator vector) {
+            this.scalar = scalar;
+            this.vector = vector;
+        }
+
+        @Override
+        public double apply(double a, double b) {
+            return scalar.apply(a, b);
+        }
+
+        @Override
+        public CalculationError check(double a, double b) {
+            return scalar.check(a, b);
+        }
+
+        @Override
+        public void differentiate(double a, double b, double[] partials) {
+            scalar.differentiate(a, b, partials);
+        }
+
+        @Override
+        public void applyAll(double[] a, double[] b, double[] results, int length) {
+            vector.apply(a, b, results, length);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for registering operators and functions.
+ */
+public class OperatorRegistryTest {
+
+    /**
+     * Tests that the standard registry declares the metadata the parser relies on.
+     */
+    @Test
+    public void testStandardOperators() {
+        OperatorRegistry operators = Calculator.standardOperators();
+        OperatorRegistry.Entry power = operators.get("^", OperatorRegistry.Kind.BINARY);
+        OperatorRegistry.Entry multiply = operators.get("*", OperatorRegistry.Kind.BINARY);
+        assertTrue(power.getPrecedence() > multiply.getPrecedence(), "^ should bind tighter than *");
+        assertEquals(OperatorRegistry.Associativity.RIGHT, power.getAssociativity(), "^ should be right-associative");
+        assertEquals(2, power.getArity(), "^ should take two operands");
+        assertEquals(1, operators.get("-", OperatorRegistry.Kind.PREFIX).getArity(), "unary minus should take one operand");
+        assertEquals(1, operators.get("!", OperatorRegistry.Kind.POSTFIX).getArity(), "! should take one operand");
+        assertNotNull(operators.get("SQRT", OperatorRegistry.Kind.FUNCTION), "functions should be found ignoring case");
+        assertNull(operators.get("sinh", OperatorRegistry.Kind.FUNCTION), "sinh should not be a standard function");
+    }
+
+    /**
+     * Tests that registered functions and operators are evaluated alike by every evaluation path.
+     */
+    @Test
+    public void testCustomOperators() {
+        OperatorRegistry operators = Calculator.standardOperators().toBuilder()
+                .function("sinh", Math::sinh)
+                .function("twice", a -> 2 * a, true, (in, out, length) -> {
+                    for (int i = 0; i < length; i++) {
+                        out[i] = in[i] + in[i];
+                    }
+                })
+                .binary("%", OperatorRegistry.MULTIPLICATIVE_PRECEDENCE, OperatorRegistry.Associativity.LEFT, new Remainder())
+                .build();
+        Calculator calculator = new Calculator(operators);
+        assertSame(operators, calculator.getOperators());
+        assertEquals(Math.sinh(1), calculator.calculate("SINH(1)"), "functions should be matched ignoring case");
+        assertEquals(1, calculator.calculate("sin(30)*2"), 1e-12, "sin should still be found next to sinh");
+        assertEquals(3, calculator.calculate("1+7%3*2"), "% should bind like *");
+        assertEquals(Collections.singletonList("sinha"), calculator.compile("sinha+5").getVariableNames(),
+                "a name only starting like a function should be a variable");
+
+        CompiledExpression expression = calculator.compile("twice(x)%y+sinh(x%3)");
+        double[] x = {5, 7, 9, 11};
+        double[] y = {3, 4, 5, 6};
+        double[] expected = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            expected[i] = (2 * x[i]) % y[i] + Math.sinh(x[i] % 3);
+            assertEquals(expected[i], expression.evaluate(new double[]{x[i], y[i]}), 1e-9, "interpreted row " + i);
+        }
+        double[] out = new double[x.length];
+        expression.evaluate(new double[][]{x, y}, out);
+        assertArrayEquals(expected, out, 1e-9, "columns should use the vectorized implementations");
+        assertTrue(expression.generate(), "custom operators should compile to bytecode");
+        assertEquals(expected[2], expression.evaluate(new double[]{x[2], y[2]}), 1e-9, "generated code should agree");
+
+        assertEquals(CalculationError.DIVISION_BY_ZERO, calculator.tryCalculate("1%0").getError(),
+                "the check of a custom operator should be reported without throwing");
+        assertThrows(ArithmeticException.class, () -> calculator.calculate("1%0"));
+        assertThrows(IllegalArgumentException.class, () -> new Calculator().calculate("1%2"),
+                "the standard calculator should not know %");
+    }
+
+    /**
+     * Tests that impure functions are neither folded nor computed once for repeated calls.
+     */
+    @Test
+    public void testImpureFunction() {
+        AtomicInteger ticks = new AtomicInteger();
+        OperatorRegistry operators = Calculator.standardOperators().toBuilder()
+                .function("tick", a -> ticks.incrementAndGet(), false, null)
+                .build();
+        Calculator calculator = new Calculator(operators);
+        CompiledExpression expression = calculator.compile("tick(1)+tick(2)");
+        assertEquals(0, expression.getRemovedNodeCount(), "impure calls should not be folded or shared");
+        assertEquals(3, expression.evaluate(), "both calls should run");
+        assertEquals(7, expression.evaluate(), "calls should run again on every evaluation");
+        assertThrows(IllegalArgumentException.class,
+                () -> new Calculator(operators, 16, 16, Collections.singleton("tick")));
+    }
+
+    /**
+     * Tests that invalid symbols and ambiguous operators are rejected and that registering a symbol again replaces it.
+     */
+    @Test
+    public void testRegistration() {
+        OperatorRegistry.Builder builder = OperatorRegistry.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.function("log2", Math::log));
+        assertThrows(IllegalArgumentException.class, () -> builder.function("", Math::log));
+        assertThrows(IllegalArgumentException.class, () -> builder.prefix("(", 1, a -> a));
+        assertThrows(IllegalArgumentException.class, () -> builder.prefix("**", 1, a -> a));
+        assertThrows(IllegalArgumentException.class, () -> builder.postfix("7", 1, a -> a));
+        assertThrows(IllegalArgumentException.class, () -> OperatorRegistry.builder()
+                .binary("#", 1, OperatorRegistry.Associativity.LEFT, (a, b) -> a)
+                .postfix("#", 1, a -> a)
+                .build());
+
+        OperatorRegistry operators = Calculator.standardOperators().toBuilder()
+                .binary("^", OperatorRegistry.POWER_PRECEDENCE, OperatorRegistry.Associativity.LEFT, Math::pow)
+                .build();
+        assertEquals(Calculator.standardOperators().getEntries().size(), operators.getEntries().size(),
+                "registering ^ again should replace it");
+        assertEquals(64, new Calculator(operators).calculate("2^3^2"), "a left-associative ^ should group to the left");
+    }
+
+    /**
+     * The remainder of a division, rejecting a zero divisor.
+     */
+    private static final class Remainder implements Operation {
+        @Override
+        public double apply(double a, double b) {
+            if (b == 0) {
+                throw new ArithmeticException("Division by zero");
+            }
+            return a % b;
+        }
+
+        @Override
+        public CalculationError check(double a, double b) {
+            return b == 0 ? CalculationError.DIVISION_BY_ZERO : null;
+        }
+    }
+}
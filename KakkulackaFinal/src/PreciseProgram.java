@@ -0,0 +1,730 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The arithmetic of a compiled expression lowered to postfix instructions that run in every
+ * {@link NumericTier}. Literals and variable values are taken as the decimals they are written as,
+ * e.g. {@code 0.1} means one tenth rather than the double nearest to it.
+ *
+ * <p>The double and double-double tiers carry a bound on the error of every intermediate value:
+ * the error of its operands, propagated through the operation, plus the rounding of the operation
+ * itself, which is computed exactly for doubles and bounded for double-doubles. Cancellation shows
+ * as a bound that is large relative to the value. A tier answers only if both ends of the interval
+ * the exact result lies in round to the same decimal at the requested precision; otherwise the
+ * next tier evaluates the expression again. The decimal tier computes the exact result as a
+ * fraction of two decimals and rounds it once, so it always answers.
+ *
+ * <p>Only the four arithmetic operators, negation and powers with a constant integer exponent can
+ * be lowered; other expressions are left to the double evaluation of {@link CompiledExpression}.
+ */
+final class PreciseProgram {
+
+    /**
+     * The program of an expression that uses operations without a precise implementation.
+     */
+    static final PreciseProgram UNSUPPORTED = new PreciseProgram(new int[0], new BigDecimal[0], 0);
+
+    /**
+     * The largest magnitude of an exponent evaluated precisely.
+     */
+    static final int MAX_EXPONENT = 9999;
+
+    private static final int CONSTANT = 0;
+    private static final int VARIABLE = 1;
+    private static final int ADD = 2;
+    private static final int SUBTRACT = 3;
+    private static final int MULTIPLY = 4;
+    private static final int DIVIDE = 5;
+    private static final int NEGATE = 6;
+    private static final int POWER = 7;
+
+    private static final int MAX_FRACTION_DIGITS = 17;
+    private static final double[] POWERS_OF_TEN = new double[MAX_FRACTION_DIGITS + 1];
+    // The double-double algorithms below round with a relative error below 2^-104; the bound leaves room.
+    private static final double DOUBLE_DOUBLE_ROUNDING = 0x1p-100;
+
+    static {
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = Math.pow(10, i);
+        }
+    }
+
+    private final int[] code;
+    private final double[] constants;
+    private final double[] constantErrors;
+    private final double[] constantLows;
+    private final double[] constantLowErrors;
+    private final BigDecimal[] decimals;
+    private final int maxStackDepth;
+    // Inflates error bounds to cover the rounding of the bounds themselves.
+    private final double slack;
+
+    private PreciseProgram(int[] code, BigDecimal[] decimals, int maxStackDepth) {
+        this.code = code;
+        this.decimals = decimals;
+        this.constants = new double[decimals.length];
+        this.maxStackDepth = maxStackDepth;
+        this.slack = 1 + code.length * 0x1p-50;
+        this.constantErrors = new double[constants.length];
+        this.constantLows = new double[constants.length];
+        this.constantLowErrors = new double[constants.length];
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = decimals[i].doubleValue();
+            BigDecimal remainder = decimals[i].subtract(new BigDecimal(constants[i]));
+            constantErrors[i] = errorOf(remainder);
+            constantLows[i] = remainder.doubleValue();
+            constantLowErrors[i] = errorOf(remainder.subtract(new BigDecimal(constantLows[i])));
+        }
+    }
+
+    /**
+     * Lowers a parsed tree.
+     *
+     * @param root the root of the unoptimized tree, whose literals are exactly as written
+     * @return the program, or {@link #UNSUPPORTED} if the tree uses other operations
+     */
+    static PreciseProgram lower(CompiledExpression.Node root) {
+        Builder builder = new Builder();
+        return builder.emit(root) ? builder.build() : UNSUPPORTED;
+    }
+
+    /**
+     * Tells whether the expression could be lowered.
+     *
+     * @return false for {@link #UNSUPPORTED}
+     */
+    boolean isSupported() {
+        return this != UNSUPPORTED;
+    }
+
+    /**
+     * Evaluates the program in the given tier and the following ones until one guarantees the result.
+     *
+     * @param variables   the variable values, indexed by variable number
+     * @param mathContext the precision and rounding of the result
+     * @param firstTier   the tier to start in
+     * @return the result
+     * @throws ArithmeticException      if a divisor is zero
+     * @throws IllegalArgumentException if a variable value is not finite, or if the precision is
+     *                                  unlimited and the result has no finite decimal expansion
+     */
+    PreciseResult evaluate(double[] variables, MathContext mathContext, NumericTier firstTier) {
+        PreciseResult result = null;
+        if (firstTier == NumericTier.DOUBLE) {
+            result = evaluateDouble(variables, mathContext);
+        }
+        if (result == null && firstTier != NumericTier.DECIMAL) {
+            result = evaluateDoubleDouble(variables, mathContext);
+        }
+        return result != null ? result : evaluateDecimal(variables, mathContext);
+    }
+
+    /**
+     * Evaluates the program with doubles. Each stack entry is a value and its error bound.
+     *
+     * @return the result, or null if it is not guaranteed at the requested precision
+     */
+    private PreciseResult evaluateDouble(double[] variables, MathContext mathContext) {
+        double[] stack = EvaluationContext.current().stack(2 * maxStackDepth + 2);
+        int top = 0;
+        for (int pc = 0; pc < code.length; pc += 2) {
+            int operand = code[pc + 1];
+            switch (code[pc]) {
+                case CONSTANT:
+                    stack[top] = constants[operand];
+                    stack[top + 1] = constantErrors[operand];
+                    top += 2;
+                    break;
+                case VARIABLE: {
+                    double value = variables[operand];
+                    stack[top] = value;
+                    stack[top + 1] = isSmallInteger(value) ? 0 : Math.ulp(value) / 2;
+                    top += 2;
+                    break;
+                }
+                case ADD:
+                case SUBTRACT: {
+                    top -= 2;
+                    double a = stack[top - 2];
+                    double b = code[pc] == ADD ? stack[top] : -stack[top];
+                    double sum = a + b;
+                    double v = sum - a;
+                    double rounding = (a - (sum - v)) + (b - v);
+                    stack[top - 2] = sum;
+                    stack[top - 1] += stack[top + 1] + Math.abs(rounding);
+                    break;
+                }
+                case MULTIPLY:
+                    top -= 2;
+                    multiply(stack, top - 2, stack[top], stack[top + 1]);
+                    break;
+                case DIVIDE:
+                    top -= 2;
+                    if (!divide(stack, top - 2, stack[top], stack[top + 1])) {
+                        return null;
+                    }
+                    break;
+                case NEGATE:
+                    stack[top - 2] = -stack[top - 2];
+                    break;
+                case POWER:
+                    if (!power(stack, top - 2, operand)) {
+                        return null;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[pc]);
+            }
+        }
+        double value = stack[0];
+        double error = stack[1] * slack;
+        if (!Double.isFinite(value) || !Double.isFinite(error)) {
+            return null;
+        }
+        if (error == 0) {
+            return new PreciseResult(new BigDecimal(value).round(mathContext), NumericTier.DOUBLE, true);
+        }
+        if (!mayRound(Math.abs(value), error, mathContext)) {
+            return null;
+        }
+        return accept(new BigDecimal(value), upperBound(error), mathContext, NumericTier.DOUBLE);
+    }
+
+    /**
+     * Multiplies the entry at an index by a value with an error bound.
+     */
+    private static void multiply(double[] stack, int index, double b, double errorB) {
+        double a = stack[index];
+        double errorA = stack[index + 1];
+        double product = a * b;
+        double rounding = Math.fma(a, b, -product);
+        stack[index] = product;
+        stack[index + 1] = Math.abs(a) * errorB + Math.abs(b) * errorA + errorA * errorB + Math.abs(rounding);
+    }
+
+    /**
+     * Divides the entry at an index by a value with an error bound.
+     *
+     * @return false if the divisor may be zero
+     */
+    private static boolean divide(double[] stack, int index, double b, double errorB) {
+        if (b == 0 && errorB == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        if (!(errorB < Math.abs(b))) {
+            return false;
+        }
+        double a = stack[index];
+        double quotient = a / b;
+        double rounding = Math.abs(Math.fma(-quotient, b, a) / b);
+        stack[index] = quotient;
+        stack[index + 1] = (stack[index + 1] + (Math.abs(quotient) + rounding) * errorB) / (Math.abs(b) - errorB) + rounding;
+        return true;
+    }
+
+    /**
+     * Raises the entry at an index to an integer power by repeated squaring, using the entry above as scratch.
+     *
+     * @return false if a negative power divides by a value that may be zero
+     */
+    private static boolean power(double[] stack, int index, int exponent) {
+        stack[index + 2] = stack[index];
+        stack[index + 3] = stack[index + 1];
+        stack[index] = 1;
+        stack[index + 1] = 0;
+        for (int n = Math.abs(exponent); n > 0; n >>= 1) {
+            if ((n & 1) != 0) {
+                multiply(stack, index, stack[index + 2], stack[index + 3]);
+            }
+            if (n > 1) {
+                multiply(stack, index + 2, stack[index + 2], stack[index + 3]);
+            }
+        }
+        if (exponent >= 0) {
+            return true;
+        }
+        double value = stack[index];
+        double error = stack[index + 1];
+        stack[index] = 1;
+        stack[index + 1] = 0;
+        return divide(stack, index, value, error);
+    }
+
+    /**
+     * Evaluates the program with double-doubles. Each stack entry is a high part, a low part and an error bound.
+     *
+     * @return the result, or null if it is not guaranteed at the requested precision
+     */
+    private PreciseResult evaluateDoubleDouble(double[] variables, MathContext mathContext) {
+        double[] stack = EvaluationContext.current().stack(3 * maxStackDepth + 3);
+        int top = 0;
+        for (int pc = 0; pc < code.length; pc += 2) {
+            int operand = code[pc + 1];
+            switch (code[pc]) {
+                case CONSTANT:
+                    stack[top] = constants[operand];
+                    stack[top + 1] = constantLows[operand];
+                    stack[top + 2] = constantLowErrors[operand];
+                    top += 3;
+                    break;
+                case VARIABLE: {
+                    double value = variables[operand];
+                    stack[top] = value;
+                    double low = decimalLow(value);
+                    if (Double.isNaN(low)) {
+                        low = BigDecimal.valueOf(value).subtract(new BigDecimal(value)).doubleValue();
+                    }
+                    stack[top + 1] = low;
+                    stack[top + 2] = 2 * Math.ulp(low);
+                    top += 3;
+                    break;
+                }
+                case ADD:
+                case SUBTRACT: {
+                    top -= 3;
+                    double sign = code[pc] == ADD ? 1 : -1;
+                    double errorA = stack[top - 1];
+                    addDoubleDouble(stack, top - 3, stack[top - 3], stack[top - 2], sign * stack[top], sign * stack[top + 1]);
+                    stack[top - 1] = errorA + stack[top + 2] + Math.abs(stack[top - 3]) * DOUBLE_DOUBLE_ROUNDING;
+                    break;
+                }
+                case MULTIPLY:
+                    top -= 3;
+                    multiplyWithError(stack, top - 3, stack[top], stack[top + 1], stack[top + 2]);
+                    break;
+                case DIVIDE:
+                    top -= 3;
+                    if (!divideWithError(stack, top - 3, stack[top], stack[top + 1], stack[top + 2])) {
+                        return null;
+                    }
+                    break;
+                case NEGATE:
+                    stack[top - 3] = -stack[top - 3];
+                    stack[top - 2] = -stack[top - 2];
+                    break;
+                case POWER:
+                    if (!powerDoubleDouble(stack, top - 3, operand)) {
+                        return null;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[pc]);
+            }
+        }
+        double high = stack[0];
+        double low = stack[1];
+        double error = stack[2] * slack;
+        if (!Double.isFinite(high) || !Double.isFinite(low) || !Double.isFinite(error)) {
+            return null;
+        }
+        if (error == 0) {
+            return new PreciseResult(new BigDecimal(high).add(new BigDecimal(low)).round(mathContext), NumericTier.DOUBLE_DOUBLE, true);
+        }
+        if (!mayRound(Math.abs(high), error, mathContext)) {
+            return null;
+        }
+        // The exact expansion of the tiny low part runs to a hundred digits; its shortest decimal is within half an ulp.
+        return accept(new BigDecimal(high).add(BigDecimal.valueOf(low)), upperBound(error + Math.ulp(low)),
+                mathContext, NumericTier.DOUBLE_DOUBLE);
+    }
+
+    /**
+     * Multiplies the double-double entry at an index by a value with an error bound.
+     */
+    private static void multiplyWithError(double[] stack, int index, double highB, double lowB, double errorB) {
+        double highA = stack[index];
+        double errorA = stack[index + 2];
+        multiplyDoubleDouble(stack, index, highA, stack[index + 1], highB, lowB);
+        stack[index + 2] = Math.abs(highA) * errorB + Math.abs(highB) * errorA + errorA * errorB
+                + Math.abs(stack[index]) * DOUBLE_DOUBLE_ROUNDING;
+    }
+
+    /**
+     * Divides the double-double entry at an index by a value with an error bound.
+     *
+     * @return false if the divisor may be zero
+     */
+    private static boolean divideWithError(double[] stack, int index, double highB, double lowB, double errorB) {
+        if (highB == 0 && errorB == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        if (!(errorB < Math.abs(highB) * (1 - 0x1p-50))) {
+            return false;
+        }
+        double errorA = stack[index + 2];
+        divideDoubleDouble(stack, index, stack[index], stack[index + 1], highB, lowB);
+        double quotient = Math.abs(stack[index]);
+        stack[index + 2] = (errorA + quotient * (1 + DOUBLE_DOUBLE_ROUNDING) * errorB) / (Math.abs(highB) * (1 - 0x1p-50) - errorB)
+                + quotient * DOUBLE_DOUBLE_ROUNDING;
+        return true;
+    }
+
+    /**
+     * Raises the double-double entry at an index to an integer power, using the entry above as scratch.
+     *
+     * @return false if a negative power divides by a value that may be zero
+     */
+    private static boolean powerDoubleDouble(double[] stack, int index, int exponent) {
+        stack[index + 3] = stack[index];
+        stack[index + 4] = stack[index + 1];
+        stack[index + 5] = stack[index + 2];
+        stack[index] = 1;
+        stack[index + 1] = 0;
+        stack[index + 2] = 0;
+        for (int n = Math.abs(exponent); n > 0; n >>= 1) {
+            if ((n & 1) != 0) {
+                multiplyWithError(stack, index, stack[index + 3], stack[index + 4], stack[index + 5]);
+            }
+            if (n > 1) {
+                multiplyWithError(stack, index + 3, stack[index + 3], stack[index + 4], stack[index + 5]);
+            }
+        }
+        if (exponent >= 0) {
+            return true;
+        }
+        double high = stack[index];
+        double low = stack[index + 1];
+        double error = stack[index + 2];
+        stack[index] = 1;
+        stack[index + 1] = 0;
+        stack[index + 2] = 0;
+        return divideWithError(stack, index, high, low, error);
+    }
+
+    /**
+     * Adds two double-doubles, storing the high and low part of the sum at an index.
+     */
+    private static void addDoubleDouble(double[] out, int index, double highA, double lowA, double highB, double lowB) {
+        double high = highA + highB;
+        double v = high - highA;
+        double low = (highA - (high - v)) + (highB - v);
+        double lowSum = lowA + lowB;
+        v = lowSum - lowA;
+        double lowRounding = (lowA - (lowSum - v)) + (lowB - v);
+        low += lowSum;
+        double sum = high + low;
+        low -= sum - high;
+        low += lowRounding;
+        high = sum + low;
+        out[index] = high;
+        out[index + 1] = low - (high - sum);
+    }
+
+    /**
+     * Multiplies two double-doubles, storing the high and low part of the product at an index.
+     */
+    private static void multiplyDoubleDouble(double[] out, int index, double highA, double lowA, double highB, double lowB) {
+        double product = highA * highB;
+        double low = Math.fma(highA, highB, -product) + (highA * lowB + lowA * highB);
+        double high = product + low;
+        out[index] = high;
+        out[index + 1] = low - (high - product);
+    }
+
+    /**
+     * Divides two double-doubles by long division in three double quotients, storing the high and
+     * low part of the quotient at an index.
+     */
+    private static void divideDoubleDouble(double[] out, int index, double highA, double lowA, double highB, double lowB) {
+        double first = highA / highB;
+        multiplyDoubleDouble(out, index, highB, lowB, first, 0);
+        addDoubleDouble(out, index, highA, lowA, -out[index], -out[index + 1]);
+        double second = out[index] / highB;
+        double remainderHigh = out[index];
+        double remainderLow = out[index + 1];
+        multiplyDoubleDouble(out, index, highB, lowB, second, 0);
+        addDoubleDouble(out, index, remainderHigh, remainderLow, -out[index], -out[index + 1]);
+        double third = out[index] / highB;
+        double high = first + second;
+        addDoubleDouble(out, index, high, second - (high - first), third, 0);
+    }
+
+    /**
+     * Evaluates the program with decimals. Each stack entry is an exact fraction of two decimals,
+     * whose denominator is null while it is one, so a quotient is carried exactly rather than
+     * rounded: {@code (1/3)*3-1} is exactly zero. The fraction is rounded once, at the end.
+     *
+     * @return the result
+     */
+    private PreciseResult evaluateDecimal(double[] variables, MathContext mathContext) {
+        BigDecimal[] numerators = new BigDecimal[maxStackDepth];
+        BigDecimal[] denominators = new BigDecimal[maxStackDepth];
+        int top = 0;
+        for (int pc = 0; pc < code.length; pc += 2) {
+            int operand = code[pc + 1];
+            switch (code[pc]) {
+                case CONSTANT:
+                    numerators[top] = decimals[operand];
+                    denominators[top++] = null;
+                    break;
+                case VARIABLE: {
+                    double value = variables[operand];
+                    if (!Double.isFinite(value)) {
+                        throw new IllegalArgumentException("Variable values must be finite but found " + value);
+                    }
+                    numerators[top] = BigDecimal.valueOf(value);
+                    denominators[top++] = null;
+                    break;
+                }
+                case ADD:
+                case SUBTRACT: {
+                    top--;
+                    BigDecimal a = numerators[top - 1];
+                    BigDecimal b = numerators[top];
+                    BigDecimal denominatorA = denominators[top - 1];
+                    BigDecimal denominatorB = denominators[top];
+                    if (denominatorB != null) {
+                        a = a.multiply(denominatorB);
+                    }
+                    if (denominatorA != null) {
+                        b = b.multiply(denominatorA);
+                    }
+                    numerators[top - 1] = code[pc] == ADD ? a.add(b) : a.subtract(b);
+                    denominators[top - 1] = product(denominatorA, denominatorB);
+                    break;
+                }
+                case MULTIPLY:
+                    top--;
+                    numerators[top - 1] = numerators[top - 1].multiply(numerators[top]);
+                    denominators[top - 1] = product(denominators[top - 1], denominators[top]);
+                    break;
+                case DIVIDE: {
+                    top--;
+                    if (numerators[top].signum() == 0) {
+                        throw new ArithmeticException("Division by zero");
+                    }
+                    BigDecimal numerator = product(numerators[top - 1], denominators[top]);
+                    denominators[top - 1] = product(denominators[top - 1], numerators[top]);
+                    numerators[top - 1] = numerator;
+                    break;
+                }
+                case NEGATE:
+                    numerators[top - 1] = numerators[top - 1].negate();
+                    break;
+                case POWER: {
+                    BigDecimal base = numerators[top - 1];
+                    BigDecimal denominator = denominators[top - 1];
+                    if (operand < 0 && base.signum() == 0) {
+                        throw new ArithmeticException("Division by zero");
+                    }
+                    int exponent = Math.abs(operand);
+                    BigDecimal numeratorPower = base.pow(exponent);
+                    BigDecimal denominatorPower = denominator == null ? null : denominator.pow(exponent);
+                    if (operand >= 0) {
+                        numerators[top - 1] = numeratorPower;
+                        denominators[top - 1] = denominatorPower;
+                    } else {
+                        numerators[top - 1] = denominatorPower == null ? BigDecimal.ONE : denominatorPower;
+                        denominators[top - 1] = numeratorPower;
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[pc]);
+            }
+        }
+        if (denominators[0] == null) {
+            return new PreciseResult(numerators[0].round(mathContext), NumericTier.DECIMAL, true);
+        }
+        try {
+            return new PreciseResult(numerators[0].divide(denominators[0], mathContext), NumericTier.DECIMAL, true);
+        } catch (ArithmeticException e) {
+            // Only an unlimited precision fails here: the divisor is not zero.
+            throw new IllegalArgumentException("The result has no finite decimal expansion; a precision is needed", e);
+        }
+    }
+
+    /**
+     * Multiplies two factors, either of which is null for a denominator of one.
+     */
+    private static BigDecimal product(BigDecimal a, BigDecimal b) {
+        return a == null ? b : b == null ? a : a.multiply(b);
+    }
+
+    /**
+     * Tells cheaply whether a value known within an error bound may round to a single decimal: it
+     * cannot if the bound exceeds the spacing of decimals of the requested precision.
+     */
+    private static boolean mayRound(double magnitude, double error, MathContext mathContext) {
+        return mathContext.getPrecision() != 0 && error <= magnitude * Math.pow(10, 1 - mathContext.getPrecision());
+    }
+
+    /**
+     * Rounds a value known within an error bound, if every value within the bound rounds alike.
+     *
+     * @return the result, or null if the bound spans more than one rounded value
+     */
+    private static PreciseResult accept(BigDecimal value, BigDecimal error, MathContext mathContext, NumericTier tier) {
+        BigDecimal lower = value.subtract(error).round(mathContext);
+        BigDecimal upper = value.add(error).round(mathContext);
+        return lower.compareTo(upper) == 0 ? new PreciseResult(lower, tier, true) : null;
+    }
+
+    /**
+     * Converts an error bound to a short decimal no smaller than it, rather than to its exact expansion.
+     */
+    private static BigDecimal upperBound(double error) {
+        return BigDecimal.valueOf(Math.nextUp(error));
+    }
+
+    /**
+     * Bounds the magnitude of a small decimal remainder by a double.
+     */
+    private static double errorOf(BigDecimal remainder) {
+        return remainder.signum() == 0 ? 0 : Math.nextUp(Math.abs(remainder.doubleValue()));
+    }
+
+    /**
+     * Computes the difference between the shortest decimal with at most {@value #MAX_FRACTION_DIGITS}
+     * fraction digits that rounds to a double and the double itself, without allocating. With
+     * {@code m} the decimal scaled by {@code 10^n} to an integer, the difference is
+     * {@code (m - x * 10^n) / 10^n}, where the product is split exactly into two doubles and the
+     * subtraction from {@code m} is exact as the two are within a factor of two. The result is
+     * within two ulps.
+     *
+     * @return the difference, or NaN if the double has no such decimal or the decimal is too long
+     */
+    static double decimalLow(double value) {
+        if (isSmallInteger(value)) {
+            return 0;
+        }
+        for (int digits = 1; digits <= MAX_FRACTION_DIGITS; digits++) {
+            double scale = POWERS_OF_TEN[digits];
+            double scaled = Math.rint(value * scale);
+            if (Math.abs(scaled) > 0x1p53) {
+                return Double.NaN;
+            }
+            if (scaled / scale == value) {
+                double product = value * scale;
+                double rounding = Math.fma(value, scale, -product);
+                return ((scaled - product) - rounding) / scale;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Tells whether a double is an integer that its decimal form gives exactly.
+     */
+    private static boolean isSmallInteger(double value) {
+        return value == Math.rint(value) && Math.abs(value) <= 0x1p53;
+    }
+
+    /**
+     * Gets the decimal value of a constant: the literal as written, or the shortest decimal of a
+     * computed constant.
+     */
+    private static BigDecimal decimalValue(CompiledExpression.Constant constant) {
+        return constant.text != null ? new BigDecimal(constant.text) : BigDecimal.valueOf(constant.value);
+    }
+
+    /**
+     * Gets the decimal value of a literal, possibly negated, or null for any other node.
+     */
+    private static BigDecimal constantValue(CompiledExpression.Node node) {
+        if (node instanceof CompiledExpression.Constant) {
+            return decimalValue((CompiledExpression.Constant) node);
+        }
+        if (node instanceof CompiledExpression.UnaryNode && ((CompiledExpression.UnaryNode) node).opcode == ExpressionProgram.NEGATE) {
+            BigDecimal value = constantValue(((CompiledExpression.UnaryNode) node).operand);
+            return value == null ? null : value.negate();
+        }
+        return null;
+    }
+
+    /**
+     * Emits the instructions of a tree in postfix order.
+     */
+    private static final class Builder {
+        private int[] code = new int[16];
+        private int length;
+        private final List<BigDecimal> constants = new ArrayList<>();
+        private int depth;
+        private int maxDepth;
+
+        /**
+         * Emits a subtree.
+         *
+         * @return false if the subtree uses an operation without a precise implementation
+         */
+        boolean emit(CompiledExpression.Node node) {
+            if (node instanceof CompiledExpression.Constant) {
+                if (!Double.isFinite(((CompiledExpression.Constant) node).value)) {
+                    return false;
+                }
+                append(CONSTANT, constants.size());
+                constants.add(decimalValue((CompiledExpression.Constant) node));
+                push();
+                return true;
+            }
+            if (node instanceof CompiledExpression.Variable) {
+                append(VARIABLE, ((CompiledExpression.Variable) node).index);
+                push();
+                return true;
+            }
+            if (node instanceof CompiledExpression.UnaryNode) {
+                CompiledExpression.UnaryNode unary = (CompiledExpression.UnaryNode) node;
+                if (unary.opcode != ExpressionProgram.NEGATE || !emit(unary.operand)) {
+                    return false;
+                }
+                append(NEGATE, 0);
+                return true;
+            }
+            if (!(node instanceof CompiledExpression.BinaryNode)) {
+                return false;
+            }
+            CompiledExpression.BinaryNode binary = (CompiledExpression.BinaryNode) node;
+            if (binary.opcode == ExpressionProgram.POWER) {
+                BigDecimal exponent = constantValue(binary.right);
+                if (exponent == null || exponent.signum() != 0 && exponent.stripTrailingZeros().scale() > 0
+                        || exponent.abs().compareTo(BigDecimal.valueOf(MAX_EXPONENT)) > 0 || !emit(binary.left)) {
+                    return false;
+                }
+                append(POWER, exponent.intValueExact());
+                return true;
+            }
+            int opcode;
+            switch (binary.opcode) {
+                case ExpressionProgram.ADD:
+                    opcode = ADD;
+                    break;
+                case ExpressionProgram.SUBTRACT:
+                    opcode = SUBTRACT;
+                    break;
+                case ExpressionProgram.MULTIPLY:
+                    opcode = MULTIPLY;
+                    break;
+                case ExpressionProgram.DIVIDE:
+                    opcode = DIVIDE;
+                    break;
+                default:
+                    return false;
+            }
+            if (!emit(binary.left) || !emit(binary.right)) {
+                return false;
+            }
+            append(opcode, 0);
+            depth--;
+            return true;
+        }
+
+        private void append(int opcode, int operand) {
+            if (length + 2 > code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            code[length++] = opcode;
+            code[length++] = operand;
+        }
+
+        private void push() {
+            maxDepth = Math.max(maxDepth, ++depth);
+        }
+
+        PreciseProgram build() {
+            return new PreciseProgram(Arrays.copyOf(code, length), constants.toArray(new BigDecimal[0]), maxDepth);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.math.BigDecimal;
+
+/**
+ * The result of a precise evaluation: a decimal value rounded to the requested precision and the
+ * tier that computed it.
+ *
+ * @see CompiledExpression#evaluate(double[], java.math.MathContext)
+ */
+public final class PreciseResult {
+
+    private final BigDecimal value;
+    private final NumericTier tier;
+    private final boolean verified;
+
+    /**
+     * Constructs a result.
+     *
+     * @param value    the value, rounded to the requested precision; trailing zeros are removed
+     * @param tier     the tier that computed the value
+     * @param verified whether the value is guaranteed to be correctly rounded
+     */
+    PreciseResult(BigDecimal value, NumericTier tier, boolean verified) {
+        this.value = value.stripTrailingZeros();
+        this.tier = tier;
+        this.verified = verified;
+    }
+
+    /**
+     * Gets the value, rounded to the requested precision and without trailing zeros, so that
+     * {@code 0.1*3} is {@code 0.3} and {@code 10^400} is {@code 1E+400}.
+     *
+     * @return the value
+     */
+    public BigDecimal getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the value as the nearest double.
+     *
+     * @return the value
+     */
+    public double doubleValue() {
+        return value.doubleValue();
+    }
+
+    /**
+     * Gets the tier that computed the value.
+     *
+     * @return the tier
+     */
+    public NumericTier getTier() {
+        return tier;
+    }
+
+    /**
+     * Tells whether the value is guaranteed to be the exact result rounded to the requested
+     * precision. Only expressions of the four arithmetic operators, negation and integer powers
+     * are verified; others are evaluated with doubles and their value is rounded as it is.
+     *
+     * @return true if the value is correctly rounded
+     */
+    public boolean isVerified() {
+        return verified;
+    }
+
+    @Override
+    public String toString() {
+        return value + " (" + tier + (verified ? ")" : ", unverified)");
+    }
+}
@@ -0,0 +1,109 @@
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for precise evaluation in escalating numeric tiers.
+ */
+public class PrecisionTest {
+
+    /**
+     * Tests that each tier answers when it is the cheapest one accurate enough.
+     */
+    @Test
+    public void testTiers() {
+        Calculator calculator = new Calculator();
+        assertResult("5", NumericTier.DOUBLE, calculator.calculate("2+3", MathContext.DECIMAL128),
+                "exact double arithmetic should need no other tier");
+        assertResult("0.3333333333333333", NumericTier.DOUBLE, calculator.calculate("1/3", MathContext.DECIMAL64),
+                "a double quotient should be accurate to 16 digits");
+        assertResult("0.3", NumericTier.DOUBLE_DOUBLE, calculator.calculate("0.1+0.2", MathContext.DECIMAL64),
+                "decimal literals should be taken as written, and the double sum is too close to a rounding boundary");
+        assertResult("1.5", NumericTier.DOUBLE_DOUBLE,
+                calculator.calculate("(10000000000000000+1.5)-10000000000000000", new MathContext(10)),
+                "cancellation should move the evaluation to double-doubles");
+        assertResult("0.3", NumericTier.DECIMAL, calculator.calculate("0.1+0.2", MathContext.DECIMAL128),
+                "34 digits should need decimals");
+        assertResult("0.3333333333333333333333333333333333", NumericTier.DECIMAL,
+                calculator.calculate("1/3", MathContext.DECIMAL128), "34 digits of a quotient should need decimals");
+        assertResult("0.30000000000000000000000", NumericTier.DOUBLE_DOUBLE,
+                calculator.calculate("0.1*3", new MathContext(23)), "23 digits should fit in a double-double");
+    }
+
+    /**
+     * Tests variables, powers and the results of expressions no tier can improve.
+     */
+    @Test
+    public void testOperations() {
+        Calculator calculator = new Calculator();
+        CompiledExpression interest = calculator.compile("p*(1+r/12)^12");
+        assertResult("1051.161897881733189804873890960800", NumericTier.DECIMAL,
+                interest.evaluate(new double[]{1000, 0.05}, MathContext.DECIMAL128), "compound interest to 34 digits");
+        assertResult("1051.1618978817331898049", NumericTier.DOUBLE_DOUBLE,
+                interest.evaluate(new double[]{1000, 0.05}, new MathContext(23)), "compound interest to 23 digits");
+        assertFalse(calculator.compile("p*(1+r/12)^n").evaluate(new double[]{1000, 0.05, 12}, MathContext.DECIMAL64).isVerified(),
+                "variable exponents should not be verified");
+        assertResult("1.21", NumericTier.DECIMAL, calculator.calculate("1.1^2", MathContext.DECIMAL128), "1.1 squared");
+        assertResult("0.25", NumericTier.DOUBLE, calculator.calculate("2^-2", MathContext.DECIMAL128), "negative exponent");
+        assertResult("1E+400", NumericTier.DECIMAL, calculator.calculate("10^400", MathContext.DECIMAL64),
+                "results beyond the range of doubles should be computed with decimals");
+        assertEquals(-2.5, calculator.calculate("-(1-3.5)*-1", MathContext.DECIMAL64).doubleValue());
+        assertResult("370370367.370370367", NumericTier.DECIMAL,
+                calculator.calculate("123456789.123456789*3", MathContext.DECIMAL128), "long literals should be taken as written");
+        assertResult("370370367.370370367", NumericTier.DECIMAL,
+                calculator.calculate("123456789.123456789*3", MathContext.UNLIMITED), "long literals should be taken as written");
+        assertEquals("0.3", calculator.calculate("0.1*3", MathContext.DECIMAL128).getValue().toString());
+        assertEquals("1", calculator.calculate("1/7*7", MathContext.DECIMAL128).getValue().toString());
+        assertEquals("1E+400", calculator.calculate("10^400", MathContext.UNLIMITED).getValue().toString());
+        assertResult("0.125", NumericTier.DOUBLE, calculator.calculate("1/8", MathContext.DECIMAL64), "a terminating quotient");
+        assertResult("0.125", NumericTier.DOUBLE, calculator.calculate("1/8", MathContext.UNLIMITED), "an exact quotient");
+        assertResult("0.1", NumericTier.DECIMAL, calculator.calculate("1/10", MathContext.UNLIMITED), "a terminating quotient");
+        assertThrows(IllegalArgumentException.class, () -> calculator.calculate("1/3", MathContext.UNLIMITED),
+                "a quotient without a finite decimal expansion needs a precision");
+        assertThrows(ArithmeticException.class, () -> calculator.calculate("1/(3-3)", MathContext.UNLIMITED));
+        assertFalse(calculator.calculate("2^3.0000000000000000001", MathContext.DECIMAL64).isVerified(),
+                "an exponent that is not an integer as written should not be verified");
+        for (String expression : new String[]{"(1/3)*3-1", "(2/3)*3-2", "(1/7)*7-1", "1/(1/3)^2-9"}) {
+            assertResult("0", NumericTier.DECIMAL, calculator.calculate(expression, MathContext.DECIMAL64),
+                    expression + " should cancel exactly");
+        }
+        assertResult("1E-40", NumericTier.DECIMAL, calculator.calculate("(1/3)*3-1+10^-40", MathContext.DECIMAL64),
+                "a quotient should not be rounded before the result");
+
+        PreciseResult sine = calculator.calculate("sin(30)", MathContext.DECIMAL64);
+        assertFalse(sine.isVerified(), "functions should not be verified");
+        assertEquals(NumericTier.DOUBLE, sine.getTier());
+        assertEquals(0.5, sine.doubleValue(), 1e-12);
+        assertFalse(calculator.calculate("2^0.5", MathContext.DECIMAL64).isVerified(), "fractional powers should not be verified");
+
+        assertThrows(ArithmeticException.class, () -> calculator.calculate("1/0", MathContext.DECIMAL64));
+        assertThrows(ArithmeticException.class, () -> calculator.calculate("1/(0.1+0.2-0.3)", MathContext.DECIMAL64),
+                "a divisor that is zero only in decimal should be found");
+        assertThrows(IllegalArgumentException.class,
+                () -> calculator.compile("x+1").evaluate(new double[]{Double.NaN}, MathContext.DECIMAL64));
+    }
+
+    /**
+     * Tests that every starting tier gives the same correctly rounded result.
+     */
+    @Test
+    public void testForcedTiers() {
+        CompiledExpression expression = new Calculator().compile("x*y+x/3-y*y*0.5+(x-y)*(x+y)");
+        double[] variables = {0.7, 2.9};
+        BigDecimal expected = expression.evaluate(variables, MathContext.DECIMAL64, NumericTier.DECIMAL).getValue();
+        for (NumericTier tier : NumericTier.values()) {
+            PreciseResult result = expression.evaluate(variables, MathContext.DECIMAL64, tier);
+            assertEquals(0, expected.compareTo(result.getValue()), "starting in " + tier);
+            assertTrue(result.getTier().compareTo(tier) >= 0, "no tier before the first should answer");
+        }
+    }
+
+    private static void assertResult(String expected, NumericTier tier, PreciseResult result, String message) {
+        assertEquals(0, new BigDecimal(expected).compareTo(result.getValue()), message + ": " + result);
+        assertEquals(tier, result.getTier(), message);
+        assertTrue(result.isVerified(), message);
+    }
+}
@@ -8,4 +8,41 @@ public interface ScientificOperation {
      */
 
     double apply(double a);
+
+    /**
+     * Checks without throwing whether {@link #apply(double)} accepts an operand.
+     * Operations that throw for some operands override this to report the same cases.
+     *
+     * @param a the operand
+     * @return the error applying the operation would raise, or null if it succeeds
+     */
+    default CalculationError check(double a) {
+        return null;
+    }
+
+    /**
+     * Computes the derivative of the operation at an operand, for the gradients of
+     * {@link CompiledExpression#evaluateGradient(double[], double[])}. Operations without a
+     * derivative keep the default, which makes the gradient NaN wherever it depends on them.
+     *
+     * @param a the operand
+     * @return the derivative, or NaN if it is unknown
+     */
+    default double derivative(double a) {
+        return Double.NaN;
+    }
+
+    /**
+     * Applies the operation to a range of operands, element by element. Operations with a faster
+     * bulk form override this; the results array may be the operand array.
+     *
+     * @param operands the operands
+     * @param results  the array receiving the results
+     * @param length   the number of elements, starting at index 0
+     */
+    default void applyAll(double[] operands, double[] results, int length) {
+        for (int i = 0; i < length; i++) {
+            results[i] = apply(operands[i]);
+        }
+    }
 }
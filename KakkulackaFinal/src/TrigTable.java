@@ -0,0 +1,224 @@
+import java.util.Locale;
+
+/**
+ * A dense lookup table of the sine over one full turn, answering sine, cosine and tangent of
+ * angles in degrees by direct indexing plus linear or cubic interpolation.
+ * This trades memory for latency: at the default resolution of 0.01 degrees the table holds
+ * 36,000 doubles (about 280 KB) and cubic interpolation keeps the error below 4e-15.
+ *
+ * <p>The error bound reported by {@link #getErrorBound()} is the interpolation remainder for the
+ * sine (h&sup2;/8 for linear and 3h&#x2074;/128 for cubic interpolation, with the step h in radians)
+ * plus an allowance for the rounding of the tabulated values and of the reduced angle.
+ * A table is immutable and can be shared between threads.
+ */
+public final class TrigTable {
+
+    /**
+     * The interpolation used between tabulated values.
+     */
+    public enum Interpolation {
+        LINEAR,
+        CUBIC
+    }
+
+    /**
+     * The resolution used when none is configured, in degrees.
+     */
+    public static final double DEFAULT_RESOLUTION = 0.01;
+
+    private static final int MAX_SIZE = 1 << 26;
+    private static final double ROUNDING_ERROR = 16 * Math.ulp(1.0);
+
+    private final Interpolation interpolation;
+    private final int size;
+    private final double step;
+    private final double inverseStep;
+    private final double[] sine;
+    private final double errorBound;
+
+    /**
+     * Constructs a table with the given resolution. The resolution is adjusted down so that a
+     * whole number of steps makes up 360 degrees.
+     *
+     * @param resolution    the distance between tabulated angles, in degrees
+     * @param interpolation the interpolation between tabulated values
+     * @throws IllegalArgumentException if the resolution is not positive or the table would be too large
+     */
+    public TrigTable(double resolution, Interpolation interpolation) {
+        if (!(resolution > 0)) {
+            throw new IllegalArgumentException("Resolution must be positive: " + resolution);
+        }
+        double steps = Math.ceil(360 / resolution);
+        if (steps > MAX_SIZE) {
+            throw new IllegalArgumentException("Resolution is too fine for a lookup table: " + resolution);
+        }
+        this.interpolation = interpolation;
+        this.size = (int) steps;
+        this.step = 360.0 / size;
+        this.inverseStep = size / 360.0;
+
+        // One extra entry before and two after the turn let cubic interpolation read i-1..i+2 without wrapping.
+        this.sine = new double[size + 3];
+        for (int i = -1; i <= size + 1; i++) {
+            sine[i + 1] = StrictMath.sin(2 * Math.PI * i / size);
+        }
+
+        double h = Math.toRadians(step);
+        double remainder = interpolation == Interpolation.LINEAR ? h * h / 8 : 3 * h * h * h * h / 128;
+        this.errorBound = remainder + ROUNDING_ERROR;
+    }
+
+    /**
+     * Constructs the coarsest table whose error bound does not exceed the given maximum error.
+     *
+     * @param maxError      the largest acceptable absolute error
+     * @param interpolation the interpolation between tabulated values
+     * @return the table
+     * @throws IllegalArgumentException if the error cannot be reached with a table of reasonable size
+     */
+    public static TrigTable forMaxError(double maxError, Interpolation interpolation) {
+        if (!(maxError > ROUNDING_ERROR)) {
+            throw new IllegalArgumentException("Maximum error is below the rounding of the table: " + maxError);
+        }
+        double remainder = maxError - ROUNDING_ERROR;
+        double h = interpolation == Interpolation.LINEAR
+                ? Math.sqrt(8 * remainder)
+                : Math.pow(128 * remainder / 3, 0.25);
+        return new TrigTable(Math.min(Math.toDegrees(h), 90), interpolation);
+    }
+
+    /**
+     * Creates the table selected by system properties, for use at startup.
+     * {@code calculator.trigTable} selects the interpolation ({@code linear} or {@code cubic});
+     * {@code calculator.trigTable.maxError} or else {@code calculator.trigTable.resolution}
+     * (in degrees, default {@value #DEFAULT_RESOLUTION}) selects the table size.
+     *
+     * @return the configured table, or null if table-driven trigonometry is not enabled
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public static TrigTable fromSystemProperties() {
+        String mode = System.getProperty("calculator.trigTable");
+        if (mode == null || mode.isEmpty() || mode.equalsIgnoreCase("none")) {
+            return null;
+        }
+        Interpolation interpolation;
+        try {
+            interpolation = Interpolation.valueOf(mode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("calculator.trigTable must be none, linear or cubic: " + mode);
+        }
+        String maxError = System.getProperty("calculator.trigTable.maxError");
+        if (maxError != null) {
+            return forMaxError(parseProperty("calculator.trigTable.maxError", maxError), interpolation);
+        }
+        String resolution = System.getProperty("calculator.trigTable.resolution");
+        return new TrigTable(resolution == null ? DEFAULT_RESOLUTION
+                : parseProperty("calculator.trigTable.resolution", resolution), interpolation);
+    }
+
+    private static double parseProperty(String name, String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number: " + value);
+        }
+    }
+
+    /**
+     * Computes the sine of an angle in degrees from the table.
+     *
+     * @param degrees the angle in degrees
+     * @return the interpolated sine
+     */
+    public double sin(double degrees) {
+        double reduced = degrees % 360;
+        if (reduced < 0) {
+            reduced += 360;
+        }
+        double position = reduced * inverseStep;
+        int index = (int) position;
+        if (index >= size) {
+            index = size - 1;
+        }
+        double t = position - index;
+        if (!(t >= 0)) {
+            return Double.NaN;
+        }
+
+        // The tabulated value of angle index i is stored at i + 1.
+        if (interpolation == Interpolation.LINEAR) {
+            double y1 = sine[index + 1];
+            return y1 + t * (sine[index + 2] - y1);
+        }
+        double y0 = sine[index];
+        double y1 = sine[index + 1];
+        double y2 = sine[index + 2];
+        double y3 = sine[index + 3];
+        double tp1 = t + 1;
+        double tm1 = t - 1;
+        double tm2 = t - 2;
+        return (-y0 * t * tm1 * tm2 + y3 * tp1 * t * tm1) / 6 + (y1 * tp1 * tm1 * tm2 - y2 * tp1 * t * tm2) / 2;
+    }
+
+    /**
+     * Computes the cosine of an angle in degrees from the table.
+     *
+     * @param degrees the angle in degrees
+     * @return the interpolated cosine
+     */
+    public double cos(double degrees) {
+        return sin(degrees % 360 + 90);
+    }
+
+    /**
+     * Computes the tangent of an angle in degrees from the table.
+     *
+     * @param degrees the angle in degrees
+     * @return the ratio of the interpolated sine and cosine
+     */
+    public double tan(double degrees) {
+        return sin(degrees) / cos(degrees);
+    }
+
+    /**
+     * Gets the bound on the absolute error of {@link #sin} and {@link #cos}.
+     *
+     * @return the error bound
+     */
+    public double getErrorBound() {
+        return errorBound;
+    }
+
+    /**
+     * Gets the distance between tabulated angles.
+     *
+     * @return the resolution in degrees
+     */
+    public double getResolution() {
+        return step;
+    }
+
+    /**
+     * Gets the number of tabulated angles in one turn.
+     *
+     * @return the table size
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the interpolation between tabulated values.
+     *
+     * @return the interpolation
+     */
+    public Interpolation getInterpolation() {
+        return interpolation;
+    }
+
+    @Override
+    public String toString() {
+        return "TrigTable[" + interpolation + ", resolution=" + step + " degrees, size=" + size
+                + ", errorBound=" + errorBound + "]";
+    }
+}